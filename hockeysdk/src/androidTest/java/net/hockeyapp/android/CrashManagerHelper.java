@@ -19,6 +19,7 @@ public class CrashManagerHelper {
         CrashManager.weakContext = new WeakReference<>(context);
         CrashManager.latch = new CountDownLatch(1);
         CrashManager.stackTracesCount = 0;
+        CrashManager.reportIndex = null;
     }
 
     public static File cleanFiles(Context context) {
@@ -16,6 +16,7 @@ import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -29,10 +30,19 @@ public class CrashManagerTest {
 
     private static final String DUMMY_APP_IDENTIFIER = "12345678901234567890123456789012";
 
+    private static final AtomicInteger sFakeCrashCount = new AtomicInteger();
+
     private File filesDirectory;
 
+    /**
+     * Saves a crash which differs from all crashes saved before, so it is not counted as a
+     * repeat of one of them.
+     */
     private static void fakeCrashReport() {
         Throwable tr = new RuntimeException("Just a test exception");
+        tr.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("FakeCrash", "crash" + sFakeCrashCount.incrementAndGet(), null, -1)
+        });
         ExceptionHandler.saveException(tr, Thread.currentThread(), null);
     }
 
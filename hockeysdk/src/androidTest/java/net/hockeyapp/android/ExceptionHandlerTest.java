@@ -11,13 +11,19 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FilenameFilter;
+import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
 @RunWith(AndroidJUnit4.class)
 public class ExceptionHandlerTest {
 
+    private static final AtomicInteger sFakeCrashCount = new AtomicInteger();
+
     private File filesDirectory;
 
     @Before
@@ -76,6 +82,18 @@ public class ExceptionHandlerTest {
         assertEquals(CrashManager.MAX_NUMBER_OF_CRASHFILES, CrashManager.stackTracesCount);
     }
 
+    @Test
+    public void writerIsReservedAgainAfterSavingException() throws InterruptedException {
+        fakeCrashReport();
+
+        // The writer used for the report has been committed, a pending report is a new reservation.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listPendingReports().length == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, listPendingReports().length);
+    }
+
     @SuppressWarnings("ThrowableInstanceNeverThrown")
     @Test
     public void saveExceptionCustomListenerTest() {
@@ -89,8 +107,53 @@ public class ExceptionHandlerTest {
         assertEquals(1, files.length);
     }
 
+    @Test
+    public void defaultHandlerIsCalledWhenListenerFails() {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        PrivateEventManager.addEventListener(new PrivateEventManager.HockeyEventListener() {
+
+            @Override
+            public void onHockeyEvent(PrivateEventManager.Event event) {
+                if (failing.getAndSet(false)) {
+                    throw new OutOfMemoryError("Just a test error");
+                }
+            }
+        });
+        final AtomicBoolean defaultHandlerCalled = new AtomicBoolean();
+        UncaughtExceptionHandler defaultHandler = new UncaughtExceptionHandler() {
+
+            @Override
+            public void uncaughtException(Thread thread, Throwable exception) {
+                defaultHandlerCalled.set(true);
+            }
+        };
+
+        new ExceptionHandler(defaultHandler, null, false).uncaughtException(Thread.currentThread(),
+                new RuntimeException("Just a test exception"));
+
+        assertFalse(failing.get());
+        assertTrue(defaultHandlerCalled.get());
+    }
+
+    private File[] listPendingReports() {
+        return filesDirectory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(CrashReportWriter.PENDING_EXTENSION);
+            }
+        });
+    }
+
+    /**
+     * Saves a crash which differs from all crashes saved before, so it is not counted as a
+     * repeat of one of them.
+     */
     private static void fakeCrashReport() {
         Throwable tr = new RuntimeException("Just a test exception");
+        tr.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("FakeCrash", "crash" + sFakeCrashCount.incrementAndGet(), null, -1)
+        });
         ExceptionHandler.saveException(tr, Thread.currentThread(), null);
     }
 }
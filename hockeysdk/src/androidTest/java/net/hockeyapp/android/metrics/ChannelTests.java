@@ -39,6 +39,7 @@ public class ChannelTests {
         PublicTelemetryContext mockContext = mock(PublicTelemetryContext.class);
         when(mockContext.getPackageName()).thenReturn(MOCK_APP_ID);
         when(mockContext.getContextTags()).thenReturn(tags);
+        when(mockContext.getContextTagsSnapshot()).thenReturn(new ContextTags(0, tags));
         when(mockContext.getAppVersion()).thenReturn(MOCK_APP_VER);
         when(mockContext.getInstrumentationKey()).thenReturn(MOCK_IKEY);
         when(mockContext.getOsVersion()).thenReturn(MOCK_OS_VER);
@@ -84,7 +85,23 @@ public class ChannelTests {
         sut.enqueueData(new Data<>());
         assertEquals(0, sut.mQueue.size());
 
-        verify(mockPersistence).persist(any(String[].class));
+        verify(mockPersistence).persist(any(String[].class), eq(Channel.getMaxBatchCount()), anyLong(), eq(PriorityLane.LOW));
+    }
+
+    @Test
+    public void testSampleRateIsStampedOnEnvelope() {
+        sut.enqueueData(new Data<>(), System.currentTimeMillis(), 10);
+
+        String[] items = new String[1];
+        assertEquals(1, sut.mQueue.drainTo(items));
+        assertTrue(items[0].contains("\"sampleRate\":10"));
+    }
+
+    @Test
+    public void testSynchronizeWithEmptyQueueDoesNotPersist() {
+        sut.synchronize();
+
+        verify(mockPersistence, never()).persist(any(String[].class), anyInt(), anyLong(), any(PriorityLane.class));
     }
 
     @Test
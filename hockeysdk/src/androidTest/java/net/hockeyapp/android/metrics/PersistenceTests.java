@@ -9,6 +9,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import static junit.framework.Assert.*;
@@ -44,7 +46,7 @@ public class PersistenceTests {
         String testSerializedString = "test\ndata";
 
         spy.persist(testData);
-        verify(spy).writeToDisk(testSerializedString);
+        verify(spy).writeToDisk(eq(testSerializedString), eq(2), anyLong(), eq(PriorityLane.LOW));
     }
 
     @Test
@@ -71,39 +73,91 @@ public class PersistenceTests {
     }
 
     @Test
-    public void testNextFileRequestReturnsUnreservedFile() {
-        // Mock file system with 2 files
-        File mockDirectory = mock(File.class);
-        File mockFile1 = mock(File.class);
-        File mockFile2 = mock(File.class);
-        File[] mockFiles = {mockFile1, mockFile2};
-        when(mockDirectory.listFiles()).thenReturn(mockFiles);
+    public void testNextFileRequestReturnsUnreservedFile() throws Exception {
+        // File system with 2 files
+        File directory = new File(InstrumentationRegistry.getContext().getCacheDir(), "telemetry-test");
+        deleteRecursively(directory);
+        assertTrue(directory.mkdirs());
+        File file1 = new File(directory, "file1");
+        File file2 = new File(directory, "file2");
+        writeFile(file1, "test");
+        writeFile(file2, "data");
 
         sut = spy(new PublicPersistence(InstrumentationRegistry.getContext(), null));
-        when(sut.getTelemetryDirectory()).thenReturn(mockDirectory);
+        when(sut.getTelemetryDirectory()).thenReturn(directory);
 
-        // Mock served list containing 1 file
+        // Served list containing 1 file
         ArrayList<File> servedFiles = new ArrayList<>();
-        servedFiles.add(mockFile1);
+        servedFiles.add(file1);
         sut.mServedFiles = servedFiles;
 
         // Test hasFilesAvailable
         assertTrue(sut.hasFilesAvailable());
-        assertTrue(!sut.mServedFiles.contains(mockFile2));
+        assertTrue(!sut.mServedFiles.contains(file2));
         assertTrue(sut.hasFilesAvailable());
 
         // Test one unreserved file left
         File result = sut.nextAvailableFileInDirectory();
-        assertEquals(mockFile2, result);
-        assertTrue(sut.mServedFiles.contains(mockFile2));
+        assertEquals(file2, result);
+        assertTrue(sut.mServedFiles.contains(file2));
 
         // Test all files are already in use
         result = sut.nextAvailableFileInDirectory();
         assertNull(result);
+
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void testPersistedBatchesAreAppendedToOneFile() throws Exception {
+        File directory = new File(InstrumentationRegistry.getContext().getCacheDir(), "telemetry-test");
+        deleteRecursively(directory);
+        assertTrue(directory.mkdirs());
+
+        sut = spy(new PublicPersistence(InstrumentationRegistry.getContext(), null));
+        when(sut.getTelemetryDirectory()).thenReturn(directory);
+
+        sut.persist(new String[]{"test", "data"});
+        sut.persist(new String[]{"more"});
+
+        File result = sut.nextAvailableFileInDirectory();
+        assertNotNull(result);
+        assertEquals("test\ndata\nmore", sut.load(result));
+        byte[] persisted = sut.loadBytes(result);
+        assertTrue(GzipCodec.isCompressed(persisted, persisted.length));
+        assertEquals(14, sut.getLog().getAppendedSize());
+        assertEquals(persisted.length, sut.getLog().getStoredSize());
+        assertNull(sut.nextAvailableFileInDirectory());
+
+        sut.deleteFile(result);
+        assertFalse(result.exists());
+        assertEquals(0, sut.getLog().getTotalSize());
+
+        deleteRecursively(directory);
     }
 
     @Test
     public void testloadFileWorks() {
         //TODO: Write test after sender integration
     }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
 }
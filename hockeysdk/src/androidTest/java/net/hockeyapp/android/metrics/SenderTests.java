@@ -27,7 +27,7 @@ public class SenderTests {
     public void setUp() throws Exception {
         mockPersistence = mock(PublicPersistence.class);
         when(mockPersistence.nextAvailableFileInDirectory()).thenReturn(mock(File.class), (File)null);
-        when(mockPersistence.load(mock(File.class))).thenReturn("SomethingToTest");
+        when(mockPersistence.loadBytes(mock(File.class))).thenReturn("SomethingToTest".getBytes());
         sut = new Sender();
         sut.setPersistence(mockPersistence);
 
@@ -101,14 +101,14 @@ public class SenderTests {
     @Test
     public void testFilesGetDeletedAfterUnrecoverable() {
         File mockFile1 = mock(File.class);
-        sut.onResponse(sut.createConnection(), 501, "test", mockFile1);
+        sut.onResponse(sut.createConnection(), 501, 4L, mockFile1);
         verify(sut.getPersistence()).deleteFile(mockFile1);
     }
 
     @Test
     public void testFilesGetUnblockedForRecoverableError() {
         File mockFile = mock(File.class);
-        sut.onResponse(sut.createConnection(), 500, "test", mockFile);
+        sut.onResponse(sut.createConnection(), 500, 4L, mockFile);
         verify(sut.getPersistence()).makeAvailable(mockFile);
     }
 }
@@ -81,4 +81,17 @@ public class TelemetryContextTests {
         sut.setIsNewSession("IsNewSession");
         assertEquals(sut.mSession.getIsNew(), sut.getIsNewSession());
     }
+
+    @Test
+    public void testContextTagsSnapshotIsReusedUntilContextChanges() {
+        ContextTags snapshot = sut.getContextTagsSnapshot();
+        assertSame(snapshot, sut.getContextTagsSnapshot());
+
+        sut.setSessionId("SessionId");
+        ContextTags renewed = sut.getContextTagsSnapshot();
+        assertNotSame(snapshot, renewed);
+        assertEquals("SessionId", renewed.getTags().get("ai.session.id"));
+        assertTrue(renewed.getSerializedTags().contains("\"ai.session.id\":\"SessionId\""));
+        assertSame(renewed, sut.getContextTagsSnapshot());
+    }
 }
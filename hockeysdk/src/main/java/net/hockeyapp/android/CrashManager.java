@@ -7,7 +7,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
-import android.net.TrafficStats;
 import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
@@ -17,8 +16,8 @@ import net.hockeyapp.android.objects.CrashManagerUserInput;
 import net.hockeyapp.android.objects.CrashMetaData;
 import net.hockeyapp.android.utils.AsyncTaskUtils;
 import net.hockeyapp.android.utils.CompletedFuture;
+import net.hockeyapp.android.utils.CrashBundle;
 import net.hockeyapp.android.utils.HockeyLog;
-import net.hockeyapp.android.utils.HttpsURLConnectionBuilder;
 import net.hockeyapp.android.utils.Util;
 
 import java.io.BufferedReader;
@@ -30,15 +29,15 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.ref.WeakReference;
-import javax.net.ssl.HttpsURLConnection;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <h3>Description</h3>
@@ -75,6 +74,16 @@ public class CrashManager {
      */
     static int stackTracesCount = 0;
 
+    /**
+     * Writer reserved for the next crash, so saving it does not depend on allocating memory.
+     */
+    private static final AtomicReference<CrashReportWriter> reservedWriter = new AtomicReference<>();
+
+    /**
+     * Fingerprints of the saved crash reports, built together with the reserved writer.
+     */
+    static volatile CrashReportIndex reportIndex;
+
     /**
      * Lock used to wait last session crash info.
      */
@@ -399,97 +408,52 @@ public class CrashManager {
                     return;
                 }
             }
-            for (String file : list) {
-                submitStackTrace(weakContext, file, listener, crashMetaData);
-            }
+            submitStackTraces(weakContext, list, listener, crashMetaData);
         }
     }
 
-    private static void submitStackTrace(final WeakReference<Context> weakContext, String filename, CrashManagerListener listener, CrashMetaData crashMetaData) {
-        String stacktrace = null;
-        try {
-            stacktrace = contentsOfFile(weakContext, filename, HttpsURLConnectionBuilder.FORM_FIELD_LIMIT);
-        } catch (Exception e) {
-            HockeyLog.error("Failed to read crash data", e);
-        }
-        if (TextUtils.isEmpty(stacktrace)) {
-            HockeyLog.warn("The crash data is invalid");
-            deleteStackTrace(weakContext, filename);
-            if (listener != null) {
-                listener.onCrashesNotSent();
-                deleteRetryCounter(weakContext, filename);
-            }
+    /**
+     * Submits stack traces as one batch and handles the result of each of them.
+     */
+    private static void submitStackTraces(final WeakReference<Context> weakContext, String[] filenames, CrashManagerListener listener, CrashMetaData crashMetaData) {
+        Context context = weakContext != null ? weakContext.get() : null;
+        if (context == null) {
             return;
         }
-        Boolean successful = false;
-        HttpsURLConnection urlConnection = null;
-        try {
-            // Transmit stack trace with POST request
-            HockeyLog.debug("Transmitting crash data: \n" + stacktrace);
-
-            // Retrieve user ID and contact information if given
-            String userID = contentsOfFile(weakContext, filename.replace(".stacktrace", ".user"), 0);
-            String contact = contentsOfFile(weakContext, filename.replace(".stacktrace", ".contact"), 0);
-
-            if (crashMetaData != null) {
-                final String crashMetaDataUserID = crashMetaData.getUserID();
-                if (!TextUtils.isEmpty(crashMetaDataUserID)) {
-                    userID = crashMetaDataUserID;
-                }
-                final String crashMetaDataContact = crashMetaData.getUserEmail();
-                if (!TextUtils.isEmpty(crashMetaDataContact)) {
-                    contact = crashMetaDataContact;
-                }
-            }
-
-            // Append application log to user provided description if present, if not, just send application log
-            final String applicationLog = contentsOfFile(weakContext, filename.replace(".stacktrace", ".description"), 0);
-            String description = crashMetaData != null ? crashMetaData.getUserDescription() : "";
-            if (!TextUtils.isEmpty(applicationLog)) {
-                if (!TextUtils.isEmpty(description)) {
-                    description = String.format("%s\n\nLog:\n%s", description, applicationLog);
-                } else {
-                    description = String.format("Log:\n%s", applicationLog);
-                }
-            }
-
-            Map<String, String> parameters = new HashMap<>();
-            parameters.put("raw", stacktrace);
-            parameters.put("userID", userID);
-            parameters.put("contact", contact);
-            parameters.put("description", description);
-            parameters.put("sdk", Constants.SDK_NAME);
-            parameters.put("sdk_version", BuildConfig.VERSION_NAME);
-
-            TrafficStats.setThreadStatsTag(Constants.THREAD_STATS_TAG);
-            urlConnection = new HttpsURLConnectionBuilder(getURLString())
-                    .setRequestMethod("POST")
-                    .writeFormFields(parameters)
-                    .build();
-
-            int responseCode = urlConnection.getResponseCode();
-            successful = (responseCode == HttpsURLConnection.HTTP_ACCEPTED || responseCode == HttpsURLConnection.HTTP_CREATED);
-        } catch (Exception e) {
-            HockeyLog.error("Failed to transmit crash data", e);
-        } finally {
-            TrafficStats.clearThreadStatsTag();
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (successful) {
-                HockeyLog.debug("Transmission succeeded");
-                deleteStackTrace(weakContext, filename);
-
-                if (listener != null) {
-                    listener.onCrashesSent();
-                    deleteRetryCounter(weakContext, filename);
-                }
-            } else {
-                HockeyLog.debug("Transmission failed, will retry on next register() call");
-                if (listener != null) {
-                    listener.onCrashesNotSent();
-                    updateRetryCounter(weakContext, filename, listener.getMaxRetryAttempts());
-                }
+        File[] files = new File[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            files[i] = context.getFileStreamPath(filenames[i]);
+        }
+        int[] results = new CrashReportSender(getURLString(), crashMetaData).submit(files);
+        for (int i = 0; i < filenames.length; i++) {
+            String filename = filenames[i];
+            switch (results[i]) {
+                case CrashReportSender.RESULT_SENT:
+                    HockeyLog.debug("Transmission succeeded");
+                    deleteStackTrace(weakContext, filename);
+                    if (listener != null) {
+                        listener.onCrashesSent();
+                        deleteRetryCounter(weakContext, filename);
+                    }
+                    break;
+                case CrashReportSender.RESULT_INVALID:
+                    deleteStackTrace(weakContext, filename);
+                    if (listener != null) {
+                        listener.onCrashesNotSent();
+                        deleteRetryCounter(weakContext, filename);
+                    }
+                    break;
+                case CrashReportSender.RESULT_FAILED:
+                    HockeyLog.debug("Transmission failed, will retry on next register() call");
+                    if (listener != null) {
+                        listener.onCrashesNotSent();
+                        updateRetryCounter(weakContext, filename, listener.getMaxRetryAttempts());
+                    }
+                    break;
+                default:
+                    // Not attempted, does not count as a retry.
+                    HockeyLog.debug("Transmission of " + filename + " postponed to next register() call");
+                    break;
             }
         }
     }
@@ -689,9 +653,7 @@ public class CrashManager {
                     }
                     saveConfirmedStackTraces(weakContext, list);
                     if (isConnectedToNetwork) {
-                        for (String file : list) {
-                            submitStackTrace(weakContext, file, listener, crashMetaData);
-                        }
+                        submitStackTraces(weakContext, list, listener, crashMetaData);
                     }
                 }
                 return null;
@@ -716,11 +678,123 @@ public class CrashManager {
             } else {
                 Thread.setDefaultUncaughtExceptionHandler(new ExceptionHandler(currentHandler, listener, ignoreDefaultHandler));
             }
+            reserveCrashReportWriter();
         } else {
             HockeyLog.debug("Exception handler not set because version or package is null.");
         }
     }
 
+    /**
+     * Opens the writer for the next crash in the background, unless one is reserved already.
+     * The first time, reports left unfinished by processes which are gone are deleted on the way,
+     * and the saved reports are indexed by their fingerprints.
+     */
+    static void reserveCrashReportWriter() {
+        if (reservedWriter.get() != null) {
+            return;
+        }
+        try {
+            AsyncTaskUtils.execute(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    Context context = weakContext != null ? weakContext.get() : null;
+                    File dir = context != null ? context.getFilesDir() : null;
+                    if (dir == null || reservedWriter.get() != null) {
+                        return null;
+                    }
+                    if (reportIndex == null) {
+                        deletePendingReports(dir);
+                        reportIndex = CrashReportIndex.scan(dir.listFiles(STACK_TRACES_FILTER), MAX_NUMBER_OF_CRASHFILES);
+                    }
+                    CrashReportWriter writer = openCrashReportWriter(dir, CrashReportWriter.BUFFER_SIZE);
+                    if (writer != null && !reservedWriter.compareAndSet(null, writer)) {
+                        writer.abort();
+                    }
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            HockeyLog.error("Could not reserve crash report. Executor rejected task.", e);
+        }
+    }
+
+    /**
+     * Takes the writer reserved for the next crash, or opens a new one if none is reserved.
+     *
+     * @param context The context to save the report in.
+     * @return The writer, or null if the report could not be opened.
+     */
+    static CrashReportWriter takeCrashReportWriter(Context context) {
+        CrashReportWriter writer = reservedWriter.getAndSet(null);
+        if (writer != null) {
+            return writer;
+        }
+        File dir = context.getFilesDir();
+        return dir != null ? openCrashReportWriter(dir, CrashReportWriter.BUFFER_SIZE) : null;
+    }
+
+    /**
+     * Finds the saved report of a crash in the index, or by reading the fingerprints of the
+     * reports if the index has not been built yet.
+     *
+     * @param dir         The directory of the reports.
+     * @param fingerprint The fingerprint of a crash.
+     * @return The saved report of the crash, or null.
+     */
+    static File findCrashReport(File dir, long fingerprint) {
+        CrashReportIndex index = reportIndex;
+        if (index != null) {
+            return index.find(fingerprint);
+        }
+        return dir != null ? CrashReportIndex.find(dir.listFiles(STACK_TRACES_FILTER), fingerprint) : null;
+    }
+
+    /**
+     * Adds a saved report to the index, replacing the report of the same crash.
+     */
+    static void indexCrashReport(long fingerprint, File file) {
+        CrashReportIndex index = reportIndex;
+        if (index != null) {
+            index.put(fingerprint, file);
+        }
+    }
+
+    private static CrashReportWriter openCrashReportWriter(File dir, int bufferSize) {
+        // The process id tells which pending reports belong to processes which are gone.
+        String identifier = UUID.randomUUID().toString();
+        File pendingFile = new File(dir, identifier + "." + android.os.Process.myPid() + CrashReportWriter.PENDING_EXTENSION);
+        try {
+            return new CrashReportWriter(pendingFile, new File(dir, identifier + ".stacktrace"), bufferSize);
+        } catch (IOException e) {
+            HockeyLog.error("Failed to open crash report", e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes pending reports of processes which are not running anymore.
+     */
+    private static void deletePendingReports(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(CrashReportWriter.PENDING_EXTENSION);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            String pid = name.substring(name.indexOf('.') + 1, name.length() - CrashReportWriter.PENDING_EXTENSION.length());
+            if (!new File("/proc/" + pid).exists() && !file.delete()) {
+                HockeyLog.warn("Failed to delete pending crash report " + name);
+            }
+        }
+    }
+
     /**
      * Returns the complete URL for the HockeyApp API.
      */
@@ -729,7 +803,8 @@ public class CrashManager {
     }
 
     /**
-     * Update the retry attempts count for this crash stacktrace.
+     * Update the retry attempts count for this crash stacktrace. Crash bundles keep the count
+     * themselves, reports of older versions in the shared preferences.
      */
     private static void updateRetryCounter(final WeakReference<Context> weakContext, String filename, int maxRetryAttempts) {
         if (maxRetryAttempts == -1) {
@@ -738,6 +813,18 @@ public class CrashManager {
 
         Context context = weakContext != null ? weakContext.get() : null;
         if (context != null) {
+            File file = context.getFileStreamPath(filename);
+            if (CrashBundle.isBundle(file)) {
+                try {
+                    if (CrashBundle.incrementRetryCount(file) >= maxRetryAttempts) {
+                        deleteStackTrace(weakContext, filename);
+                    }
+                } catch (IOException e) {
+                    HockeyLog.error("Failed to update retry count of " + filename, e);
+                }
+                return;
+            }
+
             SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
             SharedPreferences.Editor editor = preferences.edit();
 
@@ -767,22 +854,13 @@ public class CrashManager {
     }
 
     /**
-     * Deletes the give filename and all corresponding files (same name,
-     * different extension).
+     * Deletes the given crash report, and for reports of older versions all corresponding
+     * files (same name, different extension).
      */
     private static void deleteStackTrace(final WeakReference<Context> weakContext, String filename) {
         Context context = weakContext != null ? weakContext.get() : null;
         if (context != null) {
-            context.deleteFile(filename);
-
-            String user = filename.replace(".stacktrace", ".user");
-            context.deleteFile(user);
-
-            String contact = filename.replace(".stacktrace", ".contact");
-            context.deleteFile(contact);
-
-            String description = filename.replace(".stacktrace", ".description");
-            context.deleteFile(description);
+            CrashReport.delete(context.getFileStreamPath(filename));
 
             // Decrement stack traces count
             stackTracesCount--;
@@ -0,0 +1,153 @@
+package net.hockeyapp.android;
+
+import net.hockeyapp.android.utils.CrashBundle;
+import net.hockeyapp.android.utils.HttpsURLConnectionBuilder;
+import net.hockeyapp.android.utils.StreamingMultipartEntity;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <h3>Description</h3>
+ *
+ * A crash report opened for submission. Its parts are located in the files but not read, they are
+ * streamed into the request by {@link #appendTo(StreamingMultipartEntity, int)}, so the memory
+ * used does not depend on the size of the report. Reports are {@link CrashBundle}s, which hold
+ * the user ID, contact and description next to the headers and the stack trace. Reports written
+ * by older versions of the SDK are plain text files which keep these values in side files with
+ * the same name and the extensions ".user", ".contact" and ".description".
+ */
+final class CrashReport {
+
+    /**
+     * Maximum number of bytes of a plain text report sent. Bundles are limited when written.
+     */
+    static final long MAX_TEXT_REPORT_SIZE = HttpsURLConnectionBuilder.FORM_FIELD_LIMIT;
+
+    private static final String STACK_TRACE_EXTENSION = ".stacktrace";
+    private static final String[] SIDE_FILE_EXTENSIONS = {".user", ".contact", ".description"};
+
+    private final File mFile;
+    private final CrashBundle mBundle;
+
+    private CrashReport(File file, CrashBundle bundle) {
+        mFile = file;
+        mBundle = bundle;
+    }
+
+    /**
+     * Opens a crash report. The checksum of a bundle is verified, the content is not loaded.
+     *
+     * @param file The report file.
+     * @return The report.
+     * @throws IOException if the file could not be read, or is a damaged bundle.
+     */
+    static CrashReport open(File file) throws IOException {
+        return new CrashReport(file, CrashBundle.index(file));
+    }
+
+    /**
+     * Deletes a crash report, including the side files of a report written by an older version
+     * of the SDK.
+     *
+     * @param file The report file.
+     */
+    static void delete(File file) {
+        boolean bundle = CrashBundle.isBundle(file);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        if (!bundle) {
+            for (int i = 0; i < SIDE_FILE_EXTENSIONS.length; i++) {
+                //noinspection ResultOfMethodCallIgnored
+                getSideFile(file, i).delete();
+            }
+        }
+    }
+
+    private static File getSideFile(File file, int index) {
+        return new File(file.getParentFile(), file.getName().replace(STACK_TRACE_EXTENSION, SIDE_FILE_EXTENSIONS[index]));
+    }
+
+    /**
+     * @return True if the report is a {@link CrashBundle}.
+     */
+    boolean isBundle() {
+        return mBundle != null;
+    }
+
+    /**
+     * @return True if the report holds no crash.
+     */
+    boolean isEmpty() {
+        if (mBundle != null) {
+            return getLength(CrashBundle.SECTION_HEADERS) == 0 && getLength(CrashBundle.SECTION_STACK_TRACE) == 0;
+        }
+        return mFile.length() == 0;
+    }
+
+    /**
+     * @param section The {@code SECTION_} constant of {@link CrashBundle} for the part.
+     * @return The length of a part in bytes, 0 if it is not given.
+     */
+    long getLength(int section) {
+        if (mBundle != null) {
+            return mBundle.getSectionLength(section);
+        }
+        File file = getTextFile(section);
+        return file != null ? Math.min(file.length(), MAX_TEXT_REPORT_SIZE) : 0;
+    }
+
+    /**
+     * @return The number of times the crash occurred.
+     */
+    int getOccurrenceCount() {
+        return mBundle != null ? mBundle.getOccurrenceCount() : 1;
+    }
+
+    /**
+     * Appends the report as it is sent: the header lines, an empty line and the stack trace.
+     */
+    void appendRawTo(StreamingMultipartEntity entity) {
+        if (mBundle != null) {
+            appendTo(entity, CrashBundle.SECTION_HEADERS);
+            entity.appendText("\n");
+        }
+        appendTo(entity, CrashBundle.SECTION_STACK_TRACE);
+    }
+
+    /**
+     * Appends a part of the report, which is read when the entity is written.
+     *
+     * @param section The {@code SECTION_} constant of {@link CrashBundle} for the part.
+     */
+    void appendTo(StreamingMultipartEntity entity, int section) {
+        long length = getLength(section);
+        if (length == 0) {
+            return;
+        }
+        if (mBundle != null) {
+            entity.appendFile(mFile, mBundle.getSectionOffset(section), length);
+        } else {
+            entity.appendFile(getTextFile(section), 0, length);
+        }
+    }
+
+    /**
+     * @return The file of a plain text report holding a part, or null.
+     */
+    private File getTextFile(int section) {
+        switch (section) {
+            case CrashBundle.SECTION_STACK_TRACE:
+                // The headers are part of the stack trace file.
+                return mFile;
+            case CrashBundle.SECTION_USER_ID:
+                return getSideFile(mFile, 0);
+            case CrashBundle.SECTION_CONTACT:
+                return getSideFile(mFile, 1);
+            case CrashBundle.SECTION_DESCRIPTION:
+                return getSideFile(mFile, 2);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.hockeyapp.android;
+
+import net.hockeyapp.android.utils.CrashBundle;
+
+import java.io.File;
+
+/**
+ * <h3>Description</h3>
+ *
+ * The fingerprints of the saved crash reports, so a crash which has been saved before, e.g. by a
+ * crash loop on launch, is recognized without reading any report and only counted again.
+ * A fingerprint identifies a crash by the version of the app, the type of its root cause and
+ * the top {@link #MAX_FRAMES} frames of it, without file names and line numbers, so the message
+ * and small changes of the code do not make a repeated crash look new, while a crash which is
+ * still there after an update is reported for the new version. The root cause is used since
+ * the framework wraps crashes in lifecycle methods into exceptions which all look alike. It is a
+ * 64 bit FNV-1a hash, computed without allocating memory except for the frames handed out by the
+ * VM. The index is built in the background when the CrashManager is registered and its entries
+ * are allocated in advance.
+ */
+final class CrashReportIndex {
+
+    /**
+     * Number of frames of the root cause which are part of the fingerprint.
+     */
+    static final int MAX_FRAMES = 8;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] mFingerprints;
+    private final File[] mFiles;
+    private int mCount;
+
+    /**
+     * @param capacity The maximum number of reports in the index.
+     */
+    CrashReportIndex(int capacity) {
+        mFingerprints = new long[capacity];
+        mFiles = new File[capacity];
+    }
+
+    /**
+     * Builds the index of saved reports from their fingerprints.
+     *
+     * @param reports  The report files, may be null.
+     * @param capacity The maximum number of reports in the index.
+     * @return The index.
+     */
+    static CrashReportIndex scan(File[] reports, int capacity) {
+        CrashReportIndex index = new CrashReportIndex(capacity);
+        if (reports != null) {
+            for (File report : reports) {
+                index.put(CrashBundle.readFingerprint(report), report);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Finds the saved report of a crash by reading the fingerprints of the report files, for
+     * when no index has been built yet.
+     *
+     * @param reports     The report files, may be null.
+     * @param fingerprint The fingerprint of the crash.
+     * @return The newest report of the crash, or null.
+     */
+    static File find(File[] reports, long fingerprint) {
+        File found = null;
+        if (reports != null && fingerprint != 0) {
+            for (File report : reports) {
+                if (CrashBundle.readFingerprint(report) == fingerprint
+                        && (found == null || report.lastModified() > found.lastModified())) {
+                    found = report;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Computes the fingerprint of a crash of the running version of the app.
+     *
+     * @param throwable The crash.
+     * @return The fingerprint, never 0.
+     */
+    static long fingerprint(Throwable throwable) {
+        return fingerprint(throwable, Constants.APP_VERSION, Constants.APP_VERSION_NAME);
+    }
+
+    /**
+     * Computes the fingerprint of a crash.
+     *
+     * @param throwable   The crash.
+     * @param versionCode The version code of the app, may be null.
+     * @param versionName The version name of the app, may be null.
+     * @return The fingerprint, never 0.
+     */
+    static long fingerprint(Throwable throwable, String versionCode, String versionName) {
+        Throwable rootCause = throwable;
+        for (int depth = 0; depth < CrashReportWriter.MAX_CAUSES; depth++) {
+            Throwable cause = rootCause.getCause();
+            if (cause == null || cause == rootCause) {
+                break;
+            }
+            rootCause = cause;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        if (versionCode != null) {
+            hash = hash(hash, versionCode);
+        }
+        hash = hash(hash, "\n");
+        if (versionName != null) {
+            hash = hash(hash, versionName);
+        }
+        hash = hash(hash, "\n");
+        hash = hash(hash, rootCause.getClass().getName());
+        StackTraceElement[] trace = rootCause.getStackTrace();
+        for (int i = 0; i < trace.length && i < MAX_FRAMES; i++) {
+            hash = hash(hash, "\n");
+            hash = hash(hash, trace[i].getClassName());
+            hash = hash(hash, ".");
+            hash = hash(hash, trace[i].getMethodName());
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    private static long hash(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @param fingerprint The fingerprint of a crash.
+     * @return The saved report of the crash, or null.
+     */
+    synchronized File find(long fingerprint) {
+        if (fingerprint == 0) {
+            return null;
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (mFingerprints[i] == fingerprint) {
+                return mFiles[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a report, or replaces the report of the same crash. Reports without fingerprint and
+     * reports exceeding the capacity are not added.
+     *
+     * @param fingerprint The fingerprint of the crash.
+     * @param file        The report file.
+     */
+    synchronized void put(long fingerprint, File file) {
+        if (fingerprint == 0) {
+            return;
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (mFingerprints[i] == fingerprint) {
+                mFiles[i] = file;
+                return;
+            }
+        }
+        if (mCount < mFingerprints.length) {
+            mFingerprints[mCount] = fingerprint;
+            mFiles[mCount] = file;
+            mCount++;
+        }
+    }
+}
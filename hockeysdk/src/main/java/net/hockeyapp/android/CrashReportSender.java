@@ -0,0 +1,185 @@
+package net.hockeyapp.android;
+
+import android.net.TrafficStats;
+import android.text.TextUtils;
+
+import net.hockeyapp.android.objects.CrashMetaData;
+import net.hockeyapp.android.utils.CrashBundle;
+import net.hockeyapp.android.utils.HockeyLog;
+import net.hockeyapp.android.utils.HttpsURLConnectionBuilder;
+import net.hockeyapp.android.utils.StreamingMultipartEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Submits a batch of queued crash reports. The reports are sent one request each, one after
+ * another over the same keep-alive connection, so only the first request pays for the TLS
+ * handshake: every response is read to the end and the connection is never disconnected, which
+ * hands it back to the connection pool of {@link HttpURLConnection}. Each report gets its own
+ * result, so a batch can partially succeed. If the connection fails, the remaining reports are
+ * not attempted and stay queued for the next submission.
+ * A crash which occurred several times is sent once, with the number of occurrences in the
+ * "occurrences" field and at the start of the description.
+ */
+class CrashReportSender {
+
+    /**
+     * The report has been accepted by the server.
+     */
+    static final int RESULT_SENT = 0;
+
+    /**
+     * The server responded with an error.
+     */
+    static final int RESULT_FAILED = 1;
+
+    /**
+     * The report could not be read.
+     */
+    static final int RESULT_INVALID = 2;
+
+    /**
+     * The report has not been attempted because the connection failed.
+     */
+    static final int RESULT_NOT_SENT = 3;
+
+    private final String mUrlString;
+    private final CrashMetaData mCrashMetaData;
+    private final byte[] mResponseBuffer = new byte[1024];
+
+    /**
+     * @param urlString     The URL the reports are posted to.
+     * @param crashMetaData The meta data provided by the user, or null.
+     */
+    CrashReportSender(String urlString, CrashMetaData crashMetaData) {
+        mUrlString = urlString;
+        mCrashMetaData = crashMetaData;
+    }
+
+    /**
+     * Submits crash reports.
+     *
+     * @param reports The report files.
+     * @return The {@code RESULT_} of each report.
+     */
+    int[] submit(File[] reports) {
+        int[] results = new int[reports.length];
+        TrafficStats.setThreadStatsTag(Constants.THREAD_STATS_TAG);
+        try {
+            int index = 0;
+            for (; index < reports.length; index++) {
+                CrashReport report;
+                try {
+                    report = CrashReport.open(reports[index]);
+                } catch (IOException e) {
+                    HockeyLog.error("Failed to read crash data", e);
+                    report = null;
+                }
+                if (report == null || report.isEmpty()) {
+                    HockeyLog.warn("The crash data is invalid");
+                    results[index] = RESULT_INVALID;
+                    continue;
+                }
+
+                try {
+                    HockeyLog.debug("Transmitting crash data: " + reports[index].getName());
+                    int responseCode = send(createEntity(report));
+                    boolean successful = responseCode == HttpURLConnection.HTTP_ACCEPTED || responseCode == HttpURLConnection.HTTP_CREATED;
+                    results[index] = successful ? RESULT_SENT : RESULT_FAILED;
+                } catch (IOException e) {
+                    HockeyLog.error("Failed to transmit crash data", e);
+                    results[index] = RESULT_FAILED;
+                    break;
+                }
+            }
+            for (index++; index < reports.length; index++) {
+                results[index] = RESULT_NOT_SENT;
+            }
+        } finally {
+            TrafficStats.clearThreadStatsTag();
+        }
+        return results;
+    }
+
+    /**
+     * Opens a connection and sends a request, can be overridden to send to another server.
+     *
+     * @param entity The body of the request.
+     * @return The connection.
+     */
+    protected HttpURLConnection openConnection(StreamingMultipartEntity entity) throws IOException {
+        return new HttpsURLConnectionBuilder(mUrlString)
+                .setRequestMethod("POST")
+                .writeMultipartData(entity)
+                .build();
+    }
+
+    private int send(StreamingMultipartEntity entity) throws IOException {
+        HttpURLConnection connection = openConnection(entity);
+        int responseCode = connection.getResponseCode();
+
+        // Consume the response, so the connection can be reused.
+        InputStream response = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+        if (response != null) {
+            try {
+                while (response.read(mResponseBuffer) != -1) {
+                    // Discard the response.
+                }
+            } finally {
+                response.close();
+            }
+        }
+        return responseCode;
+    }
+
+    /**
+     * Creates the body of the request of a report, the report is streamed from its file.
+     */
+    private StreamingMultipartEntity createEntity(CrashReport report) {
+        StreamingMultipartEntity entity = new StreamingMultipartEntity();
+        entity.beginPart("raw");
+        report.appendRawTo(entity);
+
+        // User ID and contact information given by the crash meta data take precedence
+        final String crashMetaDataUserID = mCrashMetaData != null ? mCrashMetaData.getUserID() : null;
+        if (!TextUtils.isEmpty(crashMetaDataUserID)) {
+            entity.addPart("userID", crashMetaDataUserID);
+        } else {
+            entity.beginPart("userID");
+            report.appendTo(entity, CrashBundle.SECTION_USER_ID);
+        }
+        final String crashMetaDataContact = mCrashMetaData != null ? mCrashMetaData.getUserEmail() : null;
+        if (!TextUtils.isEmpty(crashMetaDataContact)) {
+            entity.addPart("contact", crashMetaDataContact);
+        } else {
+            entity.beginPart("contact");
+            report.appendTo(entity, CrashBundle.SECTION_CONTACT);
+        }
+
+        // Append application log to user provided description if present, if not, just send application log
+        final int occurrences = report.getOccurrenceCount();
+        String description = mCrashMetaData != null ? mCrashMetaData.getUserDescription() : null;
+        if (occurrences > 1) {
+            description = "Occurrences: " + occurrences + (!TextUtils.isEmpty(description) ? "\n\n" + description : "");
+        }
+        entity.beginPart("description");
+        if (report.getLength(CrashBundle.SECTION_DESCRIPTION) > 0) {
+            entity.appendText(!TextUtils.isEmpty(description) ? description + "\n\nLog:\n" : "Log:\n");
+            report.appendTo(entity, CrashBundle.SECTION_DESCRIPTION);
+        } else {
+            entity.appendText(description);
+        }
+        if (occurrences > 1) {
+            entity.addPart("occurrences", String.valueOf(occurrences));
+        }
+
+        entity.addPart("sdk", Constants.SDK_NAME);
+        entity.addPart("sdk_version", BuildConfig.VERSION_NAME);
+        return entity;
+    }
+}
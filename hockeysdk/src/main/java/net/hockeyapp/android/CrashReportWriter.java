@@ -0,0 +1,594 @@
+package net.hockeyapp.android;
+
+import android.annotation.SuppressLint;
+
+import net.hockeyapp.android.utils.CrashBundle;
+import net.hockeyapp.android.utils.HockeyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Writes a crash report without allocating memory on the way, so the report is saved even if the
+ * app crashed because it ran out of memory. The buffer and the open file are reserved in advance
+ * when the CrashManager is registered. Text is encoded as UTF-8 into the buffer character by
+ * character, numbers and dates are formatted digit by digit, and the buffer is written to the
+ * file whenever it is full. Stack traces are printed frame by frame in the format of
+ * {@link Throwable#printStackTrace()}, only the copies of the frames handed out by the VM and
+ * the descriptions of the throwables are allocated, and if a description cannot be allocated,
+ * the class name and message are written instead.
+ * A report is a {@link CrashBundle}: each section is started with {@link #beginSection(int)},
+ * and its length is filled in once it ends. The checksum is computed on {@link #commit()} by
+ * reading the sections back through the same buffer. The bundle is written to a pending file
+ * which is renamed once complete, so an unfinished report is never sent.
+ */
+final class CrashReportWriter {
+
+    static final String FIELD_APP_PACKAGE = "Package";
+    static final String FIELD_APP_VERSION_CODE = "Version Code";
+    static final String FIELD_APP_VERSION_NAME = "Version Name";
+    static final String FIELD_OS_VERSION = "Android";
+    static final String FIELD_OS_BUILD = "Android Build";
+    static final String FIELD_DEVICE_MANUFACTURER = "Manufacturer";
+    static final String FIELD_DEVICE_MODEL = "Model";
+    static final String FIELD_THREAD_NAME = "Thread";
+    static final String FIELD_CRASH_REPORTER_KEY = "CrashReporter Key";
+    static final String FIELD_APP_START_DATE = "Start Date";
+    static final String FIELD_APP_CRASH_DATE = "Date";
+    static final String FIELD_FORMAT = "Format";
+
+    /**
+     * Extension of the report file while it is written.
+     */
+    static final String PENDING_EXTENSION = ".pending";
+
+    /**
+     * Size of the buffer reserved for writing a report.
+     */
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Maximum number of bytes of the stack trace, like the limit of {@code CrashDetails}.
+     */
+    static final int MAX_STACK_TRACE_SIZE = 4 * 1024 * 1024 - 5 * 1024;
+
+    /**
+     * Maximum number of causes and suppressed exceptions printed, guards against cycles.
+     */
+    static final int MAX_CAUSES = 32;
+
+    private static final Throwable[] NO_THROWABLES = new Throwable[0];
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private final File mPendingFile;
+    private final File mReportFile;
+    private final String mIdentifier;
+    private final byte[] mBuffer;
+    private final byte[] mDigits = new byte[20];
+    private final CRC32 mChecksum = new CRC32();
+    private RandomAccessFile mOutput;
+    private int mCount;
+    private long mPosition;
+    private long mLimit = Long.MAX_VALUE;
+    private long mSectionStart = -1;
+    private boolean mFinished;
+    private int mThrowableCount;
+
+    /**
+     * Opens the pending file, reserves the buffer and writes the header of the bundle.
+     *
+     * @param pendingFile The file the report is written to.
+     * @param reportFile  The file the report is renamed to once it is complete.
+     * @param bufferSize  The size of the buffer.
+     * @throws IOException if the pending file could not be opened.
+     */
+    CrashReportWriter(File pendingFile, File reportFile, int bufferSize) throws IOException {
+        mPendingFile = pendingFile;
+        mReportFile = reportFile;
+        String name = reportFile.getName();
+        int extension = name.lastIndexOf('.');
+        mIdentifier = extension > 0 ? name.substring(0, extension) : name;
+        mBuffer = new byte[Math.max(bufferSize, CrashBundle.HEADER_SIZE)];
+        mOutput = new RandomAccessFile(pendingFile, "rw");
+        mOutput.setLength(0);
+        putInt(CrashBundle.MAGIC);
+        put(CrashBundle.VERSION);
+        while (mPosition < CrashBundle.OCCURRENCE_COUNT_OFFSET) {
+            put(0);
+        }
+        putInt(1);
+    }
+
+    /**
+     * @return The identifier of the crash, the name of the report file without extension.
+     */
+    String getIdentifier() {
+        return mIdentifier;
+    }
+
+    /**
+     * @return The file the report is saved as.
+     */
+    File getReportFile() {
+        return mReportFile;
+    }
+
+    /**
+     * Starts a section of the bundle, ending the current one if any.
+     *
+     * @param type The type of the section, one of the {@code SECTION_} constants of
+     *             {@link CrashBundle}.
+     */
+    void beginSection(int type) throws IOException {
+        endSection();
+        mSectionStart = mPosition;
+        put(type);
+        putInt(0);
+    }
+
+    /**
+     * Ends the current section by filling in its length.
+     */
+    void endSection() throws IOException {
+        if (mSectionStart < 0) {
+            return;
+        }
+        int length = (int) (mPosition - mSectionStart - CrashBundle.SECTION_HEADER_SIZE);
+        long lengthPosition = mSectionStart + 1;
+        mSectionStart = -1;
+        long bufferStart = mPosition - mCount;
+        if (lengthPosition >= bufferStart) {
+            int index = (int) (lengthPosition - bufferStart);
+            mBuffer[index] = (byte) (length >>> 24);
+            mBuffer[index + 1] = (byte) (length >>> 16);
+            mBuffer[index + 2] = (byte) (length >>> 8);
+            mBuffer[index + 3] = (byte) length;
+        } else {
+            flush();
+            mOutput.seek(lengthPosition);
+            mOutput.writeInt(length);
+            mOutput.seek(mPosition);
+        }
+    }
+
+    /**
+     * Writes the fingerprint section, which has to be the first section of the bundle.
+     *
+     * @param fingerprint The fingerprint computed by {@link CrashReportIndex#fingerprint(Throwable)}.
+     */
+    void writeFingerprint(long fingerprint) throws IOException {
+        beginSection(CrashBundle.SECTION_FINGERPRINT);
+        putInt((int) (fingerprint >>> 32));
+        putInt((int) fingerprint);
+        endSection();
+    }
+
+    /**
+     * Writes text, limited to a number of characters.
+     */
+    void writeText(CharSequence text, int maxChars) throws IOException {
+        write(text, false, maxChars);
+    }
+
+    /**
+     * Writes a header line. Line breaks in the value are replaced by spaces, null is written as
+     * "null".
+     *
+     * @param name  The name of the header.
+     * @param value The value of the header.
+     */
+    void writeHeader(String name, CharSequence value) throws IOException {
+        writeHeader(name, value, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes a header line, limiting the value to a number of characters.
+     *
+     * @param name     The name of the header.
+     * @param value    The value of the header.
+     * @param maxChars The maximum number of characters of the value to write.
+     */
+    void writeHeader(String name, CharSequence value, int maxChars) throws IOException {
+        beginHeader(name);
+        if (value == null) {
+            write("null", true, Integer.MAX_VALUE);
+        } else {
+            write(value, true, maxChars);
+        }
+        put('\n');
+    }
+
+    /**
+     * Writes a header line with a number.
+     */
+    void writeHeader(String name, long value) throws IOException {
+        beginHeader(name);
+        writeNumber(value, 1);
+        put('\n');
+    }
+
+    /**
+     * Writes a header line with a date in UTC, formatted like {@code JSONDateUtils}.
+     *
+     * @param name   The name of the header.
+     * @param millis The date in milliseconds since the epoch.
+     */
+    void writeDateHeader(String name, long millis) throws IOException {
+        beginHeader(name);
+        long days = millis / MILLIS_PER_DAY;
+        long millisOfDay = millis % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+        // Civil date of a day number, see http://howardhinnant.github.io/date_algorithms.html
+        long shifted = days + 719468;
+        long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+        int dayOfEra = (int) (shifted - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        writeNumber(year, 4);
+        put('-');
+        writeNumber(month, 2);
+        put('-');
+        writeNumber(day, 2);
+        put('T');
+        writeNumber(millisOfDay / (60 * 60 * 1000), 2);
+        put(':');
+        writeNumber(millisOfDay / (60 * 1000) % 60, 2);
+        put(':');
+        writeNumber(millisOfDay / 1000 % 60, 2);
+        put('.');
+        writeNumber(millisOfDay % 1000, 3);
+        put('Z');
+        put('\n');
+    }
+
+    /**
+     * Writes the thread header, the name of the thread followed by its id.
+     */
+    void writeThreadHeader(Thread thread) throws IOException {
+        beginHeader(FIELD_THREAD_NAME);
+        write(thread.getName(), true, Integer.MAX_VALUE);
+        put('-');
+        writeNumber(thread.getId(), 1);
+        put('\n');
+    }
+
+    /**
+     * Writes the stack trace of a throwable, its suppressed exceptions and its causes, in the
+     * format of {@link Throwable#printStackTrace()}.
+     */
+    void writeStackTrace(Throwable throwable) throws IOException {
+        mLimit = mPosition + MAX_STACK_TRACE_SIZE;
+        mThrowableCount = 0;
+        writeThrowable(throwable, null, null, 0);
+        mLimit = Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes a throwable, followed by its suppressed exceptions indented by one more level and
+     * its cause.
+     *
+     * @param throwable      The throwable.
+     * @param enclosingTrace The trace of the enclosing throwable, or null.
+     * @param caption        The caption in front of the description, or null.
+     * @param indent         The number of tabs in front of every line.
+     */
+    private void writeThrowable(Throwable throwable, StackTraceElement[] enclosingTrace, String caption,
+                                int indent) throws IOException {
+        writeIndent(indent);
+        if (caption != null) {
+            write(caption, false, Integer.MAX_VALUE);
+        }
+        writeDescription(throwable);
+        put('\n');
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+        int last = trace.length - 1;
+        if (enclosingTrace != null) {
+            // Frames in common with the enclosing trace are summarized.
+            int enclosing = enclosingTrace.length - 1;
+            while (last >= 0 && enclosing >= 0 && trace[last].equals(enclosingTrace[enclosing])) {
+                last--;
+                enclosing--;
+            }
+        }
+        for (int i = 0; i <= last; i++) {
+            writeIndent(indent);
+            writeFrame(trace[i]);
+        }
+        int framesInCommon = trace.length - 1 - last;
+        if (framesInCommon > 0) {
+            writeIndent(indent);
+            write("\t... ", false, Integer.MAX_VALUE);
+            writeNumber(framesInCommon, 1);
+            write(" more\n", false, Integer.MAX_VALUE);
+        }
+
+        for (Throwable suppressed : getSuppressed(throwable)) {
+            if (++mThrowableCount > MAX_CAUSES) {
+                return;
+            }
+            writeThrowable(suppressed, trace, "Suppressed: ", indent + 1);
+        }
+        Throwable cause = throwable.getCause();
+        if (cause != null && cause != throwable && ++mThrowableCount <= MAX_CAUSES) {
+            writeThrowable(cause, trace, "Caused by: ", indent);
+        }
+    }
+
+    /**
+     * Writes the description of a throwable returned by {@link Throwable#toString()}. If that
+     * fails, e.g. because memory ran out, the class name and the message are written instead.
+     */
+    private void writeDescription(Throwable throwable) throws IOException {
+        String description;
+        try {
+            description = throwable.toString();
+        } catch (Throwable e) {
+            description = null;
+        }
+        if (description != null) {
+            write(description, false, Integer.MAX_VALUE);
+            return;
+        }
+        write(throwable.getClass().getName(), false, Integer.MAX_VALUE);
+        String message = throwable.getLocalizedMessage();
+        if (message != null) {
+            put(':');
+            put(' ');
+            write(message, false, Integer.MAX_VALUE);
+        }
+    }
+
+    private void writeIndent(int indent) throws IOException {
+        for (int i = 0; i < indent; i++) {
+            put('\t');
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static Throwable[] getSuppressed(Throwable throwable) {
+        try {
+            return throwable.getSuppressed();
+        } catch (NoSuchMethodError e) {
+            // Before API 19
+            return NO_THROWABLES;
+        }
+    }
+
+    /**
+     * Writes a stack trace which has already been printed, e.g. by HockeySDK-Xamarin.
+     */
+    void writeStackTrace(CharSequence stackTrace) throws IOException {
+        mLimit = mPosition + MAX_STACK_TRACE_SIZE;
+        write(stackTrace, false, Integer.MAX_VALUE);
+        mLimit = Long.MAX_VALUE;
+    }
+
+    /**
+     * Ends the current section, appends the checksum, closes the file and renames it to the
+     * report file.
+     *
+     * @return True if the report has been saved.
+     */
+    boolean commit() {
+        if (mOutput == null) {
+            return false;
+        }
+        try {
+            mLimit = Long.MAX_VALUE;
+            endSection();
+            flush();
+            int checksum = computeChecksum();
+            put(CrashBundle.SECTION_CHECKSUM);
+            putInt(4);
+            putInt(checksum);
+            flush();
+            mOutput.getFD().sync();
+        } catch (IOException e) {
+            HockeyLog.error("Failed to write crash report", e);
+            abort();
+            return false;
+        } finally {
+            close();
+        }
+        mFinished = true;
+        return mPendingFile.renameTo(mReportFile);
+    }
+
+    /**
+     * Reads the sections back through the buffer and computes the checksum of their payloads.
+     */
+    private int computeChecksum() throws IOException {
+        mChecksum.reset();
+        long position = CrashBundle.HEADER_SIZE;
+        while (position < mPosition) {
+            mOutput.seek(position + 1);
+            long remaining = mOutput.readInt();
+            position += CrashBundle.SECTION_HEADER_SIZE + remaining;
+            while (remaining > 0) {
+                int count = mOutput.read(mBuffer, 0, (int) Math.min(remaining, mBuffer.length));
+                if (count < 0) {
+                    throw new IOException("Crash report is truncated");
+                }
+                mChecksum.update(mBuffer, 0, count);
+                remaining -= count;
+            }
+        }
+        mOutput.seek(mPosition);
+        return (int) mChecksum.getValue();
+    }
+
+    /**
+     * Records the crash as another occurrence of a saved report instead of writing it. The report
+     * is renamed to the report file of this writer, so it shows up as a new crash, and the pending
+     * file is deleted before anything else is done. Then the occurrence count of the report is
+     * incremented and its retry count is reset. Only constant messages are logged, memory may
+     * have run out.
+     *
+     * @param report The saved report of the same crash.
+     * @return True if the crash has been recorded, false if the report is gone, so the crash
+     * has to be written.
+     */
+    boolean commitAsRepeatOf(File report) {
+        File repeated = report.renameTo(mReportFile) ? mReportFile : report;
+        if (!repeated.isFile()) {
+            return false;
+        }
+        abort();
+        try {
+            CrashBundle.incrementOccurrenceCount(repeated);
+        } catch (IOException e) {
+            HockeyLog.warn("Failed to update the occurrence count of a crash report");
+        }
+        return true;
+    }
+
+    /**
+     * Closes and deletes the pending file. Does nothing if the report has already been committed
+     * or aborted.
+     */
+    void abort() {
+        close();
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        if (mPendingFile.exists() && !mPendingFile.delete()) {
+            HockeyLog.warn("Failed to delete pending crash report " + mPendingFile);
+        }
+    }
+
+    private void close() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException ignored) {
+            }
+            mOutput = null;
+        }
+    }
+
+    private void writeFrame(StackTraceElement frame) throws IOException {
+        put('\t');
+        put('a');
+        put('t');
+        put(' ');
+        write(frame.getClassName(), false, Integer.MAX_VALUE);
+        put('.');
+        write(frame.getMethodName(), false, Integer.MAX_VALUE);
+        put('(');
+        String fileName = frame.getFileName();
+        int lineNumber = frame.getLineNumber();
+        if (frame.isNativeMethod()) {
+            write("Native Method", false, Integer.MAX_VALUE);
+        } else if (fileName == null) {
+            write("Unknown Source", false, Integer.MAX_VALUE);
+        } else {
+            write(fileName, false, Integer.MAX_VALUE);
+            if (lineNumber >= 0) {
+                put(':');
+                writeNumber(lineNumber, 1);
+            }
+        }
+        put(')');
+        put('\n');
+    }
+
+    private void beginHeader(String name) throws IOException {
+        write(name, true, Integer.MAX_VALUE);
+        put(':');
+        put(' ');
+    }
+
+    /**
+     * Encodes text as UTF-8. Unpaired surrogates are written as '?', so the number of characters
+     * read back is the number of characters written.
+     */
+    private void write(CharSequence text, boolean singleLine, int maxChars) throws IOException {
+        int length = Math.min(text.length(), maxChars);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (singleLine && (c == '\n' || c == '\r')) {
+                    c = ' ';
+                }
+                put(c);
+            } else if (c < 0x800) {
+                put(0xc0 | (c >> 6));
+                put(0x80 | (c & 0x3f));
+            } else if (c < 0xd800 || c > 0xdfff) {
+                put(0xe0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3f));
+                put(0x80 | (c & 0x3f));
+            } else if (c <= 0xdbff && i + 1 < length && text.charAt(i + 1) >= 0xdc00 && text.charAt(i + 1) <= 0xdfff) {
+                int codePoint = 0x10000 + ((c - 0xd800) << 10) + (text.charAt(++i) - 0xdc00);
+                put(0xf0 | (codePoint >> 18));
+                put(0x80 | ((codePoint >> 12) & 0x3f));
+                put(0x80 | ((codePoint >> 6) & 0x3f));
+                put(0x80 | (codePoint & 0x3f));
+            } else {
+                put('?');
+            }
+        }
+    }
+
+    /**
+     * Writes a number in decimal, padded with zeros to a minimum number of digits.
+     */
+    private void writeNumber(long value, int minDigits) throws IOException {
+        if (value < 0) {
+            put('-');
+        }
+        // The digits are taken from the value as it is, negating Long.MIN_VALUE would overflow.
+        int count = 0;
+        do {
+            mDigits[count++] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        } while (value != 0 && count < mDigits.length);
+        while (count < minDigits) {
+            mDigits[count++] = '0';
+        }
+        while (count > 0) {
+            put(mDigits[--count]);
+        }
+    }
+
+    private void putInt(int value) throws IOException {
+        put(value >>> 24);
+        put(value >>> 16);
+        put(value >>> 8);
+        put(value);
+    }
+
+    private void put(int b) throws IOException {
+        if (mPosition >= mLimit) {
+            return;
+        }
+        if (mCount == mBuffer.length) {
+            flush();
+        }
+        mBuffer[mCount++] = (byte) b;
+        mPosition++;
+    }
+
+    private void flush() throws IOException {
+        if (mOutput == null) {
+            throw new IOException("Crash report is closed");
+        }
+        mOutput.write(mBuffer, 0, mCount);
+        mCount = 0;
+    }
+}
@@ -4,18 +4,12 @@ import android.content.Context;
 import android.text.TextUtils;
 
 import net.hockeyapp.android.objects.CrashDetails;
+import net.hockeyapp.android.utils.CrashBundle;
 import net.hockeyapp.android.utils.HockeyLog;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.lang.Thread.UncaughtExceptionHandler;
-import java.util.Date;
-import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -26,6 +20,15 @@ import java.util.concurrent.ExecutionException;
  *
  **/
 public class ExceptionHandler implements UncaughtExceptionHandler {
+    /**
+     * Maximum length of the user ID and the contact.
+     */
+    private static final int MAX_META_DATA_LENGTH = 255;
+    /**
+     * Value of the format header of exceptions caught by HockeySDK-Xamarin.
+     */
+    private static final String XAMARIN_FORMAT = "Xamarin";
+
     private boolean mIgnoreDefaultHandler = false;
     private CrashManagerListener mCrashManagerListener;
     private UncaughtExceptionHandler mDefaultExceptionHandler;
@@ -41,15 +44,26 @@ public class ExceptionHandler implements UncaughtExceptionHandler {
     }
 
     /**
-     * Save a caught exception to disk.
+     * Save a caught exception to disk. The report is written with the writer reserved when the
+     * CrashManager was registered, so no memory has to be allocated for it. If a report of the
+     * same crash is saved already, only its occurrence count is incremented. The process
+     * survives a caught exception, so another writer is reserved for the next crash afterwards.
      *
      * @param exception Exception to save.
      * @param thread    Thread that crashed.
      * @param listener  Custom CrashManager listener instance.
      */
     public static void saveException(Throwable exception, Thread thread, CrashManagerListener listener) {
-        final Date now = new Date();
-        final Date startDate = new Date(CrashManager.getInitializeTimestamp());
+        saveCrash(exception, thread, listener);
+        CrashManager.reserveCrashReportWriter();
+    }
+
+    /**
+     * Saves a crash with the reserved writer, see {@link #saveException(Throwable, Thread, CrashManagerListener)},
+     * without reserving another writer.
+     */
+    private static void saveCrash(Throwable exception, Thread thread, CrashManagerListener listener) {
+        final long now = System.currentTimeMillis();
 
         Context context = CrashManager.weakContext != null ? CrashManager.weakContext.get() : null;
         if (context == null)
@@ -58,52 +72,29 @@ public class ExceptionHandler implements UncaughtExceptionHandler {
             return;
         }
 
-        // Check for number of crashes on disk and don't save the crash in case we reached the defined limit.
-        if (CrashManager.stackTracesCount >= CrashManager.MAX_NUMBER_OF_CRASHFILES) {
-            HockeyLog.warn("ExceptionHandler: HockeyApp will not save this exception as there are already " +
-                    CrashManager.MAX_NUMBER_OF_CRASHFILES + " or more unsent exceptions on disk");
+        CrashReportWriter writer = CrashManager.takeCrashReportWriter(context);
+        if (writer == null) {
+            HockeyLog.error("Failed to save exception: crash report could not be opened");
             return;
         }
 
-        String filename = UUID.randomUUID().toString();
-
-        CrashDetails crashDetails = new CrashDetails(filename, exception);
-        crashDetails.setAppPackage(Constants.APP_PACKAGE);
-        crashDetails.setAppVersionCode(Constants.APP_VERSION);
-        crashDetails.setAppVersionName(Constants.APP_VERSION_NAME);
-        crashDetails.setAppStartDate(startDate);
-        crashDetails.setAppCrashDate(now);
-
-        if ((listener == null) || (listener.includeDeviceData())) {
-            crashDetails.setOsVersion(Constants.ANDROID_VERSION);
-            crashDetails.setOsBuild(Constants.ANDROID_BUILD);
-            crashDetails.setDeviceManufacturer(Constants.PHONE_MANUFACTURER);
-            crashDetails.setDeviceModel(Constants.PHONE_MODEL);
-        }
-
-        if (thread != null && ((listener == null) || (listener.includeThreadDetails()))) {
-            crashDetails.setThreadName(thread.getName() + "-" + thread.getId());
+        // A repeated crash only counts another occurrence of its saved report.
+        long fingerprint = CrashReportIndex.fingerprint(exception);
+        File savedReport = CrashManager.findCrashReport(context.getFilesDir(), fingerprint);
+        if (savedReport != null && writer.commitAsRepeatOf(savedReport)) {
+            CrashManager.indexCrashReport(fingerprint, writer.getReportFile());
+            return;
         }
 
-        // Get device identifier without waiting for initialization to avoid deadlock.
-        if (Constants.DEVICE_IDENTIFIER.isDone() && (listener == null || listener.includeDeviceIdentifier())) {
-            try {
-                crashDetails.setReporterKey(Constants.DEVICE_IDENTIFIER.get());
-            } catch (InterruptedException | ExecutionException ignored) {
-            }
+        // Check for number of crashes on disk and don't save the crash in case we reached the defined limit.
+        if (CrashManager.stackTracesCount >= CrashManager.MAX_NUMBER_OF_CRASHFILES) {
+            HockeyLog.warn("ExceptionHandler: HockeyApp will not save this exception as there are already " +
+                    CrashManager.MAX_NUMBER_OF_CRASHFILES + " or more unsent exceptions on disk");
+            writer.abort();
+            return;
         }
 
-        crashDetails.writeCrashReport(context);
-
-        if (listener != null) {
-            try {
-                writeValueToFile(context, limitedString(listener.getUserID()), filename + ".user");
-                writeValueToFile(context, limitedString(listener.getContact()), filename + ".contact");
-                writeValueToFile(context, listener.getDescription(), filename + ".description");
-            } catch (IOException e) {
-                HockeyLog.error("Error saving crash meta data!", e);
-            }
-        }
+        writeCrashReport(writer, exception, null, false, now, thread, listener, fingerprint);
     }
 
     /**
@@ -144,9 +135,7 @@ public class ExceptionHandler implements UncaughtExceptionHandler {
     }
 
     private static void saveXamarinException(Throwable exception, Thread thread, String additionalManagedException, Boolean isManagedException, CrashManagerListener listener) {
-        final Date startDate = new Date(CrashManager.getInitializeTimestamp());
-        String filename = UUID.randomUUID().toString();
-        final Date now = new Date();
+        final long now = System.currentTimeMillis();
 
         Context context = CrashManager.weakContext != null ? CrashManager.weakContext.get() : null;
         if (context == null)
@@ -155,42 +144,96 @@ public class ExceptionHandler implements UncaughtExceptionHandler {
             return;
         }
 
-        CrashDetails crashDetails = new CrashDetails(filename, exception, additionalManagedException, isManagedException);
-        crashDetails.setAppPackage(Constants.APP_PACKAGE);
-        crashDetails.setAppVersionCode(Constants.APP_VERSION);
-        crashDetails.setAppVersionName(Constants.APP_VERSION_NAME);
-        crashDetails.setAppStartDate(startDate);
-        crashDetails.setAppCrashDate(now);
-
-        if ((listener == null) || (listener.includeDeviceData())) {
-            crashDetails.setOsVersion(Constants.ANDROID_VERSION);
-            crashDetails.setOsBuild(Constants.ANDROID_BUILD);
-            crashDetails.setDeviceManufacturer(Constants.PHONE_MANUFACTURER);
-            crashDetails.setDeviceModel(Constants.PHONE_MODEL);
+        CrashReportWriter writer = CrashManager.takeCrashReportWriter(context);
+        if (writer == null) {
+            HockeyLog.error("Failed to save exception: crash report could not be opened");
+            return;
         }
+        CrashDetails crashDetails = new CrashDetails(writer.getIdentifier(), exception, additionalManagedException, isManagedException);
+        writeCrashReport(writer, null, crashDetails.getThrowableStackTrace(), true, now, thread, listener, 0);
+        CrashManager.reserveCrashReportWriter();
+    }
 
-        if (thread != null && ((listener == null) || (listener.includeThreadDetails()))) {
-            crashDetails.setThreadName(thread.getName() + "-" + thread.getId());
-        }
+    /**
+     * Writes the headers, the meta data provided by the listener and the stack trace as the
+     * sections of a single {@link CrashBundle}.
+     *
+     * @param writer      The writer of the report.
+     * @param exception   The exception to save, or null if the stack trace has been printed already.
+     * @param stackTrace  The printed stack trace, if the exception is null.
+     * @param isXamarin   Whether the exception has been caught by HockeySDK-Xamarin.
+     * @param crashDate   The time of the crash.
+     * @param thread      Thread that crashed.
+     * @param listener    Custom CrashManager listener instance.
+     * @param fingerprint The fingerprint of the crash, or 0 if it has none.
+     */
+    private static void writeCrashReport(CrashReportWriter writer, Throwable exception, String stackTrace, boolean isXamarin,
+                                         long crashDate, Thread thread, CrashManagerListener listener, long fingerprint) {
+        try {
+            boolean includeDeviceData = listener == null || listener.includeDeviceData();
+            if (fingerprint != 0) {
+                writer.writeFingerprint(fingerprint);
+            }
+            writer.beginSection(CrashBundle.SECTION_HEADERS);
+            writer.writeHeader(CrashReportWriter.FIELD_APP_PACKAGE, Constants.APP_PACKAGE);
+            writer.writeHeader(CrashReportWriter.FIELD_APP_VERSION_CODE, Constants.APP_VERSION);
+            writer.writeHeader(CrashReportWriter.FIELD_APP_VERSION_NAME, Constants.APP_VERSION_NAME);
+            writer.writeHeader(CrashReportWriter.FIELD_OS_VERSION, includeDeviceData ? Constants.ANDROID_VERSION : null);
+            writer.writeHeader(CrashReportWriter.FIELD_OS_BUILD, includeDeviceData ? Constants.ANDROID_BUILD : null);
+            writer.writeHeader(CrashReportWriter.FIELD_DEVICE_MANUFACTURER, includeDeviceData ? Constants.PHONE_MANUFACTURER : null);
+            writer.writeHeader(CrashReportWriter.FIELD_DEVICE_MODEL, includeDeviceData ? Constants.PHONE_MODEL : null);
 
-        // Get device identifier without waiting for initialization to avoid deadlock.
-        if (Constants.DEVICE_IDENTIFIER.isDone() && (listener == null || listener.includeDeviceIdentifier())) {
-            try {
-                crashDetails.setReporterKey(Constants.DEVICE_IDENTIFIER.get());
-            } catch (InterruptedException | ExecutionException ignored) {
+            if (thread != null && ((listener == null) || (listener.includeThreadDetails()))) {
+                writer.writeThreadHeader(thread);
+            } else {
+                writer.writeHeader(CrashReportWriter.FIELD_THREAD_NAME, null);
             }
-        }
 
-        crashDetails.writeCrashReport(context);
+            // Get device identifier without waiting for initialization to avoid deadlock.
+            String reporterKey = null;
+            if (Constants.DEVICE_IDENTIFIER.isDone() && (listener == null || listener.includeDeviceIdentifier())) {
+                try {
+                    reporterKey = Constants.DEVICE_IDENTIFIER.get();
+                } catch (InterruptedException | ExecutionException ignored) {
+                }
+            }
+            writer.writeHeader(CrashReportWriter.FIELD_CRASH_REPORTER_KEY, reporterKey);
 
-        if (listener != null) {
-            try {
-                writeValueToFile(context, limitedString(listener.getUserID()), filename + ".user");
-                writeValueToFile(context, limitedString(listener.getContact()), filename + ".contact");
-                writeValueToFile(context, listener.getDescription(), filename + ".description");
-            } catch (IOException e) {
-                HockeyLog.error("Error saving crash meta data!", e);
+            writer.writeDateHeader(CrashReportWriter.FIELD_APP_START_DATE, CrashManager.getInitializeTimestamp());
+            writer.writeDateHeader(CrashReportWriter.FIELD_APP_CRASH_DATE, crashDate);
+            if (isXamarin) {
+                writer.writeHeader(CrashReportWriter.FIELD_FORMAT, XAMARIN_FORMAT);
+            }
+
+            if (listener != null) {
+                writeMetaData(writer, CrashBundle.SECTION_USER_ID, listener.getUserID(), MAX_META_DATA_LENGTH);
+                writeMetaData(writer, CrashBundle.SECTION_CONTACT, listener.getContact(), MAX_META_DATA_LENGTH);
+                writeMetaData(writer, CrashBundle.SECTION_DESCRIPTION, listener.getDescription(), Integer.MAX_VALUE);
+            }
+
+            writer.beginSection(CrashBundle.SECTION_STACK_TRACE);
+            if (exception != null) {
+                writer.writeStackTrace(exception);
+            } else {
+                writer.writeStackTrace(stackTrace);
             }
+        } catch (IOException e) {
+            HockeyLog.error("Error saving crash report!", e);
+        } finally {
+            // Keep what has been written, a partial stack trace is better than none.
+            if (writer.commit()) {
+                CrashManager.indexCrashReport(fingerprint, writer.getReportFile());
+            } else {
+                HockeyLog.error("Failed to save crash report " + writer.getReportFile());
+                writer.abort();
+            }
+        }
+    }
+
+    private static void writeMetaData(CrashReportWriter writer, int section, String value, int maxChars) throws IOException {
+        if (!TextUtils.isEmpty(value) && TextUtils.getTrimmedLength(value) > 0) {
+            writer.beginSection(section);
+            writer.writeText(value, maxChars);
         }
     }
 
@@ -199,44 +242,37 @@ public class ExceptionHandler implements UncaughtExceptionHandler {
         if (context == null || context.getFilesDir() == null) {
             // If the files path is null, the exception can't be stored
             // Always call the default handler instead
-            mDefaultExceptionHandler.uncaughtException(thread, exception);
-        } else {
-            saveException(exception, thread, mCrashManagerListener);
-
-            if (!mIgnoreDefaultHandler) {
+            try {
+                notifyUncaughtException();
+            } finally {
                 mDefaultExceptionHandler.uncaughtException(thread, exception);
-            } else {
-                android.os.Process.killProcess(android.os.Process.myPid());
-                System.exit(10);
-            }
-        }
-    }
-
-    private static void writeValueToFile(Context context, String value, String filename) throws IOException {
-        if (TextUtils.isEmpty(value)) {
-            return;
-        }
-        BufferedWriter writer = null;
-        try {
-            File file = new File(context.getFilesDir(), filename);
-            if (!TextUtils.isEmpty(value) && TextUtils.getTrimmedLength(value) > 0) {
-                writer = new BufferedWriter(new FileWriter(file));
-                writer.write(value);
-                writer.flush();
             }
-        } catch (IOException e) {
-            HockeyLog.error("Failed to write value to " + filename, e);
-        } finally {
-            if (writer != null) {
-                writer.close();
+        } else {
+            try {
+                // The process dies, no writer is reserved for another crash.
+                saveCrash(exception, thread, mCrashManagerListener);
+                notifyUncaughtException();
+            } finally {
+                // The process has to die, even if saving failed, e.g. with another OutOfMemoryError.
+                if (!mIgnoreDefaultHandler) {
+                    mDefaultExceptionHandler.uncaughtException(thread, exception);
+                } else {
+                    android.os.Process.killProcess(android.os.Process.myPid());
+                    System.exit(10);
+                }
             }
         }
     }
 
-    private static String limitedString(String string) {
-        if (!TextUtils.isEmpty(string) && string.length() > 255) {
-            string = string.substring(0, 255);
+    /**
+     * Lets other features, like User Metrics, save their pending data before the process dies.
+     * Listeners run on the crashing thread, so they must only do minimal work.
+     */
+    private static void notifyUncaughtException() {
+        try {
+            PrivateEventManager.postEvent(new PrivateEventManager.Event(PrivateEventManager.EVENT_TYPE_UNCAUGHT_EXCEPTION));
+        } catch (Throwable t) {
+            HockeyLog.error("Error notifying listeners about the uncaught exception!", t);
         }
-        return string;
     }
 }
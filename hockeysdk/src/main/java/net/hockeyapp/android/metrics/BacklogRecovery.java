@@ -0,0 +1,225 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.AsyncTaskUtils;
+import net.hockeyapp.android.utils.HockeyLog;
+import net.hockeyapp.android.utils.ScheduledTask;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Uploads the telemetry backlog left by a previous process or collected while the device was
+ * offline. The recovery waits for a grace period first, so it does not compete with the I/O of
+ * the app launching, then sends one batch at a time with a pause between the uploads. Batches
+ * are taken in the order the sender picks them, the high priority lane first and the oldest
+ * files of a lane first. While the recovery runs, the {@link UploadScheduler} is paused, so
+ * telemetry tracked meanwhile is sent once the backlog is gone. The recovery stops at the first
+ * failed upload and is started again when the device is online again.
+ */
+class BacklogRecovery {
+
+    private static final String TAG = "HA-BacklogRecovery";
+
+    /**
+     * Default time in milliseconds the recovery waits after the app started.
+     */
+    static final long DEFAULT_GRACE_PERIOD = 10 * 1000;
+
+    /**
+     * Default time in milliseconds between two uploads of the recovery.
+     */
+    static final long DEFAULT_UPLOAD_INTERVAL = 1000;
+
+    /**
+     * The sender performing the uploads.
+     */
+    private final Sender mSender;
+
+    private final ScheduledTask mTask = new ScheduledTask(new Runnable() {
+
+        @Override
+        public void run() {
+            onTaskDue();
+        }
+    });
+
+    /**
+     * Progress of the current or last recovery, guarded by this instance.
+     */
+    private final BacklogRecoveryStatus mStatus = new BacklogRecoveryStatus();
+
+    private volatile long mGracePeriod = DEFAULT_GRACE_PERIOD;
+    private volatile long mUploadInterval = DEFAULT_UPLOAD_INTERVAL;
+
+    /**
+     * Creates and initializes a new instance.
+     *
+     * @param sender The sender performing the uploads.
+     */
+    BacklogRecovery(Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Starts a recovery after the grace period, unless one is already running.
+     */
+    void start() {
+        start(mGracePeriod);
+    }
+
+    /**
+     * Starts a recovery after the given delay, unless one is already running. The backlog is
+     * measured when the delay has passed.
+     *
+     * @param delayMillis Time in milliseconds until the first upload.
+     */
+    synchronized void start(long delayMillis) {
+        if (isRunning()) {
+            return;
+        }
+        mStatus.mState = BacklogRecoveryStatus.State.WAITING;
+        mStatus.mBacklogFiles = 0;
+        mStatus.mBacklogBytes = 0;
+        mStatus.mDrainedFiles = 0;
+        mStatus.mDrainedBytes = 0;
+        mSender.getUploadScheduler().setPaused(true);
+        if (!mTask.schedule(delayMillis)) {
+            finish(BacklogRecoveryStatus.State.INTERRUPTED);
+        }
+    }
+
+    /**
+     * @return True if the recovery waits for the grace period or is uploading.
+     */
+    synchronized boolean isRunning() {
+        return mStatus.mState == BacklogRecoveryStatus.State.WAITING
+                || mStatus.mState == BacklogRecoveryStatus.State.DRAINING;
+    }
+
+    private void onTaskDue() {
+        synchronized (this) {
+            if (mStatus.mState == BacklogRecoveryStatus.State.WAITING) {
+                Persistence persistence = mSender.getPersistence();
+                // Measuring the size opens the logs of all lanes, so all files are counted.
+                long backlogSize = persistence != null ? persistence.getBacklogSize() : 0;
+                int fileCount = persistence != null ? persistence.getFileCount() : 0;
+                if (fileCount == 0) {
+                    finish(BacklogRecoveryStatus.State.IDLE);
+                    return;
+                }
+                mStatus.mBacklogFiles = fileCount;
+                mStatus.mBacklogBytes = backlogSize;
+                mStatus.mState = BacklogRecoveryStatus.State.DRAINING;
+                HockeyLog.debug(TAG, "Recovering " + fileCount + " files of telemetry.");
+            } else if (mStatus.mState != BacklogRecoveryStatus.State.DRAINING) {
+                return;
+            }
+        }
+        try {
+            // The scheduler thread is shared by the SDK, the upload must not block it.
+            AsyncTaskUtils.execute(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    uploadNextBatch();
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            HockeyLog.error(TAG, "Could not recover telemetry. Executor rejected task.", e);
+            synchronized (this) {
+                finish(BacklogRecoveryStatus.State.INTERRUPTED);
+            }
+        }
+    }
+
+    private void uploadNextBatch() {
+        Sender.UploadBatch batch;
+        boolean sent = false;
+        try {
+            batch = mSender.nextBatch();
+            if (batch == null) {
+                synchronized (this) {
+                    finish(BacklogRecoveryStatus.State.COMPLETED);
+                }
+                return;
+            }
+            sent = mSender.upload(batch);
+        } catch (RuntimeException e) {
+            HockeyLog.error(TAG, "Could not recover telemetry.", e);
+            batch = null;
+        }
+        synchronized (this) {
+            if (!sent) {
+                finish(BacklogRecoveryStatus.State.INTERRUPTED);
+                return;
+            }
+            mStatus.mDrainedFiles += batch.getFileCount();
+            mStatus.mDrainedBytes += batch.getContentLength();
+            if (!mTask.schedule(mUploadInterval)) {
+                finish(BacklogRecoveryStatus.State.INTERRUPTED);
+            }
+        }
+    }
+
+    /**
+     * Ends the recovery and resumes the upload scheduler. Must be called holding the lock.
+     */
+    private void finish(BacklogRecoveryStatus.State state) {
+        mStatus.mState = state;
+        mSender.getUploadScheduler().setPaused(false);
+        if (state != BacklogRecoveryStatus.State.IDLE) {
+            HockeyLog.debug(TAG, "Recovery of telemetry ended " + state + ", sent "
+                    + mStatus.mDrainedFiles + " of " + mStatus.mBacklogFiles + " files.");
+        }
+    }
+
+    /**
+     * Gets a snapshot of the progress of the current or last recovery.
+     *
+     * @return The recovery status.
+     */
+    synchronized BacklogRecoveryStatus getStatus() {
+        BacklogRecoveryStatus status = new BacklogRecoveryStatus();
+        status.mState = mStatus.mState;
+        status.mBacklogFiles = mStatus.mBacklogFiles;
+        status.mBacklogBytes = mStatus.mBacklogBytes;
+        status.mDrainedFiles = mStatus.mDrainedFiles;
+        status.mDrainedBytes = mStatus.mDrainedBytes;
+        return status;
+    }
+
+    long getGracePeriod() {
+        return mGracePeriod;
+    }
+
+    /**
+     * Sets the time the recovery waits after the app started.
+     *
+     * @param gracePeriod The grace period in milliseconds, 0 or more.
+     */
+    void setGracePeriod(long gracePeriod) {
+        if (gracePeriod < 0) {
+            throw new IllegalArgumentException("gracePeriod");
+        }
+        mGracePeriod = gracePeriod;
+    }
+
+    long getUploadInterval() {
+        return mUploadInterval;
+    }
+
+    /**
+     * Sets the time between two uploads of the recovery.
+     *
+     * @param uploadInterval The interval in milliseconds, 0 or more.
+     */
+    void setUploadInterval(long uploadInterval) {
+        if (uploadInterval < 0) {
+            throw new IllegalArgumentException("uploadInterval");
+        }
+        mUploadInterval = uploadInterval;
+    }
+}
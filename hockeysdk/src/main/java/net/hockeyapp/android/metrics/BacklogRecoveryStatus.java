@@ -0,0 +1,102 @@
+package net.hockeyapp.android.metrics;
+
+import java.util.Locale;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Snapshot of the recovery of telemetry which has been persisted but not sent yet, e.g. by a
+ * previous process or while the device was offline. The backlog is measured when draining
+ * starts, telemetry tracked afterwards is sent as usual and does not count towards it.
+ *
+ * @see MetricsManager#getBacklogRecoveryStatus()
+ */
+public final class BacklogRecoveryStatus {
+
+    /**
+     * The phases of a recovery.
+     */
+    public enum State {
+        /**
+         * No recovery has been started, or there was no backlog to recover.
+         */
+        IDLE,
+        /**
+         * The recovery waits for the startup grace period to end.
+         */
+        WAITING,
+        /**
+         * The backlog is being uploaded.
+         */
+        DRAINING,
+        /**
+         * The whole backlog has been uploaded.
+         */
+        COMPLETED,
+        /**
+         * An upload failed, the rest of the backlog is recovered when the device is online again.
+         */
+        INTERRUPTED
+    }
+
+    State mState = State.IDLE;
+    int mBacklogFiles;
+    long mBacklogBytes;
+    int mDrainedFiles;
+    long mDrainedBytes;
+
+    BacklogRecoveryStatus() {
+    }
+
+    /**
+     * @return The phase of the current or last recovery.
+     */
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return The number of files waiting to be sent when draining started.
+     */
+    public int getBacklogFiles() {
+        return mBacklogFiles;
+    }
+
+    /**
+     * @return The number of bytes on disk when draining started.
+     */
+    public long getBacklogBytes() {
+        return mBacklogBytes;
+    }
+
+    /**
+     * @return The number of files which have been uploaded since draining started.
+     */
+    public int getDrainedFiles() {
+        return mDrainedFiles;
+    }
+
+    /**
+     * @return The number of bytes which have been uploaded since draining started.
+     */
+    public long getDrainedBytes() {
+        return mDrainedBytes;
+    }
+
+    /**
+     * @return The share of the backlog files which have been uploaded, between 0 and 1.
+     */
+    public float getProgress() {
+        if (mState == State.COMPLETED) {
+            return 1f;
+        }
+        return mBacklogFiles > 0 ? Math.min(1f, (float) mDrainedFiles / mBacklogFiles) : 0f;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "BacklogRecoveryStatus{state=%s, backlogFiles=%d, backlogBytes=%d, "
+                        + "drainedFiles=%d, drainedBytes=%d}",
+                mState, mBacklogFiles, mBacklogBytes, mDrainedFiles, mDrainedBytes);
+    }
+}
@@ -0,0 +1,367 @@
+package net.hockeyapp.android.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Binary container format of persisted telemetry. Every batch appended to a segment is stored
+ * as a record made of a fixed size header and the payload. The header holds a magic number,
+ * flags, the number of telemetry items in the batch, the length of the payload and a CRC32 of
+ * the payload, all big endian. The payload is either a flushed piece of the gzip member of the
+ * file or the line delimited JSON including the newline separating it from the previous batch,
+ * so the payloads of a file concatenated are exactly what is sent to the server. The member of a
+ * compressed file is completed by a last record holding its end, which also carries the checksum
+ * and length of the data needed to join the members of several files.
+ * Files are read with positional reads of a {@link FileChannel}: the headers are walked first to
+ * size the result, then every payload is read straight into its place and checked against its
+ * checksum. Files which are uploaded are checked before the upload starts, then streamed
+ * through a caller provided buffer. Payloads are never decoded. Files
+ * which do not start with the magic number have been written by older versions of the SDK and
+ * are read as they are.
+ */
+final class BatchFormat {
+
+    /**
+     * Starts every record, "HAB1".
+     */
+    static final int MAGIC = 0x48414231;
+
+    /**
+     * Set if the payload is part of a gzip member.
+     */
+    static final int FLAG_COMPRESSED = 1;
+
+    /**
+     * Set if the payload is the end of the gzip member, see {@link GzipCodec#END_SIZE}.
+     */
+    static final int FLAG_END = 2;
+
+    /**
+     * Size of a record header: magic, flags, item count, payload length and checksum.
+     */
+    static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4;
+
+    private static final int COUNT_OFFSET = 4 + 1;
+    private static final int LENGTH_OFFSET = COUNT_OFFSET + 4;
+    private static final int CHECKSUM_OFFSET = LENGTH_OFFSET + 4;
+
+    /**
+     * Thrown if a file does not hold a valid sequence of records.
+     */
+    static final class CorruptBatchException extends IOException {
+
+        private static final long serialVersionUID = 8409810013376508557L;
+
+        CorruptBatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Summary of a file, taken from the record headers without reading the payloads.
+     */
+    static final class Info {
+
+        /**
+         * Info of a file without any data.
+         */
+        static final Info EMPTY = new Info(0, false, 0, 0, -1);
+
+        private final long mPayloadLength;
+        private final boolean mCompressed;
+        private final int mItemCount;
+        private final int mStreamCrc;
+        private final long mStreamLength;
+
+        Info(long payloadLength, boolean compressed, int itemCount, int streamCrc, long streamLength) {
+            mPayloadLength = payloadLength;
+            mCompressed = compressed;
+            mItemCount = itemCount;
+            mStreamCrc = streamCrc;
+            mStreamLength = streamLength;
+        }
+
+        /**
+         * @return The number of bytes {@link #read(FileChannel)} returns for the file.
+         */
+        long getPayloadLength() {
+            return mPayloadLength;
+        }
+
+        /**
+         * @return True if the payload is gzip compressed.
+         */
+        boolean isCompressed() {
+            return mCompressed;
+        }
+
+        /**
+         * @return The number of telemetry items recorded in the headers, 0 for files written by
+         * older versions of the SDK.
+         */
+        int getItemCount() {
+            return mItemCount;
+        }
+
+        /**
+         * @return The checksum of the decompressed data, taken from the end record.
+         */
+        int getStreamCrc() {
+            return mStreamCrc;
+        }
+
+        /**
+         * @return The length of the decompressed data, taken from the end record, or -1 if the
+         * payload is not a member ending with an end record.
+         */
+        long getStreamLength() {
+            return mStreamLength;
+        }
+    }
+
+    private BatchFormat() {
+    }
+
+    /**
+     * Writes a record header into a buffer and flips it, so it can be written out.
+     *
+     * @param header   A buffer of at least {@link #HEADER_SIZE} bytes.
+     * @param flags    The flags of the record.
+     * @param count    The number of telemetry items in the payload.
+     * @param length   The length of the payload.
+     * @param checksum The CRC32 of the payload.
+     */
+    static void writeHeader(ByteBuffer header, int flags, int count, int length, int checksum) {
+        header.clear();
+        header.putInt(MAGIC)
+                .put((byte) flags)
+                .putInt(count)
+                .putInt(length)
+                .putInt(checksum);
+        header.flip();
+    }
+
+    /**
+     * Walks the record headers of a file and checks that the records are complete.
+     *
+     * @param channel A channel of the file.
+     * @return The summary of the file.
+     * @throws CorruptBatchException if a record is truncated or the file is too large.
+     * @throws IOException           if the file could not be read.
+     */
+    static Info scan(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new CorruptBatchException("File of " + size + " bytes is too large");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!isRecordFile(channel, header, size)) {
+            header.clear();
+            header.limit((int) Math.min(2, size));
+            readFully(channel, header, 0);
+            return new Info(size, GzipCodec.isCompressed(header.array(), header.position()), 0, 0, -1);
+        }
+        boolean compressed = (header.get(4) & FLAG_COMPRESSED) != 0;
+        long payloadSize = 0;
+        int itemCount = 0;
+        int lastFlags = 0;
+        int lastLength = 0;
+        long position = 0;
+        while (position < size) {
+            readHeader(channel, header, position, size);
+            lastFlags = header.get(4);
+            lastLength = header.getInt(LENGTH_OFFSET);
+            payloadSize += lastLength;
+            itemCount += header.getInt(COUNT_OFFSET);
+            position += HEADER_SIZE + lastLength;
+        }
+        int streamCrc = 0;
+        long streamLength = -1;
+        if (compressed && (lastFlags & FLAG_END) != 0 && lastLength == GzipCodec.END_SIZE) {
+            // The trailer of the member, little endian.
+            header.clear();
+            header.limit(8);
+            readFully(channel, header, size - 8);
+            streamCrc = Integer.reverseBytes(header.getInt(0));
+            streamLength = Integer.reverseBytes(header.getInt(4)) & 0xffffffffL;
+        }
+        return new Info(payloadSize, compressed, itemCount, streamCrc, streamLength);
+    }
+
+    /**
+     * Walks the records of a file like {@link #scan(FileChannel)} and checks every payload
+     * against its checksum, without holding more than the given buffer in memory.
+     *
+     * @param channel A channel of the file.
+     * @param buffer  The buffer to read the payloads into.
+     * @return The summary of the file.
+     * @throws CorruptBatchException if a record is truncated or does not match its checksum, or
+     *                               the gzip member is not completed.
+     * @throws IOException           if the file could not be read.
+     */
+    static Info check(FileChannel channel, byte[] buffer) throws IOException {
+        Info info = scan(channel);
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!isRecordFile(channel, header, size)) {
+            return info;
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        while (position < size) {
+            readHeader(channel, header, position, size);
+            int length = header.getInt(LENGTH_OFFSET);
+            crc.reset();
+            copy(channel, null, chunk, position + HEADER_SIZE, length, crc);
+            if ((int) crc.getValue() != header.getInt(CHECKSUM_OFFSET)) {
+                throw new CorruptBatchException("Checksum mismatch of record at " + position);
+            }
+            position += HEADER_SIZE + length;
+        }
+        if (info.isCompressed() && info.getStreamLength() < 0) {
+            throw new CorruptBatchException("Gzip member is not completed");
+        }
+        return info;
+    }
+
+    /**
+     * Reads the concatenated payloads of all records of a file.
+     *
+     * @param channel A channel of the file.
+     * @return The payloads, or the whole content if the file does not hold records.
+     * @throws CorruptBatchException if a record is truncated or does not match its checksum.
+     * @throws IOException           if the file could not be read.
+     */
+    static byte[] read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        byte[] payload = new byte[(int) scan(channel).getPayloadLength()];
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!isRecordFile(channel, header, size)) {
+            readFully(channel, ByteBuffer.wrap(payload), 0);
+            return payload;
+        }
+        CRC32 crc = new CRC32();
+        int offset = 0;
+        long position = 0;
+        while (position < size) {
+            readHeader(channel, header, position, size);
+            int length = header.getInt(LENGTH_OFFSET);
+            readFully(channel, ByteBuffer.wrap(payload, offset, length), position + HEADER_SIZE);
+            crc.reset();
+            crc.update(payload, offset, length);
+            if ((int) crc.getValue() != header.getInt(CHECKSUM_OFFSET)) {
+                throw new CorruptBatchException("Checksum mismatch of record at " + position);
+            }
+            offset += length;
+            position += HEADER_SIZE + length;
+        }
+        return payload;
+    }
+
+    /**
+     * Writes the concatenated payloads of all records of a file to a stream, without holding
+     * more than the given buffer in memory. Checksums are not verified here, the file has to be
+     * checked with {@link #check(FileChannel, byte[])} before anything is written.
+     *
+     * @param channel A channel of the file.
+     * @param out     The stream to write to.
+     * @param buffer  The buffer to copy through.
+     * @throws CorruptBatchException if a record is truncated.
+     * @throws IOException           if the file could not be read or the stream failed.
+     */
+    static void transfer(FileChannel channel, OutputStream out, byte[] buffer) throws IOException {
+        transfer(channel, out, buffer, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes a range of the concatenated payloads of all records of a file to a stream, like
+     * {@link #transfer(FileChannel, OutputStream, byte[])}.
+     *
+     * @param channel A channel of the file.
+     * @param out     The stream to write to.
+     * @param buffer  The buffer to copy through.
+     * @param offset  The number of payload bytes to skip.
+     * @param length  The maximum number of payload bytes to write.
+     * @throws CorruptBatchException if a record is truncated.
+     * @throws IOException           if the file could not be read or the stream failed.
+     */
+    static void transfer(FileChannel channel, OutputStream out, byte[] buffer, long offset, long length) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
+        if (!isRecordFile(channel, header, size)) {
+            copy(channel, out, chunk, offset, Math.min(size - offset, length), null);
+            return;
+        }
+        long position = 0;
+        while (position < size && length > 0) {
+            readHeader(channel, header, position, size);
+            int recordLength = header.getInt(LENGTH_OFFSET);
+            long skip = Math.min(offset, recordLength);
+            long count = Math.min(recordLength - skip, length);
+            copy(channel, out, chunk, position + HEADER_SIZE + skip, count, null);
+            offset -= skip;
+            length -= count;
+            position += HEADER_SIZE + recordLength;
+        }
+    }
+
+    private static boolean isRecordFile(FileChannel channel, ByteBuffer header, long size) throws IOException {
+        if (size < HEADER_SIZE) {
+            return false;
+        }
+        header.clear();
+        readFully(channel, header, 0);
+        return header.getInt(0) == MAGIC;
+    }
+
+    private static void copy(FileChannel channel, OutputStream out, ByteBuffer chunk, long position,
+                             long length, CRC32 crc) throws IOException {
+        byte[] buffer = chunk.array();
+        while (length > 0) {
+            int count = (int) Math.min(length, buffer.length);
+            chunk.clear();
+            chunk.limit(count);
+            readFully(channel, chunk, position);
+            if (crc != null) {
+                crc.update(buffer, 0, count);
+            }
+            if (out != null) {
+                out.write(buffer, 0, count);
+            }
+            position += count;
+            length -= count;
+        }
+    }
+
+    private static void readHeader(FileChannel channel, ByteBuffer header, long position, long size) throws IOException {
+        if (size - position < HEADER_SIZE) {
+            throw new CorruptBatchException("Truncated record header at " + position);
+        }
+        header.clear();
+        readFully(channel, header, position);
+        if (header.getInt(0) != MAGIC) {
+            throw new CorruptBatchException("Invalid record header at " + position);
+        }
+        int length = header.getInt(LENGTH_OFFSET);
+        if (length < 0 || length > size - position - HEADER_SIZE) {
+            throw new CorruptBatchException("Truncated record at " + position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new CorruptBatchException("Unexpected end of file at " + position);
+            }
+            position += count;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package net.hockeyapp.android.metrics;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Decides how many telemetry items are collected in memory and for how long, before they are
+ * written to disk and handed to the sender as a batch. Larger and rarer batches save battery by
+ * waking up the radio less often, smaller and more frequent batches get data to the server
+ * sooner. The policy is asked again whenever a new batch starts, with the current state of the
+ * device and the queue.
+ *
+ * @see MetricsManager#setBatchPolicy(BatchPolicy)
+ * @see DefaultBatchPolicy
+ * @see NetworkAwareBatchPolicy
+ */
+public interface BatchPolicy {
+
+    /**
+     * Gets the number of queued items which triggers writing the batch.
+     *
+     * @param state The current state of the device and the queue.
+     * @return The maximum number of items in a batch, at least 1. Values larger than the capacity
+     * of the queue are capped.
+     */
+    int getMaxBatchCount(BatchState state);
+
+    /**
+     * Gets the time after which a batch is written, regardless of its size.
+     *
+     * @param state The current state of the device and the queue.
+     * @return The maximum time in milliseconds between the first item of a batch being queued
+     * and the batch being written.
+     */
+    int getMaxBatchInterval(BatchState state);
+}
@@ -0,0 +1,88 @@
+package net.hockeyapp.android.metrics;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Snapshot of the signals a {@link BatchPolicy} bases its decisions on.
+ */
+public final class BatchState {
+
+    /**
+     * Kind of the network the device is currently connected to.
+     */
+    public enum NetworkType {
+        /**
+         * No network connection.
+         */
+        NONE,
+        /**
+         * Wi-Fi connection.
+         */
+        WIFI,
+        /**
+         * Mobile data connection.
+         */
+        CELLULAR,
+        /**
+         * Any other connection, for instance ethernet, or the type could not be determined.
+         */
+        OTHER
+    }
+
+    private final NetworkType mNetworkType;
+    private final boolean mPowerSaveMode;
+    private final boolean mInForeground;
+    private final double mQueueGrowthRate;
+    private final boolean mDebuggerConnected;
+
+    BatchState(NetworkType networkType, boolean powerSaveMode, boolean inForeground,
+               double queueGrowthRate, boolean debuggerConnected) {
+        mNetworkType = networkType;
+        mPowerSaveMode = powerSaveMode;
+        mInForeground = inForeground;
+        mQueueGrowthRate = queueGrowthRate;
+        mDebuggerConnected = debuggerConnected;
+    }
+
+    /**
+     * @return The kind of network the device is connected to.
+     */
+    public NetworkType getNetworkType() {
+        return mNetworkType;
+    }
+
+    /**
+     * @return True if the device is in battery saver mode.
+     */
+    public boolean isPowerSaveMode() {
+        return mPowerSaveMode;
+    }
+
+    /**
+     * @return True if an activity of the app is visible.
+     */
+    public boolean isInForeground() {
+        return mInForeground;
+    }
+
+    /**
+     * @return The average number of items per second recently added to the queue.
+     */
+    public double getQueueGrowthRate() {
+        return mQueueGrowthRate;
+    }
+
+    /**
+     * @return True if a debugger is attached to the app.
+     */
+    public boolean isDebuggerConnected() {
+        return mDebuggerConnected;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchState{network=" + mNetworkType + ", powerSave=" + mPowerSaveMode
+                + ", foreground=" + mInForeground + ", growthRate=" + mQueueGrowthRate
+                + ", debugger=" + mDebuggerConnected + "}";
+    }
+}
@@ -6,23 +6,27 @@ import net.hockeyapp.android.metrics.model.Domain;
 import net.hockeyapp.android.metrics.model.Envelope;
 import net.hockeyapp.android.metrics.model.TelemetryData;
 import net.hockeyapp.android.utils.HockeyLog;
+import net.hockeyapp.android.utils.ScheduledTask;
 import net.hockeyapp.android.utils.Util;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <h3>Description</h3>
  *
  * Items get queued before they are persisted and sent out as a batch to save battery. This class
  * manages the queue, and forwards the batch to the persistence layer once the max batch count or
- * batch interval time limit has been reached.
+ * batch interval time limit has been reached. Both limits are taken from a {@link BatchPolicy}
+ * whenever a new batch starts, by default the {@link DefaultBatchPolicy}.
+ * Every {@link PriorityLane} has its own queue, so session state is not dropped when custom
+ * events overflow the queue, and is persisted to the log of its lane.
+ * In write-ahead mode every queued item is also appended to a {@link TelemetryJournal}, so items
+ * which have not been persisted yet can be recovered if the process dies.
  **/
 class Channel {
 
@@ -45,9 +49,25 @@ class Channel {
      */
     protected static final int MAX_BATCH_INTERVAL_DEBUG = 3 * 1000;
     /**
-     * The backing store queue for the channel.
+     * Maximum number of items kept in the queue before the overflow policy applies.
      */
-    protected final List<String> mQueue;
+    protected static final int MAX_QUEUE_CAPACITY = 512;
+    /**
+     * Maximum number of items kept in the queue of the high priority lane.
+     */
+    static final int MAX_PRIORITY_QUEUE_CAPACITY = 64;
+    /**
+     * Weight of the latest batch in the average queue growth rate.
+     */
+    private static final double GROWTH_RATE_WEIGHT = 0.5;
+    /**
+     * The backing store queue for the channel, holding the items of the low priority lane.
+     */
+    protected final RingBuffer<String> mQueue;
+    /**
+     * Queue holding the items of the high priority lane.
+     */
+    final RingBuffer<String> mPriorityQueue;
     /**
      * Telemetry context used by the channel to create the payload.
      */
@@ -57,18 +77,83 @@ class Channel {
      */
     private final Persistence mPersistence;
     /**
-     * Timer to run scheduled tasks on.
+     * Task synchronizing at a certain max interval, reused for every batch.
+     */
+    private final ScheduledTask mSynchronizeTask = new ScheduledTask(new Runnable() {
+
+        @Override
+        public void run() {
+            synchronize();
+        }
+    });
+    /**
+     * Whether a synchronize task is scheduled for the items currently in the queue.
+     */
+    private final AtomicBoolean mSynchronizeScheduled = new AtomicBoolean(false);
+    /**
+     * Reusable array the queue is drained into. Only accessed while holding its own monitor.
+     */
+    private final String[] mDrainBuffer;
+    /**
+     * Reusable array the high priority queue is drained into, guarded by the drain buffer.
+     */
+    private final String[] mPriorityDrainBuffer;
+    /**
+     * Reusable writer envelopes are serialized into. Only accessed while holding its own monitor.
+     */
+    private final JsonStreamWriter mJsonWriter = new JsonStreamWriter();
+    /**
+     * Drops telemetry repeating an item seen shortly before.
      */
-    private final Timer mTimer;
+    private final EnvelopeCoalescer mCoalescer = new EnvelopeCoalescer();
     /**
-     * Task to be scheduled for synchronizing at a certain max interval.
+     * Sum and number of the capture times of the items queued since the last synchronize, used
+     * to measure the end to end latency. Only accessed while holding the monitor of the lock.
      */
-    private SynchronizeChannelTask mSynchronizeTask;
+    private final Object mCaptureTimeLock = new Object();
+    private long mCaptureTimeSum;
+    private int mCaptureTimeCount;
+    /**
+     * Write-ahead journal of the queued items, null if write-ahead mode is off. Opened and closed
+     * while holding the monitor of the drain buffer.
+     */
+    private volatile TelemetryJournal mJournal;
+    /**
+     * Policy deciding the limits of each batch.
+     */
+    private volatile BatchPolicy mBatchPolicy = new DefaultBatchPolicy();
+    /**
+     * Source of the network and battery saver state, null if unknown.
+     */
+    private volatile DeviceState mDeviceState;
+    /**
+     * Whether an activity of the app is visible.
+     */
+    private volatile boolean mInForeground = true;
+    /**
+     * Limits of the current batch, as decided by the policy when the batch started.
+     */
+    private volatile int mMaxBatchCount = MAX_BATCH_COUNT;
+    private volatile int mMaxBatchInterval = MAX_BATCH_INTERVAL;
+    /**
+     * Time the current batch started, in nanoseconds as returned by {@link System#nanoTime()}.
+     */
+    private volatile long mBatchStartNanos;
+    /**
+     * Average number of items per second added to the queue in recent batches.
+     */
+    private volatile double mQueueGrowthRate;
 
+    /**
+     * Gets the number of queue items which triggers synchronization with the default policy.
+     */
     static int getMaxBatchCount() {
         return Util.isDebuggerConnected() ? MAX_BATCH_COUNT_DEBUG : MAX_BATCH_COUNT;
     }
 
+    /**
+     * Gets the time interval after which a synchronize is triggered with the default policy.
+     */
     static int getMaxBatchInterval() {
         return Util.isDebuggerConnected() ? MAX_BATCH_INTERVAL_DEBUG : MAX_BATCH_INTERVAL;
     }
@@ -78,52 +163,302 @@ class Channel {
      */
     public Channel(TelemetryContext telemetryContext, Persistence persistence) {
         mTelemetryContext = telemetryContext;
-        mQueue = new LinkedList<>();
+        mQueue = new RingBuffer<>(MAX_QUEUE_CAPACITY, RingBuffer.OverflowPolicy.DROP_OLDEST);
+        mDrainBuffer = new String[mQueue.capacity()];
+        mPriorityQueue = new RingBuffer<>(MAX_PRIORITY_QUEUE_CAPACITY, RingBuffer.OverflowPolicy.DROP_OLDEST);
+        mPriorityDrainBuffer = new String[mPriorityQueue.capacity()];
         mPersistence = persistence;
-        mTimer = new Timer("HockeyApp User Metrics Sender Queue", true);
     }
 
     /**
-     * Adds an item to the channel queue.
+     * Adds an item to the channel queue. Safe to call from any thread without locking.
      *
      * @param serializedItem A serialized telemetry item to enqueue.
      */
-    protected synchronized void enqueue(String serializedItem) {
+    protected void enqueue(String serializedItem) {
+        enqueue(serializedItem, PriorityLane.LOW);
+    }
+
+    /**
+     * Adds an item to the queue of a lane. Safe to call from any thread without locking.
+     *
+     * @param serializedItem A serialized telemetry item to enqueue.
+     * @param lane           The lane the item travels in.
+     */
+    void enqueue(String serializedItem, PriorityLane lane) {
+        enqueue(serializedItem, lane, 0);
+    }
+
+    /**
+     * Adds an item to the queue of a lane. Safe to call from any thread without locking.
+     *
+     * @param serializedItem A serialized telemetry item to enqueue.
+     * @param lane           The lane the item travels in.
+     * @param captureTime    The time the item was captured, in milliseconds since epoch, or 0 if
+     *                       it is not known. Only counted towards the latency if the item is queued.
+     * @return True if the item has been queued.
+     */
+    boolean enqueue(String serializedItem, PriorityLane lane, long captureTime) {
         if (serializedItem == null) {
-            return;
+            return false;
+        }
+        RingBuffer<String> queue = lane == PriorityLane.HIGH ? mPriorityQueue : mQueue;
+        TelemetryJournal journal = mJournal;
+        boolean offered;
+        boolean journaled = true;
+        if (journal != null) {
+            // Journal and queues are drained together, so a drain can discard its part of the journal.
+            synchronized (journal) {
+                journaled = journal.append(serializedItem);
+                offered = queue.offer(serializedItem);
+            }
+        } else {
+            offered = queue.offer(serializedItem);
         }
-        if (mQueue.add(serializedItem)) {
-            if ((mQueue.size() >= getMaxBatchCount())) {
+        if (offered) {
+            PipelineCounters.getInstance().recordEnqueued();
+            if (captureTime > 0) {
+                synchronized (mCaptureTimeLock) {
+                    mCaptureTimeSum += captureTime;
+                    mCaptureTimeCount++;
+                }
+            }
+            boolean batchStarted = mSynchronizeScheduled.compareAndSet(false, true);
+            if (batchStarted) {
+                mBatchStartNanos = System.nanoTime();
+                updateBatchLimits();
+            }
+            if (mQueue.size() + mPriorityQueue.size() >= mMaxBatchCount || !journaled) {
+                // A full journal is emptied by persisting the queue.
                 synchronize();
-            } else if (mQueue.size() == 1) {
+            } else if (batchStarted) {
                 scheduleSynchronizeTask();
             }
         } else {
-            HockeyLog.verbose(TAG, "Unable to add item to queue");
+            HockeyLog.verbose(TAG, "Unable to add item to queue, " + queue.getDroppedCount() + " items dropped so far");
         }
+        return offered;
     }
 
     /**
      * Synchronize all pending telemetry items with persistence.
      */
     protected void synchronize() {
-        if (mSynchronizeTask != null) {
-            mSynchronizeTask.cancel();
+        mSynchronizeTask.cancel();
+        mSynchronizeScheduled.set(false);
+
+        synchronized (mDrainBuffer) {
+            TelemetryJournal journal = mJournal;
+            int priorityCount;
+            int count;
+            int journalPosition = 0;
+            if (journal != null) {
+                synchronized (journal) {
+                    priorityCount = mPriorityQueue.drainTo(mPriorityDrainBuffer);
+                    count = mQueue.drainTo(mDrainBuffer);
+                    journalPosition = journal.getPosition();
+                }
+            } else {
+                priorityCount = mPriorityQueue.drainTo(mPriorityDrainBuffer);
+                count = mQueue.drainTo(mDrainBuffer);
+            }
+            if (priorityCount + count == 0) {
+                if (journal != null) {
+                    journal.discard(journalPosition);
+                }
+                return;
+            }
+            updateQueueGrowthRate(priorityCount + count);
+            long captureTime;
+            synchronized (mCaptureTimeLock) {
+                captureTime = mCaptureTimeCount > 0 ? mCaptureTimeSum / mCaptureTimeCount : 0;
+                mCaptureTimeSum = 0;
+                mCaptureTimeCount = 0;
+            }
+            if (mPersistence != null) {
+                if (priorityCount > 0) {
+                    mPersistence.persist(mPriorityDrainBuffer, priorityCount, captureTime, PriorityLane.HIGH);
+                }
+                if (count > 0) {
+                    mPersistence.persist(mDrainBuffer, count, captureTime, PriorityLane.LOW);
+                }
+            }
+            Arrays.fill(mPriorityDrainBuffer, 0, priorityCount, null);
+            Arrays.fill(mDrainBuffer, 0, count, null);
+            if (journal != null) {
+                journal.discard(journalPosition);
+            }
+        }
+    }
+
+    /**
+     * Turns on write-ahead mode. Items left in the journal by a previous process are persisted
+     * first. Does nothing if a journal is already open.
+     *
+     * @param file The journal file.
+     * @return True if the journal is open.
+     */
+    boolean openJournal(File file) {
+        synchronized (mDrainBuffer) {
+            if (mJournal != null) {
+                return true;
+            }
+            TelemetryJournal journal;
+            try {
+                journal = TelemetryJournal.open(file, TelemetryJournal.DEFAULT_CAPACITY);
+            } catch (IOException e) {
+                HockeyLog.warn(TAG, "Failed to open telemetry journal", e);
+                return false;
+            }
+            List<String> recovered = journal.recover();
+            if (!recovered.isEmpty()) {
+                HockeyLog.debug(TAG, "Recovered " + recovered.size() + " telemetry items from the journal");
+                if (mPersistence != null) {
+                    mPersistence.persist(recovered.toArray(new String[recovered.size()]));
+                }
+                journal.discard(journal.getPosition());
+            }
+            mJournal = journal;
+            return true;
         }
+    }
 
-        String[] data = null;
-        synchronized (this) {
-            if (!mQueue.isEmpty()) {
-                data = new String[mQueue.size()];
-                mQueue.toArray(data);
-                mQueue.clear();
+    /**
+     * Turns off write-ahead mode. The queue is persisted and the journal file deleted.
+     */
+    void closeJournal() {
+        synchronized (mDrainBuffer) {
+            synchronize();
+            TelemetryJournal journal = mJournal;
+            if (journal != null) {
+                mJournal = null;
+                journal.close(true);
             }
         }
-        if (mPersistence != null && data != null) {
-            mPersistence.persist(data);
+    }
+
+    /**
+     * Forces the journal to the storage device, if write-ahead mode is on.
+     */
+    void forceJournal() {
+        TelemetryJournal journal = mJournal;
+        if (journal != null) {
+            journal.force();
         }
     }
 
+    /**
+     * @return True if write-ahead mode is on.
+     */
+    boolean isJournalOpen() {
+        return mJournal != null;
+    }
+
+    /**
+     * Asks the policy for the limits of a new batch.
+     */
+    private void updateBatchLimits() {
+        BatchPolicy policy = mBatchPolicy;
+        BatchState state = getBatchState();
+        mMaxBatchCount = Math.max(1, Math.min(mQueue.capacity(), policy.getMaxBatchCount(state)));
+        mMaxBatchInterval = Math.max(0, policy.getMaxBatchInterval(state));
+        HockeyLog.verbose(TAG, "New batch with at most " + mMaxBatchCount + " items or "
+                + mMaxBatchInterval + " ms for " + state);
+    }
+
+    private void updateQueueGrowthRate(int count) {
+        long elapsedMillis = Math.max(1, (System.nanoTime() - mBatchStartNanos) / 1000000);
+        double rate = count * 1000.0 / elapsedMillis;
+        double average = mQueueGrowthRate;
+        mQueueGrowthRate = average == 0 ? rate : average + GROWTH_RATE_WEIGHT * (rate - average);
+    }
+
+    /**
+     * Gets the current state of the signals the batch policy decides on.
+     *
+     * @return A snapshot of the state.
+     */
+    BatchState getBatchState() {
+        DeviceState deviceState = mDeviceState;
+        return new BatchState(
+                deviceState != null ? deviceState.getNetworkType() : BatchState.NetworkType.OTHER,
+                deviceState != null && deviceState.isPowerSaveMode(),
+                mInForeground,
+                mQueueGrowthRate,
+                Util.isDebuggerConnected());
+    }
+
+    /**
+     * Sets the policy deciding the limits of batches. It applies from the next batch on.
+     *
+     * @param batchPolicy The policy, or null to restore the {@link DefaultBatchPolicy}.
+     */
+    void setBatchPolicy(BatchPolicy batchPolicy) {
+        mBatchPolicy = batchPolicy != null ? batchPolicy : new DefaultBatchPolicy();
+    }
+
+    BatchPolicy getBatchPolicy() {
+        return mBatchPolicy;
+    }
+
+    /**
+     * Sets the source of the network and battery saver state passed to the batch policy.
+     *
+     * @param deviceState The device state, or null if unknown.
+     */
+    void setDeviceState(DeviceState deviceState) {
+        mDeviceState = deviceState;
+    }
+
+    /**
+     * Sets whether an activity of the app is visible.
+     *
+     * @param inForeground True if the app is in the foreground.
+     */
+    void setInForeground(boolean inForeground) {
+        mInForeground = inForeground;
+    }
+
+    /**
+     * @return The maximum number of items of the current batch.
+     */
+    int getCurrentMaxBatchCount() {
+        return mMaxBatchCount;
+    }
+
+    /**
+     * @return The maximum time in milliseconds the current batch is kept in memory.
+     */
+    int getCurrentMaxBatchInterval() {
+        return mMaxBatchInterval;
+    }
+
+    /**
+     * @return The average number of items per second added to the queue in recent batches.
+     */
+    double getQueueGrowthRate() {
+        return mQueueGrowthRate;
+    }
+
+    /**
+     * Sets the behaviour of the queues in case they are full.
+     *
+     * @param overflowPolicy The policy to apply.
+     */
+    void setOverflowPolicy(RingBuffer.OverflowPolicy overflowPolicy) {
+        mQueue.setOverflowPolicy(overflowPolicy);
+        mPriorityQueue.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Gets the number of items discarded because a queue was full.
+     *
+     * @return The number of dropped items.
+     */
+    long getDroppedCount() {
+        return mQueue.getDroppedCount() + mPriorityQueue.getDroppedCount();
+    }
+
     /**
      * Create a telemetry envelope with the given object as its base data.
      *
@@ -131,6 +466,17 @@ class Channel {
      * @return The envelope that includes the telemetry data.
      */
     protected Envelope createEnvelope(Data<Domain> data) {
+        return createEnvelope(data, System.currentTimeMillis());
+    }
+
+    /**
+     * Create a telemetry envelope with the given object as its base data.
+     *
+     * @param data      The telemetry we want to wrap inside an Envelope and send to the server.
+     * @param timestamp The time the telemetry was captured, in milliseconds since epoch.
+     * @return The envelope that includes the telemetry data.
+     */
+    protected Envelope createEnvelope(Data<Domain> data, long timestamp) {
         Envelope envelope = new Envelope();
         envelope.setData(data);
         Domain baseData = data.getBaseData();
@@ -141,19 +487,23 @@ class Channel {
 
         mTelemetryContext.updateScreenResolution();
 
-        envelope.setTime(Util.dateToISO8601(new Date()));
+        envelope.setTime(Util.dateToISO8601(new Date(timestamp)));
         envelope.setIKey(mTelemetryContext.getInstrumentationKey());
 
-        Map<String, String> tags = mTelemetryContext.getContextTags();
+        ContextTags tags = mTelemetryContext.getContextTagsSnapshot();
         if (tags != null) {
-            envelope.setTags(tags);
+            envelope.setTags(tags.getTags(), tags.getSerializedTags());
         }
         return envelope;
     }
 
+    /**
+     * Schedules synchronization after the max batch interval on the scheduler shared by the SDK.
+     */
     protected void scheduleSynchronizeTask() {
-        mSynchronizeTask = new SynchronizeChannelTask();
-        mTimer.schedule(mSynchronizeTask, getMaxBatchInterval());
+        if (!mSynchronizeTask.schedule(mMaxBatchInterval)) {
+            mSynchronizeScheduled.set(false);
+        }
     }
 
     /**
@@ -161,12 +511,39 @@ class Channel {
      *
      * @param data The base data object to enqueue.
      */
-    @SuppressWarnings("unchecked")
     public void enqueueData(Base data) {
+        enqueueData(data, System.currentTimeMillis());
+    }
+
+    /**
+     * Enqueue data in the channel queue.
+     *
+     * @param data      The base data object to enqueue.
+     * @param timestamp The time the data was captured, in milliseconds since epoch.
+     */
+    void enqueueData(Base data, long timestamp) {
+        enqueueData(data, timestamp, EventSampler.FULL_SAMPLE_RATE);
+    }
+
+    /**
+     * Enqueue data in the channel queue.
+     *
+     * @param data       The base data object to enqueue.
+     * @param timestamp  The time the data was captured, in milliseconds since epoch.
+     * @param sampleRate The percentage of items of this kind which are kept, stamped on the
+     *                   envelope.
+     */
+    @SuppressWarnings("unchecked")
+    void enqueueData(Base data, long timestamp, int sampleRate) {
         if (data instanceof Data) {
+            if (isDuplicate((Data<Domain>) data)) {
+                HockeyLog.debug(TAG, "Telemetry not enqueued, it repeats an item seen shortly before");
+                return;
+            }
             Envelope envelope = null;
             try {
-                envelope = createEnvelope((Data<Domain>) data);
+                envelope = createEnvelope((Data<Domain>) data, timestamp);
+                envelope.setSampleRate(sampleRate);
             } catch (ClassCastException e) {
                 HockeyLog.debug(TAG, "Telemetry not enqueued, could not create envelope, must be of type ITelemetry");
             }
@@ -174,14 +551,33 @@ class Channel {
             if (envelope != null) {
                 // enqueueData to queue
                 String serializedEnvelope = serializeEnvelope(envelope);
-                enqueue(serializedEnvelope);
-                HockeyLog.debug(TAG, "enqueued telemetry: " + envelope.getName());
+                if (serializedEnvelope == null) {
+                    PipelineCounters.getInstance().recordDropped(1);
+                    return;
+                }
+                if (enqueue(serializedEnvelope, PriorityLane.of(((Data<Domain>) data).getBaseData()), timestamp)) {
+                    HockeyLog.debug(TAG, "enqueued telemetry: " + envelope.getName());
+                }
+            } else {
+                PipelineCounters.getInstance().recordDropped(1);
             }
         } else {
             HockeyLog.debug(TAG, "Telemetry not enqueued, must be of type ITelemetry");
         }
     }
 
+    private boolean isDuplicate(Data<Domain> data) {
+        ContextTags tags = mTelemetryContext != null ? mTelemetryContext.getContextTagsSnapshot() : null;
+        return mCoalescer.isDuplicate(data.getBaseData(), tags != null ? tags.getVersion() : 0, System.nanoTime());
+    }
+
+    /**
+     * @return The coalescer dropping repeated telemetry.
+     */
+    EnvelopeCoalescer getCoalescer() {
+        return mCoalescer;
+    }
+
     /**
      * Serializes an envelope to a JSON string according to Common Schema.
      *
@@ -190,9 +586,11 @@ class Channel {
     protected String serializeEnvelope(Envelope envelope) {
         try {
             if (envelope != null) {
-                StringWriter stringWriter = new StringWriter();
-                envelope.serialize(stringWriter);
-                return stringWriter.toString();
+                synchronized (mJsonWriter) {
+                    mJsonWriter.reset();
+                    envelope.serialize(mJsonWriter);
+                    return mJsonWriter.toString();
+                }
             }
             HockeyLog.debug(TAG, "Envelope wasn't empty but failed to serialize anything, returning null");
             return null;
@@ -201,18 +599,4 @@ class Channel {
             return null;
         }
     }
-
-    /**
-     * Task to fire off after batch time interval has passed.
-     */
-    private class SynchronizeChannelTask extends TimerTask {
-
-        SynchronizeChannelTask() {
-        }
-
-        @Override
-        public void run() {
-            synchronize();
-        }
-    }
 }
@@ -0,0 +1,81 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.HockeyLog;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Immutable snapshot of the context tags of a {@link TelemetryContext}. The tags are serialized
+ * once when the snapshot is created, so all envelopes sharing the snapshot can write them as one
+ * pre-built JSON object.
+ */
+class ContextTags {
+
+    private static final String TAG = "HockeyApp-Metrics";
+
+    /**
+     * Version of the telemetry context this snapshot was created from.
+     */
+    private final int mVersion;
+
+    /**
+     * The context tags.
+     */
+    private final Map<String, String> mTags;
+
+    /**
+     * The context tags serialized as JSON object.
+     */
+    private final String mSerializedTags;
+
+    /**
+     * Creates a snapshot of the given tags.
+     *
+     * @param version Version of the telemetry context the tags belong to.
+     * @param tags    The tags to take a snapshot of.
+     */
+    ContextTags(int version, Map<String, String> tags) {
+        mVersion = version;
+        mTags = Collections.unmodifiableMap(new LinkedHashMap<>(tags));
+        mSerializedTags = serialize(mTags);
+    }
+
+    private static String serialize(Map<String, String> tags) {
+        StringWriter writer = new StringWriter();
+        try {
+            JsonHelper.writeDictionary(writer, tags);
+            return writer.toString();
+        } catch (IOException e) {
+            HockeyLog.debug(TAG, "Failed to serialize context tags: " + e.toString());
+            return null;
+        }
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Gets the tags.
+     *
+     * @return An unmodifiable map of the tags.
+     */
+    Map<String, String> getTags() {
+        return mTags;
+    }
+
+    /**
+     * Gets the tags serialized as JSON object.
+     *
+     * @return The serialized tags, or null if serialization failed.
+     */
+    String getSerializedTags() {
+        return mSerializedTags;
+    }
+}
@@ -0,0 +1,23 @@
+package net.hockeyapp.android.metrics;
+
+/**
+ * <h3>Description</h3>
+ *
+ * The batch policy used unless another one is set. Batches are written after
+ * {@value Channel#MAX_BATCH_COUNT} items or {@value Channel#MAX_BATCH_INTERVAL} milliseconds,
+ * whichever comes first. While a debugger is attached, batches are written after
+ * {@value Channel#MAX_BATCH_COUNT_DEBUG} items or {@value Channel#MAX_BATCH_INTERVAL_DEBUG}
+ * milliseconds, so events show up quickly during development.
+ */
+public class DefaultBatchPolicy implements BatchPolicy {
+
+    @Override
+    public int getMaxBatchCount(BatchState state) {
+        return state.isDebuggerConnected() ? Channel.MAX_BATCH_COUNT_DEBUG : Channel.MAX_BATCH_COUNT;
+    }
+
+    @Override
+    public int getMaxBatchInterval(BatchState state) {
+        return state.isDebuggerConnected() ? Channel.MAX_BATCH_INTERVAL_DEBUG : Channel.MAX_BATCH_INTERVAL;
+    }
+}
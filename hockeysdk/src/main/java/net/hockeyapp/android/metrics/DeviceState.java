@@ -0,0 +1,145 @@
+package net.hockeyapp.android.metrics;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.annotation.TargetApi;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import net.hockeyapp.android.utils.HockeyLog;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Provides the network type and battery saver state of the device to the {@link BatchPolicy}.
+ * Both are queried from the system services at most once per {@link #REFRESH_INTERVAL}, as the
+ * channel asks for them whenever a new batch starts.
+ */
+class DeviceState {
+
+    private static final String TAG = "HA-DeviceState";
+
+    /**
+     * Time in milliseconds the queried state is reused for.
+     */
+    static final long REFRESH_INTERVAL = 30 * 1000;
+
+    private final WeakReference<Context> mWeakContext;
+    private BatchState.NetworkType mNetworkType = BatchState.NetworkType.OTHER;
+    private boolean mPowerSaveMode;
+    private long mLastRefresh = -1;
+
+    /**
+     * Creates and initializes a new instance.
+     *
+     * @param context The context used to look up the system services.
+     */
+    DeviceState(Context context) {
+        mWeakContext = new WeakReference<>(context != null ? context.getApplicationContext() : null);
+    }
+
+    /**
+     * @return The kind of network the device is connected to.
+     */
+    synchronized BatchState.NetworkType getNetworkType() {
+        refreshIfNeeded();
+        return mNetworkType;
+    }
+
+    /**
+     * @return True if the device is in battery saver mode.
+     */
+    synchronized boolean isPowerSaveMode() {
+        refreshIfNeeded();
+        return mPowerSaveMode;
+    }
+
+    private void refreshIfNeeded() {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastRefresh >= 0 && now - mLastRefresh < REFRESH_INTERVAL) {
+            return;
+        }
+        mLastRefresh = now;
+        Context context = mWeakContext.get();
+        if (context == null) {
+            return;
+        }
+        try {
+            mNetworkType = queryNetworkType(context);
+            mPowerSaveMode = queryPowerSaveMode(context);
+        } catch (RuntimeException e) {
+            HockeyLog.warn(TAG, "Could not query the device state", e);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private static BatchState.NetworkType queryNetworkType(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return BatchState.NetworkType.OTHER;
+        }
+        NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+        if (activeNetwork == null || !activeNetwork.isConnected()) {
+            return BatchState.NetworkType.NONE;
+        }
+        BatchState.NetworkType networkType = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                ? getTransportType(connectivityManager)
+                : getLegacyNetworkType(activeNetwork);
+        if (networkType != null) {
+            return networkType;
+        }
+        return connectivityManager.isActiveNetworkMetered()
+                ? BatchState.NetworkType.CELLULAR : BatchState.NetworkType.OTHER;
+    }
+
+    /**
+     * @return The type of the active network by its transport, or null if it is neither Wi-Fi
+     * nor cellular.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    @SuppressLint("MissingPermission")
+    private static BatchState.NetworkType getTransportType(ConnectivityManager connectivityManager) {
+        Network network = connectivityManager.getActiveNetwork();
+        NetworkCapabilities capabilities = network != null ? connectivityManager.getNetworkCapabilities(network) : null;
+        if (capabilities == null) {
+            return null;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            return BatchState.NetworkType.WIFI;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return BatchState.NetworkType.CELLULAR;
+        }
+        return null;
+    }
+
+    /**
+     * @return The type of the active network, or null if it is neither Wi-Fi nor mobile.
+     */
+    @SuppressWarnings("deprecation") // The network type is the only way to tell before API 23.
+    private static BatchState.NetworkType getLegacyNetworkType(NetworkInfo activeNetwork) {
+        switch (activeNetwork.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+                return BatchState.NetworkType.WIFI;
+            case ConnectivityManager.TYPE_MOBILE:
+                return BatchState.NetworkType.CELLULAR;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean queryPowerSaveMode(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && powerManager.isPowerSaveMode();
+    }
+}
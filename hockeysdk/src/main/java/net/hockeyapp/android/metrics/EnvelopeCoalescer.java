@@ -0,0 +1,190 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Domain;
+import net.hockeyapp.android.metrics.model.EventData;
+import net.hockeyapp.android.metrics.model.SessionStateData;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Suppresses telemetry which repeats an item seen shortly before. Each item is reduced to a 64
+ * bit fingerprint of its content and the version of the telemetry context it was captured in.
+ * Fingerprints are kept with the time they were first seen in a small cache, an item whose
+ * fingerprint was seen within the coalescing window is dropped. The cache is set associative:
+ * a fingerprint may be kept in any of the {@link #WAYS} slots of its set, so a few items which
+ * map to the same set are all remembered instead of evicting each other. When a set is full,
+ * the fingerprint seen first is replaced. Session state items
+ * are always coalesced, custom events only if a window is configured for them, as identical
+ * events may be legitimate repeated user actions.
+ * Besides the items dropped here, callers can record other suppressed telemetry, see
+ * {@link #recordSuppressed()}.
+ */
+class EnvelopeCoalescer {
+
+    /**
+     * Time in milliseconds within which repeated session state items are dropped.
+     */
+    static final long SESSION_STATE_WINDOW = 2 * 1000;
+
+    /**
+     * Number of fingerprints kept, a power of two.
+     */
+    static final int CACHE_SIZE = 64;
+
+    /**
+     * Number of slots a fingerprint may be kept in, a power of two.
+     */
+    static final int WAYS = 4;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] mFingerprints = new long[CACHE_SIZE];
+    private final long[] mFirstSeenNanos = new long[CACHE_SIZE];
+    private final AtomicLong mSuppressedCount = new AtomicLong();
+    private volatile long mEventWindowNanos;
+
+    /**
+     * Checks whether an item repeats one seen within the coalescing window, and remembers it
+     * otherwise.
+     *
+     * @param baseData       The telemetry data of the item.
+     * @param contextVersion The version of the telemetry context the item is captured in.
+     * @param nowNanos       The current time as returned by {@link System#nanoTime()}.
+     * @return True if the item should be dropped.
+     */
+    synchronized boolean isDuplicate(Domain baseData, int contextVersion, long nowNanos) {
+        long windowNanos;
+        if (baseData instanceof SessionStateData) {
+            windowNanos = TimeUnit.MILLISECONDS.toNanos(SESSION_STATE_WINDOW);
+        } else if (baseData instanceof EventData) {
+            windowNanos = mEventWindowNanos;
+        } else {
+            return false;
+        }
+        if (windowNanos <= 0) {
+            return false;
+        }
+        long fingerprint = mix(fingerprint(baseData) * FNV_PRIME + contextVersion);
+        if (fingerprint == 0) {
+            // 0 marks an empty slot.
+            fingerprint = 1;
+        }
+        int first = (int) fingerprint & (CACHE_SIZE - WAYS);
+        int slot = first;
+        for (int i = first; i < first + WAYS; i++) {
+            if (mFingerprints[i] == fingerprint) {
+                if (nowNanos - mFirstSeenNanos[i] < windowNanos) {
+                    mSuppressedCount.incrementAndGet();
+                    return true;
+                }
+                slot = i;
+                break;
+            }
+            if (mFingerprints[slot] != 0
+                    && (mFingerprints[i] == 0 || mFirstSeenNanos[i] - mFirstSeenNanos[slot] < 0)) {
+                slot = i;
+            }
+        }
+        mFingerprints[slot] = fingerprint;
+        mFirstSeenNanos[slot] = nowNanos;
+        return false;
+    }
+
+    /**
+     * Counts telemetry which has been suppressed before reaching the channel.
+     */
+    void recordSuppressed() {
+        mSuppressedCount.incrementAndGet();
+    }
+
+    /**
+     * @return The number of suppressed items.
+     */
+    long getSuppressedCount() {
+        return mSuppressedCount.get();
+    }
+
+    /**
+     * Sets the window within which identical custom events are dropped.
+     *
+     * @param windowMillis The window in milliseconds, 0 to keep all custom events.
+     */
+    void setEventWindow(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Coalescing window must not be negative.");
+        }
+        mEventWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    /**
+     * Computes the fingerprint of the content of an item. Properties and measurements are
+     * combined independent of their order.
+     */
+    static long fingerprint(Domain baseData) {
+        if (baseData instanceof SessionStateData) {
+            SessionStateData sessionState = (SessionStateData) baseData;
+            return hash(hash(FNV_OFFSET_BASIS, sessionState.getEnvelopeName()),
+                    sessionState.getState() != null ? sessionState.getState().getValue() : -1);
+        }
+        EventBuilder builder = EventBuilder.getBuilder(baseData);
+        if (builder != null) {
+            long hash = hash(FNV_OFFSET_BASIS, builder.getName());
+            long properties = 0;
+            for (int i = 0; i < builder.getPropertyCount(); i++) {
+                properties += mix(hash(hash(FNV_OFFSET_BASIS, builder.getPropertyKey(i)), builder.getPropertyValue(i)));
+            }
+            long measurements = 0;
+            for (int i = 0; i < builder.getMeasurementCount(); i++) {
+                measurements += mix(hash(hash(FNV_OFFSET_BASIS, builder.getMeasurementKey(i)),
+                        Double.doubleToLongBits(builder.getMeasurementValue(i))));
+            }
+            return hash(hash(hash, properties), measurements);
+        }
+        EventData event = (EventData) baseData;
+        long hash = hash(FNV_OFFSET_BASIS, event.getName());
+        long properties = 0;
+        for (Map.Entry<String, String> property : event.getProperties().entrySet()) {
+            properties += mix(hash(hash(FNV_OFFSET_BASIS, property.getKey()), property.getValue()));
+        }
+        long measurements = 0;
+        for (Map.Entry<String, Double> measurement : event.getMeasurements().entrySet()) {
+            Double value = measurement.getValue();
+            measurements += mix(hash(hash(FNV_OFFSET_BASIS, measurement.getKey()),
+                    value != null ? Double.doubleToLongBits(value) : 0));
+        }
+        return hash(hash(hash, properties), measurements);
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xff) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // Terminate the string, so adjacent strings cannot be shifted into each other.
+        return (hash ^ 0xfffe) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * Spreads the bits of a hash, as the low bits of an FNV hash are weak.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,362 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.EventData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Summarizes custom events in memory instead of tracking each of them. For every event name with
+ * aggregation enabled, the events are grouped by their properties. Per group the number of events
+ * and, per measurement, count, sum, minimum, maximum and optionally a histogram are kept in a
+ * {@link MeasurementTable}. Once per aggregation window, every group is turned into one event
+ * carrying the summary as measurements:
+ * <ul>
+ * <li>{@value #EVENT_COUNT}: the number of events,</li>
+ * <li>{@value #WINDOW_DURATION}: the length of the window in milliseconds,</li>
+ * <li>{@code <measurement>.count}, {@code .sum}, {@code .min} and {@code .max},</li>
+ * <li>{@code <measurement>.le_<bound>} and {@code <measurement>.le_inf}: the number of values
+ * per histogram bucket, if bounds are configured.</li>
+ * </ul>
+ * The number of groups is limited, events which do not fit are tracked individually.
+ */
+class EventAggregator {
+
+    /**
+     * Default length of the aggregation window in milliseconds.
+     */
+    static final long DEFAULT_WINDOW = 60 * 1000;
+
+    /**
+     * Maximum number of groups kept in memory at the same time.
+     */
+    static final int MAX_SERIES_COUNT = 256;
+
+    /**
+     * Measurement holding the number of summarized events.
+     */
+    static final String EVENT_COUNT = "aggregate.count";
+
+    /**
+     * Measurement holding the length of the window in milliseconds.
+     */
+    static final String WINDOW_DURATION = "aggregate.duration";
+
+    private static final double[] NO_BOUNDS = new double[0];
+
+    /**
+     * Histogram bounds per aggregated event name. Never modified, replaced on every change.
+     */
+    private volatile Map<String, double[]> mAggregatedEvents = new HashMap<>();
+
+    private volatile long mWindow = DEFAULT_WINDOW;
+
+    /**
+     * Groups of the current window per event name.
+     */
+    private final Map<String, List<Series>> mSeries = new HashMap<>();
+    private int mSeriesCount;
+    private long mWindowStartNanos;
+
+    /**
+     * Checks whether events with the given name are aggregated.
+     *
+     * @param eventName The name of the event.
+     * @return True if aggregation is enabled for the name.
+     */
+    boolean isAggregated(String eventName) {
+        return mAggregatedEvents.containsKey(eventName);
+    }
+
+    /**
+     * Adds an event to the summary of its group.
+     *
+     * @param eventName    The name of the event.
+     * @param properties   The properties of the event, defining its group. May be null.
+     * @param measurements The measurements of the event. May be null.
+     * @param sampleRate   The sample rate the event was kept with.
+     * @return True if the event has been recorded, false if aggregation is not enabled for the
+     * name or too many groups are kept already.
+     */
+    synchronized boolean record(String eventName, Map<String, String> properties,
+                                Map<String, Double> measurements, int sampleRate) {
+        double[] bounds = mAggregatedEvents.get(eventName);
+        if (bounds == null) {
+            return false;
+        }
+        if (properties == null) {
+            properties = Collections.emptyMap();
+        }
+        Series series = findSeries(eventName, properties);
+        if (series == null) {
+            series = addSeries(eventName, new HashMap<>(properties), bounds);
+            if (series == null) {
+                return false;
+            }
+        }
+        series.mEventCount++;
+        series.mSampleRate = sampleRate;
+        if (measurements != null) {
+            for (Map.Entry<String, Double> measurement : measurements.entrySet()) {
+                Double value = measurement.getValue();
+                if (measurement.getKey() != null && value != null) {
+                    series.mMeasurements.record(measurement.getKey(), value);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds an event built with an {@link EventBuilder} to the summary of its group, without
+     * allocating anything unless a new group or measurement is seen.
+     *
+     * @param event      The event.
+     * @param sampleRate The sample rate the event was kept with.
+     * @return True if the event has been recorded, false if aggregation is not enabled for the
+     * name or too many groups are kept already.
+     */
+    synchronized boolean record(EventBuilder event, int sampleRate) {
+        String eventName = event.getName();
+        double[] bounds = mAggregatedEvents.get(eventName);
+        if (bounds == null) {
+            return false;
+        }
+        Series series = findSeries(event);
+        if (series == null) {
+            Map<String, String> properties = new HashMap<>();
+            for (int i = 0; i < event.getPropertyCount(); i++) {
+                properties.put(event.getPropertyKey(i), event.getPropertyValue(i));
+            }
+            series = addSeries(eventName, properties, bounds);
+            if (series == null) {
+                return false;
+            }
+        }
+        series.mEventCount++;
+        series.mSampleRate = sampleRate;
+        for (int i = 0; i < event.getMeasurementCount(); i++) {
+            series.mMeasurements.record(event.getMeasurementKey(i), event.getMeasurementValue(i));
+        }
+        return true;
+    }
+
+    /**
+     * Turns all groups of the current window into summary events and starts a new window.
+     *
+     * @return The summaries, empty if no event has been recorded.
+     */
+    synchronized List<Summary> drain() {
+        if (mSeriesCount == 0) {
+            return Collections.emptyList();
+        }
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mWindowStartNanos);
+        List<Summary> summaries = new ArrayList<>(mSeriesCount);
+        for (List<Series> list : mSeries.values()) {
+            for (int i = 0; i < list.size(); i++) {
+                summaries.add(list.get(i).summarize(duration));
+            }
+        }
+        mSeries.clear();
+        mSeriesCount = 0;
+        return summaries;
+    }
+
+    /**
+     * Enables aggregation of the events with the given name.
+     *
+     * @param eventName The name of the events.
+     * @param bounds    Upper bounds of the histogram buckets of each measurement, or null to keep
+     *                  no histogram.
+     */
+    synchronized void enable(String eventName, double... bounds) {
+        double[] sortedBounds = NO_BOUNDS;
+        if (bounds != null && bounds.length > 0) {
+            sortedBounds = bounds.clone();
+            Arrays.sort(sortedBounds);
+        }
+        Map<String, double[]> aggregatedEvents = new HashMap<>(mAggregatedEvents);
+        aggregatedEvents.put(eventName, sortedBounds);
+        mAggregatedEvents = aggregatedEvents;
+    }
+
+    /**
+     * Disables aggregation of the events with the given name. Events already recorded are
+     * still summarized at the end of the window.
+     *
+     * @param eventName The name of the events.
+     */
+    synchronized void disable(String eventName) {
+        Map<String, double[]> aggregatedEvents = new HashMap<>(mAggregatedEvents);
+        aggregatedEvents.remove(eventName);
+        mAggregatedEvents = aggregatedEvents;
+    }
+
+    /**
+     * @return The length of the aggregation window in milliseconds.
+     */
+    long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Sets the length of the aggregation window.
+     *
+     * @param window The length in milliseconds, greater than 0.
+     */
+    void setWindow(long window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Aggregation window must be greater than 0.");
+        }
+        mWindow = window;
+    }
+
+    /**
+     * @return The number of groups in the current window.
+     */
+    synchronized int getSeriesCount() {
+        return mSeriesCount;
+    }
+
+    private Series findSeries(String eventName, Map<String, String> properties) {
+        List<Series> list = mSeries.get(eventName);
+        if (list != null) {
+            for (int i = 0; i < list.size(); i++) {
+                Series series = list.get(i);
+                if (series.mProperties.equals(properties)) {
+                    return series;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Series findSeries(EventBuilder event) {
+        List<Series> list = mSeries.get(event.getName());
+        if (list != null) {
+            for (int i = 0; i < list.size(); i++) {
+                Series series = list.get(i);
+                if (series.matches(event)) {
+                    return series;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts a new group, unless too many groups are kept already.
+     */
+    private Series addSeries(String eventName, Map<String, String> properties, double[] bounds) {
+        if (mSeriesCount >= MAX_SERIES_COUNT) {
+            return null;
+        }
+        if (mSeriesCount == 0) {
+            mWindowStartNanos = System.nanoTime();
+        }
+        Series series = new Series(eventName, properties, bounds);
+        List<Series> list = mSeries.get(eventName);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            mSeries.put(eventName, list);
+        }
+        list.add(series);
+        mSeriesCount++;
+        return series;
+    }
+
+    /**
+     * Summary event of a group, along with the sample rate of its events.
+     */
+    static class Summary {
+
+        private final EventData mData;
+        private final int mSampleRate;
+
+        Summary(EventData data, int sampleRate) {
+            mData = data;
+            mSampleRate = sampleRate;
+        }
+
+        EventData getData() {
+            return mData;
+        }
+
+        int getSampleRate() {
+            return mSampleRate;
+        }
+    }
+
+    /**
+     * Events of one name with the same properties.
+     */
+    private static class Series {
+
+        private final String mEventName;
+        private final Map<String, String> mProperties;
+        private final MeasurementTable mMeasurements;
+        private long mEventCount;
+        private int mSampleRate;
+
+        Series(String eventName, Map<String, String> properties, double[] bounds) {
+            mEventName = eventName;
+            mProperties = properties;
+            mMeasurements = new MeasurementTable(bounds);
+        }
+
+        boolean matches(EventBuilder event) {
+            int count = event.getPropertyCount();
+            if (mProperties.size() != count) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                String key = event.getPropertyKey(i);
+                String value = event.getPropertyValue(i);
+                String expected = mProperties.get(key);
+                if (value == null ? expected != null || !mProperties.containsKey(key) : !value.equals(expected)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Summary summarize(long duration) {
+            Map<String, Double> values = new LinkedHashMap<>();
+            values.put(EVENT_COUNT, (double) mEventCount);
+            values.put(WINDOW_DURATION, (double) duration);
+            MeasurementTable table = mMeasurements;
+            double[] bounds = table.getBounds();
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                String name = table.getName(slot);
+                if (name == null) {
+                    continue;
+                }
+                values.put(name + ".count", (double) table.getCount(slot));
+                values.put(name + ".sum", table.getSum(slot));
+                values.put(name + ".min", table.getMin(slot));
+                values.put(name + ".max", table.getMax(slot));
+                if (bounds != null) {
+                    for (int bucket = 0; bucket < bounds.length; bucket++) {
+                        values.put(name + ".le_" + bounds[bucket], (double) table.getBucketCount(slot, bucket));
+                    }
+                    values.put(name + ".le_inf", (double) table.getBucketCount(slot, bounds.length));
+                }
+            }
+            EventData data = new EventData();
+            data.setName(mEventName);
+            if (!mProperties.isEmpty()) {
+                data.setProperties(mProperties);
+            }
+            data.setMeasurements(values);
+            return new Summary(data, mSampleRate);
+        }
+    }
+}
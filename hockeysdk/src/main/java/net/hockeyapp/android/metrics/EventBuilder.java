@@ -0,0 +1,333 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Data;
+import net.hockeyapp.android.metrics.model.Domain;
+import net.hockeyapp.android.metrics.model.EventData;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Builds a custom event without allocating maps or boxing measurements. Builders are pooled:
+ * get one with {@link #obtain(String)}, add properties and measurements and pass it to
+ * {@link MetricsManager#trackEvent(EventBuilder)}. The SDK recycles the builder once the event
+ * has been serialized, so it must not be used after it has been tracked. A builder which is not
+ * tracked can be returned to the pool with {@link #recycle()}.
+ * <pre>
+ * MetricsManager.trackEvent(EventBuilder.obtain("Download")
+ *         .put("source", "wifi")
+ *         .put("bytes", byteCount)
+ *         .put("seconds", duration));
+ * </pre>
+ */
+public final class EventBuilder {
+
+    /**
+     * Maximum number of builders kept for reuse.
+     */
+    static final int MAX_POOL_SIZE = 16;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private static final Object POOL_LOCK = new Object();
+    private static EventBuilder sPool;
+    private static int sPoolSize;
+
+    private final BuilderData mData = new BuilderData(this);
+    private final BuilderEventData mEventData = new BuilderEventData(this);
+
+    private EventBuilder mNext;
+    private boolean mInUse;
+    private String mName;
+
+    private String[] mPropertyKeys = new String[INITIAL_CAPACITY];
+    private String[] mPropertyValues = new String[INITIAL_CAPACITY];
+    private int mPropertyCount;
+
+    private String[] mMeasurementKeys = new String[INITIAL_CAPACITY];
+    private double[] mDoubleValues = new double[INITIAL_CAPACITY];
+    private long[] mLongValues = new long[INITIAL_CAPACITY];
+    private boolean[] mIsLong = new boolean[INITIAL_CAPACITY];
+    private int mMeasurementCount;
+
+    private EventBuilder() {
+        mData.setBaseData(mEventData);
+        mData.setBaseType(mEventData.getBaseType());
+        mData.QualifiedName = mEventData.getEnvelopeName();
+    }
+
+    /**
+     * Gets a builder from the pool, or creates one if the pool is empty.
+     *
+     * @param eventName The name of the event.
+     * @return An empty builder for the event.
+     */
+    public static EventBuilder obtain(String eventName) {
+        EventBuilder builder = null;
+        synchronized (POOL_LOCK) {
+            if (sPool != null) {
+                builder = sPool;
+                sPool = builder.mNext;
+                builder.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (builder == null) {
+            builder = new EventBuilder();
+        }
+        builder.mInUse = true;
+        builder.mName = eventName;
+        builder.mEventData.setName(eventName);
+        return builder;
+    }
+
+    /**
+     * Adds a property, replacing a property with the same key.
+     *
+     * @param key   The key of the property.
+     * @param value The value of the property.
+     * @return This builder.
+     */
+    public EventBuilder put(String key, String value) {
+        checkInUse();
+        if (key == null) {
+            return this;
+        }
+        for (int i = 0; i < mPropertyCount; i++) {
+            if (key.equals(mPropertyKeys[i])) {
+                mPropertyValues[i] = value;
+                return this;
+            }
+        }
+        if (mPropertyCount == mPropertyKeys.length) {
+            mPropertyKeys = Arrays.copyOf(mPropertyKeys, mPropertyCount * 2);
+            mPropertyValues = Arrays.copyOf(mPropertyValues, mPropertyCount * 2);
+        }
+        mPropertyKeys[mPropertyCount] = key;
+        mPropertyValues[mPropertyCount] = value;
+        mPropertyCount++;
+        return this;
+    }
+
+    /**
+     * Adds a measurement, replacing a measurement with the same key.
+     *
+     * @param key   The key of the measurement.
+     * @param value The measured value.
+     * @return This builder.
+     */
+    public EventBuilder put(String key, double value) {
+        int index = measurementIndex(key);
+        if (index >= 0) {
+            mDoubleValues[index] = value;
+            mIsLong[index] = false;
+        }
+        return this;
+    }
+
+    /**
+     * Adds a measurement, replacing a measurement with the same key.
+     *
+     * @param key   The key of the measurement.
+     * @param value The measured value.
+     * @return This builder.
+     */
+    public EventBuilder put(String key, long value) {
+        int index = measurementIndex(key);
+        if (index >= 0) {
+            mLongValues[index] = value;
+            mIsLong[index] = true;
+        }
+        return this;
+    }
+
+    /**
+     * Clears the builder and returns it to the pool. It must not be used afterwards.
+     */
+    public void recycle() {
+        if (!mInUse) {
+            return;
+        }
+        mInUse = false;
+        mName = null;
+        mEventData.setName(null);
+        Arrays.fill(mPropertyKeys, 0, mPropertyCount, null);
+        Arrays.fill(mPropertyValues, 0, mPropertyCount, null);
+        Arrays.fill(mMeasurementKeys, 0, mMeasurementCount, null);
+        mPropertyCount = 0;
+        mMeasurementCount = 0;
+        synchronized (POOL_LOCK) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * @return The name of the event.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    int getPropertyCount() {
+        return mPropertyCount;
+    }
+
+    String getPropertyKey(int index) {
+        return mPropertyKeys[index];
+    }
+
+    String getPropertyValue(int index) {
+        return mPropertyValues[index];
+    }
+
+    int getMeasurementCount() {
+        return mMeasurementCount;
+    }
+
+    String getMeasurementKey(int index) {
+        return mMeasurementKeys[index];
+    }
+
+    double getMeasurementValue(int index) {
+        return mIsLong[index] ? mLongValues[index] : mDoubleValues[index];
+    }
+
+    /**
+     * @return The telemetry data serializing the event straight from this builder.
+     */
+    Data<Domain> getData() {
+        return mData;
+    }
+
+    /**
+     * Gets the builder an event has been built with.
+     *
+     * @param baseData The telemetry data of an event.
+     * @return The builder, or null if the data has not been built with a builder.
+     */
+    static EventBuilder getBuilder(Domain baseData) {
+        return baseData instanceof BuilderEventData ? ((BuilderEventData) baseData).mBuilder : null;
+    }
+
+    /**
+     * @return The number of builders in the pool.
+     */
+    static int getPoolSize() {
+        synchronized (POOL_LOCK) {
+            return sPoolSize;
+        }
+    }
+
+    private int measurementIndex(String key) {
+        checkInUse();
+        if (key == null) {
+            return -1;
+        }
+        for (int i = 0; i < mMeasurementCount; i++) {
+            if (key.equals(mMeasurementKeys[i])) {
+                return i;
+            }
+        }
+        if (mMeasurementCount == mMeasurementKeys.length) {
+            int capacity = mMeasurementCount * 2;
+            mMeasurementKeys = Arrays.copyOf(mMeasurementKeys, capacity);
+            mDoubleValues = Arrays.copyOf(mDoubleValues, capacity);
+            mLongValues = Arrays.copyOf(mLongValues, capacity);
+            mIsLong = Arrays.copyOf(mIsLong, capacity);
+        }
+        mMeasurementKeys[mMeasurementCount] = key;
+        return mMeasurementCount++;
+    }
+
+    private void checkInUse() {
+        if (!mInUse) {
+            throw new IllegalStateException("EventBuilder has been recycled, obtain a new one.");
+        }
+    }
+
+    private void writeProperties(Writer writer) throws IOException {
+        writer.write('{');
+        for (int i = 0; i < mPropertyCount; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            JsonHelper.write(writer, mPropertyKeys[i]);
+            writer.write(':');
+            JsonHelper.write(writer, mPropertyValues[i]);
+        }
+        writer.write('}');
+    }
+
+    private void writeMeasurements(Writer writer) throws IOException {
+        writer.write('{');
+        for (int i = 0; i < mMeasurementCount; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            JsonHelper.write(writer, mMeasurementKeys[i]);
+            writer.write(':');
+            if (mIsLong[i]) {
+                JsonHelper.write(writer, mLongValues[i]);
+            } else {
+                JsonHelper.write(writer, mDoubleValues[i]);
+            }
+        }
+        writer.write('}');
+    }
+
+    /**
+     * Data wrapper of the builder, returning the builder to the pool after serialization.
+     */
+    private static class BuilderData extends Data<Domain> implements SerializationStage.Recyclable {
+
+        private final EventBuilder mBuilder;
+
+        BuilderData(EventBuilder builder) {
+            mBuilder = builder;
+        }
+
+        @Override
+        public void recycle() {
+            mBuilder.recycle();
+        }
+    }
+
+    /**
+     * Event data writing properties and measurements straight from the builder.
+     */
+    private static class BuilderEventData extends EventData {
+
+        private static final long serialVersionUID = -1609107899707370994L;
+
+        private final EventBuilder mBuilder;
+
+        BuilderEventData(EventBuilder builder) {
+            mBuilder = builder;
+        }
+
+        @Override
+        protected String serializeContent(Writer writer) throws IOException {
+            String prefix = super.serializeContent(writer);
+            if (mBuilder.mPropertyCount > 0) {
+                writer.write(prefix);
+                writer.write("\"properties\":");
+                mBuilder.writeProperties(writer);
+                prefix = ",";
+            }
+            if (mBuilder.mMeasurementCount > 0) {
+                writer.write(prefix);
+                writer.write("\"measurements\":");
+                mBuilder.writeMeasurements(writer);
+                prefix = ",";
+            }
+            return prefix;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package net.hockeyapp.android.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Decides on the caller thread whether a custom event is kept, before any telemetry object is
+ * created for it. Events are sampled with a global rate in whole percent, which can be
+ * overridden per event name, and can additionally be rate limited per event name with a token
+ * bucket. The sample rate of a kept event is stamped on its envelope, so the backend can
+ * extrapolate the real count. Events
+ * dropped by a rate limit are not accounted for in the sample rate.
+ * Configuration changes replace the rules as a whole, so checking an event does not lock
+ * unless the event name has a rate limit.
+ */
+class EventSampler {
+
+    /**
+     * Sample rate in percent of an event which is not sampled.
+     */
+    static final int FULL_SAMPLE_RATE = 100;
+
+    /**
+     * Increment of the random sequence, see {@link #nextDouble()}.
+     */
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Sample rate in percent of all event names without a sample rate of their own.
+     */
+    private volatile double mSampleRate = FULL_SAMPLE_RATE;
+
+    /**
+     * Rules per event name. Never modified, replaced on every change.
+     */
+    private volatile Map<String, Rule> mRules = new HashMap<>();
+
+    private final AtomicLong mSeed = new AtomicLong(System.nanoTime());
+    private final AtomicLong mSampledOutCount = new AtomicLong();
+    private final AtomicLong mRateLimitedCount = new AtomicLong();
+
+    /**
+     * Checks whether an event is kept.
+     *
+     * @param eventName The name of the event.
+     * @return The sample rate in percent to stamp on the event, 0 if the event is dropped.
+     */
+    int sample(String eventName) {
+        Rule rule = mRules.get(eventName);
+        double sampleRate = rule != null && !Double.isNaN(rule.mSampleRate) ? rule.mSampleRate : mSampleRate;
+        if (sampleRate < FULL_SAMPLE_RATE && nextDouble() * FULL_SAMPLE_RATE >= sampleRate) {
+            mSampledOutCount.incrementAndGet();
+            return 0;
+        }
+        if (rule != null && rule.mRateLimit != null && !rule.mRateLimit.tryAcquire()) {
+            mRateLimitedCount.incrementAndGet();
+            return 0;
+        }
+        return (int) sampleRate;
+    }
+
+    /**
+     * Sets the sample rate of all events without a sample rate of their own.
+     *
+     * @param percentage The whole percentage of events to keep, between 0 and 100.
+     */
+    void setSampleRate(double percentage) {
+        mSampleRate = checkPercentage(percentage);
+    }
+
+    /**
+     * Sets the sample rate of the events with the given name.
+     *
+     * @param eventName  The name of the events.
+     * @param percentage The whole percentage of events to keep, between 0 and 100, or a negative
+     *                   value to apply the global sample rate again.
+     */
+    synchronized void setSampleRate(String eventName, double percentage) {
+        Rule rule = mRules.get(eventName);
+        TokenBucket rateLimit = rule != null ? rule.mRateLimit : null;
+        double sampleRate = percentage < 0 ? Double.NaN : checkPercentage(percentage);
+        updateRule(eventName, sampleRate, rateLimit);
+    }
+
+    /**
+     * Limits the rate of the events with the given name.
+     *
+     * @param eventName       The name of the events.
+     * @param eventsPerSecond The average number of events per second to keep, or 0 to remove the
+     *                        limit.
+     * @param burstSize       The number of events which may be kept at once, at least 1.
+     */
+    synchronized void setRateLimit(String eventName, double eventsPerSecond, int burstSize) {
+        if (eventsPerSecond < 0 || burstSize < 1) {
+            throw new IllegalArgumentException("Rate limit must not be negative and burst size must be at least 1.");
+        }
+        Rule rule = mRules.get(eventName);
+        double sampleRate = rule != null ? rule.mSampleRate : Double.NaN;
+        TokenBucket rateLimit = eventsPerSecond > 0 ? new TokenBucket(eventsPerSecond, burstSize) : null;
+        updateRule(eventName, sampleRate, rateLimit);
+    }
+
+    /**
+     * Removes all sample rates and rate limits.
+     */
+    synchronized void reset() {
+        mSampleRate = FULL_SAMPLE_RATE;
+        mRules = new HashMap<>();
+    }
+
+    /**
+     * @return The number of events dropped by sampling.
+     */
+    long getSampledOutCount() {
+        return mSampledOutCount.get();
+    }
+
+    /**
+     * @return The number of events dropped by rate limits.
+     */
+    long getRateLimitedCount() {
+        return mRateLimitedCount.get();
+    }
+
+    /**
+     * Replaces the rule of an event name. A sample rate of NaN means the global rate applies.
+     */
+    private void updateRule(String eventName, double sampleRate, TokenBucket rateLimit) {
+        Map<String, Rule> rules = new HashMap<>(mRules);
+        if (Double.isNaN(sampleRate) && rateLimit == null) {
+            rules.remove(eventName);
+        } else {
+            rules.put(eventName, new Rule(sampleRate, rateLimit));
+        }
+        mRules = rules;
+    }
+
+    /**
+     * Envelopes carry the sample rate as a whole percentage, so only whole percentages are
+     * accepted, the stamped rate would not match the rate events are kept at otherwise.
+     */
+    private static double checkPercentage(double percentage) {
+        if (!(percentage >= 0 && percentage <= FULL_SAMPLE_RATE) || percentage != Math.rint(percentage)) {
+            throw new IllegalArgumentException("Sample rate must be a whole percentage between 0 and 100.");
+        }
+        return percentage;
+    }
+
+    /**
+     * Returns a uniformly distributed value between 0 (inclusive) and 1 (exclusive). Lock free,
+     * based on the SplitMix64 generator.
+     */
+    private double nextDouble() {
+        long z = mSeed.addAndGet(GOLDEN_GAMMA);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Sampling and rate limiting rule of an event name. A sample rate of NaN means the global
+     * sample rate applies.
+     */
+    private static class Rule {
+
+        private final double mSampleRate;
+        private final TokenBucket mRateLimit;
+
+        Rule(double sampleRate, TokenBucket rateLimit) {
+            mSampleRate = sampleRate;
+            mRateLimit = rateLimit;
+        }
+    }
+
+    /**
+     * Token bucket refilled continuously at a fixed rate.
+     */
+    static class TokenBucket {
+
+        private final double mTokensPerNano;
+        private final int mCapacity;
+        private double mTokens;
+        private long mLastRefillNanos;
+
+        TokenBucket(double tokensPerSecond, int capacity) {
+            mTokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            mCapacity = capacity;
+            mTokens = capacity;
+            mLastRefillNanos = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            return tryAcquire(System.nanoTime());
+        }
+
+        synchronized boolean tryAcquire(long nowNanos) {
+            long elapsed = nowNanos - mLastRefillNanos;
+            if (elapsed > 0) {
+                mTokens = Math.min(mCapacity, mTokens + elapsed * mTokensPerNano);
+                mLastRefillNanos = nowNanos;
+            }
+            if (mTokens >= 1) {
+                mTokens -= 1;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package net.hockeyapp.android.metrics;
+
+import android.annotation.SuppressLint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Encodes data as gzip members (RFC 1952) into a buffer which is kept across uses, so
+ * compressing a batch does not set up a new deflater and stream for every call.
+ * A member can also be written piece by piece: {@link #flush()} ends the output of every piece
+ * at a byte boundary, so the pieces can be stored separately and the member is completed later
+ * by {@link #end(int, long, byte[])}, which only needs the checksum and length of the data. The deflate
+ * data of such members can be joined into one member, see {@link #SEPARATOR_BLOCK} and
+ * {@link #combineCrc(int, int, long)}, so only single members are ever sent. Not thread safe.
+ */
+final class GzipCodec {
+
+    private static final int MAGIC_1 = 0x1f;
+    private static final int MAGIC_2 = 0x8b;
+
+    /**
+     * Size of the member header.
+     */
+    static final int HEADER_SIZE = 10;
+
+    private static final int TRAILER_SIZE = 8;
+
+    /**
+     * Size of the end of a flushed member: an empty final stored block and the trailer.
+     */
+    static final int END_SIZE = 5 + TRAILER_SIZE;
+
+    /**
+     * A stored block holding a newline, joins the deflate data of two flushed members.
+     */
+    static final byte[] SEPARATOR_BLOCK = {0, 1, 0, (byte) 0xfe, (byte) 0xff, '\n'};
+
+    /**
+     * Checksum of the data of {@link #SEPARATOR_BLOCK}.
+     */
+    static final int SEPARATOR_CRC = 0x32d70693;
+
+    /**
+     * Whether the deflater can flush to a byte boundary, which needs API 19.
+     */
+    private static final boolean FLUSH_SUPPORTED = probeFlush();
+
+    /**
+     * Member header: magic, deflate method, no flags, no modification time, no extra flags and
+     * unknown operating system.
+     */
+    private static final byte[] HEADER = {
+            (byte) MAGIC_1, (byte) MAGIC_2, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    /**
+     * Minimum free space in the buffer before calling the deflater.
+     */
+    private static final int MIN_FREE_SPACE = 1024;
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mBuffer = new byte[8 * 1024];
+    private int mLength;
+    private long mInputLength;
+
+    /**
+     * Starts a new member, discarding the previous output.
+     */
+    void begin() {
+        mDeflater.reset();
+        mCrc.reset();
+        mInputLength = 0;
+        mLength = 0;
+        ensureFreeSpace(HEADER_SIZE);
+        System.arraycopy(HEADER, 0, mBuffer, 0, HEADER_SIZE);
+        mLength = HEADER_SIZE;
+    }
+
+    /**
+     * Discards the encoded output, keeping the state of the current member, so a flushed member
+     * can be continued.
+     */
+    void clear() {
+        mLength = 0;
+    }
+
+    /**
+     * Compresses data into the current member.
+     *
+     * @param data   The data to compress.
+     * @param offset Start of the data in the array.
+     * @param length Number of bytes to compress.
+     */
+    void write(byte[] data, int offset, int length) {
+        mCrc.update(data, offset, length);
+        mInputLength += length;
+        mDeflater.setInput(data, offset, length);
+        while (!mDeflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * Writes out all data compressed so far, ending at a byte boundary. Needs
+     * {@link #isFlushSupported()}.
+     */
+    @SuppressLint("NewApi")
+    void flush() {
+        int count;
+        do {
+            ensureFreeSpace(MIN_FREE_SPACE);
+            count = mDeflater.deflate(mBuffer, mLength, mBuffer.length - mLength, Deflater.SYNC_FLUSH);
+            mLength += count;
+        } while (count > 0 && mLength == mBuffer.length);
+    }
+
+    /**
+     * @return The checksum of the data of the current member.
+     */
+    int getCrc() {
+        return (int) mCrc.getValue();
+    }
+
+    /**
+     * @return The length of the data of the current member.
+     */
+    long getInputLength() {
+        return mInputLength;
+    }
+
+    /**
+     * Completes the current member. The encoded member is available from {@link #getBuffer()}.
+     */
+    void finish() {
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+        ensureFreeSpace(TRAILER_SIZE);
+        writeIntLittleEndian((int) mCrc.getValue());
+        writeIntLittleEndian((int) mInputLength);
+    }
+
+    /**
+     * @return The buffer holding the encoded member, only valid up to {@link #getLength()}.
+     */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return The number of bytes of the encoded member.
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Releases the native resources of the codec. It must not be used afterwards.
+     */
+    void release() {
+        mDeflater.end();
+    }
+
+    /**
+     * Encodes data as a single gzip member.
+     *
+     * @param data The data to compress.
+     * @return The gzip member.
+     */
+    static byte[] compress(byte[] data) {
+        GzipCodec codec = new GzipCodec();
+        try {
+            codec.begin();
+            codec.write(data, 0, data.length);
+            codec.finish();
+            return Arrays.copyOf(codec.getBuffer(), codec.getLength());
+        } finally {
+            codec.release();
+        }
+    }
+
+    /**
+     * @return True if members can be written piece by piece, see {@link #flush()}.
+     */
+    static boolean isFlushSupported() {
+        return FLUSH_SUPPORTED;
+    }
+
+    /**
+     * Encodes the end of a flushed member: an empty final stored block, the data before ends at
+     * a byte boundary, and the trailer.
+     *
+     * @param crc    The checksum of all data of the member.
+     * @param length The length of all data of the member.
+     * @param out    A buffer of at least {@link #END_SIZE} bytes.
+     * @return The buffer.
+     */
+    static byte[] end(int crc, long length, byte[] out) {
+        out[0] = 1;
+        out[1] = 0;
+        out[2] = 0;
+        out[3] = (byte) 0xff;
+        out[4] = (byte) 0xff;
+        for (int i = 0; i < 4; i++) {
+            out[5 + i] = (byte) (crc >>> (8 * i));
+            out[9 + i] = (byte) (length >>> (8 * i));
+        }
+        return out;
+    }
+
+    /**
+     * Computes the checksum of two pieces of data from their checksums, like
+     * {@code crc32_combine()} of zlib.
+     *
+     * @param crc1    The checksum of the first piece.
+     * @param crc2    The checksum of the second piece.
+     * @param length2 The length of the second piece.
+     * @return The checksum of the concatenation.
+     */
+    static int combineCrc(int crc1, int crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        // Operator for one zero bit.
+        odd[0] = 0xedb88320;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // Operators for two and four zero bits.
+        square(even, odd);
+        square(odd, even);
+        // Apply length2 zero bytes to crc1.
+        int crc = crc1;
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc ^ crc2;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static boolean probeFlush() {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.deflate(new byte[16], 0, 16, Deflater.SYNC_FLUSH);
+            return true;
+        } catch (NoSuchMethodError e) {
+            // Before API 19
+            return false;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Checks whether data starts with a gzip header.
+     *
+     * @param data   The data to check.
+     * @param length Number of valid bytes in the array.
+     * @return True if the data is gzip encoded.
+     */
+    static boolean isCompressed(byte[] data, int length) {
+        return length >= 2 && (data[0] & 0xff) == MAGIC_1 && (data[1] & 0xff) == MAGIC_2;
+    }
+
+    /**
+     * Decodes a sequence of gzip members as written by this codec.
+     *
+     * @param data   The encoded data.
+     * @param length Number of valid bytes in the array.
+     * @return The decoded data.
+     * @throws IOException if the data is not a valid sequence of members.
+     */
+    static byte[] decompress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(length * 4);
+        byte[] chunk = new byte[8 * 1024];
+        Inflater inflater = new Inflater(true);
+        try {
+            int offset = 0;
+            while (offset < length) {
+                if (length - offset < HEADER_SIZE || (data[offset] & 0xff) != MAGIC_1
+                        || (data[offset + 1] & 0xff) != MAGIC_2 || data[offset + 3] != 0) {
+                    throw new IOException("Invalid gzip member header");
+                }
+                inflater.reset();
+                inflater.setInput(data, offset + HEADER_SIZE, length - offset - HEADER_SIZE);
+                while (!inflater.finished()) {
+                    int count = inflater.inflate(chunk);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated gzip member");
+                    }
+                    output.write(chunk, 0, count);
+                }
+                offset = length - inflater.getRemaining() + TRAILER_SIZE;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid gzip data", e);
+        } finally {
+            inflater.end();
+        }
+        return output.toByteArray();
+    }
+
+    private void deflate() {
+        ensureFreeSpace(MIN_FREE_SPACE);
+        mLength += mDeflater.deflate(mBuffer, mLength, mBuffer.length - mLength);
+    }
+
+    private void writeIntLittleEndian(int value) {
+        mBuffer[mLength++] = (byte) value;
+        mBuffer[mLength++] = (byte) (value >>> 8);
+        mBuffer[mLength++] = (byte) (value >>> 16);
+        mBuffer[mLength++] = (byte) (value >>> 24);
+    }
+
+    private void ensureFreeSpace(int space) {
+        if (mBuffer.length - mLength < space) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + space));
+        }
+    }
+}
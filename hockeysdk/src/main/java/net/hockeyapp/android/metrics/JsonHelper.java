@@ -7,7 +7,6 @@ import java.io.Writer;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * This is the helper class to have the json to integer/double/string and ext
@@ -16,6 +15,15 @@ import java.util.Set;
 public final class JsonHelper {
     private static final int CONTROL_CHARACTER_RANGE = 0x80;
     private static final String[] CONTROL_CHARACTERS;
+    private static final String LINE_SEPARATOR = "\\u2028";
+    private static final String PARAGRAPH_SEPARATOR = "\\u2029";
+    private static final String NULL = "null";
+
+    /**
+     * Integral doubles below this magnitude are formatted like {@link Double#toString(double)}
+     * without going through it.
+     */
+    private static final double MAX_PLAIN_DOUBLE = 1.0e7;
 
     static {
         CONTROL_CHARACTERS = new String[CONTROL_CHARACTER_RANGE];
@@ -150,6 +158,108 @@ public final class JsonHelper {
         }
     }
 
+    /**
+     * Writes a string as JSON string to the writer, escaping characters per JSON specification
+     * without creating intermediate strings.
+     *
+     * @param writer Writer object
+     * @param value  the string to write, may be null
+     * @throws IOException if writing fails
+     */
+    public static void write(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write(NULL);
+            return;
+        }
+        writer.write('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char character = value.charAt(i);
+            String replacement;
+            if (character < CONTROL_CHARACTER_RANGE) {
+                replacement = CONTROL_CHARACTERS[character];
+            } else if (character == '\u2028') {
+                // JavaScript interprets '\u2028' as newline
+                replacement = LINE_SEPARATOR;
+            } else if (character == '\u2029') {
+                // JavaScript interprets '\u2029' as newline
+                replacement = PARAGRAPH_SEPARATOR;
+            } else {
+                replacement = null;
+            }
+            if (replacement != null) {
+                if (i > start) {
+                    writer.write(value, start, i - start);
+                }
+                writer.write(replacement);
+                start = i + 1;
+            }
+        }
+        if (start < length) {
+            writer.write(value, start, length - start);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Writes an integer to the writer.
+     *
+     * @param writer Writer object
+     * @param value  the value to write
+     * @throws IOException if writing fails
+     */
+    public static void write(Writer writer, int value) throws IOException {
+        write(writer, (long) value);
+    }
+
+    /**
+     * Writes a long to the writer.
+     *
+     * @param writer Writer object
+     * @param value  the value to write
+     * @throws IOException if writing fails
+     */
+    public static void write(Writer writer, long value) throws IOException {
+        if (writer instanceof JsonStreamWriter) {
+            ((JsonStreamWriter) writer).writeLong(value);
+        } else {
+            writer.write(Long.toString(value));
+        }
+    }
+
+    /**
+     * Writes a double to the writer, using the same format as {@link #convert(Double)}.
+     *
+     * @param writer Writer object
+     * @param value  the value to write
+     * @throws IOException if writing fails
+     */
+    public static void write(Writer writer, double value) throws IOException {
+        if (writer instanceof JsonStreamWriter && isPlainIntegral(value)) {
+            ((JsonStreamWriter) writer).writeLong((long) value);
+            writer.write(".0");
+        } else {
+            writer.write(Double.toString(value));
+        }
+    }
+
+    /**
+     * Writes a boolean to the writer.
+     *
+     * @param writer Writer object
+     * @param value  the value to write
+     * @throws IOException if writing fails
+     */
+    public static void write(Writer writer, boolean value) throws IOException {
+        writer.write(value ? "true" : "false");
+    }
+
+    private static boolean isPlainIntegral(double value) {
+        return Math.abs(value) < MAX_PLAIN_DOUBLE && value == Math.rint(value)
+                && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0d);
+    }
+
     /**
      * serialize the IJsonSerializable to writer
      *
@@ -173,33 +283,29 @@ public final class JsonHelper {
      */
     public static <T> void writeDictionary(Writer writer, Map<String, T> map) throws IOException {
         if (map == null || map.isEmpty()) {
-            writer.write("null");
+            writer.write(NULL);
         } else {
-            Set<String> keys = map.keySet();
-            Iterator<String> iterator = keys.iterator();
+            Iterator<Map.Entry<String, T>> iterator = map.entrySet().iterator();
 
             // special first case to ensure we have contents and that
             if (iterator.hasNext()) {
-                writer.write("{");
-                String key = iterator.next();
-                T item = map.get(key);
+                writer.write('{');
+                Map.Entry<String, T> entry = iterator.next();
 
-                writer.write("\"" + key + "\"");
-                writer.write(":");
-                writeItem(writer, item);
+                write(writer, entry.getKey());
+                writer.write(':');
+                writeItem(writer, entry.getValue());
 
                 while (iterator.hasNext()) {
-                    key = iterator.next();
-
-                    writer.write(",");
-                    writer.write("\"" + key + "\"");
-                    writer.write(":");
+                    entry = iterator.next();
 
-                    item = map.get(key);
-                    writeItem(writer, item);
+                    writer.write(',');
+                    write(writer, entry.getKey());
+                    writer.write(':');
+                    writeItem(writer, entry.getValue());
                 }
 
-                writer.write("}");
+                writer.write('}');
             }
         }
     }
@@ -213,7 +319,7 @@ public final class JsonHelper {
      */
     public static <T extends IJsonSerializable> void writeList(Writer writer, List<T> list) throws IOException {
         if (list == null || list.isEmpty()) {
-            writer.write("null");
+            writer.write(NULL);
         } else {
             Iterator<T> iterator = list.iterator();
             if (iterator.hasNext()) {
@@ -244,20 +350,20 @@ public final class JsonHelper {
     private static <T> void writeItem(Writer writer, T item) throws IOException {
         if (item != null) {
             if (item instanceof String) {
-                writer.write(JsonHelper.convert((String) item));
+                write(writer, (String) item);
             } else if (item instanceof Double) {
-                writer.write(JsonHelper.convert((Double) item));
+                write(writer, ((Double) item).doubleValue());
             } else if (item instanceof Integer) {
-                writer.write(JsonHelper.convert((Integer) item));
+                write(writer, ((Integer) item).intValue());
             } else if (item instanceof Long) {
-                writer.write(JsonHelper.convert((Long) item));
+                write(writer, ((Long) item).longValue());
             } else if (item instanceof IJsonSerializable) {
                 ((IJsonSerializable) item).serialize(writer);
             } else {
                 throw new IOException("Cannot serialize: " + item.toString());
             }
         } else {
-            writer.write("null");
+            writer.write(NULL);
         }
     }
 }
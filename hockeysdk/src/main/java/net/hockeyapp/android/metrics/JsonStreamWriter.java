@@ -0,0 +1,136 @@
+package net.hockeyapp.android.metrics;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Writer which collects serialized JSON in a character buffer that is kept across uses.
+ * Strings are copied straight into the buffer and numbers are formatted into it without
+ * creating intermediate objects, so serializing telemetry through a reused instance only
+ * allocates the resulting string. Not thread safe.
+ */
+final class JsonStreamWriter extends Writer {
+
+    /**
+     * Initial size of the buffer.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Buffers grown beyond this size are released on {@link #reset()}.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /**
+     * Textual representation of the one long value which cannot be negated.
+     */
+    private static final String MIN_LONG_VALUE = "-9223372036854775808";
+
+    /**
+     * Scratch space to format numbers into.
+     */
+    private final char[] mDigits = new char[20];
+
+    /**
+     * The collected characters.
+     */
+    private char[] mBuffer = new char[INITIAL_CAPACITY];
+
+    /**
+     * Number of valid characters in the buffer.
+     */
+    private int mCount;
+
+    @Override
+    public void write(int c) {
+        ensureCapacity(1);
+        mBuffer[mCount++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(chars, offset, mBuffer, mCount, length);
+        mCount += length;
+    }
+
+    @Override
+    public void write(String string) {
+        write(string, 0, string.length());
+    }
+
+    @Override
+    public void write(String string, int offset, int length) {
+        ensureCapacity(length);
+        string.getChars(offset, offset + length, mBuffer, mCount);
+        mCount += length;
+    }
+
+    /**
+     * Writes the decimal representation of a long value.
+     *
+     * @param value The value to write.
+     */
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(MIN_LONG_VALUE);
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int position = mDigits.length;
+        do {
+            mDigits[--position] = (char) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        write(mDigits, position, mDigits.length - position);
+    }
+
+    /**
+     * Gets the number of characters written since the last reset.
+     *
+     * @return The number of characters.
+     */
+    int length() {
+        return mCount;
+    }
+
+    /**
+     * Discards the collected characters, so the writer can be reused.
+     */
+    void reset() {
+        mCount = 0;
+        if (mBuffer.length > MAX_RETAINED_CAPACITY) {
+            mBuffer = new char[INITIAL_CAPACITY];
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Gets the collected characters.
+     *
+     * @return A string containing the characters written since the last reset.
+     */
+    @Override
+    public String toString() {
+        return new String(mBuffer, 0, mCount);
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = mCount + additional;
+        if (required > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(required, mBuffer.length * 2));
+        }
+    }
+}
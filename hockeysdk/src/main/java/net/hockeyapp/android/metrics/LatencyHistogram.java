@@ -0,0 +1,140 @@
+package net.hockeyapp.android.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Lock free histogram of non-negative values, used to estimate latency percentiles. Values are
+ * counted in buckets which split every power of two into four, so an estimated percentile is at
+ * most 25% above the actual value. Values below four get a bucket each. The histogram does not
+ * depend on the unit of the values.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Number of buckets each power of two is split into, as a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets, enough to hold every positive long.
+     */
+    static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a single value.
+     *
+     * @param value The value, negative values are recorded as 0.
+     */
+    void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records a value several times.
+     *
+     * @param value The value, negative values are recorded as 0.
+     * @param count How often the value occurred.
+     */
+    void record(long value, long count) {
+        if (count <= 0) {
+            return;
+        }
+        value = Math.max(0, value);
+        mBuckets.getAndAdd(bucketIndex(value), count);
+        long max;
+        do {
+            max = mMax.get();
+        } while (value > max && !mMax.compareAndSet(max, value));
+    }
+
+    /**
+     * Copies the current bucket counts.
+     *
+     * @return The counts of all buckets, see {@link #percentile(long[], long, double)}.
+     */
+    long[] snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return buckets;
+    }
+
+    /**
+     * @return The highest value recorded.
+     */
+    long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Estimates a percentile from a snapshot of the bucket counts.
+     *
+     * @param buckets    The bucket counts taken by {@link #snapshot()}.
+     * @param max        The highest value recorded.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound of the bucket the percentile falls into, but not more than the
+     * highest value recorded. 0 if nothing has been recorded.
+     */
+    static long percentile(long[] buckets, long max, double percentile) {
+        if (percentile < 0 || percentile > 100 || Double.isNaN(percentile)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long total = count(buckets);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param buckets The bucket counts taken by {@link #snapshot()}.
+     * @return The number of values recorded.
+     */
+    static long count(long[] buckets) {
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        return total;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return The highest value counted in the bucket.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long next = (long) (SUB_BUCKET_COUNT + subBucket + 1) << shift;
+        return next < 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
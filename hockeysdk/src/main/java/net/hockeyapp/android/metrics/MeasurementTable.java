@@ -0,0 +1,170 @@
+package net.hockeyapp.android.metrics;
+
+import java.util.Arrays;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Summary statistics of measurements, keyed by measurement name. Keys are kept in an open
+ * addressing hash table and the statistics in parallel primitive arrays, so recording a value
+ * neither boxes it nor allocates anything once the measurement is known. Optionally counts the
+ * values per histogram bucket, bucket {@code i} counts the values up to {@code bounds[i]} and the
+ * last bucket the values above all bounds. Not thread safe.
+ */
+final class MeasurementTable {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final double[] mBounds;
+    private final int mBucketCount;
+    private String[] mKeys;
+    private long[] mCounts;
+    private double[] mSums;
+    private double[] mMins;
+    private double[] mMaxs;
+    private long[] mBuckets;
+    private int mSize;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param bounds Sorted upper bounds of the histogram buckets, or null to keep no histogram.
+     */
+    MeasurementTable(double[] bounds) {
+        mBounds = bounds != null && bounds.length > 0 ? bounds : null;
+        mBucketCount = mBounds != null ? mBounds.length + 1 : 0;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Adds a value to the statistics of a measurement.
+     *
+     * @param name  The name of the measurement.
+     * @param value The measured value.
+     */
+    void record(String name, double value) {
+        int slot = slotOf(name);
+        if (mKeys[slot] == null) {
+            if ((mSize + 1) * 4 > mKeys.length * 3) {
+                resize(mKeys.length * 2);
+                slot = slotOf(name);
+            }
+            mKeys[slot] = name;
+            mMins[slot] = Double.POSITIVE_INFINITY;
+            mMaxs[slot] = Double.NEGATIVE_INFINITY;
+            mSize++;
+        }
+        mCounts[slot]++;
+        mSums[slot] += value;
+        if (value < mMins[slot]) {
+            mMins[slot] = value;
+        }
+        if (value > mMaxs[slot]) {
+            mMaxs[slot] = value;
+        }
+        if (mBounds != null) {
+            int bucket = Arrays.binarySearch(mBounds, value);
+            if (bucket < 0) {
+                bucket = -bucket - 1;
+            }
+            mBuckets[slot * mBucketCount + bucket]++;
+        }
+    }
+
+    /**
+     * @return The number of measurements in the table.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The number of slots, the valid slot indices are between 0 and the capacity.
+     */
+    int capacity() {
+        return mKeys.length;
+    }
+
+    /**
+     * @param slot A slot index.
+     * @return The measurement name kept in the slot, or null if the slot is empty.
+     */
+    String getName(int slot) {
+        return mKeys[slot];
+    }
+
+    long getCount(int slot) {
+        return mCounts[slot];
+    }
+
+    double getSum(int slot) {
+        return mSums[slot];
+    }
+
+    double getMin(int slot) {
+        return mMins[slot];
+    }
+
+    double getMax(int slot) {
+        return mMaxs[slot];
+    }
+
+    /**
+     * @return The upper bounds of the histogram buckets, or null if no histogram is kept.
+     */
+    double[] getBounds() {
+        return mBounds;
+    }
+
+    /**
+     * @param slot   A slot index.
+     * @param bucket A bucket index, up to the number of bounds.
+     * @return The number of values in the bucket.
+     */
+    long getBucketCount(int slot, int bucket) {
+        return mBuckets[slot * mBucketCount + bucket];
+    }
+
+    /**
+     * Finds the slot of a name, or the empty slot it would be stored in.
+     */
+    private int slotOf(String name) {
+        int mask = mKeys.length - 1;
+        int hash = name.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (mKeys[slot] != null && !mKeys[slot].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new String[capacity];
+        mCounts = new long[capacity];
+        mSums = new double[capacity];
+        mMins = new double[capacity];
+        mMaxs = new double[capacity];
+        mBuckets = new long[capacity * mBucketCount];
+    }
+
+    private void resize(int capacity) {
+        String[] keys = mKeys;
+        long[] counts = mCounts;
+        double[] sums = mSums;
+        double[] mins = mMins;
+        double[] maxs = mMaxs;
+        long[] buckets = mBuckets;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                int slot = slotOf(keys[i]);
+                mKeys[slot] = keys[i];
+                mCounts[slot] = counts[i];
+                mSums[slot] = sums[i];
+                mMins[slot] = mins[i];
+                mMaxs[slot] = maxs[i];
+                System.arraycopy(buckets, i * mBucketCount, mBuckets, slot * mBucketCount, mBucketCount);
+            }
+        }
+    }
+}
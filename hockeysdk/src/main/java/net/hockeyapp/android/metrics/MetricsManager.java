@@ -3,7 +3,13 @@ package net.hockeyapp.android.metrics;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.net.ConnectivityManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.TextUtils;
@@ -18,14 +24,15 @@ import net.hockeyapp.android.metrics.model.SessionStateData;
 import net.hockeyapp.android.metrics.model.TelemetryData;
 import net.hockeyapp.android.utils.AsyncTaskUtils;
 import net.hockeyapp.android.utils.HockeyLog;
+import net.hockeyapp.android.utils.ScheduledTask;
 import net.hockeyapp.android.utils.Util;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Date;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -58,6 +65,11 @@ public class MetricsManager {
      */
     private static final AtomicLong LAST_BACKGROUND = new AtomicLong(getTime());
 
+    /**
+     * The timestamp of the last session renewal, 0 if no session has been started yet.
+     */
+    private static final AtomicLong LAST_SESSION_RENEWAL = new AtomicLong();
+
     /**
      * Background time interval for the app after which a session gets renewed (in milliseconds).
      */
@@ -87,11 +99,57 @@ public class MetricsManager {
      * Channel for collecting new events before storing and sending them.
      */
     private static Channel sChannel;
+    /**
+     * Pipeline stage which serializes tracked telemetry off the caller thread before it is
+     * handed to the channel.
+     */
+    private static SerializationStage sSerializationStage;
     /**
      * A telemetry context which is used to automatically add environment and meta information
      * to events.
      */
     private static TelemetryContext sTelemetryContext;
+    /**
+     * Sampling and rate limits applied to custom events. Kept across registrations, so it can
+     * be configured before the MetricsManager is registered.
+     */
+    private static final EventSampler sEventSampler = new EventSampler();
+    /**
+     * Summarizes custom events for which aggregation is enabled. Kept across registrations, so
+     * it can be configured before the MetricsManager is registered.
+     */
+    private static final EventAggregator sEventAggregator = new EventAggregator();
+    /**
+     * Task tracking the summaries of aggregated events at the end of each aggregation window.
+     */
+    private static final ScheduledTask sAggregationTask = new ScheduledTask(new Runnable() {
+
+        @Override
+        public void run() {
+            trackAggregatedEvents();
+        }
+    });
+    /**
+     * Whether queued telemetry is written ahead to a journal, so it survives the process being
+     * killed. Kept across registrations.
+     */
+    private static volatile boolean sWriteAheadEnabled;
+    /**
+     * Time the backlog recovery waits after registering, kept across registrations.
+     */
+    private static volatile long sBacklogGracePeriod = BacklogRecovery.DEFAULT_GRACE_PERIOD;
+    /**
+     * Time between two uploads of the backlog recovery, kept across registrations.
+     */
+    private static volatile long sBacklogUploadInterval = BacklogRecovery.DEFAULT_UPLOAD_INTERVAL;
+    /**
+     * Time within which identical custom events are dropped, kept across registrations.
+     */
+    private static volatile long sEventCoalescingWindow;
+    /**
+     * Synchronization lock for opening and closing the journal.
+     */
+    private static final Object JOURNAL_LOCK = new Object();
     /**
      * Flag that indicates disabled session tracking.
      * Default is false.
@@ -136,9 +194,20 @@ public class MetricsManager {
         } else {
             sChannel = channel;
         }
-
-        // Check if any previous events are in persistence and send them
-        persistence.sendAvailable();
+        sChannel.setDeviceState(new DeviceState(context));
+        sChannel.getCoalescer().setEventWindow(sEventCoalescingWindow);
+        sSerializationStage = new SerializationStage(sChannel);
+
+        // Recover events journaled by a previous process
+        updateJournal();
+
+        // Send events left by a previous process once the app has launched
+        BacklogRecovery backlogRecovery = sSender.getBacklogRecovery();
+        if (backlogRecovery != null) {
+            backlogRecovery.setGracePeriod(sBacklogGracePeriod);
+            backlogRecovery.setUploadInterval(sBacklogUploadInterval);
+            backlogRecovery.start();
+        }
     }
 
     /**
@@ -204,13 +273,61 @@ public class MetricsManager {
                 @Override
                 public void onHockeyEvent(PrivateEventManager.Event event) {
                     if (event.getType() == PrivateEventManager.EVENT_TYPE_UNCAUGHT_EXCEPTION) {
-                        sChannel.synchronize();
+                        // Runs on the crashing thread: only get the journaled items to the device.
+                        Channel channel = sChannel;
+                        if (channel != null) {
+                            channel.forceJournal();
+                        }
                     }
                 }
             });
+            application.registerComponentCallbacks(new ComponentCallbacks2() {
+
+                @Override
+                public void onTrimMemory(int level) {
+                    // The process is likely to be killed soon, get the queued events to disk.
+                    flushInBackground();
+                }
+
+                @Override
+                public void onLowMemory() {
+                    flushInBackground();
+                }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                    // unused but required to implement ComponentCallbacks2
+                }
+            });
+            registerConnectivityReceiver(application);
         }
     }
 
+    /**
+     * Starts the backlog recovery whenever the device gets back online.
+     *
+     * @param application the application to register the receiver with
+     */
+    @SuppressWarnings("deprecation") // Network callbacks need API 24, the broadcast reaches all supported levels.
+    private static void registerConnectivityReceiver(Application application) {
+        application.registerReceiver(new BroadcastReceiver() {
+
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // The sticky broadcast delivered on registering is no news.
+                if (isInitialStickyBroadcast() || intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                    return;
+                }
+                Sender sender = sSender;
+                BacklogRecovery backlogRecovery = sender != null ? sender.getBacklogRecovery() : null;
+                if (backlogRecovery != null) {
+                    // Back online, send what has been collected meanwhile.
+                    backlogRecovery.start(0);
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
     /**
      * Disables User Metrics collection and transmission. Use this if your user opts out of
      * telemetry collection.
@@ -321,6 +438,258 @@ public class MetricsManager {
         }
     }
 
+    /**
+     * Set the policy deciding how many events are collected and for how long before they are
+     * stored and sent as a batch. By default, events are batched by a {@link DefaultBatchPolicy}.
+     * Use a {@link NetworkAwareBatchPolicy} to send larger batches less often while the device is
+     * on a mobile connection, in battery saver mode or the app is in the background.
+     *
+     * @param batchPolicy the policy to apply, or null to restore the default policy
+     */
+    public static void setBatchPolicy(BatchPolicy batchPolicy) {
+        if (sChannel != null) {
+            sChannel.setBatchPolicy(batchPolicy);
+        } else {
+            HockeyLog.warn(TAG, "HockeyApp couldn't set the batch policy. Please register(...) the MetricsManager before setting the batch policy.");
+        }
+    }
+
+    /**
+     * Set the percentage of custom events which are tracked. Events are picked at random, the
+     * percentage is sent along with each event so the real number of events can be
+     * extrapolated. Use this to reduce the amount of data for high-frequency events.
+     * Can be called before the MetricsManager is registered.
+     *
+     * @param percentage the whole percentage of events to keep, between 0 and 100. Default is 100.
+     */
+    public static void setSamplingRate(double percentage) {
+        sEventSampler.setSampleRate(percentage);
+    }
+
+    /**
+     * Set the percentage of custom events with the given name which are tracked, overriding the
+     * global sampling rate for them.
+     *
+     * @param eventName  the name of the events
+     * @param percentage the whole percentage of events to keep, between 0 and 100, or a negative
+     *                   value to apply the global sampling rate again
+     * @see #setSamplingRate(double)
+     */
+    public static void setSamplingRate(String eventName, double percentage) {
+        sEventSampler.setSampleRate(eventName, percentage);
+    }
+
+    /**
+     * Limit the rate at which custom events with the given name are tracked. Events exceeding
+     * the limit are dropped, they are not accounted for by the sampling rate.
+     *
+     * @param eventName       the name of the events
+     * @param eventsPerSecond the average number of events per second to keep, or 0 to remove the
+     *                        limit
+     * @param burstSize       the number of events which may be tracked at once after a quiet
+     *                        period, at least 1
+     */
+    public static void setRateLimit(String eventName, double eventsPerSecond, int burstSize) {
+        sEventSampler.setRateLimit(eventName, eventsPerSecond, burstSize);
+    }
+
+    /**
+     * Summarize custom events with the given name instead of tracking each of them. Events with
+     * the same properties are combined into a single event per aggregation window, carrying the
+     * number of events and count, sum, minimum and maximum of each measurement. Use this for
+     * events which are tracked very often and only matter in total.
+     * Can be called before the MetricsManager is registered.
+     *
+     * @param eventName       the name of the events to aggregate
+     * @param histogramBounds optional upper bounds of histogram buckets, if given the number of
+     *                        values of each measurement per bucket is reported as well
+     * @see #setAggregationWindow(long)
+     */
+    public static void enableEventAggregation(String eventName, double... histogramBounds) {
+        sEventAggregator.enable(eventName, histogramBounds);
+    }
+
+    /**
+     * Track each custom event with the given name again, instead of summarizing them.
+     *
+     * @param eventName the name of the events
+     */
+    public static void disableEventAggregation(String eventName) {
+        sEventAggregator.disable(eventName);
+    }
+
+    /**
+     * Set how long aggregated events are summarized before the summary is tracked.
+     *
+     * @param windowMillis the length of the aggregation window in milliseconds. Default is one
+     *                     minute.
+     */
+    public static void setAggregationWindow(long windowMillis) {
+        sEventAggregator.setWindow(windowMillis);
+    }
+
+    /**
+     * Drop custom events which are identical to an event tracked shortly before, having the
+     * same name, properties and measurements. Disabled by default, as repeated events may be
+     * intended, e.g. for repeated taps.
+     * Can be called before the MetricsManager is registered.
+     *
+     * @param windowMillis the time in milliseconds within which identical events are dropped, 0
+     *                     to track all events
+     */
+    public static void setEventCoalescingWindow(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Coalescing window must not be negative.");
+        }
+        sEventCoalescingWindow = windowMillis;
+        Channel channel = sChannel;
+        if (channel != null) {
+            channel.getCoalescer().setEventWindow(windowMillis);
+        }
+    }
+
+    /**
+     * Gets a snapshot of the counters the metrics pipeline keeps about itself, for instance how
+     * many events have been dropped, how long serialization takes or how long it takes until
+     * the server acknowledges an event. Taking a snapshot does not block tracking and can be
+     * done before the MetricsManager is registered.
+     *
+     * @return the current pipeline stats
+     */
+    public static PipelineStats getPipelineStats() {
+        Sender sender = sSender;
+        return PipelineCounters.getInstance().snapshot(sEventSampler, sSerializationStage, sChannel,
+                sender != null ? sender.getPersistence() : null);
+    }
+
+    /**
+     * Gets the progress of uploading the telemetry backlog, which is left by a previous process
+     * or collected while the device was offline. The backlog is recovered after a grace period
+     * when the MetricsManager is registered and whenever the device gets online again.
+     *
+     * @return the status of the current or last recovery
+     */
+    public static BacklogRecoveryStatus getBacklogRecoveryStatus() {
+        Sender sender = sSender;
+        BacklogRecovery backlogRecovery = sender != null ? sender.getBacklogRecovery() : null;
+        return backlogRecovery != null ? backlogRecovery.getStatus() : new BacklogRecoveryStatus();
+    }
+
+    /**
+     * Set how long the recovery of the telemetry backlog waits after the MetricsManager has
+     * been registered, so it does not slow down the launch of the app. Has to be set before the
+     * MetricsManager is registered to apply to its first recovery.
+     *
+     * @param gracePeriodMillis the grace period in milliseconds. Default is 10 seconds.
+     */
+    public static void setBacklogGracePeriod(long gracePeriodMillis) {
+        if (gracePeriodMillis < 0) {
+            throw new IllegalArgumentException("gracePeriodMillis");
+        }
+        sBacklogGracePeriod = gracePeriodMillis;
+        Sender sender = sSender;
+        if (sender != null && sender.getBacklogRecovery() != null) {
+            sender.getBacklogRecovery().setGracePeriod(gracePeriodMillis);
+        }
+    }
+
+    /**
+     * Set the time between two uploads while the telemetry backlog is recovered, to limit the
+     * bandwidth and battery the recovery takes.
+     *
+     * @param intervalMillis the interval in milliseconds. Default is one second.
+     */
+    public static void setBacklogUploadInterval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("intervalMillis");
+        }
+        sBacklogUploadInterval = intervalMillis;
+        Sender sender = sSender;
+        if (sender != null && sender.getBacklogRecovery() != null) {
+            sender.getBacklogRecovery().setUploadInterval(intervalMillis);
+        }
+    }
+
+    /**
+     * Enables or disables write-ahead mode. In write-ahead mode, tracked telemetry is also
+     * written to a memory-mapped journal until it is persisted, so it is recovered on the next
+     * launch if the process gets killed before the queue is written to disk. Can be set before
+     * the MetricsManager is registered. Default is false.
+     *
+     * @param enabled whether queued telemetry should be journaled
+     */
+    public static void setWriteAheadEnabled(boolean enabled) {
+        sWriteAheadEnabled = enabled;
+        updateJournal();
+    }
+
+    /**
+     * Opens or closes the journal of the channel in the background, depending on whether
+     * write-ahead mode is enabled. A journal left by a previous process is always recovered.
+     */
+    private static void updateJournal() {
+        final Channel channel = sChannel;
+        final Sender sender = sSender;
+        if (channel == null || sender == null) {
+            return;
+        }
+        try {
+            AsyncTaskUtils.execute(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    Persistence persistence = sender.getPersistence();
+                    File file = persistence != null ? persistence.getJournalFile() : null;
+                    if (file == null) {
+                        return null;
+                    }
+                    synchronized (JOURNAL_LOCK) {
+                        if (sWriteAheadEnabled) {
+                            channel.openJournal(file);
+                        } else if (channel.isJournalOpen() || file.exists()) {
+                            if (channel.openJournal(file)) {
+                                channel.closeJournal();
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            HockeyLog.error(TAG, "Could not update the telemetry journal. Executor rejected task.", e);
+        }
+    }
+
+    /**
+     * Writes the queued telemetry to disk in the background.
+     */
+    private static void flushInBackground() {
+        final SerializationStage serializationStage = sSerializationStage;
+        if (serializationStage == null) {
+            return;
+        }
+        try {
+            AsyncTaskUtils.execute(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    serializationStage.flush();
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            HockeyLog.error(TAG, "Could not flush telemetry. Executor rejected task.", e);
+        }
+    }
+
+    static EventAggregator getEventAggregator() {
+        return sEventAggregator;
+    }
+
+    static EventSampler getEventSampler() {
+        return sEventSampler;
+    }
+
     /**
      * Get the reference to the Application (used for life-cycle tracking)
      *
@@ -345,6 +714,11 @@ public class MetricsManager {
 
     protected void setChannel(Channel channel) {
         sChannel = channel;
+        sSerializationStage = new SerializationStage(channel);
+    }
+
+    protected static SerializationStage getSerializationStage() {
+        return sSerializationStage;
     }
 
     protected static Sender getSender() {
@@ -391,6 +765,14 @@ public class MetricsManager {
 
     @SuppressLint("StaticFieldLeak")
     private void renewSession() {
+        long now = getTime();
+        long lastRenewal = LAST_SESSION_RENEWAL.getAndSet(now);
+        if (lastRenewal > 0 && now - lastRenewal < EnvelopeCoalescer.SESSION_STATE_WINDOW) {
+            // Keep the session which just started instead of starting another one.
+            HockeyLog.debug(TAG, "Session renewed " + (now - lastRenewal) + " ms ago, not renewing again");
+            sChannel.getCoalescer().recordSuppressed();
+            return;
+        }
         final String sessionId = UUID.randomUUID().toString();
         try {
             AsyncTaskUtils.execute(new AsyncTask<Void, Void, Void>() {
@@ -416,7 +798,7 @@ public class MetricsManager {
         SessionStateData sessionItem = new SessionStateData();
         sessionItem.setState(sessionState);
         Data<Domain> data = createData(sessionItem);
-        sChannel.enqueueData(data);
+        sSerializationStage.submit(data);
     }
 
     /**
@@ -467,20 +849,17 @@ public class MetricsManager {
      *  @param properties key value pairs with additional info about the event.
      *  @param measurements key value pairs, which contain custom metrics.
      */
-    @SuppressLint("StaticFieldLeak")
     public static void trackEvent(final String eventName, final Map<String, String> properties, final Map<String, Double> measurements) {
-        if (TextUtils.isEmpty(eventName)) {
+        int sampleRate = sampleEvent(eventName);
+        if (sampleRate == 0) {
             return;
         }
-        if (instance == null) {
-            HockeyLog.error(TAG, "MetricsManager hasn't been registered or User Metrics has been disabled. No User Metrics will be collected!");
+        if (sEventAggregator.isAggregated(eventName)
+                && sEventAggregator.record(eventName, properties, measurements, sampleRate)) {
+            scheduleAggregatedEvents();
             return;
         }
-        if (!isUserMetricsEnabled()) {
-            HockeyLog.warn("User Metrics is disabled. Will not track event.");
-            return;
-        }
-        final EventData eventItem = new EventData();
+        EventData eventItem = new EventData();
         eventItem.setName(eventName);
         if (properties != null) {
             eventItem.setProperties(properties);
@@ -488,25 +867,90 @@ public class MetricsManager {
         if (measurements != null) {
             eventItem.setMeasurements(measurements);
         }
-        try {
-            AsyncTaskUtils.execute(new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(Void... params) {
-                    Data<Domain> data = createData(eventItem);
-                    sChannel.enqueueData(data);
-                    return null;
-                }
-            });
-        } catch (RejectedExecutionException e) {
-            HockeyLog.error("Could not track custom event. Executor rejected async task.", e);
+        if (!sSerializationStage.submit(createData(eventItem), sampleRate)) {
+            HockeyLog.error(TAG, "Could not track custom event, too many events waiting for serialization.");
+        }
+    }
+
+    /**
+     *  This method allows to track an event that happened in your app, without allocating maps
+     *  for its properties and measurements. The builder is recycled by the SDK and must not be
+     *  used after calling this method.
+     *
+     *  @param event the event, see {@link EventBuilder#obtain(String)}.
+     */
+    public static void trackEvent(final EventBuilder event) {
+        if (event == null) {
+            return;
+        }
+        int sampleRate = sampleEvent(event.getName());
+        if (sampleRate == 0) {
+            event.recycle();
+            return;
+        }
+        if (sEventAggregator.isAggregated(event.getName()) && sEventAggregator.record(event, sampleRate)) {
+            event.recycle();
+            scheduleAggregatedEvents();
+            return;
+        }
+        if (!sSerializationStage.submit(event.getData(), sampleRate)) {
+            event.recycle();
+            HockeyLog.error(TAG, "Could not track custom event, too many events waiting for serialization.");
+        }
+    }
+
+    /**
+     * Checks whether an event can be tracked and applies sampling.
+     *
+     * @param eventName the name of the event
+     * @return the sample rate of the event, 0 if it is not tracked
+     */
+    private static int sampleEvent(String eventName) {
+        if (TextUtils.isEmpty(eventName)) {
+            return 0;
+        }
+        if (instance == null) {
+            HockeyLog.error(TAG, "MetricsManager hasn't been registered or User Metrics has been disabled. No User Metrics will be collected!");
+            return 0;
+        }
+        if (!isUserMetricsEnabled()) {
+            HockeyLog.warn("User Metrics is disabled. Will not track event.");
+            return 0;
+        }
+        return sEventSampler.sample(eventName);
+    }
+
+    private static void scheduleAggregatedEvents() {
+        sAggregationTask.scheduleIfIdle(sEventAggregator.getWindow());
+    }
+
+    /**
+     * Tracks the summaries of all aggregated events recorded in the current window.
+     */
+    static void trackAggregatedEvents() {
+        sAggregationTask.cancel();
+        SerializationStage serializationStage = sSerializationStage;
+        for (EventAggregator.Summary summary : sEventAggregator.drain()) {
+            if (serializationStage == null
+                    || !serializationStage.submit(createData(summary.getData()), summary.getSampleRate())) {
+                HockeyLog.error(TAG, "Could not track aggregated event, too many events waiting for serialization.");
+            }
         }
     }
 
     private class TelemetryLifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
 
         private final long MAX_ACTIVITY_TRANSITION_TIME_MS = 2000;
-        private Timer mActivityTransitionTimer;
-        private TimerTask mActivityTransitionTimerTask;
+        private final ScheduledTask mActivityTransitionTask = new ScheduledTask(new Runnable() {
+
+            @Override
+            public void run() {
+                HockeyLog.debug(TAG, "Application goes into the background. Sending logs.");
+                sChannel.setInForeground(false);
+                trackAggregatedEvents();
+                sSerializationStage.flush();
+            }
+        });
 
         @Override
         public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
@@ -525,15 +969,8 @@ public class MetricsManager {
         @Override
         public void onActivityResumed(Activity activity) {
             updateSession();
-
-            if (this.mActivityTransitionTimerTask != null) {
-                this.mActivityTransitionTimerTask.cancel();
-                this.mActivityTransitionTimerTask = null;
-            }
-            if (this.mActivityTransitionTimer != null) {
-                this.mActivityTransitionTimer.cancel();
-                this.mActivityTransitionTimer = null;
-            }
+            sChannel.setInForeground(true);
+            this.mActivityTransitionTask.cancel();
         }
 
         @Override
@@ -543,14 +980,7 @@ public class MetricsManager {
             LAST_BACKGROUND.set(getTime());
 
             // Synchronize a channel when application goes into the background
-            this.mActivityTransitionTimer = new Timer();
-            this.mActivityTransitionTimerTask = new TimerTask() {
-                public void run() {
-                    HockeyLog.debug(TAG, "Application goes into the background. Sending logs.");
-                    sChannel.synchronize();
-                }
-            };
-            this.mActivityTransitionTimer.schedule(mActivityTransitionTimerTask, MAX_ACTIVITY_TRANSITION_TIME_MS);
+            this.mActivityTransitionTask.schedule(MAX_ACTIVITY_TRANSITION_TIME_MS);
         }
 
         @Override
@@ -0,0 +1,78 @@
+package net.hockeyapp.android.metrics;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Batch policy which writes larger batches less often when sending is expensive for the device.
+ * On Wi-Fi with the app in the foreground it behaves like the {@link DefaultBatchPolicy}. On a
+ * mobile connection the radio is woken up less often. In the background, in battery saver mode
+ * or without network, batches are kept for the longest time, as nobody is waiting for the data.
+ * When items arrive faster than a batch would be written anyway, the batch size grows, so a
+ * burst of events is written in a few large batches instead of many small ones.
+ * While a debugger is attached, the debug values of the default policy apply.
+ */
+public class NetworkAwareBatchPolicy extends DefaultBatchPolicy {
+
+    /**
+     * Number of items in a batch on a mobile connection.
+     */
+    static final int CELLULAR_BATCH_COUNT = 100;
+    /**
+     * Time in milliseconds after which a batch is written on a mobile connection.
+     */
+    static final int CELLULAR_BATCH_INTERVAL = 30 * 1000;
+    /**
+     * Number of items in a batch in the background, in battery saver mode or without network.
+     */
+    static final int IDLE_BATCH_COUNT = 200;
+    /**
+     * Time in milliseconds after which a batch is written in the background, in battery saver
+     * mode or without network.
+     */
+    static final int IDLE_BATCH_INTERVAL = 60 * 1000;
+    /**
+     * Minimum time in milliseconds a batch should cover while items arrive quickly.
+     */
+    static final int MIN_BATCH_DURATION = 5 * 1000;
+    /**
+     * Upper bound for the batch size derived from the queue growth rate.
+     */
+    static final int MAX_BURST_BATCH_COUNT = 256;
+
+    @Override
+    public int getMaxBatchCount(BatchState state) {
+        if (state.isDebuggerConnected()) {
+            return super.getMaxBatchCount(state);
+        }
+        int count;
+        if (isIdle(state)) {
+            count = IDLE_BATCH_COUNT;
+        } else if (state.getNetworkType() == BatchState.NetworkType.CELLULAR) {
+            count = CELLULAR_BATCH_COUNT;
+        } else {
+            count = super.getMaxBatchCount(state);
+        }
+        int burstCount = (int) Math.min(MAX_BURST_BATCH_COUNT,
+                state.getQueueGrowthRate() * MIN_BATCH_DURATION / 1000);
+        return Math.max(count, burstCount);
+    }
+
+    @Override
+    public int getMaxBatchInterval(BatchState state) {
+        if (state.isDebuggerConnected()) {
+            return super.getMaxBatchInterval(state);
+        }
+        if (isIdle(state)) {
+            return IDLE_BATCH_INTERVAL;
+        }
+        if (state.getNetworkType() == BatchState.NetworkType.CELLULAR) {
+            return CELLULAR_BATCH_INTERVAL;
+        }
+        return super.getMaxBatchInterval(state);
+    }
+
+    private static boolean isIdle(BatchState state) {
+        return !state.isInForeground() || state.isPowerSaveMode()
+                || state.getNetworkType() == BatchState.NetworkType.NONE;
+    }
+}
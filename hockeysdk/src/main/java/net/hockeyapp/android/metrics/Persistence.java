@@ -1,30 +1,35 @@
 package net.hockeyapp.android.metrics;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
-import android.os.AsyncTask;
 
-import net.hockeyapp.android.utils.AsyncTaskUtils;
 import net.hockeyapp.android.utils.HockeyLog;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.UUID;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <h3>Description</h3>
  * <p/>
  * Persistence layer to save and manage telemetry data on disk before sending.
- * Telemetry data is saved in batches which make up one file. There is a maximum total number
- * of telemetry files kept by the persistence, in order to not exceed disk storage limiations.
- * If too many files are kept, the persistence will reject further persistence calls, but will
- * not remove older telemetry files until they are sent.
+ * Telemetry data is appended in batches to a {@link SegmentedLog} per {@link PriorityLane}, each
+ * sealed segment of a log makes up one file for the sender. Every lane has a maximum number of
+ * bytes it keeps, in order to not exceed disk storage limitations. If the quota of a lane is
+ * exhausted, its eviction policy decides whether new data is rejected or the oldest files which
+ * are not being sent are removed. Files of higher priority lanes are handed to the sender first.
+ * Batches are gzip compressed once when they are persisted, so sending a file, including every
+ * retry, only has to copy its bytes. Devices below API 19 cannot flush the deflater and store
+ * batches uncompressed, like older versions of the SDK did. Files are checked against the checksums of the
+ * {@link BatchFormat} when they are loaded, corrupt files are moved to a quarantine directory
+ * instead of being sent.
  */
 class Persistence {
 
@@ -37,9 +42,41 @@ class Persistence {
      */
     private static final String BIT_TELEMETRY_DIRECTORY = "/net.hockeyapp.android/telemetry/";
     /**
-     * Maximum number of telemetry files to allow on disk.
+     * Name of the directory of the high priority lane, stored next to the telemetry directory.
      */
-    private static final Integer MAX_FILE_COUNT = 50;
+    private static final String PRIORITY_TELEMETRY_DIRECTORY = "telemetry-priority";
+    /**
+     * Name of the file keeping the upload backoff state, stored next to the telemetry directory.
+     */
+    private static final String UPLOAD_BACKOFF_FILE = "telemetry-backoff";
+    /**
+     * Name of the write-ahead journal of the channel, stored next to the telemetry directory.
+     */
+    private static final String JOURNAL_FILE = "telemetry-journal";
+    /**
+     * Directory corrupt telemetry files are moved to, next to the telemetry directory.
+     */
+    private static final String QUARANTINE_DIRECTORY = "telemetry-quarantine";
+    /**
+     * Number of corrupt files kept in the quarantine directory, older ones are deleted.
+     */
+    static final int MAX_QUARANTINED_FILES = 4;
+    /**
+     * Maximum number of bytes of telemetry data of the low priority lane to allow on disk.
+     */
+    static final long MAX_TOTAL_SIZE = 2 * 1024 * 1024;
+    /**
+     * Size in bytes after which a segment is sealed and handed to the sender.
+     */
+    static final long MAX_SEGMENT_SIZE = 128 * 1024;
+    /**
+     * Time in milliseconds after which a segment is sealed and handed to the sender.
+     */
+    static final long MAX_SEGMENT_AGE = 60 * 1000;
+    /**
+     * Initial capacity of the list of served files.
+     */
+    private static final int SERVED_FILES_CAPACITY = 16;
     /**
      * A weak reference to the app context.
      */
@@ -53,6 +90,19 @@ class Persistence {
      */
     // TODO This looks like a violation of separation of concerns. Look into moving this to the sender.
     ArrayList<File> mServedFiles;
+    /**
+     * The logs telemetry data is appended to, one per lane, opened on first use.
+     */
+    private final SegmentedLog[] mLogs = new SegmentedLog[PriorityLane.values().length];
+    /**
+     * Number of files of all opened logs, updated by the logs, so it can be read without locking.
+     */
+    private final AtomicInteger mFileCount = new AtomicInteger();
+    /**
+     * Capture times of the items in segments written since the persistence has been created,
+     * used to measure the latency until the server acknowledges them.
+     */
+    private final Map<File, CaptureTimes> mCaptureTimes = new ConcurrentHashMap<>();
 
     /**
      * Creates and initializes a new instance.
@@ -62,7 +112,7 @@ class Persistence {
      */
     Persistence(Context context, Sender sender) {
         mWeakContext = new WeakReference<>(context);
-        mServedFiles = new ArrayList<>(MAX_FILE_COUNT + 1);
+        mServedFiles = new ArrayList<>(SERVED_FILES_CAPACITY);
         mWeakSender = new WeakReference<>(sender);
     }
 
@@ -76,17 +126,47 @@ class Persistence {
      */
     @SuppressWarnings("WeakerAccess")
     protected void persist(String[] data) {
-        if (!this.isFreeSpaceAvailable()) {
-            HockeyLog.warn(TAG, "Failed to persist file: Too many files on disk.");
+        persist(data, data.length);
+    }
+
+    /**
+     * Persists the first items of an array of serialized telemetry data to disk. Allows the
+     * caller to reuse the array for subsequent batches.
+     *
+     * @param data  The data to save to disk.
+     * @param count The number of items to take from the beginning of the array.
+     * @see Persistence#persist(String[])
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected void persist(String[] data, int count) {
+        persist(data, count, 0, PriorityLane.LOW);
+    }
+
+    /**
+     * Persists the first items of an array of serialized telemetry data to the log of a lane,
+     * remembering when they have been captured until the server acknowledges them.
+     *
+     * @param data        The data to save to disk.
+     * @param count       The number of items to take from the beginning of the array.
+     * @param captureTime The average time the items have been captured, in milliseconds since
+     *                    epoch, 0 if unknown.
+     * @param lane        The lane the data travels in.
+     * @see Persistence#persist(String[], int)
+     */
+    void persist(String[] data, int count, long captureTime, PriorityLane lane) {
+        if (lane.getEvictionPolicy() == PriorityLane.EvictionPolicy.REJECT_NEWEST && !this.isFreeSpaceAvailable(lane)) {
+            HockeyLog.warn(TAG, "Failed to persist file: Telemetry size budget exhausted.");
+            PipelineCounters.getInstance().recordDropped(count);
         } else {
             StringBuilder buffer = new StringBuilder();
-            for (String aData : data) {
+            for (int i = 0; i < count; i++) {
                 if (buffer.length() > 0) {
                     buffer.append('\n');
                 }
-                buffer.append(aData);
+                buffer.append(data[i]);
             }
-            if (!writeToDisk(buffer.toString())) {
+            if (!writeToDisk(buffer.toString(), count, captureTime, lane)) {
+                PipelineCounters.getInstance().recordDropped(count);
                 return;
             }
         }
@@ -96,94 +176,179 @@ class Persistence {
         }
     }
 
-    @SuppressLint("StaticFieldLeak")
-    void sendAvailable() {
-        AsyncTaskUtils.execute(new AsyncTask<Void, Object, Object>() {
-
-            @Override
-            protected Object doInBackground(Void... voids) {
-                if (hasFilesAvailable()) {
-                    Sender sender = getSender();
-                    if (sender != null) {
-                        sender.triggerSending();
-                    }
-                }
-                return null;
-            }
-        });
-    }
-
     /**
      * Saves a string of serialized telemetry data objects to disk.
-     * It will create a random UUID file in the storage directory
-     * and save the data to this file.
+     * The data is appended to the active segment of the telemetry log.
      *
      * @param data The complete data string to save.
      * @return True if the operation was successful, false otherwise.
      */
     @SuppressWarnings("WeakerAccess")
     protected boolean writeToDisk(String data) {
-        File dir = getTelemetryDirectory();
-        if (dir == null) {
+        return writeToDisk(data, 1, 0, PriorityLane.LOW);
+    }
+
+    /**
+     * Saves a string of serialized telemetry data objects to disk and remembers when they have
+     * been captured.
+     *
+     * @param data        The complete data string to save.
+     * @param count       The number of items in the data.
+     * @param captureTime The average time the items have been captured, 0 if unknown.
+     * @param lane        The lane the data travels in.
+     * @return True if the operation was successful, false otherwise.
+     */
+    boolean writeToDisk(String data, int count, long captureTime, PriorityLane lane) {
+        SegmentedLog log = getLog(lane);
+        if (log == null) {
             return false;
         }
-        String uuid = UUID.randomUUID().toString();
-        Boolean isSuccess = false;
-        FileOutputStream outputStream = null;
+        byte[] bytes;
         try {
-            synchronized (this) {
-                File file = new File(dir, uuid);
-                outputStream = new FileOutputStream(file, true);
-                outputStream.write(data.getBytes());
-                HockeyLog.warn(TAG, "Saving data to: " + file.toString());
-            }
-            isSuccess = true;
-        } catch (Exception e) {
+            bytes = data.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
             HockeyLog.warn(TAG, "Failed to save data with exception", e);
-        } finally {
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException ignored) {
+            return false;
+        }
+        if (lane.getEvictionPolicy() == PriorityLane.EvictionPolicy.EVICT_OLDEST) {
+            // The uncompressed size is an upper bound of what the batch takes on disk.
+            while (!log.hasCapacity(bytes.length) && evictOldest(log)) {
+                HockeyLog.debug(TAG, "Evicted telemetry data of lane " + lane + " to stay within its quota.");
+            }
+        }
+        // Holding the log, so the batch is attributed to the segment it is actually appended to.
+        synchronized (log) {
+            File segment = log.getActiveSegment();
+            long appendedSize = log.getAppendedSize();
+            long storedSize = log.getStoredSize();
+            if (!log.append(bytes, count)) {
+                return false;
+            }
+            PipelineCounters.getInstance().recordPersisted(log.getAppendedSize() - appendedSize,
+                    log.getStoredSize() - storedSize);
+            if (captureTime > 0) {
+                CaptureTimes captureTimes = mCaptureTimes.get(segment);
+                if (captureTimes == null) {
+                    captureTimes = new CaptureTimes();
+                    mCaptureTimes.put(segment, captureTimes);
                 }
+                captureTimes.mSum += captureTime * count;
+                captureTimes.mCount += count;
             }
         }
-        return isSuccess;
+        return true;
     }
 
     /**
-     * Retrieves string data from a given path.
+     * Retrieves string data from a given path, decompressing it if necessary.
      *
      * @param file Reference to a file on disk.
      * @return The next item from disk, or empty string if anything goes wrong.
      */
     String load(File file) {
-        StringBuilder buffer = new StringBuilder();
-        if (file != null) {
-            BufferedReader reader = null;
-            try {
-                synchronized (this) {
-                    FileInputStream inputStream = new FileInputStream(file);
-                    InputStreamReader streamReader = new InputStreamReader(inputStream);
-                    reader = new BufferedReader(streamReader);
-                    int c;
-                    while ((c = reader.read()) != -1) {
-                        buffer.append((char) c);
-                    }
-                }
-            } catch (Exception e) {
-                HockeyLog.warn(TAG, "Error reading telemetry data from file", e);
-            } finally {
-                try {
-                    if (reader != null) {
-                        reader.close();
-                    }
-                } catch (IOException ignored) {
-                }
+        byte[] data = loadBytes(file);
+        if (data == null) {
+            return "";
+        }
+        try {
+            if (GzipCodec.isCompressed(data, data.length)) {
+                data = GzipCodec.decompress(data, data.length);
             }
+            return new String(data, "UTF-8");
+        } catch (IOException e) {
+            HockeyLog.warn(TAG, "Error decoding telemetry data from file", e);
+            return "";
         }
+    }
 
-        return buffer.toString();
+    /**
+     * Retrieves the payload of a file as it has been persisted, ready to be sent. Corrupt files
+     * are moved to quarantine.
+     *
+     * @param file Reference to a file on disk.
+     * @return The payload of the file, an empty array if anything goes wrong, or null if the
+     * file is corrupt and has been quarantined.
+     */
+    byte[] loadBytes(File file) {
+        if (file == null) {
+            return new byte[0];
+        }
+        FileInputStream inputStream = null;
+        try {
+            synchronized (this) {
+                inputStream = new FileInputStream(file);
+                return BatchFormat.read(inputStream.getChannel());
+            }
+        } catch (BatchFormat.CorruptBatchException e) {
+            HockeyLog.warn(TAG, "Telemetry file " + file.getName() + " is corrupt, moving it to quarantine", e);
+            quarantine(file);
+            return null;
+        } catch (Exception e) {
+            HockeyLog.warn(TAG, "Error reading telemetry data from file", e);
+        } finally {
+            closeQuietly(inputStream);
+        }
+        return new byte[0];
+    }
+
+    /**
+     * Gets the length and encoding of the payload of a file and checks its records, so a file is
+     * known to be intact before an upload of it starts. Corrupt files are moved to quarantine.
+     *
+     * @param file   Reference to a file on disk.
+     * @param buffer The buffer to read the payloads through.
+     * @return The summary of the file, an empty summary if anything goes wrong, or null if the
+     * file is corrupt and has been quarantined.
+     */
+    BatchFormat.Info describe(File file, byte[] buffer) {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            return BatchFormat.check(inputStream.getChannel(), buffer);
+        } catch (BatchFormat.CorruptBatchException e) {
+            HockeyLog.warn(TAG, "Telemetry file " + file.getName() + " is corrupt, moving it to quarantine", e);
+            quarantine(file);
+            return null;
+        } catch (Exception e) {
+            HockeyLog.warn(TAG, "Error reading telemetry data from file", e);
+            return BatchFormat.Info.EMPTY;
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Streams a range of the payload of a file through a buffer, the file has to be checked with
+     * {@link #describe(File, byte[])} first. If the file turns out to be truncated, it is moved
+     * to quarantine and the data written so far must be abandoned.
+     *
+     * @param file   Reference to a file on disk.
+     * @param out    The stream to write the payload to.
+     * @param buffer The buffer to copy through.
+     * @param offset The number of payload bytes to skip.
+     * @param length The maximum number of payload bytes to write.
+     * @throws IOException if the file is corrupt, could not be read or the stream failed.
+     */
+    void writePayload(File file, OutputStream out, byte[] buffer, long offset, long length) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            BatchFormat.transfer(inputStream.getChannel(), out, buffer, offset, length);
+        } catch (BatchFormat.CorruptBatchException e) {
+            HockeyLog.warn(TAG, "Telemetry file " + file.getName() + " is corrupt, moving it to quarantine", e);
+            quarantine(file);
+            throw e;
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    private static void closeQuietly(FileInputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
     /**
@@ -208,23 +373,37 @@ class Persistence {
     @SuppressWarnings("WeakerAccess")
     protected synchronized File nextAvailableFileInDirectory() {
         // TODO Separation of concerns. The persistence should provide all files, the sender would pick the right one.
-        File dir = getTelemetryDirectory();
-        File[] files = dir != null ? dir.listFiles() : null;
-        if (files != null) {
-            for (File file : files) {
-                if (!mServedFiles.contains(file)) {
-                    HockeyLog.info(TAG, "The directory " + file + " (ADDING TO SERVED AND RETURN)");
-                    mServedFiles.add(file);
-                    return file;
-                } else {
-                    HockeyLog.info(TAG, "The directory " + file + " (WAS ALREADY SERVED)");
-                }
+        for (PriorityLane lane : PriorityLane.values()) {
+            SegmentedLog log = getLog(lane);
+            File file = log != null ? log.nextSegment(mServedFiles) : null;
+            if (file != null) {
+                HockeyLog.info(TAG, "The file " + file + " (ADDING TO SERVED AND RETURN)");
+                mServedFiles.add(file);
+                return file;
             }
         }
-        HockeyLog.info(TAG, "The directory " + dir + " did not contain any unserved files");
+        HockeyLog.info(TAG, "The telemetry logs did not contain any unserved files");
         return null;
     }
 
+    /**
+     * Deletes the oldest file of a log which is not being sent.
+     *
+     * @param log The log to evict data from.
+     * @return True if a file has been deleted.
+     */
+    private synchronized boolean evictOldest(SegmentedLog log) {
+        File file = log.evictOldest(mServedFiles);
+        if (file == null) {
+            return false;
+        }
+        CaptureTimes captureTimes = mCaptureTimes.remove(file);
+        if (captureTimes != null) {
+            PipelineCounters.getInstance().recordDropped(captureTimes.mCount);
+        }
+        return true;
+    }
+
     /**
      * Deletes a file from disk and removes it from the list of served files, if deletion was successful.
      *
@@ -233,7 +412,9 @@ class Persistence {
     @SuppressWarnings("WeakerAccess")
     protected synchronized void deleteFile(File file) {
         if (file != null) {
-            boolean deletedFile = file.delete();
+            mCaptureTimes.remove(file);
+            SegmentedLog log = getLog(file);
+            boolean deletedFile = log != null ? log.acknowledge(file) : file.delete();
             if (!deletedFile) {
                 HockeyLog.warn(TAG, "Error deleting telemetry file " + file.toString());
             } else {
@@ -245,6 +426,52 @@ class Persistence {
         }
     }
 
+    /**
+     * Moves a corrupt file out of the telemetry directory, so it is never sent, and keeps the
+     * latest corrupt files for inspection.
+     *
+     * @param file Reference to the corrupt file.
+     */
+    synchronized void quarantine(File file) {
+        mServedFiles.remove(file);
+        CaptureTimes captureTimes = mCaptureTimes.remove(file);
+        if (captureTimes != null) {
+            PipelineCounters.getInstance().recordDropped(captureTimes.mCount);
+        }
+        PipelineCounters.getInstance().recordQuarantined();
+        File directory = getQuarantineDirectory();
+        File target = directory != null ? new File(directory, System.currentTimeMillis() + "-" + file.getName()) : null;
+        SegmentedLog log = getLog(file);
+        boolean moved = log != null ? log.quarantine(file, target) : target != null && file.renameTo(target);
+        if (!moved && file.exists() && !file.delete()) {
+            HockeyLog.warn(TAG, "Error deleting corrupt telemetry file " + file);
+        }
+        File[] quarantined = directory != null ? directory.listFiles() : null;
+        if (quarantined != null && quarantined.length > MAX_QUARANTINED_FILES) {
+            // Names start with the time of quarantine, so the oldest files come first.
+            Arrays.sort(quarantined);
+            for (int i = 0; i < quarantined.length - MAX_QUARANTINED_FILES; i++) {
+                if (!quarantined[i].delete()) {
+                    HockeyLog.warn(TAG, "Error deleting quarantined telemetry file " + quarantined[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the server accepted a file and deletes it.
+     *
+     * @param file Reference to the file the server acknowledged.
+     */
+    void acknowledge(File file) {
+        CaptureTimes captureTimes = file != null ? mCaptureTimes.remove(file) : null;
+        if (captureTimes != null && captureTimes.mCount > 0) {
+            long latency = System.currentTimeMillis() - captureTimes.mSum / captureTimes.mCount;
+            PipelineCounters.getInstance().recordAcknowledged(latency, captureTimes.mCount);
+        }
+        deleteFile(file);
+    }
+
     /**
      * Remove a file from the list of served files. Remove files from the served list
      * that should be made available so it can be sent again later.
@@ -259,15 +486,85 @@ class Persistence {
     }
 
     /**
-     * Checks whether there is a slot left for a telemetry file.
+     * Checks whether the quota of a lane is not exhausted yet.
      *
-     * @return True if there is still space for another telemetry file.
+     * @param lane The lane to check.
+     * @return True if there is still space for more telemetry data.
      */
-    private synchronized boolean isFreeSpaceAvailable() {
+    private boolean isFreeSpaceAvailable(PriorityLane lane) {
         // TODO Check for available disk space as well.
-        File dir = getTelemetryDirectory();
-        File[] files = dir != null ? dir.listFiles() : null;
-        return files != null && files.length < MAX_FILE_COUNT;
+        SegmentedLog log = getLog(lane);
+        return log != null && log.hasCapacity(1);
+    }
+
+    /**
+     * Gets the number of telemetry files waiting to be acknowledged by the server. Does not
+     * block and does not open logs, the files of lanes which have not been used yet are not
+     * counted.
+     *
+     * @return The number of files of all opened lanes, including the ones currently written to.
+     */
+    int getFileCount() {
+        return mFileCount.get();
+    }
+
+    /**
+     * Gets the size of the telemetry waiting to be acknowledged by the server.
+     *
+     * @return The number of bytes of all lanes on disk, including the files currently written to.
+     */
+    long getBacklogSize() {
+        long size = 0;
+        for (PriorityLane lane : PriorityLane.values()) {
+            SegmentedLog log = getLog(lane);
+            size += log != null ? log.getTotalSize() : 0;
+        }
+        return size;
+    }
+
+    /**
+     * Gets the telemetry log of the low priority lane, opening it on first use.
+     *
+     * @return The log, or null if the telemetry directory is not available.
+     */
+    SegmentedLog getLog() {
+        return getLog(PriorityLane.LOW);
+    }
+
+    /**
+     * Gets the telemetry log of a lane, opening it on first use.
+     *
+     * @param lane The lane.
+     * @return The log, or null if the directory of the lane is not available.
+     */
+    synchronized SegmentedLog getLog(PriorityLane lane) {
+        SegmentedLog log = mLogs[lane.ordinal()];
+        if (log == null) {
+            File dir = getTelemetryDirectory(lane);
+            if (dir != null) {
+                log = new SegmentedLog(dir, MAX_SEGMENT_SIZE, MAX_SEGMENT_AGE, lane.getQuota(),
+                        SegmentedLog.SyncPolicy.ON_ROTATE, GzipCodec.isFlushSupported(), mFileCount);
+                mLogs[lane.ordinal()] = log;
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Gets the log a telemetry file belongs to.
+     *
+     * @param file The file.
+     * @return The log, or null if the file is not part of any log.
+     */
+    private synchronized SegmentedLog getLog(File file) {
+        File dir = file.getParentFile();
+        for (PriorityLane lane : PriorityLane.values()) {
+            SegmentedLog log = getLog(lane);
+            if (log != null && log.getDirectory().equals(dir)) {
+                return log;
+            }
+        }
+        return null;
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -283,6 +580,67 @@ class Persistence {
         return null;
     }
 
+    /**
+     * Gets the directory of a lane. The low priority lane uses the telemetry directory, which
+     * also holds data persisted by older versions of the SDK.
+     *
+     * @param lane The lane.
+     * @return The directory, or null if it is not available.
+     */
+    File getTelemetryDirectory(PriorityLane lane) {
+        File dir = getTelemetryDirectory();
+        if (lane == PriorityLane.LOW || dir == null) {
+            return dir;
+        }
+        File laneDir = new File(dir.getParentFile(), PRIORITY_TELEMETRY_DIRECTORY);
+        if (laneDir.exists() || laneDir.mkdirs()) {
+            return laneDir;
+        }
+        HockeyLog.error("Couldn't create directory for priority telemetry data");
+        return null;
+    }
+
+    /**
+     * Gets the directory corrupt telemetry files are moved to. It is not part of the telemetry
+     * directory, so the files are never sent.
+     *
+     * @return The directory, or null if it is not available.
+     */
+    File getQuarantineDirectory() {
+        File dir = getTelemetryDirectory();
+        if (dir == null) {
+            return null;
+        }
+        File quarantineDir = new File(dir.getParentFile(), QUARANTINE_DIRECTORY);
+        if (quarantineDir.exists() || quarantineDir.mkdirs()) {
+            return quarantineDir;
+        }
+        HockeyLog.error("Couldn't create directory for corrupt telemetry data");
+        return null;
+    }
+
+    /**
+     * Gets the file the sender keeps its upload backoff state in. It is not part of the
+     * telemetry directory, so it is never mistaken for telemetry data.
+     *
+     * @return The file, or null if the telemetry directory is not available.
+     */
+    File getUploadBackoffFile() {
+        File dir = getTelemetryDirectory();
+        return dir != null ? new File(dir.getParentFile(), UPLOAD_BACKOFF_FILE) : null;
+    }
+
+    /**
+     * Gets the file the channel keeps its write-ahead journal in. Like the upload backoff state,
+     * it is not part of the telemetry directory.
+     *
+     * @return The file, or null if the telemetry directory is not available.
+     */
+    File getJournalFile() {
+        File dir = getTelemetryDirectory();
+        return dir != null ? new File(dir.getParentFile(), JOURNAL_FILE) : null;
+    }
+
     /**
      * Retrieves the context from the weak reference.
      *
@@ -309,4 +667,13 @@ class Persistence {
     protected void setSender(Sender sender) {
         this.mWeakSender = new WeakReference<>(sender);
     }
+
+    /**
+     * Capture times of the items written to one segment. Only updated while holding the log.
+     */
+    private static class CaptureTimes {
+
+        private long mSum;
+        private int mCount;
+    }
 }
@@ -0,0 +1,168 @@
+package net.hockeyapp.android.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Counters the stages of the metrics pipeline record their work in. Recording never blocks:
+ * counters on the path of every event are striped, latencies go into lock free histograms.
+ * Counters which the stages keep anyway, like the number of items dropped by a full queue, are
+ * not duplicated here but read when a {@link PipelineStats} snapshot is taken.
+ * There is one instance per process, so the counters survive registering the MetricsManager
+ * again.
+ */
+final class PipelineCounters {
+
+    /**
+     * Status codes above this value are counted as failures without a response.
+     */
+    private static final int MAX_STATUS_CODE = 599;
+
+    private static final PipelineCounters sInstance = new PipelineCounters();
+
+    private final StripedCounter mEnqueued = new StripedCounter();
+    private final StripedCounter mDropped = new StripedCounter();
+    private final StripedCounter mBytesAppended = new StripedCounter();
+    private final StripedCounter mBytesPersisted = new StripedCounter();
+    private final StripedCounter mFilesQuarantined = new StripedCounter();
+    private final StripedCounter mUploadAttempts = new StripedCounter();
+    private final StripedCounter mUploadSuccesses = new StripedCounter();
+    private final AtomicLongArray mUploadFailures = new AtomicLongArray(MAX_STATUS_CODE + 1);
+    private final LatencyHistogram mSerializationTimes = new LatencyHistogram();
+    private final LatencyHistogram mEndToEndLatencies = new LatencyHistogram();
+
+    /**
+     * @return The counters of this process.
+     */
+    static PipelineCounters getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Records a serialized item entering the channel queue.
+     */
+    void recordEnqueued() {
+        mEnqueued.increment();
+    }
+
+    /**
+     * Records items which have been lost before they reached the disk.
+     *
+     * @param count The number of items.
+     */
+    void recordDropped(long count) {
+        mDropped.add(count);
+    }
+
+    /**
+     * Records the time taken to serialize an item.
+     *
+     * @param nanos The serialization time in nanoseconds.
+     */
+    void recordSerialization(long nanos) {
+        mSerializationTimes.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Records data written to disk.
+     *
+     * @param appendedBytes The number of bytes of data before compression.
+     * @param storedBytes   The number of bytes written.
+     */
+    void recordPersisted(long appendedBytes, long storedBytes) {
+        mBytesAppended.add(appendedBytes);
+        mBytesPersisted.add(storedBytes);
+    }
+
+    /**
+     * Records a corrupt file which has been moved to quarantine instead of being sent.
+     */
+    void recordQuarantined() {
+        mFilesQuarantined.increment();
+    }
+
+    /**
+     * Records the start of an upload request.
+     */
+    void recordUploadAttempt() {
+        mUploadAttempts.increment();
+    }
+
+    /**
+     * Records the outcome of an upload request.
+     *
+     * @param statusCode The HTTP status code, 0 if no response was received.
+     * @param success    Whether the server accepted the data.
+     */
+    void recordUploadResult(int statusCode, boolean success) {
+        if (success) {
+            mUploadSuccesses.increment();
+        } else {
+            mUploadFailures.incrementAndGet(statusCode > 0 && statusCode <= MAX_STATUS_CODE ? statusCode : 0);
+        }
+    }
+
+    /**
+     * Records items acknowledged by the server.
+     *
+     * @param latencyMillis The time from tracking the items to the acknowledgement.
+     * @param count         The number of items.
+     */
+    void recordAcknowledged(long latencyMillis, long count) {
+        mEndToEndLatencies.record(latencyMillis, count);
+    }
+
+    /**
+     * Takes a snapshot of the counters and the counters kept by the given stages.
+     *
+     * @param sampler            The sampler of custom events, may be null.
+     * @param serializationStage The serialization stage, may be null.
+     * @param channel            The channel, may be null.
+     * @param persistence        The persistence, may be null.
+     * @return The snapshot.
+     */
+    PipelineStats snapshot(EventSampler sampler, SerializationStage serializationStage,
+                           Channel channel, Persistence persistence) {
+        PipelineStats stats = new PipelineStats();
+        stats.mEventsEnqueued = mEnqueued.sum();
+        stats.mEventsDropped = mDropped.sum();
+        if (serializationStage != null) {
+            stats.mEventsDropped += serializationStage.getDroppedCount();
+        }
+        if (channel != null) {
+            stats.mEventsDropped += channel.getDroppedCount();
+            EnvelopeCoalescer coalescer = channel.getCoalescer();
+            stats.mEventsCoalesced = coalescer != null ? coalescer.getSuppressedCount() : 0;
+        }
+        if (sampler != null) {
+            stats.mEventsSampledOut = sampler.getSampledOutCount() + sampler.getRateLimitedCount();
+        }
+        stats.mSerializationTimes = mSerializationTimes.snapshot();
+        stats.mMaxSerializationTime = mSerializationTimes.getMax();
+        stats.mBytesAppended = mBytesAppended.sum();
+        stats.mBytesPersisted = mBytesPersisted.sum();
+        stats.mFilesOnDisk = persistence != null ? persistence.getFileCount() : 0;
+        stats.mFilesQuarantined = mFilesQuarantined.sum();
+        stats.mUploadAttempts = mUploadAttempts.sum();
+        stats.mUploadSuccesses = mUploadSuccesses.sum();
+        Map<Integer, Long> failures = new TreeMap<>();
+        long failureCount = 0;
+        for (int i = 0; i < mUploadFailures.length(); i++) {
+            long count = mUploadFailures.get(i);
+            if (count > 0) {
+                failures.put(i, count);
+                failureCount += count;
+            }
+        }
+        stats.mUploadFailures = failureCount;
+        stats.mUploadFailuresByStatusCode = Collections.unmodifiableMap(failures);
+        stats.mEndToEndLatencies = mEndToEndLatencies.snapshot();
+        stats.mMaxEndToEndLatency = mEndToEndLatencies.getMax();
+        return stats;
+    }
+}
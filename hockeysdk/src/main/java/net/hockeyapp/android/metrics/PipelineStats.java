@@ -0,0 +1,179 @@
+package net.hockeyapp.android.metrics;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Snapshot of the counters the metrics pipeline keeps about itself, from tracking an event to
+ * the server acknowledging it. Counters start when the process starts. The counters are read
+ * one after another without stopping the pipeline, so a snapshot taken while telemetry is
+ * flowing may be off by the items in flight.
+ *
+ * @see MetricsManager#getPipelineStats()
+ */
+public final class PipelineStats {
+
+    long mEventsEnqueued;
+    long mEventsDropped;
+    long mEventsSampledOut;
+    long mEventsCoalesced;
+    long[] mSerializationTimes = new long[LatencyHistogram.BUCKET_COUNT];
+    long mMaxSerializationTime;
+    long mBytesAppended;
+    long mBytesPersisted;
+    int mFilesOnDisk;
+    long mFilesQuarantined;
+    long mUploadAttempts;
+    long mUploadSuccesses;
+    long mUploadFailures;
+    Map<Integer, Long> mUploadFailuresByStatusCode = Collections.emptyMap();
+    long[] mEndToEndLatencies = new long[LatencyHistogram.BUCKET_COUNT];
+    long mMaxEndToEndLatency;
+
+    PipelineStats() {
+    }
+
+    /**
+     * @return The number of telemetry items which have been serialized and queued for persisting.
+     */
+    public long getEventsEnqueued() {
+        return mEventsEnqueued;
+    }
+
+    /**
+     * @return The number of telemetry items which have been lost, because a queue was full, the
+     * item could not be serialized or the disk budget was exhausted.
+     */
+    public long getEventsDropped() {
+        return mEventsDropped;
+    }
+
+    /**
+     * @return The number of custom events discarded by sampling or rate limits.
+     */
+    public long getEventsSampledOut() {
+        return mEventsSampledOut;
+    }
+
+    /**
+     * @return The number of telemetry items discarded because they repeated an item seen shortly
+     * before.
+     */
+    public long getEventsCoalesced() {
+        return mEventsCoalesced;
+    }
+
+    /**
+     * Gets a percentile of the time it took to turn a tracked item into a serialized envelope.
+     * The estimate is at most 25% above the actual value.
+     *
+     * @param percentile The percentile, between 0 and 100, for instance 50 for the median.
+     * @return The serialization time in microseconds, 0 if nothing has been serialized yet.
+     */
+    public long getSerializationTimeMicros(double percentile) {
+        return LatencyHistogram.percentile(mSerializationTimes, mMaxSerializationTime, percentile);
+    }
+
+    /**
+     * @return The number of bytes written to disk, after compression.
+     */
+    public long getBytesPersisted() {
+        return mBytesPersisted;
+    }
+
+    /**
+     * @return The ratio between the bytes written to disk and the data before compression, 1 if
+     * nothing has been written yet.
+     */
+    public float getCompressionRatio() {
+        return mBytesAppended > 0 ? (float) mBytesPersisted / mBytesAppended : 1f;
+    }
+
+    /**
+     * @return The number of bytes compression saved on disk and on the network.
+     */
+    public long getBytesSaved() {
+        return mBytesAppended - mBytesPersisted;
+    }
+
+    /**
+     * @return The number of telemetry files on disk which have not been acknowledged by the
+     * server yet.
+     */
+    public int getFilesOnDisk() {
+        return mFilesOnDisk;
+    }
+
+    /**
+     * @return The number of telemetry files which failed their checksum and have been moved to
+     * quarantine instead of being sent.
+     */
+    public long getFilesQuarantined() {
+        return mFilesQuarantined;
+    }
+
+    /**
+     * @return The number of upload requests started.
+     */
+    public long getUploadAttempts() {
+        return mUploadAttempts;
+    }
+
+    /**
+     * @return The number of upload requests the server accepted.
+     */
+    public long getUploadSuccesses() {
+        return mUploadSuccesses;
+    }
+
+    /**
+     * @return The number of upload requests which failed or were rejected by the server.
+     */
+    public long getUploadFailures() {
+        return mUploadFailures;
+    }
+
+    /**
+     * Gets the failed uploads by HTTP status code. Uploads which failed without a response, for
+     * instance because the device is offline, are counted with status code 0.
+     *
+     * @return The number of failed uploads per status code.
+     */
+    public Map<Integer, Long> getUploadFailuresByStatusCode() {
+        return mUploadFailuresByStatusCode;
+    }
+
+    /**
+     * Gets a percentile of the time from tracking a telemetry item to the server acknowledging
+     * it. Only covers items tracked and acknowledged while the process was running. The estimate
+     * is at most 25% above the actual value.
+     *
+     * @param percentile The percentile, between 0 and 100, for instance 50 for the median.
+     * @return The latency in milliseconds, 0 if nothing has been acknowledged yet.
+     */
+    public long getEndToEndLatencyMillis(double percentile) {
+        return LatencyHistogram.percentile(mEndToEndLatencies, mMaxEndToEndLatency, percentile);
+    }
+
+    /**
+     * @return The number of telemetry items the end to end latency has been measured for.
+     */
+    public long getEndToEndLatencyCount() {
+        return LatencyHistogram.count(mEndToEndLatencies);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "PipelineStats{enqueued=%d, dropped=%d, sampledOut=%d, "
+                        + "coalesced=%d, serializationP50=%dus, serializationP99=%dus, bytesPersisted=%d, "
+                        + "compressionRatio=%.2f, filesOnDisk=%d, filesQuarantined=%d, uploadAttempts=%d, uploadSuccesses=%d, uploadFailures=%s, "
+                        + "endToEndP50=%dms, endToEndP99=%dms}",
+                mEventsEnqueued, mEventsDropped, mEventsSampledOut, mEventsCoalesced,
+                getSerializationTimeMicros(50), getSerializationTimeMicros(99), mBytesPersisted,
+                getCompressionRatio(), mFilesOnDisk, mFilesQuarantined, mUploadAttempts, mUploadSuccesses, mUploadFailuresByStatusCode,
+                getEndToEndLatencyMillis(50), getEndToEndLatencyMillis(99));
+    }
+}
@@ -0,0 +1,72 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Domain;
+import net.hockeyapp.android.metrics.model.SessionStateData;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Lanes telemetry travels through the pipeline in. Every lane has its own queue in the
+ * {@link Channel} and its own log with a separate size quota in the {@link Persistence}, so
+ * custom events can never crowd out the session state which user and session counts are based
+ * on. The sender drains the lanes in the order they are declared.
+ */
+enum PriorityLane {
+
+    /**
+     * Session state. Has a small quota of its own and keeps the oldest data if it is exhausted,
+     * since every session start counts.
+     */
+    HIGH(256 * 1024, EvictionPolicy.REJECT_NEWEST),
+
+    /**
+     * Custom events and everything else. Evicts its oldest data to make room for new data.
+     */
+    LOW(Persistence.MAX_TOTAL_SIZE, EvictionPolicy.EVICT_OLDEST);
+
+    /**
+     * What happens to data arriving while the quota of a lane is exhausted.
+     */
+    enum EvictionPolicy {
+        /**
+         * The new data is dropped.
+         */
+        REJECT_NEWEST,
+        /**
+         * The oldest data which is not being sent is deleted until the new data fits.
+         */
+        EVICT_OLDEST
+    }
+
+    private final long mQuota;
+    private final EvictionPolicy mEvictionPolicy;
+
+    PriorityLane(long quota, EvictionPolicy evictionPolicy) {
+        mQuota = quota;
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * @return The maximum number of bytes the lane keeps on disk.
+     */
+    long getQuota() {
+        return mQuota;
+    }
+
+    /**
+     * @return What happens to new data if the quota is exhausted.
+     */
+    EvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    /**
+     * Picks the lane for telemetry data.
+     *
+     * @param baseData The telemetry data, may be null.
+     * @return The lane the data travels in.
+     */
+    static PriorityLane of(Domain baseData) {
+        return baseData instanceof SessionStateData ? HIGH : LOW;
+    }
+}
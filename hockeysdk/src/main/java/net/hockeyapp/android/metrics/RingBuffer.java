@@ -0,0 +1,256 @@
+package net.hockeyapp.android.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Bounded, lock-free queue used by the channel to collect serialized telemetry items. Any number
+ * of threads may add items concurrently, while the channel drains them from a single thread.
+ * Every slot carries a sequence number which tells producers and the consumer whether the slot
+ * is free or holds a published item, so neither side ever has to take a lock.
+ * If the buffer is full, the configured {@link OverflowPolicy} decides what happens to the new
+ * item. Items that get discarded are counted and can be queried with {@link #getDroppedCount()}.
+ *
+ * @param <E> The type of items in this buffer.
+ */
+class RingBuffer<E> {
+
+    /**
+     * Determines how the buffer behaves if an item is added while it is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Discards the oldest item in the buffer to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Discards the item which was about to be added.
+         */
+        DROP_NEWEST,
+        /**
+         * Waits until the consumer made room for the new item.
+         */
+        BLOCK
+    }
+
+    /**
+     * Time in nanoseconds a producer parks between attempts while waiting for a free slot.
+     */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * The slots holding the items.
+     */
+    private final AtomicReferenceArray<E> mBuffer;
+
+    /**
+     * Sequence number for each slot, used to detect whether a slot may be written or read.
+     */
+    private final AtomicLongArray mSequence;
+
+    /**
+     * Mask used to map a position to a slot index, capacity has to be a power of two.
+     */
+    private final int mMask;
+
+    /**
+     * Position of the next slot to write.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Position of the next slot to read.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * Number of items discarded because the buffer was full.
+     */
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * Behaviour in case the buffer is full.
+     */
+    private volatile OverflowPolicy mOverflowPolicy;
+
+    /**
+     * Creates and initializes a new instance.
+     *
+     * @param capacity       Maximum number of items, will be rounded up to the next power of two
+     *                       and is at least two.
+     * @param overflowPolicy Behaviour in case the buffer is full.
+     */
+    RingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity");
+        }
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mBuffer = new AtomicReferenceArray<>(size);
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+        mMask = size - 1;
+        setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Adds an item to the buffer, applying the overflow policy if it is full.
+     *
+     * @param item The item to add, must not be null.
+     * @return True if the item was added, false if it has been dropped.
+     */
+    boolean offer(E item) {
+        if (item == null) {
+            throw new IllegalArgumentException("item");
+        }
+        while (!tryOffer(item)) {
+            switch (mOverflowPolicy) {
+                case DROP_OLDEST:
+                    if (poll() != null) {
+                        mDroppedCount.incrementAndGet();
+                    }
+                    break;
+                case BLOCK:
+                    if (Thread.currentThread().isInterrupted()) {
+                        mDroppedCount.incrementAndGet();
+                        return false;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    break;
+                default:
+                    mDroppedCount.incrementAndGet();
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest item from the buffer.
+     *
+     * @return The oldest item, or null if the buffer is empty.
+     */
+    E poll() {
+        long head = mHead.get();
+        while (true) {
+            int index = (int) head & mMask;
+            long difference = mSequence.get(index) - (head + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(head, head + 1)) {
+                    E item = mBuffer.get(index);
+                    mBuffer.lazySet(index, null);
+                    mSequence.set(index, head + mMask + 1);
+                    return item;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+            head = mHead.get();
+        }
+    }
+
+    /**
+     * Moves as many items as fit into the given array, oldest first. The array can be reused
+     * across calls, so draining does not allocate.
+     *
+     * @param target The array to fill, starting at index 0.
+     * @return The number of items written to the array.
+     */
+    int drainTo(E[] target) {
+        int count = 0;
+        E item;
+        while (count < target.length && (item = poll()) != null) {
+            target[count++] = item;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the approximate number of items in the buffer.
+     *
+     * @return The number of items.
+     */
+    int size() {
+        long size = mTail.get() - mHead.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity());
+    }
+
+    /**
+     * Checks whether the buffer is empty.
+     *
+     * @return True if no items are in the buffer.
+     */
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets the maximum number of items the buffer can hold.
+     *
+     * @return The capacity.
+     */
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Gets the number of items discarded because the buffer was full.
+     *
+     * @return The number of dropped items.
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * Sets the behaviour in case the buffer is full.
+     *
+     * @param overflowPolicy The policy to apply.
+     */
+    void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy");
+        }
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Claims the next free slot and publishes the item into it.
+     *
+     * @param item The item to add.
+     * @return True if the item was added, false if the buffer is full.
+     */
+    private boolean tryOffer(E item) {
+        long tail = mTail.get();
+        while (true) {
+            int index = (int) tail & mMask;
+            long difference = mSequence.get(index) - tail;
+            if (difference == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mBuffer.lazySet(index, item);
+                    mSequence.set(index, tail + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            tail = mTail.get();
+        }
+    }
+}
@@ -0,0 +1,699 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.HockeyLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Append-only log of telemetry data, split into segment files. Batches are appended to the
+ * active segment, which is sealed once it exceeds a size or age limit. Sealed segments are the
+ * unit the sender transmits and are deleted once they have been acknowledged.
+ * A small index file keeps the committed length of the active segment and the oldest segment
+ * which has not been acknowledged yet. On startup, torn writes are cut off at the committed
+ * length and leftovers of acknowledged segments are removed. The directory is only listed once
+ * when the log is opened, afterwards all bookkeeping happens in memory.
+ * Files in the directory which are not segments, like data persisted by older versions of the
+ * SDK, are treated as sealed segments and are handed out first.
+ * Every batch is stored as a record of the {@link BatchFormat}, which carries a checksum of the
+ * batch. If compression is enabled, every segment is one gzip member: the deflater is flushed
+ * after every batch, so the payload of a record is the compressed batch, and sealing the segment
+ * appends a record completing the member. The index also keeps the checksum and length of the
+ * data committed to the member, so a segment left active by a previous run is completed on
+ * startup.
+ */
+class SegmentedLog {
+
+    /**
+     * Determines when written data is forced to the storage device.
+     */
+    enum SyncPolicy {
+        /**
+         * Leaves flushing to the operating system.
+         */
+        NEVER,
+        /**
+         * Syncs a segment once it gets sealed.
+         */
+        ON_ROTATE,
+        /**
+         * Syncs the segment and the index after every append.
+         */
+        ALWAYS
+    }
+
+    private static final String TAG = "HA-SegmentedLog";
+
+    /**
+     * Extension of segment files. Segment names are the zero padded segment id, so they sort
+     * in the order they have been written.
+     */
+    static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Name of the index file.
+     */
+    static final String INDEX_FILE_NAME = "segments.idx";
+
+    /**
+     * Version of the index format, also used to detect uninitialized index files.
+     */
+    private static final int INDEX_VERSION = 2;
+
+    /**
+     * Size of an index record: version, active segment id, committed length, oldest
+     * unacknowledged segment id and the checksum and length of the data committed to the gzip
+     * member of the active segment.
+     */
+    private static final int INDEX_SIZE = 4 + 8 + 8 + 8 + 4 + 8;
+
+    /**
+     * Separator between two appended batches.
+     */
+    private static final byte[] SEPARATOR = {'\n'};
+
+    /**
+     * Orders legacy files first, then segments by id.
+     */
+    private static final Comparator<File> SEGMENT_ORDER = new Comparator<File>() {
+
+        @Override
+        public int compare(File lhs, File rhs) {
+            long lhsId = segmentId(lhs);
+            long rhsId = segmentId(rhs);
+            return lhsId < rhsId ? -1 : (lhsId == rhsId ? 0 : 1);
+        }
+    };
+
+    private final File mDirectory;
+    private final long mMaxSegmentSize;
+    private final long mMaxSegmentAge;
+    private final long mMaxTotalSize;
+    private final SyncPolicy mSyncPolicy;
+
+    /**
+     * Number of segments holding data, which may be shared by several logs and is read without
+     * taking the lock of a log.
+     */
+    private final AtomicInteger mSegmentCounter;
+
+    /**
+     * Codec used to compress batches, null if batches are stored uncompressed.
+     */
+    private final GzipCodec mCodec;
+
+    /**
+     * Sealed segments waiting to be sent, oldest first.
+     */
+    private final List<File> mSealedSegments = new ArrayList<>();
+
+    /**
+     * Scratch buffer for index records.
+     */
+    private final ByteBuffer mIndexRecord = ByteBuffer.allocate(INDEX_SIZE);
+
+    /**
+     * Scratch buffer for record headers.
+     */
+    private final ByteBuffer mRecordHeader = ByteBuffer.allocate(BatchFormat.HEADER_SIZE);
+
+    /**
+     * Scratch buffer for the end of a gzip member.
+     */
+    private final byte[] mStreamEnd = new byte[GzipCodec.END_SIZE];
+
+    private final CRC32 mCrc = new CRC32();
+
+    private RandomAccessFile mIndex;
+    private FileOutputStream mActiveStream;
+    private long mActiveId;
+    private long mActiveLength;
+    private long mActiveCreated;
+    private long mOldestUnacknowledgedId;
+    private long mTotalSize;
+    private long mAppendedSize;
+    private long mStoredSize;
+
+    /**
+     * Checksum and length of the data committed to the gzip member of the active segment.
+     */
+    private int mStreamCrc;
+    private long mStreamLength;
+
+    /**
+     * Creates a log in the given directory and recovers any state left from a previous run.
+     *
+     * @param directory      Directory holding the segments and the index.
+     * @param maxSegmentSize Size in bytes after which the active segment is sealed.
+     * @param maxSegmentAge  Time in milliseconds after which the active segment is sealed.
+     * @param maxTotalSize   Maximum number of bytes kept in the directory.
+     * @param syncPolicy     Determines when data is synced to the storage device.
+     * @param compressed     Whether batches are stored gzip compressed.
+     */
+    SegmentedLog(File directory, long maxSegmentSize, long maxSegmentAge, long maxTotalSize,
+                 SyncPolicy syncPolicy, boolean compressed) {
+        this(directory, maxSegmentSize, maxSegmentAge, maxTotalSize, syncPolicy, compressed, new AtomicInteger());
+    }
+
+    /**
+     * Creates a log which also counts its segments in the given counter.
+     *
+     * @param directory      Directory holding the segments and the index.
+     * @param maxSegmentSize Size in bytes after which the active segment is sealed.
+     * @param maxSegmentAge  Time in milliseconds after which the active segment is sealed.
+     * @param maxTotalSize   Maximum number of bytes kept in the directory.
+     * @param syncPolicy     Determines when data is synced to the storage device.
+     * @param compressed     Whether batches are stored gzip compressed.
+     * @param segmentCounter Counter of the segments holding data, see {@link #getSegmentCount()}.
+     */
+    SegmentedLog(File directory, long maxSegmentSize, long maxSegmentAge, long maxTotalSize,
+                 SyncPolicy syncPolicy, boolean compressed, AtomicInteger segmentCounter) {
+        mDirectory = directory;
+        mMaxSegmentSize = maxSegmentSize;
+        mMaxSegmentAge = maxSegmentAge;
+        mMaxTotalSize = maxTotalSize;
+        mSyncPolicy = syncPolicy;
+        mSegmentCounter = segmentCounter;
+        mCodec = compressed ? new GzipCodec() : null;
+        recover();
+    }
+
+    /**
+     * Appends a batch of data to the active segment, separated from the previous batch by a
+     * newline. The batch is either committed completely or not at all.
+     *
+     * @param data The data to append.
+     * @return True if the data was committed, false if the size budget is exhausted or writing failed.
+     */
+    synchronized boolean append(byte[] data) {
+        return append(data, 1);
+    }
+
+    /**
+     * Appends a batch of data to the active segment, separated from the previous batch by a
+     * newline. The batch is either committed completely or not at all.
+     *
+     * @param data  The data to append.
+     * @param count The number of telemetry items in the data, kept in the record header.
+     * @return True if the data was committed, false if the size budget is exhausted or writing failed.
+     */
+    synchronized boolean append(byte[] data, int count) {
+        int separatorLength = mActiveLength > 0 ? SEPARATOR.length : 0;
+        int payloadLength = data.length + separatorLength;
+        mCrc.reset();
+        if (mCodec != null) {
+            if (mActiveLength == 0) {
+                mCodec.begin();
+            } else {
+                mCodec.clear();
+            }
+            mCodec.write(SEPARATOR, 0, separatorLength);
+            mCodec.write(data, 0, data.length);
+            mCodec.flush();
+            payloadLength = mCodec.getLength();
+            mCrc.update(mCodec.getBuffer(), 0, payloadLength);
+        } else {
+            mCrc.update(SEPARATOR, 0, separatorLength);
+            mCrc.update(data, 0, data.length);
+        }
+        long length = BatchFormat.HEADER_SIZE + payloadLength;
+        if (mTotalSize + length > mMaxTotalSize) {
+            HockeyLog.warn(TAG, "Telemetry size budget of " + mMaxTotalSize + " bytes exhausted.");
+            abandonBatch();
+            return false;
+        }
+        try {
+            if (mActiveStream == null) {
+                mActiveStream = new FileOutputStream(segmentFile(mActiveId), true);
+                mActiveCreated = System.currentTimeMillis();
+            }
+            BatchFormat.writeHeader(mRecordHeader, mCodec != null ? BatchFormat.FLAG_COMPRESSED : 0, count,
+                    payloadLength, (int) mCrc.getValue());
+            mActiveStream.write(mRecordHeader.array(), 0, BatchFormat.HEADER_SIZE);
+            if (mCodec != null) {
+                mActiveStream.write(mCodec.getBuffer(), 0, mCodec.getLength());
+            } else {
+                mActiveStream.write(SEPARATOR, 0, separatorLength);
+                mActiveStream.write(data);
+            }
+            if (mSyncPolicy == SyncPolicy.ALWAYS) {
+                mActiveStream.getFD().sync();
+            }
+        } catch (IOException e) {
+            HockeyLog.warn(TAG, "Failed to append telemetry data", e);
+            rollback();
+            abandonBatch();
+            return false;
+        }
+        if (mCodec != null) {
+            mStreamCrc = mCodec.getCrc();
+            mStreamLength = mCodec.getInputLength();
+        }
+        if (mActiveLength == 0) {
+            mSegmentCounter.incrementAndGet();
+        }
+        mActiveLength += length;
+        mTotalSize += length;
+        mAppendedSize += data.length + separatorLength;
+        mStoredSize += payloadLength;
+        writeIndex();
+        if (mActiveLength >= mMaxSegmentSize || System.currentTimeMillis() - mActiveCreated >= mMaxSegmentAge) {
+            seal();
+        }
+        return true;
+    }
+
+    /**
+     * Gets the oldest sealed segment which is not part of the given collection. If there are no
+     * sealed segments at all, the active segment is sealed and returned, so data does not wait
+     * for rotation while nothing else is pending.
+     *
+     * @param excluded Segments which must not be returned, for example because they are being sent.
+     * @return The next segment, or null if there is none.
+     */
+    synchronized File nextSegment(Collection<File> excluded) {
+        for (File segment : mSealedSegments) {
+            if (!excluded.contains(segment)) {
+                return segment;
+            }
+        }
+        if (mSealedSegments.isEmpty() && seal()) {
+            return mSealedSegments.get(0);
+        }
+        return null;
+    }
+
+    /**
+     * Marks a segment as acknowledged and deletes it.
+     *
+     * @param segment The segment to acknowledge.
+     * @return True if the segment file has been deleted.
+     */
+    synchronized boolean acknowledge(File segment) {
+        long length = segment.length();
+        boolean deleted = segment.delete();
+        remove(segment, deleted ? length : 0);
+        return deleted;
+    }
+
+    /**
+     * Moves a segment out of the log, for example because it is corrupt. The segment is deleted
+     * if it cannot be moved.
+     *
+     * @param segment The segment to remove.
+     * @param target  The file to move the segment to, may be null to delete it.
+     * @return True if the segment has been moved.
+     */
+    synchronized boolean quarantine(File segment, File target) {
+        long length = segment.length();
+        boolean moved = target != null && segment.renameTo(target);
+        boolean removed = moved || segment.delete();
+        remove(segment, removed ? length : 0);
+        return moved;
+    }
+
+    /**
+     * Forgets a sealed segment which is no longer part of the directory.
+     *
+     * @param segment The segment.
+     * @param length  The number of bytes freed in the directory.
+     */
+    private void remove(File segment, long length) {
+        if (mSealedSegments.remove(segment)) {
+            mSegmentCounter.decrementAndGet();
+            mTotalSize = Math.max(0, mTotalSize - length);
+            long oldest = mActiveId;
+            for (File sealed : mSealedSegments) {
+                long id = segmentId(sealed);
+                if (id >= 0 && id < oldest) {
+                    oldest = id;
+                }
+            }
+            if (oldest != mOldestUnacknowledgedId) {
+                mOldestUnacknowledgedId = oldest;
+                writeIndex();
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest sealed segment to make room for new data.
+     *
+     * @param excluded Segments which must not be deleted, for example because they are being sent.
+     * @return The deleted segment, or null if there is no segment which could be deleted.
+     */
+    synchronized File evictOldest(Collection<File> excluded) {
+        for (File segment : mSealedSegments) {
+            if (!excluded.contains(segment)) {
+                HockeyLog.warn(TAG, "Evicting " + segment.length() + " bytes of telemetry data to make room for new data.");
+                acknowledge(segment);
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether another batch of the given size fits into the size budget.
+     *
+     * @param length Number of bytes to add.
+     * @return True if the data fits.
+     */
+    synchronized boolean hasCapacity(long length) {
+        return mTotalSize + length <= mMaxTotalSize;
+    }
+
+    /**
+     * @return The directory holding the segments.
+     */
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return The number of bytes currently kept in the directory.
+     */
+    synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * @return The number of bytes of data appended since the log has been opened.
+     */
+    synchronized long getAppendedSize() {
+        return mAppendedSize;
+    }
+
+    /**
+     * @return The number of payload bytes written to segments since the log has been opened,
+     * without record headers, which is less than {@link #getAppendedSize()} if compression is
+     * enabled.
+     */
+    synchronized long getStoredSize() {
+        return mStoredSize;
+    }
+
+    /**
+     * @return The number of sealed segments waiting to be sent.
+     */
+    synchronized int getSealedSegmentCount() {
+        return mSealedSegments.size();
+    }
+
+    /**
+     * @return The number of segments on disk which have not been acknowledged, including the
+     * active segment if it contains data.
+     */
+    synchronized int getSegmentCount() {
+        return mSealedSegments.size() + (mActiveLength > 0 ? 1 : 0);
+    }
+
+    /**
+     * @return The segment the next batch will be appended to.
+     */
+    synchronized File getActiveSegment() {
+        return segmentFile(mActiveId);
+    }
+
+    /**
+     * Syncs and closes the active segment and the index. The log can still be used afterwards,
+     * files are reopened on demand.
+     */
+    synchronized void close() {
+        if (mActiveStream != null) {
+            try {
+                mActiveStream.getFD().sync();
+            } catch (IOException e) {
+                HockeyLog.warn(TAG, "Failed to sync telemetry segment", e);
+            }
+            closeQuietly(mActiveStream);
+            mActiveStream = null;
+        }
+        if (mIndex != null) {
+            closeQuietly(mIndex);
+            mIndex = null;
+        }
+    }
+
+    /**
+     * Seals the active segment if it contains any data.
+     *
+     * @return True if a segment has been sealed.
+     */
+    private boolean seal() {
+        if (mActiveLength == 0) {
+            return false;
+        }
+        if (mCodec != null) {
+            finishMember();
+        }
+        if (mActiveStream != null) {
+            try {
+                if (mSyncPolicy != SyncPolicy.NEVER) {
+                    mActiveStream.getFD().sync();
+                }
+            } catch (IOException e) {
+                HockeyLog.warn(TAG, "Failed to sync telemetry segment", e);
+            }
+            closeQuietly(mActiveStream);
+            mActiveStream = null;
+        }
+        mSealedSegments.add(segmentFile(mActiveId));
+        mActiveId++;
+        mActiveLength = 0;
+        mStreamCrc = 0;
+        mStreamLength = 0;
+        writeIndex();
+        return true;
+    }
+
+    /**
+     * Appends the record completing the gzip member of the active segment. If that fails, the
+     * segment is left incomplete and gets quarantined when it is about to be sent.
+     */
+    private void finishMember() {
+        GzipCodec.end(mStreamCrc, mStreamLength, mStreamEnd);
+        mCrc.reset();
+        mCrc.update(mStreamEnd, 0, mStreamEnd.length);
+        long length = BatchFormat.HEADER_SIZE + mStreamEnd.length;
+        try {
+            if (mActiveStream == null) {
+                mActiveStream = new FileOutputStream(segmentFile(mActiveId), true);
+            }
+            BatchFormat.writeHeader(mRecordHeader, BatchFormat.FLAG_COMPRESSED | BatchFormat.FLAG_END, 0,
+                    mStreamEnd.length, (int) mCrc.getValue());
+            mActiveStream.write(mRecordHeader.array(), 0, BatchFormat.HEADER_SIZE);
+            mActiveStream.write(mStreamEnd);
+        } catch (IOException e) {
+            HockeyLog.warn(TAG, "Failed to complete telemetry segment", e);
+            rollback();
+            return;
+        }
+        mActiveLength += length;
+        mTotalSize += length;
+        mStoredSize += mStreamEnd.length;
+    }
+
+    /**
+     * Cleans up after a batch which has not been committed. The deflater has already consumed
+     * the batch, so the gzip member of the active segment cannot be continued and the segment
+     * is sealed with the data committed so far.
+     */
+    private void abandonBatch() {
+        if (mCodec != null) {
+            seal();
+        }
+    }
+
+    /**
+     * Cuts the active segment back to the committed length after a failed append.
+     */
+    private void rollback() {
+        closeQuietly(mActiveStream);
+        mActiveStream = null;
+        truncate(segmentFile(mActiveId), mActiveLength);
+    }
+
+    private void recover() {
+        long activeId = 0;
+        long committedLength = -1;
+        long oldestUnacknowledgedId = 0;
+        int streamCrc = 0;
+        long streamLength = -1;
+        File indexFile = new File(mDirectory, INDEX_FILE_NAME);
+        if (indexFile.length() == INDEX_SIZE) {
+            RandomAccessFile index = null;
+            try {
+                index = new RandomAccessFile(indexFile, "r");
+                if (index.readInt() == INDEX_VERSION) {
+                    activeId = index.readLong();
+                    committedLength = index.readLong();
+                    oldestUnacknowledgedId = index.readLong();
+                    streamCrc = index.readInt();
+                    streamLength = index.readLong();
+                }
+            } catch (IOException e) {
+                HockeyLog.warn(TAG, "Failed to read telemetry index", e);
+            } finally {
+                closeQuietly(index);
+            }
+        }
+
+        long nextId = activeId;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (INDEX_FILE_NAME.equals(file.getName()) || !file.isFile()) {
+                    continue;
+                }
+                long id = segmentId(file);
+                if (id >= 0 && id < oldestUnacknowledgedId) {
+                    // Acknowledged before, but deleting it did not succeed.
+                    if (!file.delete()) {
+                        HockeyLog.warn(TAG, "Failed to delete acknowledged telemetry segment " + file);
+                    }
+                    continue;
+                }
+                if (id == activeId && committedLength >= 0 && file.length() > committedLength) {
+                    // Remove a torn write of a batch which has never been committed.
+                    truncate(file, committedLength);
+                }
+                if (file.length() == 0) {
+                    if (!file.delete()) {
+                        HockeyLog.warn(TAG, "Failed to delete empty telemetry segment " + file);
+                    }
+                    continue;
+                }
+                if (id == activeId && committedLength >= 0 && streamLength >= 0) {
+                    completeMember(file, streamCrc, streamLength);
+                }
+                mSealedSegments.add(file);
+                mTotalSize += file.length();
+                nextId = Math.max(nextId, id + 1);
+            }
+        }
+        Collections.sort(mSealedSegments, SEGMENT_ORDER);
+        mSegmentCounter.addAndGet(mSealedSegments.size());
+        mActiveId = nextId;
+        mActiveLength = 0;
+        mOldestUnacknowledgedId = nextId;
+        for (File sealed : mSealedSegments) {
+            long id = segmentId(sealed);
+            if (id >= 0) {
+                mOldestUnacknowledgedId = id;
+                break;
+            }
+        }
+        writeIndex();
+    }
+
+    /**
+     * Completes the gzip member of a segment which was active when the log was closed.
+     *
+     * @param segment      The segment.
+     * @param streamCrc    The checksum of the data committed to the member.
+     * @param streamLength The length of the data committed to the member.
+     */
+    private void completeMember(File segment, int streamCrc, long streamLength) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(segment, "rw");
+            if (!BatchFormat.scan(randomAccessFile.getChannel()).isCompressed()) {
+                return;
+            }
+            GzipCodec.end(streamCrc, streamLength, mStreamEnd);
+            mCrc.reset();
+            mCrc.update(mStreamEnd, 0, mStreamEnd.length);
+            BatchFormat.writeHeader(mRecordHeader, BatchFormat.FLAG_COMPRESSED | BatchFormat.FLAG_END, 0,
+                    mStreamEnd.length, (int) mCrc.getValue());
+            randomAccessFile.seek(randomAccessFile.length());
+            randomAccessFile.write(mRecordHeader.array(), 0, BatchFormat.HEADER_SIZE);
+            randomAccessFile.write(mStreamEnd);
+        } catch (IOException e) {
+            HockeyLog.warn(TAG, "Failed to complete telemetry segment " + segment, e);
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    private void writeIndex() {
+        try {
+            if (mIndex == null) {
+                mIndex = new RandomAccessFile(new File(mDirectory, INDEX_FILE_NAME), "rw");
+            }
+            mIndexRecord.clear();
+            mIndexRecord.putInt(INDEX_VERSION)
+                    .putLong(mActiveId)
+                    .putLong(mActiveLength)
+                    .putLong(mOldestUnacknowledgedId)
+                    .putInt(mStreamCrc)
+                    .putLong(mStreamLength);
+            mIndex.seek(0);
+            mIndex.write(mIndexRecord.array(), 0, INDEX_SIZE);
+            if (mSyncPolicy == SyncPolicy.ALWAYS) {
+                mIndex.getFD().sync();
+            }
+        } catch (IOException e) {
+            HockeyLog.warn(TAG, "Failed to write telemetry index", e);
+            closeQuietly(mIndex);
+            mIndex = null;
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(mDirectory, String.format(Locale.ROOT, "%019d", id) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Parses the id of a segment file.
+     *
+     * @param file The file to get the id for.
+     * @return The id of the segment, or -1 if the file is not a segment.
+     */
+    static long segmentId(File file) {
+        String name = file.getName();
+        if (name == null || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void truncate(File file, long length) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(length);
+        } catch (IOException e) {
+            HockeyLog.warn(TAG, "Failed to truncate telemetry segment " + file, e);
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
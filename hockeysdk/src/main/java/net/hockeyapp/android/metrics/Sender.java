@@ -1,27 +1,27 @@
 package net.hockeyapp.android.metrics;
 
 import android.annotation.SuppressLint;
-import android.annotation.TargetApi;
 import android.net.TrafficStats;
 import android.os.AsyncTask;
-import android.os.Build;
 import android.text.TextUtils;
 
 import net.hockeyapp.android.Constants;
 import net.hockeyapp.android.utils.AsyncTaskUtils;
 import net.hockeyapp.android.utils.HockeyLog;
+import net.hockeyapp.android.utils.ScheduledTask;
 import net.hockeyapp.android.utils.Util;
 
 import java.io.*;
 import java.lang.ref.WeakReference;
 import javax.net.ssl.HttpsURLConnection;;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * <h3>Description</h3>
@@ -44,9 +44,21 @@ public class Sender {
      */
     static final int DEFAULT_SENDER_CONNECT_TIMEOUT = 15 * 1000;
     /**
-     * The max number of requests to perform in parallel.
+     * Maximum number of persisted bytes combined into one request.
      */
-    static final int MAX_REQUEST_COUNT = 10;
+    static final int MAX_REQUEST_SIZE = 256 * 1024;
+    /**
+     * Maximum number of files combined into one request.
+     */
+    static final int MAX_FILES_PER_REQUEST = 16;
+    /**
+     * Separator between the content of two uncompressed files combined into one request.
+     */
+    private static final byte[] SEPARATOR = {'\n'};
+    /**
+     * Size of the buffers persisted files are streamed into the connection through.
+     */
+    static final int TRANSFER_BUFFER_SIZE = 8 * 1024;
     /**
      * The logging tag.
      */
@@ -63,6 +75,33 @@ public class Sender {
      * Custom ingestion endpoint URL.
      */
     private String mCustomServerURL;
+    /**
+     * Scheduler running the uploads.
+     */
+    private final UploadScheduler mUploadScheduler;
+    /**
+     * Recovery uploading the backlog at a controlled rate.
+     */
+    private final BacklogRecovery mBacklogRecovery;
+    /**
+     * Backoff and circuit breaker for failing uploads, created on first use.
+     */
+    private UploadBackoff mUploadBackoff;
+    /**
+     * Triggers sending once the backoff allows the next attempt, so the data waiting after a
+     * failed upload is retried and the circuit is probed even if no new data arrives.
+     */
+    private final ScheduledTask mRetryTask = new ScheduledTask(new Runnable() {
+
+        @Override
+        public void run() {
+            triggerSending();
+        }
+    });
+    /**
+     * Transfer buffers of finished uploads, at most one per parallel upload is kept.
+     */
+    private final ArrayDeque<byte[]> mTransferBuffers = new ArrayDeque<>();
 
     /**
      * Creates and initializes a new instance.
@@ -72,38 +111,22 @@ public class Sender {
      */
     protected Sender() {
         mRequestCount = new AtomicInteger(0);
+        mUploadScheduler = new UploadScheduler(this);
+        mBacklogRecovery = new BacklogRecovery(this);
     }
 
     /**
-     * Triggers sending of available telemetry data in an AsyncTask. Checks with persistence
-     * for available data, if the max amount of concurrent requests is not reached yet.
-     * Does nothing, if the maximum number of concurrent requests is already reached or exceeded.
+     * Triggers sending of available telemetry data in the background. The upload scheduler drains
+     * all available data with a bounded number of concurrent requests, if it is already running,
+     * the running uploads will pick up the new data.
      */
-    @SuppressLint("StaticFieldLeak")
     protected void triggerSending() {
-        if (requestCount() < MAX_REQUEST_COUNT) {
-            try {
-                AsyncTaskUtils.execute(
-                        new AsyncTask<Void, Void, Void>() {
-                            @Override
-                            protected Void doInBackground(Void... params) {
-                                // Send the persisted data
-                                sendAvailableFiles();
-                                return null;
-                            }
-                        }
-                );
-            } catch (RejectedExecutionException e) {
-                HockeyLog.error("Could not send events. Executor rejected async task.", e);
-            }
-        } else {
-            HockeyLog.debug(TAG, "We have already 10 pending requests, not sending anything.");
-        }
+        mUploadScheduler.schedule();
     }
 
     @SuppressLint("StaticFieldLeak")
-    protected void triggerSendingForTesting(final HttpsURLConnection connection, final File file, final String persistedData) {
-        if (requestCount() < MAX_REQUEST_COUNT) {
+    protected void triggerSendingForTesting(final HttpsURLConnection connection, final File file, final byte[] persistedData) {
+        if (requestCount() < mUploadScheduler.getMaxParallelUploads()) {
             mRequestCount.getAndIncrement();
 
             AsyncTaskUtils.execute(
@@ -111,7 +134,7 @@ public class Sender {
                         @Override
                         protected Void doInBackground(Void... params) {
                             // Send the persisted data
-                            send(connection, file, persistedData);
+                            send(connection, persistedData, file);
                             return null;
                         }
                     }
@@ -120,87 +143,252 @@ public class Sender {
     }
 
     /**
-     * Checks the persistence for available files and sends them.
+     * Checks the persistence for available files and sends them on the calling thread.
      */
     protected void sendAvailableFiles() {
-        if (this.getPersistence() != null) {
-            File fileToSend = this.getPersistence().nextAvailableFileInDirectory();
-            String persistedData = loadData(fileToSend);
-            HttpsURLConnection connection = createConnection();
+        UploadBatch batch;
+        while ((batch = nextBatch()) != null) {
+            if (!upload(batch) || batch.isExhausted()) {
+                break;
+            }
+        }
+    }
 
-            if ((persistedData != null) && (connection != null)) {
-                send(connection, fileToSend, persistedData);
+    /**
+     * Reserves the next files to send and combines them into one request, as long as they share
+     * the same encoding and fit into {@link #MAX_REQUEST_SIZE}. The gzip members of compressed
+     * files are joined into a single member, since not every backend decodes several members.
+     * The files are checked before they
+     * are added, corrupt files are quarantined and left out, so an upload never starts with data
+     * which turns out to be corrupt. The payloads are streamed into the connection when the batch
+     * is uploaded.
+     *
+     * @return The next batch to upload, or null if no data is available.
+     */
+    UploadBatch nextBatch() {
+        Persistence persistence = getPersistence();
+        if (persistence == null) {
+            return null;
+        }
+        List<File> files = new ArrayList<>();
+        long[] payloadLengths = new long[MAX_FILES_PER_REQUEST];
+        boolean compressed = false;
+        boolean joined = false;
+        boolean exhausted = false;
+        long size = 0;
+        int streamCrc = 0;
+        long streamLength = 0;
+        byte[] buffer = acquireTransferBuffer();
+        try {
+            while (files.size() < MAX_FILES_PER_REQUEST) {
+                File file = persistence.nextAvailableFileInDirectory();
+                if (file == null) {
+                    exhausted = true;
+                    break;
+                }
+                BatchFormat.Info info = persistence.describe(file, buffer);
+                if (info == null) {
+                    // Corrupt, the file has been quarantined.
+                    continue;
+                }
+                if (info.getPayloadLength() == 0) {
+                    persistence.deleteFile(file);
+                    continue;
+                }
+                // Members of files written by older versions of the SDK cannot be joined.
+                boolean joinable = info.isCompressed() && info.getStreamLength() >= 0;
+                long length = info.getPayloadLength();
+                long separatorLength = 0;
+                if (!files.isEmpty()) {
+                    if (compressed) {
+                        // Only the deflate data is added, the member keeps the end of the first file.
+                        length -= GzipCodec.HEADER_SIZE + GzipCodec.END_SIZE;
+                        separatorLength = GzipCodec.SEPARATOR_BLOCK.length;
+                    } else {
+                        separatorLength = SEPARATOR.length;
+                    }
+                    if (info.isCompressed() != compressed || (compressed && !(joined && joinable))
+                            || size + separatorLength + length > MAX_REQUEST_SIZE) {
+                        persistence.makeAvailable(file);
+                        break;
+                    }
+                    streamCrc = GzipCodec.combineCrc(streamCrc, GzipCodec.SEPARATOR_CRC, 1);
+                    streamCrc = GzipCodec.combineCrc(streamCrc, info.getStreamCrc(), info.getStreamLength());
+                    streamLength += 1 + info.getStreamLength();
+                } else {
+                    compressed = info.isCompressed();
+                    joined = joinable;
+                    streamCrc = info.getStreamCrc();
+                    streamLength = info.getStreamLength();
+                }
+                size += separatorLength + length;
+                payloadLengths[files.size()] = info.getPayloadLength();
+                files.add(file);
             }
-            if (connection != null) {
+        } finally {
+            releaseTransferBuffer(buffer);
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+        byte[] end = joined ? GzipCodec.end(streamCrc, streamLength, new byte[GzipCodec.END_SIZE]) : null;
+        return new UploadBatch(files.toArray(new File[files.size()]), Arrays.copyOf(payloadLengths, files.size()),
+                compressed, end, size, exhausted);
+    }
+
+    /**
+     * Sends a batch to the ingestion endpoint.
+     *
+     * @param batch The batch to send.
+     * @return True if the server accepted or finally rejected the data, false if it has to be sent again later.
+     */
+    boolean upload(UploadBatch batch) {
+        String endpoint = getEndpointURL();
+        UploadBackoff backoff = getUploadBackoff();
+        if (!backoff.tryAcquire(endpoint)) {
+            long delay = backoff.getDelay(endpoint);
+            HockeyLog.debug(TAG, "Not sending data, backing off for " + delay + " ms.");
+            releaseFiles(batch.mFiles);
+            if (delay > 0) {
+                // Without a delay a probe is running, which schedules the retry when it finishes.
+                scheduleRetry(delay);
+            }
+            return false;
+        }
+        HttpURLConnection connection = openConnection();
+        boolean sent = false;
+        if (connection == null) {
+            releaseFiles(batch.mFiles);
+        } else {
+            try {
+                sent = send(connection, batch);
+            } finally {
                 connection.disconnect();
             }
         }
+        if (sent) {
+            backoff.onSuccess(endpoint);
+            mRetryTask.cancel();
+        } else {
+            backoff.onFailure(endpoint);
+            scheduleRetry(backoff.getDelay(endpoint));
+        }
+        return sent;
+    }
+
+    /**
+     * Schedules sending the data left after a refused or failed upload.
+     *
+     * @param delayMillis Time in milliseconds until the backoff allows the next attempt.
+     */
+    void scheduleRetry(long delayMillis) {
+        mRetryTask.schedule(delayMillis);
+    }
+
+    private void releaseFiles(File[] files) {
+        if (this.getPersistence() != null) {
+            makeAvailable(files);
+        }
     }
 
     /**
-     * Send a file to the ingestion endpoint.
+     * Opens the connection used for an upload (allows for test hooks into the connection).
+     *
+     * @return connection to the API endpoint
+     */
+    protected HttpURLConnection openConnection() {
+        return createConnection();
+    }
+
+    /**
+     * Send files to the ingestion endpoint.
      *
      * @param connection
-     * @param file
-     * @param persistedData
+     * @param persistedData the content of the files as it has been persisted
+     * @param files         the files the data has been read from
+     * @return True if the server accepted or finally rejected the data, false if it has to be sent again later.
      */
-    protected void send(HttpsURLConnection connection, File file, String persistedData) {
-        // TODO Why does this get the file and persistedData reference, even though everything is in the connection?
+    protected boolean send(HttpURLConnection connection, byte[] persistedData, File... files) {
+        return persistedData != null && send(connection, new UploadBatch(files, persistedData, true));
+    }
+
+    /**
+     * Send a batch of files to the ingestion endpoint.
+     *
+     * @param connection the connection to send the batch with
+     * @param batch      the batch to send
+     * @return True if the server accepted or finally rejected the data, false if it has to be sent again later.
+     */
+    boolean send(HttpURLConnection connection, UploadBatch batch) {
         // TODO Looks like this will have to be rewritten for its own AsyncTask subclass.
-        if (connection != null && file != null && persistedData != null) {
+        File[] files = batch.mFiles;
+        if (connection != null && files.length > 0) {
             TrafficStats.setThreadStatsTag(Constants.THREAD_STATS_TAG);
             try {
                 mRequestCount.getAndIncrement();
-                logRequest(connection, persistedData);
+                PipelineCounters.getInstance().recordUploadAttempt();
+                logRequest(connection, batch);
                 // Starts the query
                 connection.connect();
                 // read the response code while we're ready to catch the IO exception
                 int responseCode = connection.getResponseCode();
                 // process the response
-                onResponse(connection, responseCode, persistedData, file);
+                onResponse(connection, responseCode, batch.getContentLength(), files);
+                return !isRecoverableError(responseCode);
             } catch (IOException e) {
                 // Probably offline
                 HockeyLog.debug(TAG, "Couldn't send data with " + e.toString());
                 mRequestCount.getAndDecrement();
+                PipelineCounters.getInstance().recordUploadResult(0, false);
                 if (this.getPersistence() != null) {
                     HockeyLog.debug(TAG, "Persisting because of IOException: We're probably offline.");
-                    this.getPersistence().makeAvailable(file); // Send again later
+                    makeAvailable(files); // Send again later
                 }
             } catch (SecurityException e) {
                 // Permission denied
                 HockeyLog.debug(TAG, "Couldn't send data with " + e.toString());
                 mRequestCount.getAndDecrement();
+                PipelineCounters.getInstance().recordUploadResult(0, false);
                 if (this.getPersistence() != null) {
                     HockeyLog.debug(TAG, "Persisting because of SecurityException: Missing INTERNET permission or the user might have removed the internet permission.");
-                    this.getPersistence().makeAvailable(file); // Send again later
+                    makeAvailable(files); // Send again later
                 }
             } catch (Exception e) {
                 // Catch all unknown exceptions
                 HockeyLog.debug(TAG, "Couldn't send data with " + e.toString());
                 mRequestCount.getAndDecrement();
+                PipelineCounters.getInstance().recordUploadResult(0, false);
                 if (this.getPersistence() != null) {
                     HockeyLog.debug(TAG, "Persisting because of unknown exception.");
-                    this.getPersistence().makeAvailable(file); // Send again later
+                    makeAvailable(files); // Send again later
                 }
             } finally {
                 TrafficStats.clearThreadStatsTag();
             }
         }
+        return false;
+    }
+
+    private void makeAvailable(File[] files) {
+        for (File file : files) {
+            this.getPersistence().makeAvailable(file);
+        }
     }
 
     /**
      * Read the contents of a file from the persistence layer.
      *
      * @param file The file to read.
-     * @return Persisted data as String, or null if the persistence is not set or the file does not exist.
+     * @return Persisted data, or null if the persistence is not set, the file does not exist or
+     * it is corrupt.
      */
-    protected String loadData(File file) {
-        String persistedData = null;
+    protected byte[] loadData(File file) {
+        byte[] persistedData = null;
 
         if (this.getPersistence() != null) {
             if (file != null) {
-                persistedData = this.getPersistence().load(file);
-                if ((persistedData != null) && (persistedData.isEmpty())) {
+                persistedData = this.getPersistence().loadBytes(file);
+                if ((persistedData != null) && (persistedData.length == 0)) {
                     this.getPersistence().deleteFile(file);
                 }
             }
@@ -252,25 +440,48 @@ public class Sender {
      * @param connection   The connection containing the response.
      * @param responseCode The response code from the connection.
      * @param payload      the payload which generated this response
-     * @param fileToSend   reference to the file we want to send
+     * @param filesToSend  references to the files we want to send
+     * @deprecated Uploads stream the payload from the files and never hold it in memory, so this
+     * callback is no longer called by the sender. Override
+     * {@link #onResponse(HttpURLConnection, int, long, File...)} instead.
+     */
+    @Deprecated
+    protected void onResponse(HttpURLConnection connection, int responseCode, byte[] payload, File...
+            filesToSend) {
+        onResponse(connection, responseCode, payload.length, filesToSend);
+    }
+
+    /**
+     * Callback for the http response from the sender.
+     *
+     * @param connection    The connection containing the response.
+     * @param responseCode  The response code from the connection.
+     * @param contentLength the length of the payload which generated this response
+     * @param filesToSend   references to the files we want to send
      */
-    protected void onResponse(HttpsURLConnection connection, int responseCode, String payload, File
-            fileToSend) {
+    protected void onResponse(HttpURLConnection connection, int responseCode, long contentLength, File... filesToSend) {
         // TODO Remove possible redundancy between response code and connection which also provides the same response code.
-        // TODO This looks like a weird solution to keep the reference to the payload and the sent file.
         mRequestCount.getAndDecrement();
         HockeyLog.debug(TAG, "response code " + Integer.toString(responseCode));
+        PipelineCounters.getInstance().recordUploadResult(responseCode, isExpected(responseCode));
 
         boolean isRecoverableError = isRecoverableError(responseCode);
         if (isRecoverableError) {
-            HockeyLog.debug(TAG, "Recoverable error (probably a server error), persisting data:\n" + payload);
+            HockeyLog.debug(TAG, "Recoverable error (probably a server error), persisting " + contentLength + " bytes of data.");
             if (this.getPersistence() != null) {
-                this.getPersistence().makeAvailable(fileToSend);
+                makeAvailable(filesToSend);
             }
         } else {
             //delete in case of success or unrecoverable errors
             if (this.getPersistence() != null) {
-                this.getPersistence().deleteFile(fileToSend);
+                boolean acknowledged = isExpected(responseCode);
+                for (File file : filesToSend) {
+                    if (acknowledged) {
+                        this.getPersistence().acknowledge(file);
+                    } else {
+                        this.getPersistence().deleteFile(file);
+                    }
+                }
             }
 
             //trigger send next file or log unexpected responses
@@ -284,7 +495,6 @@ public class Sender {
                 } catch (IOException e) {
                     HockeyLog.error(TAG, "Could not close input stream", e);
                 }
-                triggerSending();
             } else {
                 this.onUnexpected(connection, responseCode, builder);
             }
@@ -325,7 +535,7 @@ public class Sender {
      * @param responseCode The response code from the connection.
      * @param builder      A string builder for storing the response.
      */
-    protected void onUnexpected(HttpsURLConnection connection, int responseCode, StringBuilder
+    protected void onUnexpected(HttpURLConnection connection, int responseCode, StringBuilder
             builder) {
         String message = String.format(Locale.ROOT, "Unexpected response code: %d", responseCode);
         builder.append(message);
@@ -343,38 +553,102 @@ public class Sender {
      * Log information about request/connection/payload to LogCat
      *
      * @param connection the connection
-     * @param payload    the payload of telemetry data
+     * @param batch      the batch of telemetry data to send
      */
-    private void logRequest(HttpsURLConnection connection, String payload) throws IOException, SecurityException {
+    private void logRequest(HttpURLConnection connection, UploadBatch batch) throws IOException, SecurityException {
         // TODO Rename this to reflect the true nature of this method: Sending the payload
-        Writer writer = null;
+        OutputStream outputStream = null;
         try {
-            if (connection != null && payload != null) {
-                HockeyLog.debug(TAG, "Sending payload:\n" + payload);
+            if (connection != null) {
+                HockeyLog.debug(TAG, "Sending payload of " + batch.getContentLength() + " bytes");
                 HockeyLog.debug(TAG, "Using URL:" + connection.getURL().toString());
+                if (batch.isCompressed()) {
+                    // Compressed once when it was persisted
+                    connection.addRequestProperty("Content-Encoding", "gzip");
+                }
+                // The length is known up front, so the connection does not buffer the body.
+                connection.setFixedLengthStreamingMode((int) batch.getContentLength());
                 //the following 3 lines actually appends the payload to the connection
-                writer = getWriter(connection);
-                writer.write(payload);
-                writer.flush();
+                outputStream = getOutputStream(connection);
+                writePayload(outputStream, batch);
+                outputStream.flush();
             }
         } finally {
-            if (writer != null) {
+            if (outputStream != null) {
                 try {
-                    writer.close();
+                    outputStream.close();
                 } catch (IOException e) {
-                    HockeyLog.error(TAG, "Couldn't close writer with: " + e.toString());
+                    HockeyLog.error(TAG, "Couldn't close output stream with: " + e.toString());
                 }
             }
         }
     }
 
+    /**
+     * Writes the payload of a batch to a stream. Files are streamed through a transfer buffer,
+     * so the memory needed does not depend on the size of the batch. Joined gzip members are
+     * written without the end of every member and the header of all but the first member.
+     *
+     * @param out   the stream to write to
+     * @param batch the batch to write
+     * @throws IOException if a file could not be read, or the stream failed
+     */
+    private void writePayload(OutputStream out, UploadBatch batch) throws IOException {
+        if (batch.mPayload != null) {
+            out.write(batch.mPayload);
+            return;
+        }
+        Persistence persistence = getPersistence();
+        if (persistence == null) {
+            throw new IOException("Persistence is not available");
+        }
+        byte[] buffer = acquireTransferBuffer();
+        try {
+            for (int i = 0; i < batch.mFiles.length; i++) {
+                if (batch.mEnd == null) {
+                    if (i > 0) {
+                        out.write(SEPARATOR);
+                    }
+                    persistence.writePayload(batch.mFiles[i], out, buffer, 0, Long.MAX_VALUE);
+                } else {
+                    long offset = i > 0 ? GzipCodec.HEADER_SIZE : 0;
+                    if (i > 0) {
+                        out.write(GzipCodec.SEPARATOR_BLOCK);
+                    }
+                    persistence.writePayload(batch.mFiles[i], out, buffer, offset,
+                            batch.mPayloadLengths[i] - GzipCodec.END_SIZE - offset);
+                }
+            }
+            if (batch.mEnd != null) {
+                out.write(batch.mEnd);
+            }
+        } finally {
+            releaseTransferBuffer(buffer);
+        }
+    }
+
+    private byte[] acquireTransferBuffer() {
+        synchronized (mTransferBuffers) {
+            byte[] buffer = mTransferBuffers.poll();
+            return buffer != null ? buffer : new byte[TRANSFER_BUFFER_SIZE];
+        }
+    }
+
+    private void releaseTransferBuffer(byte[] buffer) {
+        synchronized (mTransferBuffers) {
+            if (mTransferBuffers.size() < mUploadScheduler.getMaxParallelUploads()) {
+                mTransferBuffers.push(buffer);
+            }
+        }
+    }
+
     /**
      * Reads the response from a connection.
      *
      * @param connection the connection which will read the response
      * @param builder    a string builder for storing the response
      */
-    protected void readResponse(HttpsURLConnection connection, StringBuilder builder) {
+    protected void readResponse(HttpURLConnection connection, StringBuilder builder) {
         String result;
         StringBuilder buffer = new StringBuilder();
         InputStream inputStream = null;
@@ -417,24 +691,14 @@ public class Sender {
     }
 
     /**
-     * Gets a writer from the connection stream (allows for test hooks into the write stream)
+     * Gets the output stream of the connection (allows for test hooks into the write stream)
      *
-     * @param connection the connection to which the stream will be flushed
-     * @return a writer for the given connection stream
-     * @throws java.io.IOException Exception thrown by GZIP (used in SDK 19+)
-     */
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    protected Writer getWriter(HttpsURLConnection connection) throws IOException {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            // GZIP if we are running SDK 19 or higher
-            connection.addRequestProperty("Content-Encoding", "gzip");
-            connection.setRequestProperty("Content-Type", "application/x-json-stream");
-            GZIPOutputStream gzip = new GZIPOutputStream(connection.getOutputStream(), true);
-            return new OutputStreamWriter(gzip, "UTF-8");
-        } else {
-            // no GZIP for older devices
-            return new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-        }
+     * @param connection the connection to which the payload will be written
+     * @return the output stream of the connection
+     * @throws java.io.IOException if the output stream cannot be created
+     */
+    protected OutputStream getOutputStream(HttpURLConnection connection) throws IOException {
+        return connection.getOutputStream();
     }
 
     protected Persistence getPersistence() {
@@ -454,6 +718,24 @@ public class Sender {
         mWeakPersistence = new WeakReference<>(persistence);
     }
 
+    /**
+     * Gets the scheduler running the uploads.
+     *
+     * @return The upload scheduler.
+     */
+    UploadScheduler getUploadScheduler() {
+        return mUploadScheduler;
+    }
+
+    /**
+     * Gets the recovery uploading the backlog.
+     *
+     * @return The backlog recovery.
+     */
+    BacklogRecovery getBacklogRecovery() {
+        return mBacklogRecovery;
+    }
+
     /**
      * Getter for requestCount. Important for unit testing.
      *
@@ -463,6 +745,38 @@ public class Sender {
         return mRequestCount.get();
     }
 
+    /**
+     * Gets the URL uploads are sent to.
+     *
+     * @return The custom server URL if set, the default endpoint otherwise.
+     */
+    String getEndpointURL() {
+        String customServerURL = getCustomServerURL();
+        return customServerURL != null ? customServerURL : DEFAULT_ENDPOINT_URL;
+    }
+
+    /**
+     * Gets the backoff and circuit breaker for uploads, restoring its state on first use.
+     *
+     * @return The upload backoff.
+     */
+    synchronized UploadBackoff getUploadBackoff() {
+        if (mUploadBackoff == null) {
+            Persistence persistence = getPersistence();
+            mUploadBackoff = new UploadBackoff(persistence != null ? persistence.getUploadBackoffFile() : null);
+        }
+        return mUploadBackoff;
+    }
+
+    /**
+     * Sets the backoff and circuit breaker for uploads (enables dependency injection).
+     *
+     * @param uploadBackoff the upload backoff to use
+     */
+    synchronized void setUploadBackoff(UploadBackoff uploadBackoff) {
+        mUploadBackoff = uploadBackoff;
+    }
+
     protected String getCustomServerURL() {
         return mCustomServerURL;
     }
@@ -475,4 +789,85 @@ public class Sender {
     protected void setCustomServerURL(String customServerURL) {
         mCustomServerURL = customServerURL;
     }
+
+    /**
+     * Files combined into one request.
+     */
+    static class UploadBatch {
+
+        private final File[] mFiles;
+        private final long[] mPayloadLengths;
+        private final byte[] mPayload;
+        private final boolean mCompressed;
+
+        /**
+         * End of the single gzip member the files are joined into, null if the files are not
+         * joined.
+         */
+        private final byte[] mEnd;
+        private final long mContentLength;
+        private final boolean mExhausted;
+
+        /**
+         * Creates a batch sending data which has already been loaded.
+         */
+        UploadBatch(File[] files, byte[] payload, boolean exhausted) {
+            mFiles = files;
+            mPayloadLengths = null;
+            mPayload = payload;
+            mCompressed = GzipCodec.isCompressed(payload, payload.length);
+            mEnd = null;
+            mContentLength = payload.length;
+            mExhausted = exhausted;
+        }
+
+        /**
+         * Creates a batch streaming the payloads of the files when it is sent.
+         */
+        UploadBatch(File[] files, long[] payloadLengths, boolean compressed, byte[] end, long contentLength,
+                    boolean exhausted) {
+            mFiles = files;
+            mPayloadLengths = payloadLengths;
+            mPayload = null;
+            mCompressed = compressed;
+            mEnd = end;
+            mContentLength = contentLength;
+            mExhausted = exhausted;
+        }
+
+        /**
+         * @return The number of files in this batch.
+         */
+        int getFileCount() {
+            return mFiles.length;
+        }
+
+        /**
+         * @return The combined content of the files, null if it is streamed from the files.
+         */
+        byte[] getPayload() {
+            return mPayload;
+        }
+
+        /**
+         * @return The number of bytes sent for this batch.
+         */
+        long getContentLength() {
+            return mContentLength;
+        }
+
+        /**
+         * @return True if the payload is gzip encoded.
+         */
+        boolean isCompressed() {
+            return mCompressed;
+        }
+
+        /**
+         * @return True if no further files were available when the batch was assembled.
+         */
+        boolean isExhausted() {
+            return mExhausted;
+        }
+    }
 }
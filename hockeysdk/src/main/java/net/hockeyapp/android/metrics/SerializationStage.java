@@ -0,0 +1,290 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Base;
+import net.hockeyapp.android.utils.AsyncTaskUtils;
+import net.hockeyapp.android.utils.HockeyLog;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Pipeline stage between the public tracking API and the channel. Tracking only captures the
+ * telemetry data and a timestamp on the caller thread, all captured items are then turned into
+ * envelopes and serialized in batches on a single background thread before they are handed to
+ * the channel. Items are processed in the order they have been submitted.
+ * The stage records how long items wait for the serializer and how long serialization takes.
+ */
+class SerializationStage {
+
+    /**
+     * Telemetry data which is reused once it has been serialized.
+     */
+    interface Recyclable {
+
+        /**
+         * Called on the serializer thread after the data has been serialized or dropped.
+         */
+        void recycle();
+    }
+
+    private static final String TAG = "HA-SerializationStage";
+
+    /**
+     * Maximum number of captured items waiting for serialization.
+     */
+    static final int MAX_PENDING_COUNT = 512;
+
+    /**
+     * Maximum number of items serialized in one pass before the pending queue is checked again.
+     */
+    static final int MAX_SERIALIZATION_BATCH_COUNT = 64;
+
+    /**
+     * The channel receiving the serialized items.
+     */
+    private final Channel mChannel;
+
+    /**
+     * Executor running the serializer, null to use the scheduler shared by the SDK.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Items captured on the caller thread, waiting for serialization.
+     */
+    private final RingBuffer<CapturedItem> mPending;
+
+    /**
+     * Reusable array the pending items are drained into. Only accessed while holding its own monitor.
+     */
+    private final CapturedItem[] mBatch;
+
+    /**
+     * Whether a serializer run is scheduled on the executor.
+     */
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+    /**
+     * Time captured items spend waiting for the serializer.
+     */
+    private final Latency mQueueLatency = new Latency();
+
+    /**
+     * Time spent creating, serializing and enqueueing an envelope.
+     */
+    private final Latency mSerializationLatency = new Latency();
+
+    /**
+     * Task draining the pending items on the executor.
+     */
+    private final Runnable mDrainTask = new Runnable() {
+
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            drain();
+        }
+    };
+
+    /**
+     * Creates and initializes a new instance which serializes on the scheduler shared by the SDK,
+     * see {@link AsyncTaskUtils#getScheduler()}.
+     *
+     * @param channel The channel receiving the serialized items.
+     */
+    SerializationStage(Channel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * Creates and initializes a new instance.
+     *
+     * @param channel  The channel receiving the serialized items.
+     * @param executor Executor to run the serializer on, must not run tasks concurrently to keep
+     *                 the benefit of batching. Null to use the scheduler shared by the SDK.
+     */
+    SerializationStage(Channel channel, Executor executor) {
+        mChannel = channel;
+        mExecutor = executor;
+        mPending = new RingBuffer<>(MAX_PENDING_COUNT, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        mBatch = new CapturedItem[MAX_SERIALIZATION_BATCH_COUNT];
+    }
+
+    /**
+     * Captures telemetry data for serialization. Cheap enough to be called on any thread.
+     *
+     * @param data The telemetry data to serialize.
+     * @return True if the data was accepted, false if too many items are waiting for serialization.
+     */
+    boolean submit(Base data) {
+        return submit(data, EventSampler.FULL_SAMPLE_RATE);
+    }
+
+    /**
+     * Captures sampled telemetry data for serialization. Cheap enough to be called on any thread.
+     *
+     * @param data       The telemetry data to serialize.
+     * @param sampleRate The percentage of items of this kind which are kept.
+     * @return True if the data was accepted, false if too many items are waiting for serialization.
+     */
+    boolean submit(Base data, int sampleRate) {
+        if (data == null) {
+            return false;
+        }
+        if (!mPending.offer(new CapturedItem(data, System.currentTimeMillis(), System.nanoTime(), sampleRate))) {
+            HockeyLog.warn(TAG, "Too many items waiting for serialization, dropping telemetry.");
+            return false;
+        }
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            try {
+                Executor executor = mExecutor != null ? mExecutor : AsyncTaskUtils.getScheduler();
+                executor.execute(mDrainTask);
+            } catch (RejectedExecutionException e) {
+                mDrainScheduled.set(false);
+                HockeyLog.error(TAG, "Could not serialize telemetry. Executor rejected task.", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serializes all pending items on the calling thread and synchronizes the channel with the
+     * persistence afterwards. Used if the data has to be on disk as soon as possible.
+     */
+    void flush() {
+        drain();
+        mChannel.synchronize();
+    }
+
+    /**
+     * Serializes all pending items and forwards them to the channel.
+     */
+    void drain() {
+        synchronized (mBatch) {
+            int count;
+            while ((count = mPending.drainTo(mBatch)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    process(mBatch[i]);
+                    mBatch[i] = null;
+                }
+            }
+        }
+    }
+
+    private void process(CapturedItem item) {
+        long start = System.nanoTime();
+        mQueueLatency.record(start - item.mCaptureNanos);
+        try {
+            mChannel.enqueueData(item.mData, item.mTimestamp, item.mSampleRate);
+        } catch (RuntimeException e) {
+            HockeyLog.error(TAG, "Could not serialize telemetry.", e);
+            PipelineCounters.getInstance().recordDropped(1);
+        } finally {
+            if (item.mData instanceof Recyclable) {
+                ((Recyclable) item.mData).recycle();
+            }
+        }
+        long duration = System.nanoTime() - start;
+        mSerializationLatency.record(duration);
+        PipelineCounters.getInstance().recordSerialization(duration);
+    }
+
+    /**
+     * Gets the number of items waiting for serialization.
+     *
+     * @return The number of pending items.
+     */
+    int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Gets the number of items discarded because too many items were waiting for serialization.
+     *
+     * @return The number of dropped items.
+     */
+    long getDroppedCount() {
+        return mPending.getDroppedCount();
+    }
+
+    /**
+     * Gets the latency between capturing an item and the start of its serialization.
+     *
+     * @return The latency of the capture stage.
+     */
+    Latency getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    /**
+     * Gets the time spent creating, serializing and enqueueing envelopes.
+     *
+     * @return The latency of the serialization stage.
+     */
+    Latency getSerializationLatency() {
+        return mSerializationLatency;
+    }
+
+    /**
+     * Telemetry data captured on the caller thread.
+     */
+    private static class CapturedItem {
+
+        private final Base mData;
+        private final long mTimestamp;
+        private final long mCaptureNanos;
+        private final int mSampleRate;
+
+        CapturedItem(Base data, long timestamp, long captureNanos, int sampleRate) {
+            mData = data;
+            mTimestamp = timestamp;
+            mCaptureNanos = captureNanos;
+            mSampleRate = sampleRate;
+        }
+    }
+
+    /**
+     * Aggregated latency measurements of a pipeline stage.
+     */
+    static class Latency {
+
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = mMaxNanos.get();
+            } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+        }
+
+        /**
+         * @return The number of measurements.
+         */
+        long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * @return The average latency in nanoseconds, 0 if nothing was measured yet.
+         */
+        long getAverageNanos() {
+            long count = mCount.get();
+            return count > 0 ? mTotalNanos.get() / count : 0;
+        }
+
+        /**
+         * @return The highest latency in nanoseconds.
+         */
+        long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+    }
+}
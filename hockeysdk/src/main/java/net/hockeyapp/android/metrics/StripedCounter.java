@@ -0,0 +1,68 @@
+package net.hockeyapp.android.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Counter which spreads concurrent updates over several cells, similar to LongAdder, which is
+ * not available on all supported API levels. Each thread updates the cell picked by its id, so
+ * threads counting at the same time rarely contend for the same cache line. Reading the sum
+ * does not block writers, it is not an atomic snapshot while updates are in progress.
+ */
+final class StripedCounter {
+
+    /**
+     * Maximum number of cells, more do not pay off on mobile devices.
+     */
+    private static final int MAX_STRIPE_COUNT = 8;
+
+    /**
+     * Distance between two cells in longs, so every cell lives on its own cache line.
+     */
+    private static final int PADDING = 8;
+
+    private static final int STRIPE_COUNT = stripeCount(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPE_COUNT * PADDING);
+
+    /**
+     * Adds one to the counter.
+     */
+    void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds a value to the counter.
+     *
+     * @param value The value to add.
+     */
+    void add(long value) {
+        long id = Thread.currentThread().getId();
+        mCells.getAndAdd((int) ((id ^ (id >>> 16)) & (STRIPE_COUNT - 1)) * PADDING, value);
+    }
+
+    /**
+     * @return The sum of all cells.
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < mCells.length(); i += PADDING) {
+            sum += mCells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return The smallest power of two which is at least the number of processors, limited to
+     * {@link #MAX_STRIPE_COUNT}.
+     */
+    static int stripeCount(int processors) {
+        int count = 1;
+        while (count < processors && count < MAX_STRIPE_COUNT) {
+            count <<= 1;
+        }
+        return count;
+    }
+}
@@ -23,6 +23,7 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <h3>Description</h3>
@@ -89,6 +90,16 @@ class TelemetryContext {
      */
     private String mPackageName;
 
+    /**
+     * Version of the context, incremented whenever a context value changes.
+     */
+    private final AtomicInteger mVersion = new AtomicInteger();
+
+    /**
+     * Snapshot of the context tags, shared by all envelopes until the context changes.
+     */
+    private volatile ContextTags mContextTags;
+
     /**
      * Constructs a new INSTANCE of TelemetryContext.
      */
@@ -265,7 +276,9 @@ class TelemetryContext {
                 }
             }
             resolutionString = String.valueOf(height) + "x" + String.valueOf(width);
-            setScreenResolution(resolutionString);
+            if (!resolutionString.equals(getScreenResolution())) {
+                setScreenResolution(resolutionString);
+            }
         }
     }
 
@@ -293,7 +306,39 @@ class TelemetryContext {
         return mPackageName;
     }
 
+    /**
+     * Gets the context tags.
+     *
+     * @return An unmodifiable map of the current context tags.
+     */
     protected Map<String, String> getContextTags() {
+        return getContextTagsSnapshot().getTags();
+    }
+
+    /**
+     * Gets a snapshot of the context tags. The snapshot is only rebuilt if a context value
+     * changed since it was taken, otherwise the same instance is returned.
+     *
+     * @return The current snapshot of the context tags.
+     */
+    protected ContextTags getContextTagsSnapshot() {
+        int version = mVersion.get();
+        ContextTags contextTags = mContextTags;
+        if (contextTags == null || contextTags.getVersion() != version) {
+            contextTags = new ContextTags(version, collectContextTags());
+            mContextTags = contextTags;
+        }
+        return contextTags;
+    }
+
+    /**
+     * Marks the context as changed, so the context tags get rebuilt on their next use.
+     */
+    private void contextChanged() {
+        mVersion.incrementAndGet();
+    }
+
+    private Map<String, String> collectContextTags() {
         Map<String, String> contextTags = new LinkedHashMap<>();
 
         synchronized (mApplication) {
@@ -336,6 +381,7 @@ class TelemetryContext {
     public void setScreenResolution(String screenResolution) {
         synchronized (mDevice) {
             mDevice.setScreenResolution(screenResolution);
+            contextChanged();
         }
     }
 
@@ -348,6 +394,7 @@ class TelemetryContext {
     public void setAppVersion(String appVersion) {
         synchronized (mApplication) {
             mApplication.setVer(appVersion);
+            contextChanged();
         }
     }
 
@@ -360,6 +407,7 @@ class TelemetryContext {
     public void setAnonymousUserId(String userId) {
         synchronized (mUser) {
             mUser.setId(userId);
+            contextChanged();
         }
     }
 
@@ -372,6 +420,7 @@ class TelemetryContext {
     public void setSdkVersion(String sdkVersion) {
         synchronized (mInternal) {
             mInternal.setSdkVersion(sdkVersion);
+            contextChanged();
         }
     }
 
@@ -384,6 +433,7 @@ class TelemetryContext {
     public void setSessionId(String sessionId) {
         synchronized (mSession) {
             mSession.setId(sessionId);
+            contextChanged();
         }
     }
 
@@ -396,6 +446,7 @@ class TelemetryContext {
     public void setIsFirstSession(String isFirst) {
         synchronized (mSession) {
             mSession.setIsFirst(isFirst);
+            contextChanged();
         }
     }
 
@@ -408,6 +459,7 @@ class TelemetryContext {
     public void setIsNewSession(String isNewSession) {
         synchronized (mSession) {
             mSession.setIsNew(isNewSession);
+            contextChanged();
         }
     }
 
@@ -420,6 +472,7 @@ class TelemetryContext {
     public void setOsVersion(String osVersion) {
         synchronized (mDevice) {
             mDevice.setOsVersion(osVersion);
+            contextChanged();
         }
     }
 
@@ -432,6 +485,7 @@ class TelemetryContext {
     public void setOsName(String osName) {
         synchronized (mDevice) {
             mDevice.setOs(osName);
+            contextChanged();
         }
     }
 
@@ -444,6 +498,7 @@ class TelemetryContext {
     public void setDeviceModel(String deviceModel) {
         synchronized (mDevice) {
             mDevice.setModel(deviceModel);
+            contextChanged();
         }
     }
 
@@ -456,6 +511,7 @@ class TelemetryContext {
     public void setDeviceOemName(String deviceOemName) {
         synchronized (mDevice) {
             mDevice.setOemName(deviceOemName);
+            contextChanged();
         }
     }
 
@@ -468,6 +524,7 @@ class TelemetryContext {
     public void setOsLocale(String osLocale) {
         synchronized (mDevice) {
             mDevice.setLocale(osLocale);
+            contextChanged();
         }
     }
 
@@ -480,6 +537,7 @@ class TelemetryContext {
     public void setOsLanguage(String osLanguage) {
         synchronized (mDevice) {
             mDevice.setLanguage(osLanguage);
+            contextChanged();
         }
     }
 
@@ -490,6 +548,7 @@ class TelemetryContext {
     public void setDeviceId(String deviceId) {
         synchronized (mDevice) {
             mDevice.setId(deviceId);
+            contextChanged();
         }
     }
 
@@ -500,6 +559,7 @@ class TelemetryContext {
     public void setDeviceType(String deviceType) {
         synchronized (mDevice) {
             mDevice.setType(deviceType);
+            contextChanged();
         }
     }
 }
@@ -0,0 +1,226 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.HockeyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Write-ahead journal of the items waiting in the channel queue, kept in a memory-mapped file.
+ * Appending an item only copies it into the mapping, the operating system writes the pages back
+ * to the file even if the process gets killed, so the items can be recovered on the next launch.
+ * Items which have been persisted are discarded from the front of the journal.
+ * Every record is the length of the item, a CRC32 of the item and the UTF-8 encoded item. The
+ * records are followed by a zero length, recovery stops at the first record which is incomplete
+ * or does not match its checksum.
+ */
+final class TelemetryJournal {
+
+    private static final String TAG = "HA-TelemetryJournal";
+
+    /**
+     * Default size of the journal file in bytes.
+     */
+    static final int DEFAULT_CAPACITY = 512 * 1024;
+
+    /**
+     * Marks an initialized journal file, "HAJ1".
+     */
+    private static final int MAGIC = 0x48414a31;
+
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * Size of the length and checksum preceding every item.
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mBuffer;
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Offset of the terminator following the last record.
+     */
+    private int mPosition = HEADER_SIZE;
+
+    private TelemetryJournal(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+        mFile = file;
+        mRandomAccessFile = randomAccessFile;
+        mBuffer = buffer;
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Opens a journal file, creating it if necessary. Records left by a previous process are
+     * kept and can be read with {@link #recover()}.
+     *
+     * @param file     The journal file.
+     * @param capacity The size of the file in bytes.
+     * @return The journal.
+     * @throws IOException if the file could not be mapped.
+     */
+    static TelemetryJournal open(File file, int capacity) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() != capacity) {
+                randomAccessFile.setLength(capacity);
+            }
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            TelemetryJournal journal = new TelemetryJournal(file, randomAccessFile, buffer);
+            if (buffer.getInt(0) != MAGIC) {
+                buffer.putInt(HEADER_SIZE, 0);
+                buffer.putInt(0, MAGIC);
+            }
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the valid records of the journal. New records are appended after them.
+     *
+     * @return The recovered items, oldest first.
+     */
+    synchronized List<String> recover() {
+        List<String> items = new ArrayList<>();
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= mBuffer.capacity()) {
+            int length = mBuffer.getInt(position);
+            if (length <= 0 || length > mBuffer.capacity() - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+            byte[] data = new byte[length];
+            mBuffer.position(position + RECORD_HEADER_SIZE);
+            mBuffer.get(data);
+            mCrc.reset();
+            mCrc.update(data, 0, length);
+            if ((int) mCrc.getValue() != mBuffer.getInt(position + 4)) {
+                HockeyLog.warn(TAG, "Journal record at " + position + " is corrupt, dropping the rest of the journal.");
+                break;
+            }
+            try {
+                items.add(new String(data, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        mPosition = position;
+        terminate(position);
+        return items;
+    }
+
+    /**
+     * Appends an item to the journal.
+     *
+     * @param item The serialized item.
+     * @return True if the item has been journaled, false if the journal is full.
+     */
+    synchronized boolean append(String item) {
+        byte[] data;
+        try {
+            data = item.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return false;
+        }
+        int end = mPosition + RECORD_HEADER_SIZE + data.length;
+        if (end + 4 > mBuffer.capacity()) {
+            return false;
+        }
+        // The record only becomes valid once its length is written.
+        terminate(end);
+        mBuffer.position(mPosition + RECORD_HEADER_SIZE);
+        mBuffer.put(data);
+        mCrc.reset();
+        mCrc.update(data, 0, data.length);
+        mBuffer.putInt(mPosition + 4, (int) mCrc.getValue());
+        mBuffer.putInt(mPosition, data.length);
+        mPosition = end;
+        return true;
+    }
+
+    /**
+     * @return The offset after the last record, to be passed to {@link #discard(int)}.
+     */
+    synchronized int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Discards all records before an offset, moving the records after it to the front.
+     *
+     * @param position An offset returned by {@link #getPosition()} since the last discard.
+     */
+    synchronized void discard(int position) {
+        if (position <= HEADER_SIZE || position > mPosition) {
+            return;
+        }
+        int remaining = mPosition - position;
+        if (remaining == 0) {
+            terminate(HEADER_SIZE);
+        } else {
+            int firstLength = mBuffer.getInt(position);
+            byte[] records = new byte[remaining - 4];
+            mBuffer.position(position + 4);
+            mBuffer.get(records);
+            terminate(HEADER_SIZE);
+            mBuffer.position(HEADER_SIZE + 4);
+            mBuffer.put(records);
+            terminate(HEADER_SIZE + remaining);
+            // The length of the first record makes the moved records valid again.
+            mBuffer.putInt(HEADER_SIZE, firstLength);
+        }
+        mPosition = HEADER_SIZE + remaining;
+    }
+
+    /**
+     * Forces the journal to the storage device, so it also survives a crash of the device.
+     */
+    synchronized void force() {
+        mBuffer.force();
+    }
+
+    /**
+     * Forces and closes the journal. It must not be used afterwards.
+     *
+     * @param delete Whether to delete the journal file.
+     */
+    synchronized void close(boolean delete) {
+        try {
+            mBuffer.force();
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            HockeyLog.warn(TAG, "Failed to close telemetry journal", e);
+        }
+        if (delete && !mFile.delete()) {
+            HockeyLog.warn(TAG, "Failed to delete telemetry journal");
+        }
+    }
+
+    /**
+     * @return The journal file.
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    private void terminate(int position) {
+        if (position + 4 <= mBuffer.capacity()) {
+            mBuffer.putInt(position, 0);
+        }
+    }
+}
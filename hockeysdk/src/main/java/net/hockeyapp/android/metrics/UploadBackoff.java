@@ -0,0 +1,321 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.HockeyLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Decides when uploads to an endpoint may be attempted. After a failed upload, further attempts
+ * are delayed with exponential backoff and jitter, so devices on a flaky network do not retry
+ * immediately and do not all retry at the same time. After {@link #FAILURE_THRESHOLD}
+ * consecutive failures the circuit opens and no uploads are attempted for
+ * {@link #PROBE_INTERVAL}. Afterwards a single probe upload is allowed: if it succeeds the
+ * circuit closes again, otherwise it stays open for another interval.
+ * The state is kept per endpoint and written to a file, so it survives process restarts.
+ */
+class UploadBackoff {
+
+    /**
+     * Source of the current time, replaceable for testing.
+     */
+    interface Clock {
+
+        /**
+         * @return The current time in milliseconds since the epoch.
+         */
+        long currentTimeMillis();
+    }
+
+    /**
+     * State of the circuit of an endpoint.
+     */
+    enum State {
+        /**
+         * Uploads are attempted, possibly delayed by backoff.
+         */
+        CLOSED,
+        /**
+         * Uploads are not attempted until the probe interval has passed.
+         */
+        OPEN,
+        /**
+         * A single probe upload is allowed to check whether the endpoint recovered.
+         */
+        HALF_OPEN
+    }
+
+    private static final String TAG = "HA-UploadBackoff";
+
+    /**
+     * Delay in milliseconds after the first failure.
+     */
+    static final long INITIAL_BACKOFF = 5 * 1000;
+
+    /**
+     * Maximum delay in milliseconds between two attempts while the circuit is closed.
+     */
+    static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+    /**
+     * Number of consecutive failures which open the circuit.
+     */
+    static final int FAILURE_THRESHOLD = 5;
+
+    /**
+     * Time in milliseconds the circuit stays open before a probe is allowed.
+     */
+    static final long PROBE_INTERVAL = 15 * 60 * 1000;
+
+    /**
+     * Clock based on {@link System#currentTimeMillis()}.
+     */
+    static final Clock SYSTEM_CLOCK = new Clock() {
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final File mStateFile;
+    private final Clock mClock;
+    private final Random mRandom;
+    private final Map<String, EndpointState> mEndpoints = new HashMap<>();
+
+    /**
+     * Creates an instance using the system clock.
+     *
+     * @param stateFile File to keep the state in, or null to keep it in memory only.
+     */
+    UploadBackoff(File stateFile) {
+        this(stateFile, SYSTEM_CLOCK, new Random());
+    }
+
+    /**
+     * Creates an instance and restores the state saved in the given file.
+     *
+     * @param stateFile File to keep the state in, or null to keep it in memory only.
+     * @param clock     Source of the current time.
+     * @param random    Source of the jitter.
+     */
+    UploadBackoff(File stateFile, Clock clock, Random random) {
+        mStateFile = stateFile;
+        mClock = clock;
+        mRandom = random;
+        load();
+    }
+
+    /**
+     * Checks whether an upload to the endpoint may be attempted now. Every successful call has
+     * to be followed by a call to {@link #onSuccess(String)} or {@link #onFailure(String)}.
+     *
+     * @param endpoint The endpoint to upload to.
+     * @return True if the upload may be attempted.
+     */
+    synchronized boolean tryAcquire(String endpoint) {
+        EndpointState state = mEndpoints.get(endpoint);
+        if (state == null) {
+            return true;
+        }
+        if (mClock.currentTimeMillis() < state.mNextAttemptTime) {
+            return false;
+        }
+        if (state.mOpen) {
+            if (state.mProbing) {
+                return false;
+            }
+            HockeyLog.debug(TAG, "Probing " + endpoint + " after " + state.mFailures + " failures.");
+            state.mProbing = true;
+        }
+        return true;
+    }
+
+    /**
+     * Records a successful upload, resetting backoff and closing the circuit.
+     *
+     * @param endpoint The endpoint the upload went to.
+     */
+    synchronized void onSuccess(String endpoint) {
+        if (mEndpoints.remove(endpoint) != null) {
+            HockeyLog.debug(TAG, "Upload to " + endpoint + " succeeded, resetting backoff.");
+            save();
+        }
+    }
+
+    /**
+     * Records a failed upload and computes when the next attempt may happen.
+     *
+     * @param endpoint The endpoint the upload went to.
+     */
+    synchronized void onFailure(String endpoint) {
+        EndpointState state = mEndpoints.get(endpoint);
+        if (state == null) {
+            state = new EndpointState();
+            mEndpoints.put(endpoint, state);
+        }
+        state.mFailures++;
+        state.mProbing = false;
+        long now = mClock.currentTimeMillis();
+        if (state.mOpen || state.mFailures >= FAILURE_THRESHOLD) {
+            if (!state.mOpen) {
+                HockeyLog.warn(TAG, "Uploads to " + endpoint + " failed " + state.mFailures
+                        + " times in a row, pausing uploads.");
+            }
+            state.mOpen = true;
+            state.mNextAttemptTime = now + PROBE_INTERVAL;
+        } else {
+            state.mNextAttemptTime = now + backoff(state.mFailures);
+        }
+        save();
+    }
+
+    /**
+     * Gets the state of the circuit of an endpoint.
+     *
+     * @param endpoint The endpoint.
+     * @return The current state.
+     */
+    synchronized State getState(String endpoint) {
+        EndpointState state = mEndpoints.get(endpoint);
+        if (state == null || !state.mOpen) {
+            return State.CLOSED;
+        }
+        if (state.mProbing || mClock.currentTimeMillis() >= state.mNextAttemptTime) {
+            return State.HALF_OPEN;
+        }
+        return State.OPEN;
+    }
+
+    /**
+     * Gets the time until the next upload to an endpoint may be attempted.
+     *
+     * @param endpoint The endpoint.
+     * @return The delay in milliseconds, 0 if an upload may be attempted now.
+     */
+    synchronized long getDelay(String endpoint) {
+        EndpointState state = mEndpoints.get(endpoint);
+        if (state == null) {
+            return 0;
+        }
+        return Math.max(0, state.mNextAttemptTime - mClock.currentTimeMillis());
+    }
+
+    /**
+     * @param endpoint The endpoint.
+     * @return The number of consecutive failed uploads to the endpoint.
+     */
+    synchronized int getFailureCount(String endpoint) {
+        EndpointState state = mEndpoints.get(endpoint);
+        return state != null ? state.mFailures : 0;
+    }
+
+    /**
+     * Computes the delay after a number of consecutive failures: the exponential backoff is
+     * capped at {@link #MAX_BACKOFF}, half of it is fixed and the other half is random.
+     */
+    private long backoff(int failures) {
+        long delay = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(failures - 1, 30));
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    private void load() {
+        if (mStateFile == null || !mStateFile.exists()) {
+            return;
+        }
+        long now = mClock.currentTimeMillis();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mStateFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    continue;
+                }
+                EndpointState state = new EndpointState();
+                state.mOpen = Boolean.parseBoolean(fields[1]);
+                state.mFailures = Integer.parseInt(fields[2]);
+                // Do not trust times too far in the future, the clock might have been changed.
+                long maxDelay = state.mOpen ? PROBE_INTERVAL : MAX_BACKOFF;
+                state.mNextAttemptTime = Math.min(Long.parseLong(fields[3]), now + maxDelay);
+                mEndpoints.put(fields[0], state);
+            }
+        } catch (IOException | NumberFormatException e) {
+            HockeyLog.warn(TAG, "Failed to restore upload backoff state", e);
+            mEndpoints.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void save() {
+        if (mStateFile == null) {
+            return;
+        }
+        if (mEndpoints.isEmpty()) {
+            if (mStateFile.exists() && !mStateFile.delete()) {
+                HockeyLog.warn(TAG, "Failed to delete upload backoff state");
+            }
+            return;
+        }
+        File temporaryFile = new File(mStateFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+            for (Map.Entry<String, EndpointState> entry : mEndpoints.entrySet()) {
+                EndpointState state = entry.getValue();
+                writer.write(entry.getKey());
+                writer.write('\t');
+                writer.write(Boolean.toString(state.mOpen));
+                writer.write('\t');
+                writer.write(Integer.toString(state.mFailures));
+                writer.write('\t');
+                writer.write(Long.toString(state.mNextAttemptTime));
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!temporaryFile.renameTo(mStateFile)) {
+                HockeyLog.warn(TAG, "Failed to save upload backoff state");
+            }
+        } catch (IOException e) {
+            HockeyLog.warn(TAG, "Failed to save upload backoff state", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Backoff and circuit state of one endpoint.
+     */
+    private static class EndpointState {
+
+        private int mFailures;
+        private long mNextAttemptTime;
+        private boolean mOpen;
+        private boolean mProbing;
+    }
+}
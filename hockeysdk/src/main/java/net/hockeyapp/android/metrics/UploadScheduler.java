@@ -0,0 +1,251 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.AsyncTaskUtils;
+import net.hockeyapp.android.utils.HockeyLog;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h3>Description</h3>
+ *
+ * Drains the persisted telemetry backlog with a bounded number of concurrent uploads. A pass
+ * starts with a single worker, every worker which finds more data than it can send in one
+ * request starts another worker until the configured parallelism is reached. Workers keep
+ * sending batches until no data is left, so one trigger drains the whole backlog. A worker stops
+ * at the first failed upload, the failed data is picked up again by the next pass.
+ * The duration of each pass, from the first worker starting to the last worker finishing, is
+ * recorded as drain time.
+ * While the {@link BacklogRecovery} drains the backlog at its own pace, the scheduler is paused:
+ * announced data is remembered and picked up once the scheduler is resumed.
+ */
+class UploadScheduler {
+
+    private static final String TAG = "HA-UploadScheduler";
+
+    /**
+     * Default number of uploads running at the same time.
+     */
+    static final int DEFAULT_MAX_PARALLEL_UPLOADS = 3;
+
+    /**
+     * The sender performing the uploads.
+     */
+    private final Sender mSender;
+
+    /**
+     * Number of workers currently running.
+     */
+    private final AtomicInteger mActiveWorkers = new AtomicInteger();
+
+    /**
+     * Whether new data has been announced which running workers may not have seen.
+     */
+    private final AtomicBoolean mRescanRequested = new AtomicBoolean();
+
+    /**
+     * Whether workers must not be started or continue sending.
+     */
+    private final AtomicBoolean mPaused = new AtomicBoolean();
+
+    /**
+     * Number of files and requests successfully sent during the current pass.
+     */
+    private final AtomicInteger mPassFileCount = new AtomicInteger();
+    private final AtomicInteger mPassRequestCount = new AtomicInteger();
+
+    /**
+     * Number of uploads attempted during the current pass, including failed uploads and uploads
+     * refused by the backoff.
+     */
+    private final AtomicInteger mPassAttemptCount = new AtomicInteger();
+
+    private volatile int mMaxParallelUploads = DEFAULT_MAX_PARALLEL_UPLOADS;
+    private volatile long mPassStartNanos;
+    private volatile long mLastDrainTime = -1;
+    private volatile int mLastDrainFileCount;
+    private volatile int mLastDrainRequestCount;
+    private volatile int mLastPassAttemptCount;
+
+    /**
+     * Creates and initializes a new instance.
+     *
+     * @param sender The sender performing the uploads.
+     */
+    UploadScheduler(Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Announces that new data is available. Starts a worker if none is running, otherwise the
+     * running workers will pick up the data.
+     */
+    void schedule() {
+        mRescanRequested.set(true);
+        if (!mPaused.get() && mActiveWorkers.get() == 0) {
+            startWorker();
+        }
+    }
+
+    /**
+     * Pauses or resumes the scheduler. Running workers stop after their current upload. When
+     * resumed, data announced in the meantime is sent.
+     *
+     * @param paused Whether the scheduler is paused.
+     */
+    void setPaused(boolean paused) {
+        mPaused.set(paused);
+        if (!paused && mRescanRequested.get() && mActiveWorkers.get() == 0) {
+            startWorker();
+        }
+    }
+
+    /**
+     * @return True if the scheduler is paused.
+     */
+    boolean isPaused() {
+        return mPaused.get();
+    }
+
+    /**
+     * Starts another worker, unless the maximum number of parallel uploads is reached.
+     *
+     * @return True if a worker has been started.
+     */
+    private boolean startWorker() {
+        int active;
+        do {
+            active = mActiveWorkers.get();
+            if (active >= mMaxParallelUploads) {
+                return false;
+            }
+        } while (!mActiveWorkers.compareAndSet(active, active + 1));
+        if (active == 0) {
+            mPassStartNanos = System.nanoTime();
+            mPassFileCount.set(0);
+            mPassRequestCount.set(0);
+            mPassAttemptCount.set(0);
+        }
+        try {
+            AsyncTaskUtils.execute(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    work();
+                    return null;
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            HockeyLog.error(TAG, "Could not send events. Executor rejected task.", e);
+            onWorkerFinished();
+            return false;
+        }
+    }
+
+    private void work() {
+        try {
+            do {
+                mRescanRequested.set(false);
+                Sender.UploadBatch batch;
+                while (!mPaused.get() && (batch = mSender.nextBatch()) != null) {
+                    if (!batch.isExhausted()) {
+                        // There is more data than fits into one request, get help.
+                        startWorker();
+                    }
+                    mPassAttemptCount.incrementAndGet();
+                    if (!mSender.upload(batch)) {
+                        // Failed files are retried on the next trigger, not within this pass.
+                        return;
+                    }
+                    mPassFileCount.addAndGet(batch.getFileCount());
+                    mPassRequestCount.incrementAndGet();
+                    if (batch.isExhausted()) {
+                        break;
+                    }
+                }
+            } while (!mPaused.get() && mRescanRequested.get());
+        } catch (RuntimeException e) {
+            HockeyLog.error(TAG, "Could not send events.", e);
+        } finally {
+            onWorkerFinished();
+        }
+    }
+
+    private void onWorkerFinished() {
+        if (mActiveWorkers.decrementAndGet() == 0) {
+            int attemptCount = mPassAttemptCount.get();
+            if (attemptCount > 0) {
+                mLastPassAttemptCount = attemptCount;
+            }
+            int requestCount = mPassRequestCount.get();
+            if (requestCount > 0) {
+                mLastDrainFileCount = mPassFileCount.get();
+                mLastDrainRequestCount = requestCount;
+                mLastDrainTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mPassStartNanos);
+                HockeyLog.debug(TAG, "Sent " + mLastDrainFileCount + " files in " + requestCount
+                        + " requests within " + mLastDrainTime + " ms.");
+            }
+            if (mRescanRequested.get() && !mPaused.get()) {
+                // Data was announced while the last worker was about to stop.
+                startWorker();
+            }
+        }
+    }
+
+    int getMaxParallelUploads() {
+        return mMaxParallelUploads;
+    }
+
+    /**
+     * Sets the maximum number of uploads running at the same time.
+     *
+     * @param maxParallelUploads The maximum number of concurrent uploads, at least 1.
+     */
+    void setMaxParallelUploads(int maxParallelUploads) {
+        if (maxParallelUploads < 1) {
+            throw new IllegalArgumentException("maxParallelUploads");
+        }
+        mMaxParallelUploads = maxParallelUploads;
+    }
+
+    /**
+     * @return The number of workers currently uploading.
+     */
+    int getActiveWorkerCount() {
+        return mActiveWorkers.get();
+    }
+
+    /**
+     * @return The time in milliseconds the last completed pass took to drain the backlog, or -1
+     * if no data has been sent yet.
+     */
+    long getLastDrainTime() {
+        return mLastDrainTime;
+    }
+
+    /**
+     * @return The number of files successfully sent during the last completed pass.
+     */
+    int getLastDrainFileCount() {
+        return mLastDrainFileCount;
+    }
+
+    /**
+     * @return The number of requests successfully sent during the last completed pass.
+     */
+    int getLastDrainRequestCount() {
+        return mLastDrainRequestCount;
+    }
+
+    /**
+     * @return The number of uploads attempted during the last pass which attempted any, including
+     * failed uploads and uploads refused by the backoff.
+     */
+    int getLastPassAttemptCount() {
+        return mLastPassAttemptCount;
+    }
+}
@@ -118,20 +118,23 @@ public class Application implements IJsonSerializable, Serializable {
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = "";
         if (!(this.ver == null)) {
-            writer.write(prefix + "\"ai.application.ver\":");
-            writer.write(JsonHelper.convert(this.ver));
+            writer.write(prefix);
+            writer.write("\"ai.application.ver\":");
+            JsonHelper.write(writer, this.ver);
             prefix = ",";
         }
 
         if (!(this.build == null)) {
-            writer.write(prefix + "\"ai.application.build\":");
-            writer.write(JsonHelper.convert(this.build));
+            writer.write(prefix);
+            writer.write("\"ai.application.build\":");
+            JsonHelper.write(writer, this.build);
             prefix = ",";
         }
 
         if (!(this.typeId == null)) {
-            writer.write(prefix + "\"ai.application.typeId\":");
-            writer.write(JsonHelper.convert(this.typeId));
+            writer.write(prefix);
+            writer.write("\"ai.application.typeId\":");
+            JsonHelper.write(writer, this.typeId);
             prefix = ",";
         }
 
@@ -72,8 +72,9 @@ public class Base implements IJsonSerializable {
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = "";
         if (!(this.baseType == null)) {
-            writer.write(prefix + "\"baseType\":");
-            writer.write(JsonHelper.convert(this.baseType));
+            writer.write(prefix);
+            writer.write("\"baseType\":");
+            JsonHelper.write(writer, this.baseType);
             prefix = ",";
         }
 
@@ -44,7 +44,8 @@ public class Data<TDomain extends Domain> extends Base implements ITelemetryData
      */
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = super.serializeContent(writer);
-        writer.write(prefix + "\"baseData\":");
+        writer.write(prefix);
+        writer.write("\"baseData\":");
         JsonHelper.writeJsonSerializable(writer, this.baseData);
         prefix = ",";
 
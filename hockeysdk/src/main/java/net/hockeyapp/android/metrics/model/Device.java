@@ -404,98 +404,114 @@ public class Device implements IJsonSerializable, Serializable {
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = "";
         if (!(this.id == null)) {
-            writer.write(prefix + "\"ai.device.id\":");
-            writer.write(JsonHelper.convert(this.id));
+            writer.write(prefix);
+            writer.write("\"ai.device.id\":");
+            JsonHelper.write(writer, this.id);
             prefix = ",";
         }
 
         if (!(this.ip == null)) {
-            writer.write(prefix + "\"ai.device.ip\":");
-            writer.write(JsonHelper.convert(this.ip));
+            writer.write(prefix);
+            writer.write("\"ai.device.ip\":");
+            JsonHelper.write(writer, this.ip);
             prefix = ",";
         }
 
         if (!(this.language == null)) {
-            writer.write(prefix + "\"ai.device.language\":");
-            writer.write(JsonHelper.convert(this.language));
+            writer.write(prefix);
+            writer.write("\"ai.device.language\":");
+            JsonHelper.write(writer, this.language);
             prefix = ",";
         }
 
         if (!(this.locale == null)) {
-            writer.write(prefix + "\"ai.device.locale\":");
-            writer.write(JsonHelper.convert(this.locale));
+            writer.write(prefix);
+            writer.write("\"ai.device.locale\":");
+            JsonHelper.write(writer, this.locale);
             prefix = ",";
         }
 
         if (!(this.model == null)) {
-            writer.write(prefix + "\"ai.device.model\":");
-            writer.write(JsonHelper.convert(this.model));
+            writer.write(prefix);
+            writer.write("\"ai.device.model\":");
+            JsonHelper.write(writer, this.model);
             prefix = ",";
         }
 
         if (!(this.network == null)) {
-            writer.write(prefix + "\"ai.device.network\":");
-            writer.write(JsonHelper.convert(this.network));
+            writer.write(prefix);
+            writer.write("\"ai.device.network\":");
+            JsonHelper.write(writer, this.network);
             prefix = ",";
         }
 
         if (!(this.networkName == null)) {
-            writer.write(prefix + "\"ai.device.networkName\":");
-            writer.write(JsonHelper.convert(this.networkName));
+            writer.write(prefix);
+            writer.write("\"ai.device.networkName\":");
+            JsonHelper.write(writer, this.networkName);
             prefix = ",";
         }
 
         if (!(this.oemName == null)) {
-            writer.write(prefix + "\"ai.device.oemName\":");
-            writer.write(JsonHelper.convert(this.oemName));
+            writer.write(prefix);
+            writer.write("\"ai.device.oemName\":");
+            JsonHelper.write(writer, this.oemName);
             prefix = ",";
         }
 
         if (!(this.os == null)) {
-            writer.write(prefix + "\"ai.device.os\":");
-            writer.write(JsonHelper.convert(this.os));
+            writer.write(prefix);
+            writer.write("\"ai.device.os\":");
+            JsonHelper.write(writer, this.os);
             prefix = ",";
         }
 
         if (!(this.osVersion == null)) {
-            writer.write(prefix + "\"ai.device.osVersion\":");
-            writer.write(JsonHelper.convert(this.osVersion));
+            writer.write(prefix);
+            writer.write("\"ai.device.osVersion\":");
+            JsonHelper.write(writer, this.osVersion);
             prefix = ",";
         }
 
         if (!(this.roleInstance == null)) {
-            writer.write(prefix + "\"ai.device.roleInstance\":");
-            writer.write(JsonHelper.convert(this.roleInstance));
+            writer.write(prefix);
+            writer.write("\"ai.device.roleInstance\":");
+            JsonHelper.write(writer, this.roleInstance);
             prefix = ",";
         }
 
         if (!(this.roleName == null)) {
-            writer.write(prefix + "\"ai.device.roleName\":");
-            writer.write(JsonHelper.convert(this.roleName));
+            writer.write(prefix);
+            writer.write("\"ai.device.roleName\":");
+            JsonHelper.write(writer, this.roleName);
             prefix = ",";
         }
 
         if (!(this.screenResolution == null)) {
-            writer.write(prefix + "\"ai.device.screenResolution\":");
-            writer.write(JsonHelper.convert(this.screenResolution));
+            writer.write(prefix);
+            writer.write("\"ai.device.screenResolution\":");
+            JsonHelper.write(writer, this.screenResolution);
             prefix = ",";
         }
 
         if (!(this.type == null)) {
-            writer.write(prefix + "\"ai.device.type\":");
-            writer.write(JsonHelper.convert(this.type));
+            writer.write(prefix);
+            writer.write("\"ai.device.type\":");
+            JsonHelper.write(writer, this.type);
             prefix = ",";
         }
 
         if (!(this.machineName == null)) {
-            writer.write(prefix + "\"ai.device.machineName\":");
-            writer.write(JsonHelper.convert(this.machineName));
+            writer.write(prefix);
+            writer.write("\"ai.device.machineName\":");
+            JsonHelper.write(writer, this.machineName);
             prefix = ",";
         }
 
         if (!(this.vmName == null)) {
-            writer.write(prefix + "\"ai.device.vmName\":");
-            writer.write(JsonHelper.convert(this.vmName));
+            writer.write(prefix);
+            writer.write("\"ai.device.vmName\":");
+            JsonHelper.write(writer, this.vmName);
             prefix = ",";
         }
 
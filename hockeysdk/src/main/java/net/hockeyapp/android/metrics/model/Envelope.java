@@ -81,6 +81,11 @@ public class Envelope implements IJsonSerializable {
      */
     private Map<String, String> tags;
 
+    /**
+     * Pre-serialized JSON object of property Tags.
+     */
+    private String serializedTags;
+
     /**
      * Backing field for property Ext.
      */
@@ -286,6 +291,10 @@ public class Envelope implements IJsonSerializable {
     public Map<String, String> getTags() {
         if (this.tags == null) {
             this.tags = new LinkedHashMap<>();
+        } else if (this.serializedTags != null) {
+            // Tags are shared and may be changed by the caller, so take a private copy.
+            this.tags = new LinkedHashMap<>(this.tags);
+            this.serializedTags = null;
         }
         return this.tags;
     }
@@ -295,6 +304,16 @@ public class Envelope implements IJsonSerializable {
      */
     public void setTags(Map<String, String> value) {
         this.tags = value;
+        this.serializedTags = null;
+    }
+
+    /**
+     * Sets the Tags property together with its pre-serialized JSON object, which is written
+     * as is when the envelope gets serialized.
+     */
+    public void setTags(Map<String, String> value, String serializedValue) {
+        this.tags = value;
+        this.serializedTags = value != null ? serializedValue : null;
     }
 
     /**
@@ -352,92 +371,112 @@ public class Envelope implements IJsonSerializable {
      */
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = "";
-        writer.write(prefix + "\"ver\":");
-        writer.write(JsonHelper.convert(this.ver));
+        writer.write(prefix);
+        writer.write("\"ver\":");
+        JsonHelper.write(writer, this.ver);
         prefix = ",";
 
-        writer.write(prefix + "\"name\":");
-        writer.write(JsonHelper.convert(this.name));
+        writer.write(prefix);
+        writer.write("\"name\":");
+        JsonHelper.write(writer, this.name);
         prefix = ",";
 
-        writer.write(prefix + "\"time\":");
-        writer.write(JsonHelper.convert(this.time));
+        writer.write(prefix);
+        writer.write("\"time\":");
+        JsonHelper.write(writer, this.time);
         prefix = ",";
 
         if (this.sampleRate > 0.0d) {
-            writer.write(prefix + "\"sampleRate\":");
-            writer.write(JsonHelper.convert(this.sampleRate));
+            writer.write(prefix);
+            writer.write("\"sampleRate\":");
+            JsonHelper.write(writer, this.sampleRate);
             prefix = ",";
         }
 
         if (!(this.epoch == null)) {
-            writer.write(prefix + "\"epoch\":");
-            writer.write(JsonHelper.convert(this.epoch));
+            writer.write(prefix);
+            writer.write("\"epoch\":");
+            JsonHelper.write(writer, this.epoch);
             prefix = ",";
         }
 
         if (!(this.seqNum == 0L)) {
-            writer.write(prefix + "\"seqNum\":");
-            writer.write(JsonHelper.convert(this.seqNum));
+            writer.write(prefix);
+            writer.write("\"seqNum\":");
+            JsonHelper.write(writer, this.seqNum);
             prefix = ",";
         }
 
         if (!(this.iKey == null)) {
-            writer.write(prefix + "\"iKey\":");
-            writer.write(JsonHelper.convert(this.iKey));
+            writer.write(prefix);
+            writer.write("\"iKey\":");
+            JsonHelper.write(writer, this.iKey);
             prefix = ",";
         }
 
         if (!(this.flags == 0L)) {
-            writer.write(prefix + "\"flags\":");
-            writer.write(JsonHelper.convert(this.flags));
+            writer.write(prefix);
+            writer.write("\"flags\":");
+            JsonHelper.write(writer, this.flags);
             prefix = ",";
         }
 
         if (!(this.os == null)) {
-            writer.write(prefix + "\"os\":");
-            writer.write(JsonHelper.convert(this.os));
+            writer.write(prefix);
+            writer.write("\"os\":");
+            JsonHelper.write(writer, this.os);
             prefix = ",";
         }
 
         if (!(this.osVer == null)) {
-            writer.write(prefix + "\"osVer\":");
-            writer.write(JsonHelper.convert(this.osVer));
+            writer.write(prefix);
+            writer.write("\"osVer\":");
+            JsonHelper.write(writer, this.osVer);
             prefix = ",";
         }
 
         if (!(this.appId == null)) {
-            writer.write(prefix + "\"appId\":");
-            writer.write(JsonHelper.convert(this.appId));
+            writer.write(prefix);
+            writer.write("\"appId\":");
+            JsonHelper.write(writer, this.appId);
             prefix = ",";
         }
 
         if (!(this.appVer == null)) {
-            writer.write(prefix + "\"appVer\":");
-            writer.write(JsonHelper.convert(this.appVer));
+            writer.write(prefix);
+            writer.write("\"appVer\":");
+            JsonHelper.write(writer, this.appVer);
             prefix = ",";
         }
 
         if (!(this.cV == null)) {
-            writer.write(prefix + "\"cV\":");
-            writer.write(JsonHelper.convert(this.cV));
+            writer.write(prefix);
+            writer.write("\"cV\":");
+            JsonHelper.write(writer, this.cV);
             prefix = ",";
         }
 
         if (!(this.tags == null)) {
-            writer.write(prefix + "\"tags\":");
-            JsonHelper.writeDictionary(writer, this.tags);
+            writer.write(prefix);
+            writer.write("\"tags\":");
+            if (this.serializedTags != null) {
+                writer.write(this.serializedTags);
+            } else {
+                JsonHelper.writeDictionary(writer, this.tags);
+            }
             prefix = ",";
         }
 
         if (!(this.ext == null)) {
-            writer.write(prefix + "\"ext\":");
+            writer.write(prefix);
+            writer.write("\"ext\":");
             JsonHelper.writeDictionary(writer, this.ext);
             prefix = ",";
         }
 
         if (!(this.data == null)) {
-            writer.write(prefix + "\"data\":");
+            writer.write(prefix);
+            writer.write("\"data\":");
             JsonHelper.writeJsonSerializable(writer, this.data);
             prefix = ",";
         }
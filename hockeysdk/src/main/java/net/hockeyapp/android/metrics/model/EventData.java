@@ -125,22 +125,26 @@ public class EventData extends TelemetryData {
      */
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = super.serializeContent(writer);
-        writer.write(prefix + "\"ver\":");
-        writer.write(JsonHelper.convert(this.ver));
+        writer.write(prefix);
+        writer.write("\"ver\":");
+        JsonHelper.write(writer, this.ver);
         prefix = ",";
 
-        writer.write(prefix + "\"name\":");
-        writer.write(JsonHelper.convert(this.name));
+        writer.write(prefix);
+        writer.write("\"name\":");
+        JsonHelper.write(writer, this.name);
         prefix = ",";
 
         if (!(this.properties == null)) {
-            writer.write(prefix + "\"properties\":");
+            writer.write(prefix);
+            writer.write("\"properties\":");
             JsonHelper.writeDictionary(writer, this.properties);
             prefix = ",";
         }
 
         if (!(this.measurements == null)) {
-            writer.write(prefix + "\"measurements\":");
+            writer.write(prefix);
+            writer.write("\"measurements\":");
             JsonHelper.writeDictionary(writer, this.measurements);
             prefix = ",";
         }
@@ -62,8 +62,9 @@ public class Extension implements
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = "";
         if (!(this.ver == null)) {
-            writer.write(prefix + "\"ver\":");
-            writer.write(JsonHelper.convert(this.ver));
+            writer.write(prefix);
+            writer.write("\"ver\":");
+            JsonHelper.write(writer, this.ver);
             prefix = ",";
         }
 
@@ -382,92 +382,107 @@ public class Internal implements IJsonSerializable, Serializable {
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = "";
         if (!(this.sdkVersion == null)) {
-            writer.write(prefix + "\"ai.internal.sdkVersion\":");
-            writer.write(JsonHelper.convert(this.sdkVersion));
+            writer.write(prefix);
+            writer.write("\"ai.internal.sdkVersion\":");
+            JsonHelper.write(writer, this.sdkVersion);
             prefix = ",";
         }
 
         if (!(this.agentVersion == null)) {
-            writer.write(prefix + "\"ai.internal.agentVersion\":");
-            writer.write(JsonHelper.convert(this.agentVersion));
+            writer.write(prefix);
+            writer.write("\"ai.internal.agentVersion\":");
+            JsonHelper.write(writer, this.agentVersion);
             prefix = ",";
         }
 
         if (!(this.dataCollectorReceivedTime == null)) {
-            writer.write(prefix + "\"ai.internal.dataCollectorReceivedTime\":");
-            writer.write(JsonHelper.convert(this.dataCollectorReceivedTime));
+            writer.write(prefix);
+            writer.write("\"ai.internal.dataCollectorReceivedTime\":");
+            JsonHelper.write(writer, this.dataCollectorReceivedTime);
             prefix = ",";
         }
 
         if (!(this.profileId == null)) {
-            writer.write(prefix + "\"ai.internal.profileId\":");
-            writer.write(JsonHelper.convert(this.profileId));
+            writer.write(prefix);
+            writer.write("\"ai.internal.profileId\":");
+            JsonHelper.write(writer, this.profileId);
             prefix = ",";
         }
 
         if (!(this.profileClassId == null)) {
-            writer.write(prefix + "\"ai.internal.profileClassId\":");
-            writer.write(JsonHelper.convert(this.profileClassId));
+            writer.write(prefix);
+            writer.write("\"ai.internal.profileClassId\":");
+            JsonHelper.write(writer, this.profileClassId);
             prefix = ",";
         }
 
         if (!(this.accountId == null)) {
-            writer.write(prefix + "\"ai.internal.accountId\":");
-            writer.write(JsonHelper.convert(this.accountId));
+            writer.write(prefix);
+            writer.write("\"ai.internal.accountId\":");
+            JsonHelper.write(writer, this.accountId);
             prefix = ",";
         }
 
         if (!(this.applicationName == null)) {
-            writer.write(prefix + "\"ai.internal.applicationName\":");
-            writer.write(JsonHelper.convert(this.applicationName));
+            writer.write(prefix);
+            writer.write("\"ai.internal.applicationName\":");
+            JsonHelper.write(writer, this.applicationName);
             prefix = ",";
         }
 
         if (!(this.instrumentationKey == null)) {
-            writer.write(prefix + "\"ai.internal.instrumentationKey\":");
-            writer.write(JsonHelper.convert(this.instrumentationKey));
+            writer.write(prefix);
+            writer.write("\"ai.internal.instrumentationKey\":");
+            JsonHelper.write(writer, this.instrumentationKey);
             prefix = ",";
         }
 
         if (!(this.telemetryItemId == null)) {
-            writer.write(prefix + "\"ai.internal.telemetryItemId\":");
-            writer.write(JsonHelper.convert(this.telemetryItemId));
+            writer.write(prefix);
+            writer.write("\"ai.internal.telemetryItemId\":");
+            JsonHelper.write(writer, this.telemetryItemId);
             prefix = ",";
         }
 
         if (!(this.applicationType == null)) {
-            writer.write(prefix + "\"ai.internal.applicationType\":");
-            writer.write(JsonHelper.convert(this.applicationType));
+            writer.write(prefix);
+            writer.write("\"ai.internal.applicationType\":");
+            JsonHelper.write(writer, this.applicationType);
             prefix = ",";
         }
 
         if (!(this.requestSource == null)) {
-            writer.write(prefix + "\"ai.internal.requestSource\":");
-            writer.write(JsonHelper.convert(this.requestSource));
+            writer.write(prefix);
+            writer.write("\"ai.internal.requestSource\":");
+            JsonHelper.write(writer, this.requestSource);
             prefix = ",";
         }
 
         if (!(this.flowType == null)) {
-            writer.write(prefix + "\"ai.internal.flowType\":");
-            writer.write(JsonHelper.convert(this.flowType));
+            writer.write(prefix);
+            writer.write("\"ai.internal.flowType\":");
+            JsonHelper.write(writer, this.flowType);
             prefix = ",";
         }
 
         if (!(this.isAudit == null)) {
-            writer.write(prefix + "\"ai.internal.isAudit\":");
-            writer.write(JsonHelper.convert(this.isAudit));
+            writer.write(prefix);
+            writer.write("\"ai.internal.isAudit\":");
+            JsonHelper.write(writer, this.isAudit);
             prefix = ",";
         }
 
         if (!(this.trackingSourceId == null)) {
-            writer.write(prefix + "\"ai.internal.trackingSourceId\":");
-            writer.write(JsonHelper.convert(this.trackingSourceId));
+            writer.write(prefix);
+            writer.write("\"ai.internal.trackingSourceId\":");
+            JsonHelper.write(writer, this.trackingSourceId);
             prefix = ",";
         }
 
         if (!(this.trackingType == null)) {
-            writer.write(prefix + "\"ai.internal.trackingType\":");
-            writer.write(JsonHelper.convert(this.trackingType));
+            writer.write(prefix);
+            writer.write("\"ai.internal.trackingType\":");
+            JsonHelper.write(writer, this.trackingType);
             prefix = ",";
         }
 
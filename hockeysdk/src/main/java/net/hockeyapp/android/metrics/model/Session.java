@@ -118,20 +118,23 @@ public class Session implements IJsonSerializable, Serializable {
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = "";
         if (!(this.id == null)) {
-            writer.write(prefix + "\"ai.session.id\":");
-            writer.write(JsonHelper.convert(this.id));
+            writer.write(prefix);
+            writer.write("\"ai.session.id\":");
+            JsonHelper.write(writer, this.id);
             prefix = ",";
         }
 
         if (!(this.isFirst == null)) {
-            writer.write(prefix + "\"ai.session.isFirst\":");
-            writer.write(JsonHelper.convert(this.isFirst));
+            writer.write(prefix);
+            writer.write("\"ai.session.isFirst\":");
+            JsonHelper.write(writer, this.isFirst);
             prefix = ",";
         }
 
         if (!(this.isNew == null)) {
-            writer.write(prefix + "\"ai.session.isNew\":");
-            writer.write(JsonHelper.convert(this.isNew));
+            writer.write(prefix);
+            writer.write("\"ai.session.isNew\":");
+            JsonHelper.write(writer, this.isNew);
             prefix = ",";
         }
 
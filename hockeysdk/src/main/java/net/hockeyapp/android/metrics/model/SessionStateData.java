@@ -94,12 +94,14 @@ public class SessionStateData extends TelemetryData {
      */
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = super.serializeContent(writer);
-        writer.write(prefix + "\"ver\":");
-        writer.write(JsonHelper.convert(this.ver));
+        writer.write(prefix);
+        writer.write("\"ver\":");
+        JsonHelper.write(writer, this.ver);
         prefix = ",";
 
-        writer.write(prefix + "\"state\":");
-        writer.write(JsonHelper.convert(this.state.getValue()));
+        writer.write(prefix);
+        writer.write("\"state\":");
+        JsonHelper.write(writer, this.state.getValue());
         prefix = ",";
 
         return prefix;
@@ -229,50 +229,58 @@ public class User implements IJsonSerializable, Serializable {
     protected String serializeContent(Writer writer) throws IOException {
         String prefix = "";
         if (!(this.accountAcquisitionDate == null)) {
-            writer.write(prefix + "\"ai.user.accountAcquisitionDate\":");
-            writer.write(JsonHelper.convert(this.accountAcquisitionDate));
+            writer.write(prefix);
+            writer.write("\"ai.user.accountAcquisitionDate\":");
+            JsonHelper.write(writer, this.accountAcquisitionDate);
             prefix = ",";
         }
 
         if (!(this.accountId == null)) {
-            writer.write(prefix + "\"ai.user.accountId\":");
-            writer.write(JsonHelper.convert(this.accountId));
+            writer.write(prefix);
+            writer.write("\"ai.user.accountId\":");
+            JsonHelper.write(writer, this.accountId);
             prefix = ",";
         }
 
         if (!(this.userAgent == null)) {
-            writer.write(prefix + "\"ai.user.userAgent\":");
-            writer.write(JsonHelper.convert(this.userAgent));
+            writer.write(prefix);
+            writer.write("\"ai.user.userAgent\":");
+            JsonHelper.write(writer, this.userAgent);
             prefix = ",";
         }
 
         if (!(this.id == null)) {
-            writer.write(prefix + "\"ai.user.id\":");
-            writer.write(JsonHelper.convert(this.id));
+            writer.write(prefix);
+            writer.write("\"ai.user.id\":");
+            JsonHelper.write(writer, this.id);
             prefix = ",";
         }
 
         if (!(this.storeRegion == null)) {
-            writer.write(prefix + "\"ai.user.storeRegion\":");
-            writer.write(JsonHelper.convert(this.storeRegion));
+            writer.write(prefix);
+            writer.write("\"ai.user.storeRegion\":");
+            JsonHelper.write(writer, this.storeRegion);
             prefix = ",";
         }
 
         if (!(this.authUserId == null)) {
-            writer.write(prefix + "\"ai.user.authUserId\":");
-            writer.write(JsonHelper.convert(this.authUserId));
+            writer.write(prefix);
+            writer.write("\"ai.user.authUserId\":");
+            JsonHelper.write(writer, this.authUserId);
             prefix = ",";
         }
 
         if (!(this.anonUserAcquisitionDate == null)) {
-            writer.write(prefix + "\"ai.user.anonUserAcquisitionDate\":");
-            writer.write(JsonHelper.convert(this.anonUserAcquisitionDate));
+            writer.write(prefix);
+            writer.write("\"ai.user.anonUserAcquisitionDate\":");
+            JsonHelper.write(writer, this.anonUserAcquisitionDate);
             prefix = ",";
         }
 
         if (!(this.authUserAcquisitionDate == null)) {
-            writer.write(prefix + "\"ai.user.authUserAcquisitionDate\":");
-            writer.write(JsonHelper.convert(this.authUserAcquisitionDate));
+            writer.write(prefix);
+            writer.write("\"ai.user.authUserAcquisitionDate\":");
+            JsonHelper.write(writer, this.authUserAcquisitionDate);
             prefix = ",";
         }
 
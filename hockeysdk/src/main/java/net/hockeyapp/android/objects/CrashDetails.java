@@ -4,6 +4,7 @@ import android.content.Context;
 import android.text.TextUtils;
 
 import net.hockeyapp.android.utils.BoundedPrintWriter;
+import net.hockeyapp.android.utils.CrashBundle;
 import net.hockeyapp.android.utils.HockeyLog;
 import net.hockeyapp.android.utils.JSONDateUtils;
 
@@ -17,6 +18,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Date;
@@ -143,6 +145,10 @@ public class CrashDetails {
 
     public static CrashDetails fromFile(File file) throws IOException, JSONException {
         String crashIdentifier = file.getName().substring(0, file.getName().indexOf(".stacktrace"));
+        CrashBundle bundle = CrashBundle.read(file);
+        if (bundle != null) {
+            return fromReader(crashIdentifier, new StringReader(bundle.getRaw()));
+        }
         return fromReader(crashIdentifier, new FileReader(file));
     }
 
@@ -5,17 +5,28 @@ import android.os.AsyncTask;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <h3>Description</h3>
  *
  * Either calls execute or executeOnExecutor on an AsyncTask depending on the
- * API level.
+ * API level. Also provides the scheduler shared by all delayed and background work of the SDK.
  */
 public class AsyncTaskUtils {
 
+    /**
+     * Time in seconds the scheduler thread is kept alive while there is nothing to do.
+     */
+    private static final int SCHEDULER_KEEP_ALIVE_TIME = 30;
+
     private static Executor sCustomExecutor;
 
+    private static ScheduledExecutorService sScheduler;
+
     public static void execute(AsyncTask<Void, ?, ?> asyncTask) {
         Executor executor = sCustomExecutor != null ? sCustomExecutor : AsyncTask.THREAD_POOL_EXECUTOR;
         asyncTask.executeOnExecutor(executor);
@@ -32,8 +43,62 @@ public class AsyncTaskUtils {
         return sCustomExecutor;
     }
 
+    /**
+     * Sets the executor background work of the SDK runs on. If the executor is a
+     * {@link ScheduledExecutorService}, it is also used as the scheduler, otherwise scheduled
+     * tasks are handed to it once they are due.
+     *
+     * @param customExecutor The executor to use, or null to use the defaults.
+     */
     public static void setCustomExecutor(Executor customExecutor) {
         sCustomExecutor = customExecutor;
     }
 
+    /**
+     * Gets the scheduler shared by the SDK. Unless a {@link ScheduledExecutorService} has been
+     * set as custom executor, this is a single daemon thread which is started on demand and
+     * stops after some time without work.
+     *
+     * @return The scheduler.
+     */
+    public static ScheduledExecutorService getScheduler() {
+        Executor customExecutor = sCustomExecutor;
+        if (customExecutor instanceof ScheduledExecutorService) {
+            return (ScheduledExecutorService) customExecutor;
+        }
+        return getDefaultScheduler();
+    }
+
+    private static synchronized ScheduledExecutorService getDefaultScheduler() {
+        if (sScheduler == null) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "HockeyApp Scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.setKeepAliveTime(SCHEDULER_KEEP_ALIVE_TIME, TimeUnit.SECONDS);
+            scheduler.allowCoreThreadTimeOut(true);
+            sScheduler = scheduler;
+        }
+        return sScheduler;
+    }
+
+    /**
+     * Runs a task which became due on the scheduler. It is handed to the custom executor if one
+     * is set, otherwise it runs on the scheduler thread.
+     *
+     * @param runnable The task to run.
+     */
+    static void dispatch(Runnable runnable) {
+        Executor customExecutor = sCustomExecutor;
+        if (customExecutor != null && !(customExecutor instanceof ScheduledExecutorService)) {
+            customExecutor.execute(runnable);
+        } else {
+            runnable.run();
+        }
+    }
 }
@@ -0,0 +1,403 @@
+package net.hockeyapp.android.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * <h3>Description</h3>
+ *
+ * A saved crash in a single file, which is read in one sequential pass and deleted with one
+ * unlink. The file starts with a fixed size header holding a magic number, the format version,
+ * the number of failed upload attempts and the number of times the crash occurred, which are
+ * updated in place. Sections follow, each made of a type byte, the length of the payload and the
+ * payload: the fingerprint of the crash, which comes first so it is found without reading the
+ * rest, the header lines of the report, the user ID, the contact, the description and the stack
+ * trace, all UTF-8 text. A last section
+ * holds the CRC32 of all payloads. Sections of unknown types are skipped, so sections can be
+ * added without breaking older readers. All numbers are big endian.
+ * A bundle can be read completely with {@link #read(File)}, or only indexed with
+ * {@link #index(File)} to stream its sections from the file.
+ */
+public final class CrashBundle {
+
+    /**
+     * Starts every bundle, "HAC1".
+     */
+    public static final int MAGIC = 0x48414331;
+
+    /**
+     * Version of the format written by this SDK.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size of the fixed header: magic, version, three reserved bytes, retry count and occurrence
+     * count.
+     */
+    public static final int HEADER_SIZE = 4 + 1 + 3 + 4 + 4;
+
+    /**
+     * Offset of the retry count in the header.
+     */
+    public static final int RETRY_COUNT_OFFSET = 8;
+
+    /**
+     * Offset of the occurrence count in the header, 0 in bundles written before it was introduced
+     * means 1.
+     */
+    public static final int OCCURRENCE_COUNT_OFFSET = 12;
+
+    /**
+     * Size of a section header: type and payload length.
+     */
+    public static final int SECTION_HEADER_SIZE = 1 + 4;
+
+    public static final int SECTION_CHECKSUM = 0;
+    public static final int SECTION_HEADERS = 1;
+    public static final int SECTION_USER_ID = 2;
+    public static final int SECTION_CONTACT = 3;
+    public static final int SECTION_DESCRIPTION = 4;
+    public static final int SECTION_STACK_TRACE = 5;
+    public static final int SECTION_FINGERPRINT = 6;
+
+    private static final int INDEX_BUFFER_SIZE = 8 * 1024;
+
+    private final File mFile;
+    private final long[] mSectionOffsets = new long[SECTION_FINGERPRINT + 1];
+    private final long[] mSectionLengths = new long[SECTION_FINGERPRINT + 1];
+    private String mHeaders = "";
+    private String mUserId = "";
+    private String mContact = "";
+    private String mDescription = "";
+    private String mStackTrace = "";
+    private int mRetryCount;
+    private int mOccurrenceCount;
+    private long mFingerprint;
+
+    private CrashBundle(File file) {
+        mFile = file;
+        Arrays.fill(mSectionOffsets, -1);
+    }
+
+
+    /**
+     * Checks whether a file is a crash bundle, as opposed to a plain text report written by
+     * older versions of the SDK.
+     *
+     * @param file The file to check.
+     * @return True if the file starts with the magic number.
+     */
+    public static boolean isBundle(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads a crash bundle and verifies its checksum.
+     *
+     * @param file The bundle file.
+     * @return The bundle, or null if the file is not a bundle.
+     * @throws IOException if the file could not be read, is truncated or does not match its checksum.
+     */
+    public static CrashBundle read(File file) throws IOException {
+        return parse(file, true);
+    }
+
+    /**
+     * Verifies the checksum of a crash bundle and locates its sections without loading them, so
+     * they can be streamed from the file with constant memory.
+     *
+     * @param file The bundle file.
+     * @return The bundle without text, or null if the file is not a bundle.
+     * @throws IOException if the file could not be read, is truncated or does not match its checksum.
+     */
+    public static CrashBundle index(File file) throws IOException {
+        return parse(file, false);
+    }
+
+    private static CrashBundle parse(File file, boolean loadText) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int magic;
+            try {
+                magic = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (magic != MAGIC) {
+                return null;
+            }
+            CrashBundle bundle = new CrashBundle(file);
+            in.skipBytes(RETRY_COUNT_OFFSET - 4);
+            bundle.mRetryCount = in.readInt();
+            bundle.mOccurrenceCount = in.readInt();
+
+            CRC32 crc = new CRC32();
+            byte[] buffer = loadText ? null : new byte[INDEX_BUFFER_SIZE];
+            long position = HEADER_SIZE;
+            long length = file.length();
+            while (true) {
+                int type = in.readUnsignedByte();
+                int sectionLength = in.readInt();
+                position += SECTION_HEADER_SIZE;
+                if (sectionLength < 0 || sectionLength > length - position) {
+                    throw new IOException("Truncated crash bundle section " + type);
+                }
+                if (type == SECTION_CHECKSUM) {
+                    if (sectionLength != 4 || position + sectionLength != length) {
+                        throw new IOException("Invalid crash bundle checksum section");
+                    }
+                    if (in.readInt() != (int) crc.getValue()) {
+                        throw new IOException("Crash bundle does not match its checksum");
+                    }
+                    return bundle;
+                }
+                if (type < bundle.mSectionOffsets.length) {
+                    bundle.mSectionOffsets[type] = position;
+                    bundle.mSectionLengths[type] = sectionLength;
+                }
+                if (type == SECTION_FINGERPRINT && sectionLength == 8) {
+                    byte[] payload = new byte[sectionLength];
+                    in.readFully(payload);
+                    crc.update(payload);
+                    for (byte b : payload) {
+                        bundle.mFingerprint = (bundle.mFingerprint << 8) | (b & 0xff);
+                    }
+                } else if (loadText) {
+                    byte[] payload = new byte[sectionLength];
+                    in.readFully(payload);
+                    crc.update(payload);
+                    bundle.setText(type, new String(payload, "UTF-8"));
+                } else {
+                    for (int remaining = sectionLength; remaining > 0; ) {
+                        int count = Math.min(remaining, buffer.length);
+                        in.readFully(buffer, 0, count);
+                        crc.update(buffer, 0, count);
+                        remaining -= count;
+                    }
+                }
+                position += sectionLength;
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated crash bundle", e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void setText(int type, String text) {
+        switch (type) {
+            case SECTION_HEADERS:
+                mHeaders = text;
+                break;
+            case SECTION_USER_ID:
+                mUserId = text;
+                break;
+            case SECTION_CONTACT:
+                mContact = text;
+                break;
+            case SECTION_DESCRIPTION:
+                mDescription = text;
+                break;
+            case SECTION_STACK_TRACE:
+                mStackTrace = text;
+                break;
+            default:
+                // Added by a newer version of the format.
+                break;
+        }
+    }
+
+    /**
+     * Reads the fingerprint of a bundle, without reading the rest of it.
+     *
+     * @param file The bundle file.
+     * @return The fingerprint, or 0 if the file is not a bundle or has no fingerprint.
+     */
+    public static long readFingerprint(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC) {
+                return 0;
+            }
+            in.skipBytes(HEADER_SIZE - 4);
+            if (in.readUnsignedByte() != SECTION_FINGERPRINT || in.readInt() != 8) {
+                return 0;
+            }
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Increments the retry count of a bundle in place. The modification time is kept, as it
+     * tells when the crash happened.
+     *
+     * @param file The bundle file.
+     * @return The retry count before it has been incremented.
+     * @throws IOException if the file could not be updated.
+     */
+    public static int incrementRetryCount(File file) throws IOException {
+        long lastModified = file.lastModified();
+        try {
+            return incrementCounter(file, RETRY_COUNT_OFFSET, 0, false);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(lastModified);
+        }
+    }
+
+    /**
+     * Increments the occurrence count of a bundle in place, when the crash occurred again. The
+     * retry count is reset, so the report gets all attempts to be sent again, like a new one.
+     *
+     * @param file The bundle file.
+     * @return The occurrence count after it has been incremented.
+     * @throws IOException if the file could not be updated, e.g. because it has been deleted.
+     */
+    public static int incrementOccurrenceCount(File file) throws IOException {
+        return incrementCounter(file, OCCURRENCE_COUNT_OFFSET, 1, true) + 1;
+    }
+
+    /**
+     * @return The value of the counter before it has been incremented, at least the minimum.
+     */
+    private static int incrementCounter(File file, int offset, int minimum, boolean resetRetryCount) throws IOException {
+        if (!file.isFile()) {
+            // Opening the file for writing would create it.
+            throw new FileNotFoundException(file.toString());
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.readInt() != MAGIC) {
+                throw new IOException("Not a crash bundle: " + file);
+            }
+            randomAccessFile.seek(offset);
+            int value = Math.max(minimum, randomAccessFile.readInt());
+            randomAccessFile.seek(offset);
+            randomAccessFile.writeInt(value + 1);
+            if (resetRetryCount) {
+                randomAccessFile.seek(RETRY_COUNT_OFFSET);
+                randomAccessFile.writeInt(0);
+            }
+            return value;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return The bundle file.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @param type The type of the section.
+     * @return The position of the payload of the section in the file, or -1 if there is no such
+     * section.
+     */
+    public long getSectionOffset(int type) {
+        return type >= 0 && type < mSectionOffsets.length ? mSectionOffsets[type] : -1;
+    }
+
+    /**
+     * @param type The type of the section.
+     * @return The length of the payload of the section in bytes, 0 if there is no such section.
+     */
+    public long getSectionLength(int type) {
+        return type >= 0 && type < mSectionLengths.length ? mSectionLengths[type] : 0;
+    }
+
+    /**
+     * @return The report as it is sent: the header lines, an empty line and the stack trace.
+     */
+    public String getRaw() {
+        return mHeaders + "\n" + mStackTrace;
+    }
+
+    /**
+     * @return The header lines of the report, each terminated by a line break.
+     */
+    public String getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * @return The user ID, or an empty string if it is not given or the bundle has only been indexed.
+     */
+    public String getUserId() {
+        return mUserId;
+    }
+
+    /**
+     * @return The contact, or an empty string if it is not given or the bundle has only been indexed.
+     */
+    public String getContact() {
+        return mContact;
+    }
+
+    /**
+     * @return The description, or an empty string if it is not given or the bundle has only been indexed.
+     */
+    public String getDescription() {
+        return mDescription;
+    }
+
+    /**
+     * @return The stack trace.
+     */
+    public String getStackTrace() {
+        return mStackTrace;
+    }
+
+    /**
+     * @return The number of failed upload attempts.
+     */
+    public int getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * @return The number of times the crash occurred, at least 1.
+     */
+    public int getOccurrenceCount() {
+        return Math.max(1, mOccurrenceCount);
+    }
+
+    /**
+     * @return The fingerprint of the crash, or 0 if it has none.
+     */
+    public long getFingerprint() {
+        return mFingerprint;
+    }
+}
@@ -41,6 +41,7 @@ public class HttpsURLConnectionBuilder {
     private String mRequestMethod;
     private String mRequestBody;
     private SimpleMultipartEntity mMultipartEntity;
+    private StreamingMultipartEntity mStreamingMultipartEntity;
     private int mTimeout = DEFAULT_TIMEOUT;
 
     private final Map<String, String> mHeaders;
@@ -114,6 +115,16 @@ public class HttpsURLConnectionBuilder {
         return this;
     }
 
+    /**
+     * Sends a multipart body which is streamed to the connection in fixed length streaming mode,
+     * so it is never held in memory.
+     */
+    public HttpsURLConnectionBuilder writeMultipartData(StreamingMultipartEntity entity) {
+        mStreamingMultipartEntity = entity;
+        setHeader("Content-Type", entity.getContentType());
+        return this;
+    }
+
     public HttpsURLConnectionBuilder setTimeout(int timeout) {
         if (timeout < 0) {
             throw new IllegalArgumentException("Timeout has to be positive.");
@@ -165,6 +176,21 @@ public class HttpsURLConnectionBuilder {
             mMultipartEntity.writeTo(connection.getOutputStream());
         }
 
+        if (mStreamingMultipartEntity != null) {
+            long contentLength = mStreamingMultipartEntity.getContentLength();
+            if (contentLength <= Integer.MAX_VALUE) {
+                connection.setFixedLengthStreamingMode((int) contentLength);
+            } else {
+                connection.setChunkedStreamingMode(0);
+            }
+            OutputStream outputStream = connection.getOutputStream();
+            try {
+                mStreamingMultipartEntity.writeTo(outputStream);
+            } finally {
+                outputStream.close();
+            }
+        }
+
         return connection;
     }
 
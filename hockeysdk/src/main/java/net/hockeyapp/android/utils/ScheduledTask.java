@@ -0,0 +1,104 @@
+package net.hockeyapp.android.utils;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h3>Description</h3>
+ *
+ * A task which runs after a delay on the scheduler shared by the SDK, see
+ * {@link AsyncTaskUtils#getScheduler()}. Unlike a {@link java.util.TimerTask} it can be
+ * scheduled again after it ran or was cancelled, so the same instance serves all runs and no
+ * thread is kept per task.
+ */
+public class ScheduledTask {
+
+    private static final String TAG = "HA-ScheduledTask";
+
+    private final Runnable mRunnable;
+
+    /**
+     * The dispatcher of the pending run and its future, both null if no run is pending.
+     */
+    private Dispatcher mDispatcher;
+    private ScheduledFuture<?> mFuture;
+
+    /**
+     * Creates a task which is not scheduled yet.
+     *
+     * @param runnable The work to run when the task is due.
+     */
+    public ScheduledTask(Runnable runnable) {
+        mRunnable = runnable;
+    }
+
+    /**
+     * Schedules the task, replacing a pending run.
+     *
+     * @param delayMillis Time in milliseconds until the task runs.
+     * @return True if the task has been scheduled.
+     */
+    public synchronized boolean schedule(long delayMillis) {
+        cancel();
+        try {
+            Dispatcher dispatcher = new Dispatcher();
+            mFuture = AsyncTaskUtils.getScheduler().schedule(dispatcher, delayMillis, TimeUnit.MILLISECONDS);
+            mDispatcher = dispatcher;
+            return true;
+        } catch (RejectedExecutionException e) {
+            HockeyLog.error(TAG, "Could not schedule task. Scheduler rejected task.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the task unless a run is pending already, in one step.
+     *
+     * @param delayMillis Time in milliseconds until the task runs.
+     * @return True if the task has been scheduled by this call.
+     */
+    public synchronized boolean scheduleIfIdle(long delayMillis) {
+        return mFuture == null && schedule(delayMillis);
+    }
+
+    /**
+     * Cancels a pending run. A run which already started is not interrupted.
+     */
+    public synchronized void cancel() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+            mDispatcher = null;
+        }
+    }
+
+    /**
+     * @return True if the task is waiting to run.
+     */
+    public synchronized boolean isScheduled() {
+        return mFuture != null;
+    }
+
+    /**
+     * Runs the task for one scheduled run. The run is only marked as done if it is still the
+     * pending one, a run scheduled while this one started stays pending.
+     */
+    private class Dispatcher implements Runnable {
+
+        @Override
+        public void run() {
+            synchronized (ScheduledTask.this) {
+                if (mDispatcher == this) {
+                    mDispatcher = null;
+                    mFuture = null;
+                }
+            }
+            try {
+                AsyncTaskUtils.dispatch(mRunnable);
+            } catch (RuntimeException e) {
+                HockeyLog.error(TAG, "Scheduled task failed.", e);
+            }
+        }
+    }
+}
@@ -40,14 +40,20 @@ public class SimpleMultipartEntity {
             HockeyLog.error("Failed to open temp file", e);
         }
 
-        /** Create boundary String */
+        this.mBoundary = createBoundary();
+    }
+
+    /**
+     * Creates a random boundary String.
+     */
+    static String createBoundary() {
         final StringBuilder buffer = new StringBuilder();
         final Random rand = new Random();
 
         for (int i = 0; i < 30; i++) {
             buffer.append(BOUNDARY_CHARS[rand.nextInt(BOUNDARY_CHARS.length)]);
         }
-        this.mBoundary = buffer.toString();
+        return buffer.toString();
     }
 
     public String getBoundary() {
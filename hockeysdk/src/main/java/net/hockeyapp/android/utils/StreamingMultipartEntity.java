@@ -0,0 +1,155 @@
+package net.hockeyapp.android.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h3>Description</h3>
+ *
+ * A multipart/form-data body which is streamed to the connection instead of being built in
+ * memory or in a temp file like {@link SimpleMultipartEntity}. A part consists of text and ranges
+ * of files, which are only read while the body is written, through a small buffer. The length of
+ * the body is known in advance, so it can be sent in fixed length streaming mode.
+ * Please note that the files must not change until the body has been written.
+ *
+ */
+public class StreamingMultipartEntity {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String mBoundary;
+    private final List<Object> mPieces = new ArrayList<>();
+    private long mContentLength;
+
+    public StreamingMultipartEntity() {
+        mBoundary = SimpleMultipartEntity.createBoundary();
+    }
+
+    public String getBoundary() {
+        return mBoundary;
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + getBoundary();
+    }
+
+    /**
+     * Adds a text part.
+     *
+     * @param key   The name of the form field.
+     * @param value The text.
+     */
+    public StreamingMultipartEntity addPart(String key, String value) {
+        return beginPart(key).appendText(value);
+    }
+
+    /**
+     * Begins a part, which is filled with {@link #appendText(String)} and
+     * {@link #appendFile(File, long, long)}.
+     *
+     * @param key The name of the form field.
+     */
+    public StreamingMultipartEntity beginPart(String key) {
+        appendText((mPieces.isEmpty() ? "--" : "\r\n--") + mBoundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + key + "\"\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: 8bit\r\n\r\n");
+        return this;
+    }
+
+    /**
+     * Appends text to the current part.
+     */
+    public StreamingMultipartEntity appendText(String text) {
+        if (text != null && text.length() > 0) {
+            try {
+                byte[] bytes = text.getBytes(HttpsURLConnectionBuilder.DEFAULT_CHARSET);
+                mPieces.add(bytes);
+                mContentLength += bytes.length;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends a range of a file to the current part.
+     *
+     * @param file   The file.
+     * @param offset The position of the range in the file.
+     * @param length The length of the range in bytes.
+     */
+    public StreamingMultipartEntity appendFile(File file, long offset, long length) {
+        if (length > 0) {
+            mPieces.add(new FileRange(file, offset, length));
+            mContentLength += length;
+        }
+        return this;
+    }
+
+    /**
+     * @return The length of the body in bytes, including the closing boundary.
+     */
+    public long getContentLength() {
+        return mContentLength + getClosingBoundary().length();
+    }
+
+    /**
+     * Writes the body.
+     *
+     * @param out The stream to write to, it is not closed.
+     * @throws IOException if the body could not be written, or a file has become shorter.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = null;
+        for (Object piece : mPieces) {
+            if (piece instanceof byte[]) {
+                out.write((byte[]) piece);
+                continue;
+            }
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            FileRange range = (FileRange) piece;
+            RandomAccessFile input = new RandomAccessFile(range.file, "r");
+            try {
+                input.seek(range.offset);
+                long remaining = range.length;
+                while (remaining > 0) {
+                    int count = input.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+                    if (count < 0) {
+                        throw new IOException(range.file + " has changed while it was sent");
+                    }
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            } finally {
+                input.close();
+            }
+        }
+        out.write(getClosingBoundary().getBytes(HttpsURLConnectionBuilder.DEFAULT_CHARSET));
+        out.flush();
+    }
+
+    private String getClosingBoundary() {
+        return (mPieces.isEmpty() ? "--" : "\r\n--") + mBoundary + "--\r\n";
+    }
+
+    private static class FileRange {
+        final File file;
+        final long offset;
+        final long length;
+
+        FileRange(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package net.hockeyapp.android;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class CrashReportIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fingerprintIgnoresMessageAndLineNumbers() {
+        Throwable first = crash(new IllegalStateException("first"), 10);
+        Throwable second = crash(new IllegalStateException("second"), 20);
+
+        assertEquals(CrashReportIndex.fingerprint(first), CrashReportIndex.fingerprint(second));
+        assertNotEquals(0, CrashReportIndex.fingerprint(first));
+    }
+
+    @Test
+    public void fingerprintDependsOnTypeAndFrames() {
+        long fingerprint = CrashReportIndex.fingerprint(crash(new IllegalStateException(), 10));
+
+        assertNotEquals(fingerprint, CrashReportIndex.fingerprint(crash(new IllegalArgumentException(), 10)));
+        Throwable otherMethod = crash(new IllegalStateException(), 10);
+        StackTraceElement[] trace = otherMethod.getStackTrace();
+        trace[1] = new StackTraceElement("net.hockeyapp.Main", "onResume", "Main.java", 10);
+        otherMethod.setStackTrace(trace);
+        assertNotEquals(fingerprint, CrashReportIndex.fingerprint(otherMethod));
+    }
+
+    @Test
+    public void fingerprintDependsOnAppVersion() {
+        Throwable crash = crash(new IllegalStateException(), 10);
+        long fingerprint = CrashReportIndex.fingerprint(crash, "1", "1.0");
+
+        assertEquals(fingerprint, CrashReportIndex.fingerprint(crash(new IllegalStateException(), 10), "1", "1.0"));
+        assertNotEquals(fingerprint, CrashReportIndex.fingerprint(crash, "2", "1.0"));
+        assertNotEquals(fingerprint, CrashReportIndex.fingerprint(crash, "1", "1.1"));
+        assertNotEquals(CrashReportIndex.fingerprint(crash, "11", null), CrashReportIndex.fingerprint(crash, "1", "1"));
+    }
+
+    @Test
+    public void fingerprintUsesRootCause() {
+        Throwable cause = crash(new IllegalStateException(), 10);
+        Throwable wrapped = crash(new RuntimeException("Unable to start activity", cause), 30);
+
+        assertEquals(CrashReportIndex.fingerprint(cause), CrashReportIndex.fingerprint(wrapped));
+    }
+
+    @Test
+    public void reportsAreFoundByFingerprint() throws Exception {
+        File first = folder.newFile("first.stacktrace");
+        File second = folder.newFile("second.stacktrace");
+        File third = folder.newFile("third.stacktrace");
+        CrashReportIndex index = CrashReportIndex.scan(new File[]{first}, 2);
+        assertNull(index.find(0));
+        assertNull(index.find(1));
+
+        index.put(1, first);
+        index.put(2, second);
+        index.put(1, third);
+        index.put(3, first);
+        index.put(0, first);
+
+        assertEquals(third, index.find(1));
+        assertEquals(second, index.find(2));
+        assertNull(index.find(3));
+        assertNull(index.find(0));
+    }
+
+    @Test
+    public void reportsAreFoundByReadingFingerprintsWithoutIndex() throws Exception {
+        File first = save("first", 5);
+        File second = save("second", 7);
+        File legacy = folder.newFile("legacy.stacktrace");
+        assertTrue(first.setLastModified(second.lastModified() - 10000));
+        File[] reports = {legacy, first, second};
+
+        assertEquals(first, CrashReportIndex.find(reports, 5));
+        assertEquals(second, CrashReportIndex.find(reports, 7));
+        assertNull(CrashReportIndex.find(reports, 9));
+        assertNull(CrashReportIndex.find(reports, 0));
+        assertNull(CrashReportIndex.find(null, 5));
+
+        // The newest report of the same crash is found.
+        File repeated = save("repeated", 5);
+        assertTrue(repeated.setLastModified(second.lastModified() + 10000));
+        assertEquals(repeated, CrashReportIndex.find(new File[]{first, repeated, second}, 5));
+    }
+
+    private File save(String name, long fingerprint) throws Exception {
+        File report = new File(folder.getRoot(), name + ".stacktrace");
+        CrashReportWriter writer = new CrashReportWriter(new File(folder.getRoot(), name + CrashReportWriter.PENDING_EXTENSION),
+                report, CrashReportWriter.BUFFER_SIZE);
+        writer.writeFingerprint(fingerprint);
+        assertTrue(writer.commit());
+        return report;
+    }
+
+    private static Throwable crash(Throwable throwable, int lineNumber) {
+        throwable.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("net.hockeyapp.Main", "crash", "Main.java", lineNumber),
+                new StackTraceElement("net.hockeyapp.Main", "onCreate", "Main.java", lineNumber + 1),
+                new StackTraceElement("android.app.Activity", "performCreate", "Activity.java", 6000)
+        });
+        return throwable;
+    }
+}
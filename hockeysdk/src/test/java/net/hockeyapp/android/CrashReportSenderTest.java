@@ -0,0 +1,218 @@
+package net.hockeyapp.android;
+
+import android.net.TrafficStats;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.hockeyapp.android.objects.CrashMetaData;
+import net.hockeyapp.android.utils.CrashBundle;
+import net.hockeyapp.android.utils.StreamingMultipartEntity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+/**
+ * Submits a batch of crash reports to a local stand-in for the crash endpoint.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Log.class, TrafficStats.class, TextUtils.class})
+@PowerMockIgnore({"com.sun.net.httpserver.*", "javax.net.ssl.*"})
+public class CrashReportSenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private URL mUrl;
+    private final List<String> mBodies = new CopyOnWriteArrayList<>();
+    private final List<Integer> mClientPorts = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mockStatic(Log.class);
+        mockStatic(TrafficStats.class);
+        mockStatic(TextUtils.class);
+        when(TextUtils.isEmpty(any(CharSequence.class))).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                CharSequence str = (CharSequence) invocation.getArguments()[0];
+                return str == null || str.length() == 0;
+            }
+        });
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/crashes/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mClientPorts.add(exchange.getRemoteAddress().getPort());
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] chunk = new byte[1024];
+                int count;
+                while ((count = in.read(chunk)) != -1) {
+                    body.write(chunk, 0, count);
+                }
+                String request = body.toString("UTF-8");
+                mBodies.add(request);
+
+                // Reports of the "broken" package are rejected, with an error page to consume.
+                boolean accepted = !request.contains("Package: broken");
+                byte[] response = (accepted ? "{\"status\":\"created\"}" : "<html>Internal Server Error</html>").getBytes("UTF-8");
+                exchange.sendResponseHeaders(accepted ? 201 : 500, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/crashes/");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void batchPartiallySucceedsOverOneConnection() throws Exception {
+        File[] reports = {
+                writeReport("net.hockeyapp.first", "user-1"),
+                writeReport("broken", null),
+                folder.newFile("empty.stacktrace"),
+                writeReport("net.hockeyapp.third", null)
+        };
+        CrashMetaData crashMetaData = new CrashMetaData();
+        crashMetaData.setUserDescription("It crashed");
+
+        int[] results = new TestSender(crashMetaData, -1).submit(reports);
+
+        assertArrayEquals(new int[]{
+                CrashReportSender.RESULT_SENT,
+                CrashReportSender.RESULT_FAILED,
+                CrashReportSender.RESULT_INVALID,
+                CrashReportSender.RESULT_SENT
+        }, results);
+        assertEquals(3, mBodies.size());
+        assertTrue(mBodies.get(0).contains("Package: net.hockeyapp.first\n"));
+        assertTrue(mBodies.get(0).contains("name=\"userID\"\r\nContent-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: 8bit\r\n\r\nuser-1\r\n"));
+        assertTrue(mBodies.get(0).contains("It crashed\n\nLog:\nLog of net.hockeyapp.first\r\n"));
+        assertTrue(mBodies.get(2).contains("at net.hockeyapp.third.Main.run(Main.java:1)\n"));
+        assertFalse(mBodies.get(0).contains("name=\"occurrences\""));
+
+        // All requests, including the one after the error response, share one connection.
+        assertEquals(3, mClientPorts.size());
+        assertEquals(mClientPorts.get(0), mClientPorts.get(1));
+        assertEquals(mClientPorts.get(0), mClientPorts.get(2));
+    }
+
+    @Test
+    public void connectionFailureLeavesRemainingReportsQueued() throws Exception {
+        File[] reports = {
+                writeReport("net.hockeyapp.first", null),
+                writeReport("net.hockeyapp.second", null),
+                writeReport("net.hockeyapp.third", null)
+        };
+
+        int[] results = new TestSender(null, 1).submit(reports);
+
+        assertArrayEquals(new int[]{
+                CrashReportSender.RESULT_SENT,
+                CrashReportSender.RESULT_FAILED,
+                CrashReportSender.RESULT_NOT_SENT
+        }, results);
+        assertEquals(1, mBodies.size());
+    }
+
+    @Test
+    public void repeatedCrashIsSentWithOccurrences() throws Exception {
+        File report = writeReport("net.hockeyapp.first", null);
+        CrashBundle.incrementOccurrenceCount(report);
+        CrashBundle.incrementOccurrenceCount(report);
+
+        int[] results = new TestSender(null, -1).submit(new File[]{report});
+
+        assertArrayEquals(new int[]{CrashReportSender.RESULT_SENT}, results);
+        assertTrue(mBodies.get(0).contains("Occurrences: 3\n\nLog:\nLog of net.hockeyapp.first\r\n"));
+        assertTrue(mBodies.get(0).contains("name=\"occurrences\"\r\nContent-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: 8bit\r\n\r\n3\r\n"));
+    }
+
+    private File writeReport(String packageName, String userId) throws Exception {
+        String identifier = java.util.UUID.randomUUID().toString();
+        CrashReportWriter writer = new CrashReportWriter(new File(folder.getRoot(), identifier + CrashReportWriter.PENDING_EXTENSION),
+                new File(folder.getRoot(), identifier + ".stacktrace"), CrashReportWriter.BUFFER_SIZE);
+        writer.beginSection(CrashBundle.SECTION_HEADERS);
+        writer.writeHeader(CrashReportWriter.FIELD_APP_PACKAGE, packageName);
+        if (userId != null) {
+            writer.beginSection(CrashBundle.SECTION_USER_ID);
+            writer.writeText(userId, Integer.MAX_VALUE);
+        }
+        writer.beginSection(CrashBundle.SECTION_DESCRIPTION);
+        writer.writeText("Log of " + packageName, Integer.MAX_VALUE);
+        writer.beginSection(CrashBundle.SECTION_STACK_TRACE);
+        writer.writeStackTrace("java.lang.RuntimeException\n\tat " + packageName + ".Main.run(Main.java:1)\n");
+        assertTrue(writer.commit());
+        return writer.getReportFile();
+    }
+
+    /**
+     * Sends to the local server over plain HTTP, optionally failing to connect from a request on.
+     */
+    private class TestSender extends CrashReportSender {
+
+        private final int mFailingRequest;
+        private int mRequests;
+
+        TestSender(CrashMetaData crashMetaData, int failingRequest) {
+            super(mUrl.toString(), crashMetaData);
+            mFailingRequest = failingRequest;
+        }
+
+        @Override
+        protected HttpURLConnection openConnection(StreamingMultipartEntity entity) throws IOException {
+            if (mRequests++ == mFailingRequest) {
+                throw new IOException("Connection refused");
+            }
+            HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", entity.getContentType());
+            connection.setFixedLengthStreamingMode((int) entity.getContentLength());
+            OutputStream out = connection.getOutputStream();
+            entity.writeTo(out);
+            out.close();
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package net.hockeyapp.android;
+
+import net.hockeyapp.android.objects.CrashDetails;
+import net.hockeyapp.android.utils.CrashBundle;
+import net.hockeyapp.android.utils.JSONDateUtils;
+import net.hockeyapp.android.utils.StreamingMultipartEntity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class CrashReportWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stackTraceMatchesPrintStackTrace() throws Exception {
+        Throwable cause = new IllegalStateException("Causé 💥");
+        Throwable exception = new RuntimeException(null, cause);
+        exception.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("a.B", "run", "B.java", 12),
+                new StackTraceElement("a.C", "call", null, -1),
+                new StackTraceElement("a.D", "init", "D.java", -2),
+                new StackTraceElement("a.E", "main", "E.java", 3)
+        });
+        cause.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("a.F", "fail", "F.java", 7),
+                new StackTraceElement("a.D", "init", "D.java", -2),
+                new StackTraceElement("a.E", "main", "E.java", 3)
+        });
+        StringWriter expected = new StringWriter();
+        exception.printStackTrace(new PrintWriter(expected));
+
+        // Smaller than the report, so the buffer is flushed a few times.
+        CrashReportWriter writer = open(16);
+        writer.beginSection(CrashBundle.SECTION_STACK_TRACE);
+        writer.writeStackTrace(exception);
+        assertTrue(writer.commit());
+
+        CrashBundle bundle = CrashBundle.read(writer.getReportFile());
+        assertEquals(expected.toString().replace(System.getProperty("line.separator"), "\n"), bundle.getStackTrace());
+        assertEquals("", bundle.getHeaders());
+    }
+
+    @Test
+    public void stackTraceIncludesSuppressedExceptionsAndOverriddenDescriptions() throws Exception {
+        Throwable exception = new RuntimeException("Outer") {
+
+            @Override
+            public String toString() {
+                return "Custom description";
+            }
+        };
+        Throwable suppressed = new IllegalArgumentException("Suppressed", new IllegalStateException("Inner"));
+        exception.addSuppressed(suppressed);
+        exception.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("a.B", "run", "B.java", 12),
+                new StackTraceElement("a.E", "main", "E.java", 3)
+        });
+        suppressed.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("a.C", "close", "C.java", 5),
+                new StackTraceElement("a.E", "main", "E.java", 3)
+        });
+        suppressed.getCause().setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("a.D", "check", "D.java", 9),
+                new StackTraceElement("a.E", "main", "E.java", 3)
+        });
+        StringWriter expected = new StringWriter();
+        exception.printStackTrace(new PrintWriter(expected));
+
+        CrashReportWriter writer = open(CrashReportWriter.BUFFER_SIZE);
+        writer.beginSection(CrashBundle.SECTION_STACK_TRACE);
+        writer.writeStackTrace(exception);
+        assertTrue(writer.commit());
+
+        String stackTrace = CrashBundle.read(writer.getReportFile()).getStackTrace();
+        assertEquals(expected.toString().replace(System.getProperty("line.separator"), "\n"), stackTrace);
+        assertTrue(stackTrace.startsWith("Custom description\n"));
+        assertTrue(stackTrace.contains("\tSuppressed: java.lang.IllegalArgumentException: Suppressed\n"));
+        assertTrue(stackTrace.contains("\tCaused by: java.lang.IllegalStateException: Inner\n"));
+    }
+
+    @Test
+    public void headersAndDescriptionAreReadBack() throws Exception {
+        long[] dates = {0, 951782400123L, 1234567890999L, System.currentTimeMillis()};
+        String description = "Line 1\r\nZeile 2 ü\n😀 \ud800 done";
+
+        CrashReportWriter writer = open(CrashReportWriter.BUFFER_SIZE);
+        writer.beginSection(CrashBundle.SECTION_HEADERS);
+        writer.writeHeader(CrashReportWriter.FIELD_APP_PACKAGE, "net.hockeyapp.test");
+        writer.writeHeader(CrashReportWriter.FIELD_OS_VERSION, null);
+        writer.writeThreadHeader(Thread.currentThread());
+        for (long date : dates) {
+            writer.writeDateHeader(CrashReportWriter.FIELD_APP_CRASH_DATE, date);
+        }
+        writer.beginSection(CrashBundle.SECTION_USER_ID);
+        writer.writeText("user\nid", 6);
+        writer.beginSection(CrashBundle.SECTION_CONTACT);
+        writer.writeText("contact@example.com", Integer.MAX_VALUE);
+        writer.beginSection(CrashBundle.SECTION_DESCRIPTION);
+        writer.writeText(description, Integer.MAX_VALUE);
+        writer.beginSection(CrashBundle.SECTION_STACK_TRACE);
+        writer.writeStackTrace("java.lang.RuntimeException\n\tat a.B.run(B.java:1)\n");
+        assertTrue(writer.commit());
+
+        String content = CrashBundle.read(writer.getReportFile()).getHeaders();
+        for (long date : dates) {
+            assertTrue(content.contains("Date: " + JSONDateUtils.toString(new Date(date)) + "\n"));
+        }
+        assertTrue(content.contains("Android: null\n"));
+        assertTrue(content.contains("Thread: " + Thread.currentThread().getName() + "-" + Thread.currentThread().getId() + "\n"));
+
+        CrashReport report = CrashReport.open(writer.getReportFile());
+        assertTrue(report.isBundle());
+        assertEquals("user\ni", read(report, CrashBundle.SECTION_USER_ID));
+        assertEquals("contact@example.com", read(report, CrashBundle.SECTION_CONTACT));
+        assertEquals(description.replace('\ud800', '?'), read(report, CrashBundle.SECTION_DESCRIPTION));
+        String raw = read(report, -1);
+        assertEquals(content + "\njava.lang.RuntimeException\n\tat a.B.run(B.java:1)\n", raw);
+        assertFalse(raw.contains("contact@example.com"));
+        assertFalse(raw.contains("Zeile"));
+
+        CrashDetails details = CrashDetails.fromFile(writer.getReportFile());
+        assertEquals("net.hockeyapp.test", details.getAppPackage());
+        assertEquals(new Date(dates[dates.length - 1]), details.getAppCrashDate());
+        assertEquals("java.lang.RuntimeException\n\tat a.B.run(B.java:1)\n", details.getThrowableStackTrace());
+    }
+
+    @Test
+    public void reportIsOnlyVisibleOnceCommitted() throws Exception {
+        CrashReportWriter writer = open(CrashReportWriter.BUFFER_SIZE);
+        File pending = new File(folder.getRoot(), writer.getIdentifier() + ".1" + CrashReportWriter.PENDING_EXTENSION);
+        assertTrue(pending.exists());
+        assertFalse(writer.getReportFile().exists());
+        assertTrue(writer.commit());
+        assertFalse(pending.exists());
+        assertTrue(writer.getReportFile().exists());
+
+        writer = open(CrashReportWriter.BUFFER_SIZE);
+        writer.abort();
+        assertFalse(writer.getReportFile().exists());
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void abortIsIdempotent() throws Exception {
+        CrashReportWriter writer = open(CrashReportWriter.BUFFER_SIZE);
+        assertTrue(writer.commit());
+        writer.abort();
+        assertTrue(writer.getReportFile().exists());
+
+        writer = open(CrashReportWriter.BUFFER_SIZE);
+        File pending = new File(folder.getRoot(), writer.getIdentifier() + ".1" + CrashReportWriter.PENDING_EXTENSION);
+        writer.abort();
+        assertFalse(pending.exists());
+        // A file which shows up later is not the one of this writer.
+        assertTrue(pending.createNewFile());
+        writer.abort();
+        assertTrue(pending.exists());
+        assertFalse(writer.commit());
+    }
+
+    @Test
+    public void numbersAreWrittenOverTheWholeRange() throws Exception {
+        CrashReportWriter writer = open(CrashReportWriter.BUFFER_SIZE);
+        writer.beginSection(CrashBundle.SECTION_HEADERS);
+        writer.writeHeader("Min", Long.MIN_VALUE);
+        writer.writeHeader("Negative", -42);
+        writer.writeHeader("Zero", 0);
+        writer.writeHeader("Max", Long.MAX_VALUE);
+        assertTrue(writer.commit());
+
+        assertEquals("Min: -9223372036854775808\nNegative: -42\nZero: 0\nMax: 9223372036854775807\n",
+                CrashBundle.read(writer.getReportFile()).getHeaders());
+    }
+
+    @Test
+    public void repeatedCrashIsCountedOnSavedReport() throws Exception {
+        CrashReportWriter writer = open(CrashReportWriter.BUFFER_SIZE);
+        writer.writeFingerprint(0x1234567890abcdefL);
+        writer.beginSection(CrashBundle.SECTION_STACK_TRACE);
+        writer.writeStackTrace("java.lang.RuntimeException\n");
+        assertTrue(writer.commit());
+        File saved = writer.getReportFile();
+        assertEquals(0x1234567890abcdefL, CrashBundle.readFingerprint(saved));
+        CrashBundle.incrementRetryCount(saved);
+
+        writer = open(CrashReportWriter.BUFFER_SIZE);
+        assertTrue(writer.commitAsRepeatOf(saved));
+        assertFalse(saved.exists());
+        assertEquals(1, folder.getRoot().list().length);
+        CrashBundle bundle = CrashBundle.read(writer.getReportFile());
+        assertEquals(2, bundle.getOccurrenceCount());
+        assertEquals(0, bundle.getRetryCount());
+        assertEquals(0x1234567890abcdefL, bundle.getFingerprint());
+        assertEquals("java.lang.RuntimeException\n", bundle.getStackTrace());
+        assertEquals(2, CrashReport.open(writer.getReportFile()).getOccurrenceCount());
+
+        // The saved report is gone, so the crash has to be written.
+        CrashReportWriter next = open(CrashReportWriter.BUFFER_SIZE);
+        assertFalse(next.commitAsRepeatOf(saved));
+        next.abort();
+    }
+
+    @Test
+    public void textReportReadsSideFiles() throws Exception {
+        write("legacy.stacktrace", "Package: net.hockeyapp.test\n\njava.lang.RuntimeException\n");
+        write("legacy.user", "user");
+        write("legacy.description", "Line 1\nLine 2");
+        File file = new File(folder.getRoot(), "legacy.stacktrace");
+
+        CrashReport report = CrashReport.open(file);
+        assertFalse(report.isBundle());
+        assertFalse(report.isEmpty());
+        assertEquals("Package: net.hockeyapp.test\n\njava.lang.RuntimeException\n", read(report, -1));
+        assertEquals("user", read(report, CrashBundle.SECTION_USER_ID));
+        assertEquals(0, report.getLength(CrashBundle.SECTION_CONTACT));
+        assertEquals("Line 1\nLine 2", read(report, CrashBundle.SECTION_DESCRIPTION));
+
+        CrashReport.delete(file);
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    /**
+     * Reads a part of a report the way it is streamed into a request, -1 for the raw report.
+     */
+    private static String read(CrashReport report, int section) throws Exception {
+        StreamingMultipartEntity entity = new StreamingMultipartEntity();
+        if (section < 0) {
+            report.appendRawTo(entity);
+        } else {
+            report.appendTo(entity, section);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        String body = out.toString("UTF-8");
+        return body.substring(0, body.lastIndexOf("\r\n--" + entity.getBoundary() + "--\r\n"));
+    }
+
+    private void write(String name, String content) throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), name));
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+    }
+
+    private CrashReportWriter open(int bufferSize) throws Exception {
+        String identifier = java.util.UUID.randomUUID().toString();
+        return new CrashReportWriter(new File(folder.getRoot(), identifier + ".1" + CrashReportWriter.PENDING_EXTENSION),
+                new File(folder.getRoot(), identifier + ".stacktrace"), bufferSize);
+    }
+}
@@ -0,0 +1,62 @@
+package net.hockeyapp.android.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the bytes the current thread allocates per run of a workload, to compare the
+ * allocations of two ways of doing the same work. Tests using it are skipped on VMs which can
+ * not measure thread allocations.
+ */
+class AllocationProbe {
+
+    private static final int WARM_UP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 2000;
+
+    /**
+     * The work measured, run once per iteration.
+     */
+    interface Workload {
+
+        void run(int iteration) throws Exception;
+    }
+
+    private final com.sun.management.ThreadMXBean mThreadBean;
+
+    AllocationProbe() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        mThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Asserts that the candidate allocates less than half of what the baseline allocates. Both
+     * workloads are warmed up first, so the JIT has compiled them when they are measured.
+     *
+     * @param baseline  The work done the old way.
+     * @param candidate The same work done the new way.
+     */
+    void assertAllocatesLessThanHalf(Workload baseline, Workload candidate) throws Exception {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            baseline.run(i);
+            candidate.run(i);
+        }
+        long baselineBytes = measure(baseline);
+        long candidateBytes = measure(candidate);
+        assertTrue("Bytes allocated per run: " + candidateBytes + ", expected less than half of " + baselineBytes,
+                candidateBytes * 2 < baselineBytes);
+    }
+
+    private long measure(Workload workload) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long start = mThreadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            workload.run(i);
+        }
+        return (mThreadBean.getThreadAllocatedBytes(threadId) - start) / MEASURED_ITERATIONS;
+    }
+}
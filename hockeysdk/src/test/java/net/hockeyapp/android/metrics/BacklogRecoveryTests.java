@@ -0,0 +1,160 @@
+package net.hockeyapp.android.metrics;
+
+import android.content.Context;
+import android.net.TrafficStats;
+
+import net.hockeyapp.android.utils.AsyncTaskUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+/**
+ * Recovers a backlog of persisted files against a local stand-in for the ingestion endpoint.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(TrafficStats.class)
+@PowerMockIgnore({"com.sun.net.httpserver.*", "javax.net.ssl.*"})
+public class BacklogRecoveryTests {
+
+    private static final long GRACE_PERIOD = 300;
+    private static final long UPLOAD_INTERVAL = 200;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ExecutorService mExecutor;
+    private IngestionServer mServer;
+
+    private Context mContext;
+    private Persistence mPersistence;
+    private Sender mSender;
+    private BacklogRecovery sut;
+
+    @Before
+    public void setUp() throws Exception {
+        mockStatic(TrafficStats.class);
+        mExecutor = Executors.newCachedThreadPool();
+        AsyncTaskUtils.setCustomExecutor(mExecutor);
+        mServer = new IngestionServer();
+        mContext = IngestionServer.mockContext(mFolder.getRoot());
+        mPersistence = new Persistence(mContext, null);
+        mSender = mServer.createSender(mPersistence);
+        sut = mSender.getBacklogRecovery();
+        sut.setGracePeriod(GRACE_PERIOD);
+        sut.setUploadInterval(UPLOAD_INTERVAL);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mServer.stop();
+        AsyncTaskUtils.setCustomExecutor(null);
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBacklogIsDrainedAfterGracePeriodAtControlledRate() throws Exception {
+        persistLargeFiles(3);
+        long start = System.nanoTime();
+
+        sut.start();
+        assertEquals(BacklogRecoveryStatus.State.WAITING, sut.getStatus().getState());
+        // New data does not compete with the launch either.
+        mSender.triggerSending();
+        Thread.sleep(GRACE_PERIOD / 2);
+        assertTrue(mServer.getRequestTimes().isEmpty());
+
+        BacklogRecoveryStatus status = waitForRecovery();
+        assertEquals(BacklogRecoveryStatus.State.COMPLETED, status.getState());
+        assertEquals(3, status.getBacklogFiles());
+        assertTrue(status.getBacklogBytes() > 3 * Sender.MAX_REQUEST_SIZE / 2);
+        assertEquals(3, status.getDrainedFiles());
+        assertTrue(status.getDrainedBytes() > 3 * Sender.MAX_REQUEST_SIZE / 2);
+        assertEquals(1f, status.getProgress(), 0f);
+
+        // One file per request, the first one after the grace period, then one per interval.
+        List<Long> requestTimes = mServer.getRequestTimes();
+        assertEquals(3, requestTimes.size());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(requestTimes.get(0) - start) >= GRACE_PERIOD);
+        for (int i = 1; i < requestTimes.size(); i++) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(requestTimes.get(i) - requestTimes.get(i - 1)) >= UPLOAD_INTERVAL);
+        }
+        assertEquals(0, mPersistence.getFileCount());
+        assertFalse(mSender.getUploadScheduler().isPaused());
+    }
+
+    @Test
+    public void testFailedUploadInterruptsRecovery() throws Exception {
+        persistLargeFiles(2);
+        mServer.setResponseCode(503);
+
+        sut.start(0);
+        BacklogRecoveryStatus status = waitForRecovery();
+        assertEquals(BacklogRecoveryStatus.State.INTERRUPTED, status.getState());
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, status.getDrainedFiles());
+        assertEquals(0f, status.getProgress(), 0f);
+        assertEquals(2, mPersistence.getFileCount());
+        assertFalse(mSender.getUploadScheduler().isPaused());
+
+        // Back online, the recovery starts over.
+        mServer.setResponseCode(200);
+        mSender.setUploadBackoff(new UploadBackoff(null));
+        sut.start(0);
+        status = waitForRecovery();
+        assertEquals(BacklogRecoveryStatus.State.COMPLETED, status.getState());
+        assertEquals(2, status.getDrainedFiles());
+        assertEquals(0, mPersistence.getFileCount());
+    }
+
+    @Test
+    public void testEmptyBacklogIsNotRecovered() throws Exception {
+        sut.start(0);
+        BacklogRecoveryStatus status = waitForRecovery();
+        assertEquals(BacklogRecoveryStatus.State.IDLE, status.getState());
+        assertEquals(0, status.getBacklogFiles());
+        assertTrue(mServer.getRequestTimes().isEmpty());
+        assertFalse(mSender.getUploadScheduler().isPaused());
+    }
+
+    /**
+     * Persists random events which do not compress, so every file fills a request on its own.
+     */
+    private void persistLargeFiles(int count) {
+        Random random = new Random(1);
+        for (int f = 0; f < count; f++) {
+            StringBuilder event = new StringBuilder("{\"name\":\"");
+            for (int i = 0; i < 2 * Persistence.MAX_SEGMENT_SIZE; i++) {
+                event.append((char) ('a' + random.nextInt(26)));
+            }
+            event.append("\"}");
+            mPersistence.persist(new String[]{event.toString()});
+        }
+        assertEquals(count, mPersistence.getFileCount());
+    }
+
+    private BacklogRecoveryStatus waitForRecovery() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        do {
+            Thread.sleep(10);
+        } while (sut.isRunning() && System.currentTimeMillis() < deadline);
+        assertFalse(sut.isRunning());
+        return sut.getStatus();
+    }
+}
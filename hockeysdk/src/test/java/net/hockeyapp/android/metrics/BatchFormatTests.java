@@ -0,0 +1,188 @@
+package net.hockeyapp.android.metrics;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BatchFormatTests {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Persistence mPersistence;
+
+    @Before
+    public void setUp() {
+        Context context = mock(Context.class);
+        when(context.getFilesDir()).thenReturn(mFolder.getRoot());
+        mPersistence = new Persistence(context, null);
+    }
+
+    @Test
+    public void testPayloadsOfRecordsAreConcatenated() throws IOException {
+        SegmentedLog log = new SegmentedLog(mFolder.newFolder(), 1024, 60 * 1000, 4096,
+                SegmentedLog.SyncPolicy.ON_ROTATE, false);
+        log.append("{\"a\":1}".getBytes("UTF-8"), 2);
+        log.append("{\"b\":2}".getBytes("UTF-8"), 1);
+        File segment = log.nextSegment(Collections.<File>emptyList());
+
+        assertEquals(2 * BatchFormat.HEADER_SIZE + 15, segment.length());
+        assertEquals("{\"a\":1}\n{\"b\":2}", new String(read(segment), "UTF-8"));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segment, "r");
+        assertEquals(BatchFormat.MAGIC, randomAccessFile.readInt());
+        assertEquals(0, randomAccessFile.readByte());
+        assertEquals(2, randomAccessFile.readInt());
+        assertEquals(7, randomAccessFile.readInt());
+        randomAccessFile.close();
+    }
+
+    @Test
+    public void testLegacyFilesAreReadAsTheyAre() throws IOException {
+        File legacy = write("{\"name\":\"legacy\"}".getBytes("UTF-8"));
+        assertEquals("{\"name\":\"legacy\"}", new String(read(legacy), "UTF-8"));
+        assertEquals(0, read(write(new byte[0])).length);
+    }
+
+    @Test(expected = BatchFormat.CorruptBatchException.class)
+    public void testChecksumMismatchIsDetected() throws IOException {
+        File file = persistOneFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(file.length() - 1);
+        int last = randomAccessFile.read();
+        randomAccessFile.seek(file.length() - 1);
+        randomAccessFile.write(last ^ 0xff);
+        randomAccessFile.close();
+
+        read(file);
+    }
+
+    @Test(expected = BatchFormat.CorruptBatchException.class)
+    public void testTruncatedRecordIsDetected() throws IOException {
+        File file = persistOneFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(file.length() - 3);
+        randomAccessFile.close();
+
+        read(file);
+    }
+
+    @Test
+    public void testTransferStreamsPayloadsThroughBuffer() throws IOException {
+        mPersistence.persist(new String[]{"{\"name\":\"a\"}"});
+        mPersistence.persist(new String[]{"{\"name\":\"b\"}", "{\"name\":\"c\"}"});
+        File file = mPersistence.nextAvailableFileInDirectory();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream inputStream = new FileInputStream(file);
+        BatchFormat.Info info = BatchFormat.check(inputStream.getChannel(), new byte[3]);
+        BatchFormat.transfer(inputStream.getChannel(), out, new byte[3]);
+        inputStream.close();
+
+        assertTrue(info.isCompressed());
+        assertEquals(3, info.getItemCount());
+        assertEquals(info.getPayloadLength(), out.size());
+        assertArrayEquals(read(file), out.toByteArray());
+    }
+
+    @Test(expected = BatchFormat.CorruptBatchException.class)
+    public void testCheckDetectsChecksumMismatch() throws IOException {
+        File file = persistOneFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(BatchFormat.HEADER_SIZE + 1);
+        randomAccessFile.write(0);
+        randomAccessFile.close();
+
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            BatchFormat.check(inputStream.getChannel(), new byte[16]);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test(expected = BatchFormat.CorruptBatchException.class)
+    public void testCheckDetectsUncompletedMember() throws IOException {
+        File file = persistOneFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(file.length() - BatchFormat.HEADER_SIZE - GzipCodec.END_SIZE);
+        randomAccessFile.close();
+
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            BatchFormat.check(inputStream.getChannel(), new byte[16]);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void testCorruptFilesAreQuarantined() throws IOException {
+        long quarantinedBefore = PipelineCounters.getInstance().snapshot(null, null, null, null).getFilesQuarantined();
+        File file = persistOneFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(BatchFormat.HEADER_SIZE);
+        randomAccessFile.write(0);
+        randomAccessFile.close();
+
+        assertNull(mPersistence.loadBytes(file));
+        assertFalse(file.exists());
+        assertEquals(0, mPersistence.getLog().getTotalSize());
+        assertNull(mPersistence.nextAvailableFileInDirectory());
+        File[] quarantined = mPersistence.getQuarantineDirectory().listFiles();
+        assertEquals(1, quarantined.length);
+        assertTrue(quarantined[0].getName().endsWith(file.getName()));
+        assertEquals(1, PipelineCounters.getInstance().snapshot(null, null, null, null).getFilesQuarantined() - quarantinedBefore);
+
+        // Valid files are still sent.
+        File valid = persistOneFile();
+        assertTrue(GzipCodec.isCompressed(mPersistence.loadBytes(valid), 2));
+        assertEquals("{\"name\":\"event\"}", mPersistence.load(valid));
+    }
+
+    @Test
+    public void testQuarantineKeepsLatestFiles() throws IOException {
+        for (int i = 0; i < Persistence.MAX_QUARANTINED_FILES + 2; i++) {
+            mPersistence.quarantine(write(new byte[]{(byte) i}));
+        }
+        assertEquals(Persistence.MAX_QUARANTINED_FILES, mPersistence.getQuarantineDirectory().listFiles().length);
+    }
+
+    private File persistOneFile() {
+        mPersistence.persist(new String[]{"{\"name\":\"event\"}"});
+        File file = mPersistence.nextAvailableFileInDirectory();
+        assertNotNull(file);
+        return file;
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(content);
+        outputStream.close();
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return BatchFormat.read(inputStream.getChannel());
+        } finally {
+            inputStream.close();
+        }
+    }
+}
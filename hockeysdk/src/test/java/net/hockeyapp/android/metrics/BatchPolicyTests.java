@@ -0,0 +1,159 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.Util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Util.class})
+public class BatchPolicyTests {
+
+    private static BatchState state(BatchState.NetworkType networkType, boolean powerSaveMode,
+                                    boolean inForeground, double growthRate, boolean debugger) {
+        return new BatchState(networkType, powerSaveMode, inForeground, growthRate, debugger);
+    }
+
+    @Before
+    public void setUp() {
+        mockStatic(Util.class);
+        when(Util.isDebuggerConnected()).thenReturn(false);
+    }
+
+    @Test
+    public void testDefaultPolicyKeepsConstants() {
+        BatchPolicy policy = new DefaultBatchPolicy();
+
+        for (BatchState.NetworkType networkType : BatchState.NetworkType.values()) {
+            BatchState state = state(networkType, true, false, 100, false);
+            assertEquals(Channel.MAX_BATCH_COUNT, policy.getMaxBatchCount(state));
+            assertEquals(Channel.MAX_BATCH_INTERVAL, policy.getMaxBatchInterval(state));
+        }
+        BatchState debugState = state(BatchState.NetworkType.WIFI, false, true, 0, true);
+        assertEquals(Channel.MAX_BATCH_COUNT_DEBUG, policy.getMaxBatchCount(debugState));
+        assertEquals(Channel.MAX_BATCH_INTERVAL_DEBUG, policy.getMaxBatchInterval(debugState));
+    }
+
+    @Test
+    public void testNetworkAwarePolicy() {
+        BatchPolicy policy = new NetworkAwareBatchPolicy();
+
+        BatchState wifi = state(BatchState.NetworkType.WIFI, false, true, 0, false);
+        assertEquals(Channel.MAX_BATCH_COUNT, policy.getMaxBatchCount(wifi));
+        assertEquals(Channel.MAX_BATCH_INTERVAL, policy.getMaxBatchInterval(wifi));
+
+        BatchState cellular = state(BatchState.NetworkType.CELLULAR, false, true, 0, false);
+        assertEquals(NetworkAwareBatchPolicy.CELLULAR_BATCH_COUNT, policy.getMaxBatchCount(cellular));
+        assertEquals(NetworkAwareBatchPolicy.CELLULAR_BATCH_INTERVAL, policy.getMaxBatchInterval(cellular));
+
+        BatchState[] idleStates = {
+                state(BatchState.NetworkType.WIFI, false, false, 0, false),
+                state(BatchState.NetworkType.CELLULAR, true, true, 0, false),
+                state(BatchState.NetworkType.NONE, false, true, 0, false)
+        };
+        for (BatchState idle : idleStates) {
+            assertEquals(NetworkAwareBatchPolicy.IDLE_BATCH_COUNT, policy.getMaxBatchCount(idle));
+            assertEquals(NetworkAwareBatchPolicy.IDLE_BATCH_INTERVAL, policy.getMaxBatchInterval(idle));
+        }
+
+        BatchState debugger = state(BatchState.NetworkType.CELLULAR, true, false, 1000, true);
+        assertEquals(Channel.MAX_BATCH_COUNT_DEBUG, policy.getMaxBatchCount(debugger));
+        assertEquals(Channel.MAX_BATCH_INTERVAL_DEBUG, policy.getMaxBatchInterval(debugger));
+    }
+
+    @Test
+    public void testNetworkAwarePolicyGrowsBatchesDuringBursts() {
+        BatchPolicy policy = new NetworkAwareBatchPolicy();
+
+        BatchState slow = state(BatchState.NetworkType.WIFI, false, true, 1, false);
+        assertEquals(Channel.MAX_BATCH_COUNT, policy.getMaxBatchCount(slow));
+
+        BatchState burst = state(BatchState.NetworkType.WIFI, false, true, 20, false);
+        assertEquals(20 * NetworkAwareBatchPolicy.MIN_BATCH_DURATION / 1000, policy.getMaxBatchCount(burst));
+
+        BatchState flood = state(BatchState.NetworkType.WIFI, false, true, 100000, false);
+        assertEquals(NetworkAwareBatchPolicy.MAX_BURST_BATCH_COUNT, policy.getMaxBatchCount(flood));
+    }
+
+    @Test
+    public void testChannelAppliesPolicyOnNewBatch() {
+        Persistence persistence = mock(Persistence.class);
+        Channel channel = new Channel(null, persistence);
+        channel.setBatchPolicy(new FixedBatchPolicy(3, 60 * 1000));
+
+        channel.enqueue("1");
+        channel.enqueue("2");
+        verify(persistence, never()).persist(any(String[].class), eq(2), anyLong(), eq(PriorityLane.LOW));
+        assertEquals(3, channel.getCurrentMaxBatchCount());
+        assertEquals(60 * 1000, channel.getCurrentMaxBatchInterval());
+
+        channel.enqueue("3");
+        verify(persistence).persist(any(String[].class), eq(3), anyLong(), eq(PriorityLane.LOW));
+        assertEquals(0, channel.mQueue.size());
+        assertTrue(channel.getQueueGrowthRate() > 0);
+    }
+
+    @Test
+    public void testChannelClampsPolicyLimits() {
+        Channel channel = new Channel(null, mock(Persistence.class));
+        channel.setBatchPolicy(new FixedBatchPolicy(Integer.MAX_VALUE, -1));
+        channel.enqueue("1");
+        assertEquals(Channel.MAX_QUEUE_CAPACITY, channel.getCurrentMaxBatchCount());
+        assertEquals(0, channel.getCurrentMaxBatchInterval());
+        channel.synchronize();
+
+        channel.setBatchPolicy(new FixedBatchPolicy(0, 1000));
+        channel.enqueue("2");
+        assertEquals(1, channel.getCurrentMaxBatchCount());
+        assertEquals(0, channel.mQueue.size());
+    }
+
+    @Test
+    public void testChannelPassesForegroundStateToPolicy() {
+        Channel channel = new Channel(null, mock(Persistence.class));
+        assertTrue(channel.getBatchState().isInForeground());
+        assertEquals(BatchState.NetworkType.OTHER, channel.getBatchState().getNetworkType());
+
+        channel.setInForeground(false);
+        channel.setBatchPolicy(new NetworkAwareBatchPolicy());
+        channel.enqueue("1");
+        assertEquals(NetworkAwareBatchPolicy.IDLE_BATCH_COUNT, channel.getCurrentMaxBatchCount());
+
+        channel.setBatchPolicy(null);
+        assertTrue(channel.getBatchPolicy() instanceof DefaultBatchPolicy);
+    }
+
+    private static class FixedBatchPolicy implements BatchPolicy {
+
+        private final int mCount;
+        private final int mInterval;
+
+        FixedBatchPolicy(int count, int interval) {
+            mCount = count;
+            mInterval = interval;
+        }
+
+        @Override
+        public int getMaxBatchCount(BatchState state) {
+            return mCount;
+        }
+
+        @Override
+        public int getMaxBatchInterval(BatchState state) {
+            return mInterval;
+        }
+    }
+}
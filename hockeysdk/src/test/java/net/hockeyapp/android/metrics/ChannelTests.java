@@ -1,5 +1,8 @@
 package net.hockeyapp.android.metrics;
 
+import net.hockeyapp.android.metrics.model.Data;
+import net.hockeyapp.android.metrics.model.Domain;
+import net.hockeyapp.android.metrics.model.EventData;
 import net.hockeyapp.android.utils.Util;
 
 import org.junit.Test;
@@ -7,7 +10,13 @@ import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.LinkedHashMap;
+
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import static org.powermock.api.mockito.PowerMockito.when;
 
@@ -32,4 +41,27 @@ public class ChannelTests {
         assertEquals(Channel.getMaxBatchCount(), Channel.MAX_BATCH_COUNT);
         assertEquals(Channel.getMaxBatchInterval(), Channel.MAX_BATCH_INTERVAL);
     }
+
+    @Test
+    public void testDroppedItemsDoNotCountTowardsCaptureTime() {
+        mockStatic(Util.class);
+        when(Util.isDebuggerConnected()).thenReturn(false);
+        TelemetryContext telemetryContext = mock(TelemetryContext.class);
+        when(telemetryContext.getContextTagsSnapshot()).thenReturn(new ContextTags(1, new LinkedHashMap<String, String>()));
+        Persistence persistence = mock(Persistence.class);
+        Channel channel = new Channel(telemetryContext, persistence);
+        channel.setOverflowPolicy(RingBuffer.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < Channel.MAX_QUEUE_CAPACITY; i++) {
+            assertTrue(channel.mQueue.offer("item"));
+        }
+
+        EventData event = new EventData();
+        event.setName("dropped");
+        Data<Domain> data = new Data<>();
+        data.setBaseData(event);
+        channel.enqueueData(data, 1000);
+        channel.synchronize();
+
+        verify(persistence).persist(any(String[].class), eq(Channel.MAX_QUEUE_CAPACITY), eq(0L), eq(PriorityLane.LOW));
+    }
 }
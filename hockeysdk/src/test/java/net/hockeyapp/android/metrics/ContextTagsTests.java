@@ -0,0 +1,39 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ContextTagsTests {
+
+    @Test
+    public void testTagsAreSerializedOnCreation() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("ai.device.id", "id");
+        tags.put("ai.session.id", "session \"1\"");
+
+        ContextTags sut = new ContextTags(3, tags);
+
+        assertEquals(3, sut.getVersion());
+        assertEquals("{\"ai.device.id\":\"id\",\"ai.session.id\":\"session \\\"1\\\"\"}", sut.getSerializedTags());
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedBySourceChanges() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("ai.device.id", "id");
+
+        ContextTags sut = new ContextTags(0, tags);
+        tags.put("ai.session.id", "session");
+
+        assertEquals(1, sut.getTags().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testTagsCannotBeModified() {
+        new ContextTags(0, new LinkedHashMap<String, String>()).getTags().put("key", "value");
+    }
+}
@@ -0,0 +1,133 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Data;
+import net.hockeyapp.android.metrics.model.Domain;
+import net.hockeyapp.android.metrics.model.EventData;
+import net.hockeyapp.android.metrics.model.SessionState;
+import net.hockeyapp.android.metrics.model.SessionStateData;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class EnvelopeCoalescerTests {
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(EnvelopeCoalescer.SESSION_STATE_WINDOW);
+
+    private EnvelopeCoalescer sut;
+
+    private static SessionStateData sessionState(SessionState state) {
+        SessionStateData data = new SessionStateData();
+        data.setState(state);
+        return data;
+    }
+
+    private static EventData event(String name, String... properties) {
+        EventData data = new EventData();
+        data.setName(name);
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put(properties[i], properties[i + 1]);
+        }
+        data.setProperties(map);
+        return data;
+    }
+
+    @Before
+    public void setUp() {
+        sut = new EnvelopeCoalescer();
+    }
+
+    @Test
+    public void testRepeatedSessionStateIsSuppressedWithinWindow() {
+        long now = System.nanoTime();
+        assertFalse(sut.isDuplicate(sessionState(SessionState.START), 1, now));
+        assertTrue(sut.isDuplicate(sessionState(SessionState.START), 1, now + 1000));
+        assertFalse(sut.isDuplicate(sessionState(SessionState.END), 1, now + 2000));
+        // A new telemetry context means a new session.
+        assertFalse(sut.isDuplicate(sessionState(SessionState.START), 2, now + 3000));
+        assertEquals(1, sut.getSuppressedCount());
+
+        // The window starts with the first item, a steady stream still gets through.
+        assertFalse(sut.isDuplicate(sessionState(SessionState.START), 2, now + WINDOW_NANOS + 3000));
+    }
+
+    @Test
+    public void testEventsAreOnlyCoalescedIfEnabled() {
+        long now = System.nanoTime();
+        assertFalse(sut.isDuplicate(event("tap"), 1, now));
+        assertFalse(sut.isDuplicate(event("tap"), 1, now));
+
+        sut.setEventWindow(1000);
+        assertFalse(sut.isDuplicate(event("tap", "a", "1"), 1, now));
+        assertTrue(sut.isDuplicate(event("tap", "a", "1"), 1, now + 1));
+        assertFalse(sut.isDuplicate(event("tap", "a", "2"), 1, now + 2));
+        assertFalse(sut.isDuplicate(event("tap", "a", "1"), 1, now + TimeUnit.SECONDS.toNanos(2)));
+
+        sut.setEventWindow(0);
+        assertFalse(sut.isDuplicate(event("tap", "a", "1"), 1, now + TimeUnit.SECONDS.toNanos(2)));
+    }
+
+    @Test
+    public void testEventsSharingCacheSlotsAreAllCoalesced() {
+        long now = System.nanoTime();
+        sut.setEventWindow(1000);
+        int count = EnvelopeCoalescer.CACHE_SIZE / EnvelopeCoalescer.WAYS;
+        for (int i = 0; i < count; i++) {
+            assertFalse(sut.isDuplicate(event("tap" + i), 1, now + i));
+        }
+        for (int i = 0; i < count; i++) {
+            assertTrue(sut.isDuplicate(event("tap" + i), 1, now + count + i));
+        }
+        assertEquals(count, sut.getSuppressedCount());
+    }
+
+    @Test
+    public void testFingerprintIgnoresOrderButNotContent() {
+        assertEquals(EnvelopeCoalescer.fingerprint(event("e", "a", "1", "b", "2")),
+                EnvelopeCoalescer.fingerprint(event("e", "b", "2", "a", "1")));
+        assertNotEquals(EnvelopeCoalescer.fingerprint(event("e", "a", "1")),
+                EnvelopeCoalescer.fingerprint(event("e", "a1", "")));
+        assertNotEquals(EnvelopeCoalescer.fingerprint(event("e", "a", "1")),
+                EnvelopeCoalescer.fingerprint(event("f", "a", "1")));
+
+        EventData measured = event("e", "a", "1");
+        measured.setMeasurements(java.util.Collections.singletonMap("m", 2.0));
+        EventBuilder builder = EventBuilder.obtain("e").put("m", 2L).put("a", "1");
+        assertEquals(EnvelopeCoalescer.fingerprint(measured),
+                EnvelopeCoalescer.fingerprint(builder.getData().getBaseData()));
+        builder.recycle();
+    }
+
+    @Test
+    public void testOtherTelemetryIsNotCoalesced() {
+        assertFalse(sut.isDuplicate(null, 0, 0));
+        assertFalse(sut.isDuplicate(null, 0, 0));
+    }
+
+    @Test
+    public void testChannelDropsRepeatedSessionState() {
+        TelemetryContext telemetryContext = mock(TelemetryContext.class);
+        when(telemetryContext.getContextTagsSnapshot()).thenReturn(new ContextTags(3, new LinkedHashMap<String, String>()));
+        Channel channel = spy(new Channel(telemetryContext, mock(Persistence.class)));
+        doReturn(true).when(channel).enqueue(anyString(), any(PriorityLane.class), anyLong());
+
+        Data<Domain> first = new Data<>();
+        first.setBaseData(sessionState(SessionState.START));
+        Data<Domain> second = new Data<>();
+        second.setBaseData(sessionState(SessionState.START));
+        channel.enqueueData(first, 0, 100);
+        channel.enqueueData(second, 0, 100);
+
+        verify(channel, times(1)).createEnvelope(any(Data.class), anyLong());
+        assertEquals(1, channel.getCoalescer().getSuppressedCount());
+    }
+}
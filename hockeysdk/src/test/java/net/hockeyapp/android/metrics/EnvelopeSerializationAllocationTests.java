@@ -0,0 +1,84 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Data;
+import net.hockeyapp.android.metrics.model.Domain;
+import net.hockeyapp.android.metrics.model.Envelope;
+import net.hockeyapp.android.metrics.model.EventData;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Microbenchmark comparing the bytes allocated per serialized envelope when using a new
+ * {@link StringWriter} for every envelope and when reusing a {@link JsonStreamWriter}.
+ */
+public class EnvelopeSerializationAllocationTests {
+
+    private Envelope mEnvelope;
+
+    @Before
+    public void setUp() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        for (int i = 0; i < 15; i++) {
+            tags.put("ai.context.tag" + i, "value of tag number " + i);
+        }
+        EventData eventData = new EventData();
+        eventData.setName("Some event");
+        Data<Domain> data = new Data<>();
+        data.setBaseData(eventData);
+        data.setBaseType(eventData.getBaseType());
+
+        mEnvelope = new Envelope();
+        mEnvelope.setName(eventData.getEnvelopeName());
+        mEnvelope.setTime("2016-05-13T14:00:00.000+0200");
+        mEnvelope.setIKey("00000000000000000000000000000000");
+        mEnvelope.setSeqNum(1);
+        mEnvelope.setTags(tags);
+        mEnvelope.setData(data);
+    }
+
+    @Test
+    public void testReusedWriterProducesSameOutput() throws IOException {
+        JsonStreamWriter sut = new JsonStreamWriter();
+
+        assertEquals(serializeWithStringWriter(), serializeWithStreamWriter(sut));
+        assertEquals(serializeWithStringWriter(), serializeWithStreamWriter(sut));
+    }
+
+    @Test
+    public void testReusedWriterAllocatesLessThanStringWriter() throws Exception {
+        final JsonStreamWriter sut = new JsonStreamWriter();
+        new AllocationProbe().assertAllocatesLessThanHalf(new AllocationProbe.Workload() {
+
+            @Override
+            public void run(int iteration) throws IOException {
+                serializeWithStringWriter();
+            }
+        }, new AllocationProbe.Workload() {
+
+            @Override
+            public void run(int iteration) throws IOException {
+                serializeWithStreamWriter(sut);
+            }
+        });
+    }
+
+    private String serializeWithStringWriter() throws IOException {
+        StringWriter writer = new StringWriter();
+        mEnvelope.serialize(writer);
+        return writer.toString();
+    }
+
+    private String serializeWithStreamWriter(JsonStreamWriter writer) throws IOException {
+        writer.reset();
+        mEnvelope.serialize(writer);
+        return writer.toString();
+    }
+}
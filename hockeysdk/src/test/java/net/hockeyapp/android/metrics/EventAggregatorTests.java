@@ -0,0 +1,141 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.EventData;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EventAggregatorTests {
+
+    private EventAggregator sut;
+
+    private static Map<String, Double> measurement(String name, double value) {
+        return Collections.singletonMap(name, value);
+    }
+
+    private static EventData find(List<EventAggregator.Summary> summaries, String screen) {
+        for (EventAggregator.Summary summary : summaries) {
+            Map<String, String> properties = summary.getData().getProperties();
+            String value = properties != null ? properties.get("screen") : null;
+            if (screen == null ? value == null : screen.equals(value)) {
+                return summary.getData();
+            }
+        }
+        fail("Missing summary for " + screen);
+        return null;
+    }
+
+    @Before
+    public void setUp() {
+        sut = new EventAggregator();
+        sut.enable("scroll");
+    }
+
+    @Test
+    public void testOnlyEnabledEventsAreRecorded() {
+        assertTrue(sut.isAggregated("scroll"));
+        assertFalse(sut.isAggregated("tap"));
+        assertFalse(sut.record("tap", null, null, 100));
+        assertTrue(sut.record("scroll", null, null, 100));
+
+        sut.disable("scroll");
+        assertFalse(sut.isAggregated("scroll"));
+        assertFalse(sut.record("scroll", null, null, 100));
+        // Events recorded before are still summarized.
+        assertEquals(1, sut.drain().size());
+    }
+
+    @Test
+    public void testEventsAreSummarizedPerPropertySet() {
+        Map<String, String> main = new HashMap<>();
+        main.put("screen", "main");
+        Map<String, String> settings = Collections.singletonMap("screen", "settings");
+
+        for (int i = 1; i <= 100; i++) {
+            sut.record("scroll", main, measurement("distance", i), 100);
+        }
+        sut.record("scroll", new HashMap<>(settings), measurement("distance", 7), 100);
+        sut.record("scroll", null, null, 100);
+        sut.record("scroll", Collections.<String, String>emptyMap(), null, 100);
+        assertEquals(3, sut.getSeriesCount());
+
+        List<EventAggregator.Summary> summaries = sut.drain();
+        assertEquals(3, summaries.size());
+        assertEquals(0, sut.getSeriesCount());
+        assertTrue(sut.drain().isEmpty());
+
+        EventData mainSummary = find(summaries, "main");
+        assertEquals("scroll", mainSummary.getName());
+        Map<String, Double> values = mainSummary.getMeasurements();
+        assertEquals(100, values.get(EventAggregator.EVENT_COUNT), 0);
+        assertTrue(values.get(EventAggregator.WINDOW_DURATION) >= 0);
+        assertEquals(100, values.get("distance.count"), 0);
+        assertEquals(5050, values.get("distance.sum"), 0);
+        assertEquals(1, values.get("distance.min"), 0);
+        assertEquals(100, values.get("distance.max"), 0);
+        assertFalse(values.containsKey("distance.le_inf"));
+
+        assertEquals(7, find(summaries, "settings").getMeasurements().get("distance.sum"), 0);
+        EventData noProperties = find(summaries, null);
+        assertTrue(noProperties.getProperties().isEmpty());
+        assertEquals(2, noProperties.getMeasurements().get(EventAggregator.EVENT_COUNT), 0);
+    }
+
+    @Test
+    public void testHistogramBucketsAreReported() {
+        sut.enable("load", 100, 10);
+        sut.record("load", null, measurement("time", 5), 100);
+        sut.record("load", null, measurement("time", 50), 100);
+        sut.record("load", null, measurement("time", 500), 100);
+
+        Map<String, Double> values = sut.drain().get(0).getData().getMeasurements();
+        assertEquals(1, values.get("time.le_10.0"), 0);
+        assertEquals(1, values.get("time.le_100.0"), 0);
+        assertEquals(1, values.get("time.le_inf"), 0);
+    }
+
+    @Test
+    public void testBuilderEventsShareGroupsWithMapEvents() {
+        sut.record("scroll", Collections.singletonMap("screen", "main"), measurement("distance", 10), 100);
+        EventBuilder builder = EventBuilder.obtain("scroll").put("screen", "main").put("distance", 5L);
+        assertTrue(sut.record(builder, 100));
+        builder.recycle();
+        builder = EventBuilder.obtain("scroll").put("screen", "other").put("distance", 1.0);
+        assertTrue(sut.record(builder, 100));
+        builder.recycle();
+
+        assertEquals(2, sut.getSeriesCount());
+        List<EventAggregator.Summary> summaries = sut.drain();
+        Map<String, Double> values = find(summaries, "main").getMeasurements();
+        assertEquals(2, values.get(EventAggregator.EVENT_COUNT), 0);
+        assertEquals(15, values.get("distance.sum"), 0);
+        assertEquals(1, find(summaries, "other").getMeasurements().get("distance.sum"), 0);
+    }
+
+    @Test
+    public void testSampleRateIsKept() {
+        sut.record("scroll", null, null, 25);
+        assertEquals(25, sut.drain().get(0).getSampleRate());
+    }
+
+    @Test
+    public void testNumberOfGroupsIsLimited() {
+        for (int i = 0; i < EventAggregator.MAX_SERIES_COUNT; i++) {
+            assertTrue(sut.record("scroll", Collections.singletonMap("screen", "s" + i), null, 100));
+        }
+        assertFalse(sut.record("scroll", Collections.singletonMap("screen", "other"), null, 100));
+        assertTrue(sut.record("scroll", Collections.singletonMap("screen", "s0"), null, 100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWindowIsRejected() {
+        sut.setWindow(0);
+    }
+}
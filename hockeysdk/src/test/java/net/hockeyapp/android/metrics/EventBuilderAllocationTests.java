@@ -0,0 +1,84 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Data;
+import net.hockeyapp.android.metrics.model.Domain;
+import net.hockeyapp.android.metrics.model.EventData;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Microbenchmark comparing the bytes allocated per tracked and serialized event when using maps
+ * for properties and measurements and when using a pooled {@link EventBuilder}.
+ */
+public class EventBuilderAllocationTests {
+
+    private JsonStreamWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mWriter = new JsonStreamWriter();
+    }
+
+    @Test
+    public void testBuilderAllocatesLessThanMaps() throws Exception {
+        new AllocationProbe().assertAllocatesLessThanHalf(new AllocationProbe.Workload() {
+
+            @Override
+            public void run(int iteration) throws IOException {
+                trackWithMaps(iteration);
+            }
+        }, new AllocationProbe.Workload() {
+
+            @Override
+            public void run(int iteration) throws IOException {
+                trackWithBuilder(iteration);
+            }
+        });
+    }
+
+    /**
+     * What a caller and the SDK allocate for an event tracked with maps, up to serialization.
+     */
+    private void trackWithMaps(int i) throws IOException {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("screen", "main");
+        properties.put("source", "wifi");
+        Map<String, Double> measurements = new HashMap<>();
+        measurements.put("bytes", (double) (i * 1024));
+        measurements.put("seconds", i / 1000.0);
+        measurements.put("retries", 3.0);
+
+        EventData eventData = new EventData();
+        eventData.setName("Download");
+        eventData.setProperties(properties);
+        eventData.setMeasurements(measurements);
+        Data<Domain> data = new Data<>();
+        data.setBaseData(eventData);
+        data.setBaseType(eventData.getBaseType());
+        data.QualifiedName = eventData.getEnvelopeName();
+
+        mWriter.reset();
+        data.serialize(mWriter);
+    }
+
+    /**
+     * The same event tracked with a builder, which is recycled after serialization.
+     */
+    private void trackWithBuilder(int i) throws IOException {
+        EventBuilder builder = EventBuilder.obtain("Download")
+                .put("screen", "main")
+                .put("source", "wifi")
+                .put("bytes", (long) i * 1024)
+                .put("seconds", i / 1000.0)
+                .put("retries", 3L);
+
+        mWriter.reset();
+        builder.getData().serialize(mWriter);
+        builder.recycle();
+    }
+}
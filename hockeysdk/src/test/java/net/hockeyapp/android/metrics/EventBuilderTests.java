@@ -0,0 +1,140 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Data;
+import net.hockeyapp.android.metrics.model.Domain;
+import net.hockeyapp.android.metrics.model.EventData;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class EventBuilderTests {
+
+    private static String serialize(Data<Domain> data) throws IOException {
+        JsonStreamWriter writer = new JsonStreamWriter();
+        data.serialize(writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void testSerializesLikeMapBasedEvent() throws IOException {
+        EventBuilder builder = EventBuilder.obtain("Download")
+                .put("source", "wifi")
+                .put("quote", "a \"b\"")
+                .put("seconds", 1.5)
+                .put("retries", 3.0);
+
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("source", "wifi");
+        properties.put("quote", "a \"b\"");
+        Map<String, Double> measurements = new LinkedHashMap<>();
+        measurements.put("seconds", 1.5);
+        measurements.put("retries", 3.0);
+        EventData eventData = new EventData();
+        eventData.setName("Download");
+        eventData.setProperties(properties);
+        eventData.setMeasurements(measurements);
+        Data<Domain> data = new Data<>();
+        data.setBaseData(eventData);
+        data.setBaseType(eventData.getBaseType());
+
+        assertEquals(serialize(data), serialize(builder.getData()));
+        builder.recycle();
+    }
+
+    @Test
+    public void testPutReplacesValuesAndKeepsLongs() throws IOException {
+        EventBuilder builder = EventBuilder.obtain("Event")
+                .put("key", "first")
+                .put("key", "second")
+                .put("bytes", 1.5)
+                .put("bytes", 9007199254740993L);
+        for (int i = 0; i < 10; i++) {
+            builder.put("m" + i, i);
+        }
+
+        assertEquals(1, builder.getPropertyCount());
+        assertEquals("second", builder.getPropertyValue(0));
+        assertEquals(11, builder.getMeasurementCount());
+        String json = serialize(builder.getData());
+        assertTrue(json, json.contains("\"properties\":{\"key\":\"second\"}"));
+        assertTrue(json, json.contains("\"bytes\":9007199254740993,"));
+        assertTrue(json, json.contains("\"m9\":9}"));
+        builder.recycle();
+    }
+
+    @Test
+    public void testEmptyBuilderOmitsPropertiesAndMeasurements() throws IOException {
+        EventBuilder builder = EventBuilder.obtain("Event");
+        String json = serialize(builder.getData());
+        assertFalse(json.contains("properties"));
+        assertFalse(json.contains("measurements"));
+        assertTrue(json.contains("\"name\":\"Event\""));
+        builder.recycle();
+    }
+
+    @Test
+    public void testRecycledBuildersAreReused() {
+        EventBuilder builder = EventBuilder.obtain("First").put("key", "value").put("value", 1L);
+        builder.recycle();
+        int poolSize = EventBuilder.getPoolSize();
+        assertTrue(poolSize > 0);
+
+        EventBuilder reused = EventBuilder.obtain("Second");
+        assertSame(builder, reused);
+        assertEquals(poolSize - 1, EventBuilder.getPoolSize());
+        assertEquals("Second", reused.getName());
+        assertEquals(0, reused.getPropertyCount());
+        assertEquals(0, reused.getMeasurementCount());
+        reused.recycle();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRecycledBuilderCannotBeUsed() {
+        EventBuilder builder = EventBuilder.obtain("Event");
+        builder.recycle();
+        builder.put("key", 1.0);
+    }
+
+    @Test
+    public void testPoolSizeIsLimited() {
+        List<EventBuilder> builders = new ArrayList<>();
+        for (int i = 0; i < EventBuilder.MAX_POOL_SIZE * 2; i++) {
+            builders.add(EventBuilder.obtain("Event"));
+        }
+        for (EventBuilder builder : builders) {
+            builder.recycle();
+        }
+        assertEquals(EventBuilder.MAX_POOL_SIZE, EventBuilder.getPoolSize());
+    }
+
+    @Test
+    public void testSerializationStageRecyclesBuilder() {
+        final List<Runnable> tasks = new ArrayList<>();
+        SerializationStage stage = new SerializationStage(mock(Channel.class), new Executor() {
+
+            @Override
+            public void execute(Runnable runnable) {
+                tasks.add(runnable);
+            }
+        });
+        EventBuilder builder = EventBuilder.obtain("Event").put("key", 1L);
+        assertTrue(stage.submit(builder.getData(), 100));
+        assertEquals("Event", builder.getName());
+
+        tasks.get(0).run();
+
+        assertNull(builder.getName());
+        EventBuilder reused = EventBuilder.obtain("Other");
+        assertSame(builder, reused);
+        reused.recycle();
+    }
+}
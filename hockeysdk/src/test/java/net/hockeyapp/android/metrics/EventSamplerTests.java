@@ -0,0 +1,137 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventSamplerTests {
+
+    private EventSampler sut;
+
+    @Before
+    public void setUp() {
+        sut = new EventSampler();
+    }
+
+    @Test
+    public void testEventsAreKeptByDefault() {
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(EventSampler.FULL_SAMPLE_RATE, sut.sample("event"));
+        }
+        assertEquals(0, sut.getSampledOutCount());
+        assertEquals(0, sut.getRateLimitedCount());
+    }
+
+    @Test
+    public void testGlobalSampleRate() {
+        sut.setSampleRate(0);
+        assertEquals(0, sut.sample("event"));
+        assertEquals(1, sut.getSampledOutCount());
+
+        sut.setSampleRate(25);
+        int kept = 0;
+        int total = 20000;
+        for (int i = 0; i < total; i++) {
+            int sampleRate = sut.sample("event");
+            if (sampleRate > 0) {
+                assertEquals(25, sampleRate);
+                kept++;
+            }
+        }
+        assertEquals(total / 4, kept, total / 50);
+    }
+
+    @Test
+    public void testFractionalSampleRatesAreRejected() {
+        for (double percentage : new double[]{0.1, 12.5, 99.9}) {
+            try {
+                sut.setSampleRate(percentage);
+                fail("Accepted " + percentage);
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                sut.setSampleRate("event", percentage);
+                fail("Accepted " + percentage);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(100, sut.sample("event"));
+    }
+
+    @Test
+    public void testPerEventSampleRateOverridesGlobalRate() {
+        sut.setSampleRate(0);
+        sut.setSampleRate("important", 100);
+
+        assertEquals(0, sut.sample("other"));
+        assertEquals(100, sut.sample("important"));
+
+        sut.setSampleRate("important", -1);
+        assertEquals(0, sut.sample("important"));
+    }
+
+    @Test
+    public void testRateLimitDropsEventsBeyondBurst() {
+        sut.setRateLimit("scroll", 0.001, 3);
+
+        assertEquals(100, sut.sample("scroll"));
+        assertEquals(100, sut.sample("scroll"));
+        assertEquals(100, sut.sample("scroll"));
+        assertEquals(0, sut.sample("scroll"));
+        assertEquals(1, sut.getRateLimitedCount());
+        assertEquals(100, sut.sample("other"));
+
+        sut.setRateLimit("scroll", 0, 1);
+        assertEquals(100, sut.sample("scroll"));
+    }
+
+    @Test
+    public void testRateLimitKeepsSampleRate() {
+        sut.setSampleRate("scroll", 0);
+        sut.setRateLimit("scroll", 10, 1);
+        assertEquals(0, sut.sample("scroll"));
+        assertEquals(1, sut.getSampledOutCount());
+        assertEquals(0, sut.getRateLimitedCount());
+    }
+
+    @Test
+    public void testTokenBucketRefillsOverTime() {
+        EventSampler.TokenBucket bucket = new EventSampler.TokenBucket(2, 2);
+        long now = System.nanoTime();
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+
+        // Tokens do not accumulate beyond the capacity.
+        now += TimeUnit.SECONDS.toNanos(60);
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+    }
+
+    @Test
+    public void testResetRemovesAllRules() {
+        sut.setSampleRate(0);
+        sut.setRateLimit("event", 0.001, 1);
+        sut.reset();
+        assertEquals(100, sut.sample("event"));
+        assertEquals(100, sut.sample("event"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSampleRateIsRejected() {
+        sut.setSampleRate(101);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBurstSizeIsRejected() {
+        sut.setRateLimit("event", 1, 0);
+    }
+}
@@ -0,0 +1,166 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class GzipCodecTests {
+
+    @Test
+    public void testMemberCanBeReadByGzipInputStream() throws IOException {
+        byte[] data = randomText(100000);
+        GzipCodec sut = new GzipCodec();
+
+        sut.begin();
+        sut.write(data, 0, data.length);
+        sut.finish();
+
+        byte[] encoded = Arrays.copyOf(sut.getBuffer(), sut.getLength());
+        assertTrue(GzipCodec.isCompressed(encoded, encoded.length));
+        assertArrayEquals(data, gunzip(encoded));
+        sut.release();
+    }
+
+    @Test
+    public void testConcatenatedMembersDecodeToConcatenatedData() throws IOException {
+        GzipCodec sut = new GzipCodec();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] parts = {"first".getBytes("UTF-8"), new byte[0], randomText(5000)};
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            sut.begin();
+            sut.write(part, 0, part.length);
+            sut.finish();
+            stream.write(sut.getBuffer(), 0, sut.getLength());
+            expected.write(part);
+        }
+
+        byte[] encoded = stream.toByteArray();
+        assertArrayEquals(expected.toByteArray(), GzipCodec.decompress(encoded, encoded.length));
+        sut.release();
+    }
+
+    @Test
+    public void testFlushedPiecesFormOneMember() throws IOException {
+        GzipCodec sut = new GzipCodec();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] parts = {"first".getBytes("UTF-8"), new byte[0], randomText(50000)};
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        sut.begin();
+        for (byte[] part : parts) {
+            sut.write(part, 0, part.length);
+            sut.flush();
+            stream.write(sut.getBuffer(), 0, sut.getLength());
+            sut.clear();
+            expected.write(part);
+        }
+        stream.write(GzipCodec.end(sut.getCrc(), sut.getInputLength(), new byte[GzipCodec.END_SIZE]));
+
+        assertArrayEquals(expected.toByteArray(), inflateSingleMember(stream.toByteArray()));
+        sut.release();
+    }
+
+    @Test
+    public void testCombinedCrcMatchesCrcOfConcatenation() throws IOException {
+        byte[] first = randomText(1000);
+        byte[] second = "second".getBytes("UTF-8");
+
+        assertEquals(crc(first, second), GzipCodec.combineCrc(crc(first), crc(second), second.length));
+        assertEquals(crc(first), GzipCodec.combineCrc(crc(first), crc(new byte[0]), 0));
+        assertEquals(crc(new byte[]{'\n'}), GzipCodec.SEPARATOR_CRC);
+    }
+
+    @Test
+    public void testPlainDataIsNotCompressed() throws IOException {
+        byte[] data = "{\"ver\":1}".getBytes("UTF-8");
+
+        assertFalse(GzipCodec.isCompressed(data, data.length));
+        assertFalse(GzipCodec.isCompressed(new byte[0], 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecompressRejectsTruncatedData() throws IOException {
+        byte[] data = randomText(1000);
+        GzipCodec sut = new GzipCodec();
+        sut.begin();
+        sut.write(data, 0, data.length);
+        sut.finish();
+
+        GzipCodec.decompress(sut.getBuffer(), sut.getLength() / 2);
+    }
+
+    private static byte[] randomText(int length) {
+        Random random = new Random(42);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    /**
+     * Decodes data which has to be exactly one gzip member, unlike {@link GZIPInputStream}, which
+     * also accepts several members.
+     */
+    static byte[] inflateSingleMember(byte[] data) throws IOException {
+        assertTrue(GzipCodec.isCompressed(data, data.length));
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(data, GzipCodec.HEADER_SIZE, data.length - GzipCodec.HEADER_SIZE);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    fail("Truncated gzip member");
+                }
+                output.write(chunk, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        assertEquals("Data after the gzip member", 8, inflater.getRemaining());
+        byte[] decoded = output.toByteArray();
+        int trailer = data.length - 8;
+        assertEquals(crc(decoded), readIntLittleEndian(data, trailer));
+        assertEquals(decoded.length, readIntLittleEndian(data, trailer + 4));
+        return decoded;
+    }
+
+    private static int readIntLittleEndian(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static int crc(byte[]... parts) {
+        CRC32 crc = new CRC32();
+        for (byte[] part : parts) {
+            crc.update(part, 0, part.length);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int count;
+        while ((count = inputStream.read(chunk)) != -1) {
+            output.write(chunk, 0, count);
+        }
+        inputStream.close();
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,151 @@
+package net.hockeyapp.android.metrics;
+
+import android.content.Context;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A local stand-in for the ingestion endpoint. It records every request and answers with a
+ * configurable response code. Test classes using it have to ignore
+ * {@code com.sun.net.httpserver.*} in PowerMock.
+ */
+class IngestionServer {
+
+    private final HttpServer mServer;
+    private final URL mUrl;
+    private final List<Long> mRequestTimes = new CopyOnWriteArrayList<>();
+    private volatile int mResponseCode = 200;
+    private volatile byte[] mLastBody;
+    private volatile String mLastContentLength;
+    private volatile String mLastTransferEncoding;
+
+    /**
+     * Creates and starts a server on a free local port.
+     */
+    IngestionServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/v2/track", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mLastContentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+                mLastTransferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+                mLastBody = readFully(exchange.getRequestBody());
+                mRequestTimes.add(System.nanoTime());
+                exchange.sendResponseHeaders(mResponseCode, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/v2/track");
+    }
+
+    /**
+     * Creates a mocked context keeping its files in the given directory. The persistence only
+     * holds it weakly, so tests have to keep a reference to it.
+     */
+    static Context mockContext(File filesDir) {
+        Context context = mock(Context.class);
+        when(context.getFilesDir()).thenReturn(filesDir);
+        return context;
+    }
+
+    /**
+     * Creates a sender uploading the data of a persistence to this server.
+     */
+    Sender createSender(Persistence persistence) {
+        Sender sender = new Sender() {
+
+            @Override
+            protected HttpURLConnection openConnection() {
+                return IngestionServer.this.openConnection();
+            }
+        };
+        sender.setPersistence(persistence);
+        return sender;
+    }
+
+    /**
+     * Opens a connection to this server, for senders overriding more than the connection.
+     *
+     * @return The connection, or null if it could not be opened.
+     */
+    HttpURLConnection openConnection() {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            return connection;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    void setResponseCode(int responseCode) {
+        mResponseCode = responseCode;
+    }
+
+    /**
+     * @return The times the requests were received at, from {@link System#nanoTime()}.
+     */
+    List<Long> getRequestTimes() {
+        return mRequestTimes;
+    }
+
+    int getRequestCount() {
+        return mRequestTimes.size();
+    }
+
+    byte[] getLastBody() {
+        return mLastBody;
+    }
+
+    /**
+     * @return The body of the last request, decompressed and decoded. A compressed body has to
+     * be a single gzip member.
+     */
+    String getLastBodyText() throws IOException {
+        byte[] body = mLastBody;
+        if (GzipCodec.isCompressed(body, body.length)) {
+            body = GzipCodecTests.inflateSingleMember(body);
+        }
+        return new String(body, "UTF-8");
+    }
+
+    String getLastContentLength() {
+        return mLastContentLength;
+    }
+
+    String getLastTransferEncoding() {
+        return mLastTransferEncoding;
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int count;
+        while ((count = inputStream.read(chunk)) != -1) {
+            output.write(chunk, 0, count);
+        }
+        return output.toByteArray();
+    }
+}
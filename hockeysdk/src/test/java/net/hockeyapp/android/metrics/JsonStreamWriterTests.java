@@ -0,0 +1,87 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class JsonStreamWriterTests {
+
+    @Test
+    public void testWriteLong() {
+        long[] values = {0, 7, -7, 10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        JsonStreamWriter sut = new JsonStreamWriter();
+        for (long value : values) {
+            sut.reset();
+            sut.writeLong(value);
+            assertEquals(Long.toString(value), sut.toString());
+        }
+    }
+
+    @Test
+    public void testResetDiscardsContent() {
+        JsonStreamWriter sut = new JsonStreamWriter();
+        sut.write("first");
+        sut.reset();
+        sut.write("second");
+
+        assertEquals(6, sut.length());
+        assertEquals("second", sut.toString());
+    }
+
+    @Test
+    public void testBufferGrows() {
+        JsonStreamWriter sut = new JsonStreamWriter();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sut.write("ab");
+            sut.write('c');
+            expected.append("abc");
+        }
+
+        assertEquals(expected.toString(), sut.toString());
+
+        sut.reset();
+        sut.write("x");
+        assertEquals("x", sut.toString());
+    }
+
+    @Test
+    public void testJsonHelperProducesSameOutputAsStringWriter() throws Exception {
+        JsonStreamWriter sut = new JsonStreamWriter();
+        StringWriter expected = new StringWriter();
+        String text = "quote\" backslash\\ tab\t newline\n \u0001    ümlaut";
+        long[] longs = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE};
+        double[] doubles = {0.0, -0.0, 1.0, -3.0, 0.5, 1.0e7, 1.0e-5, 9999999.0};
+
+        JsonHelper.write(sut, text);
+        JsonHelper.write(expected, text);
+        for (long value : longs) {
+            JsonHelper.write(sut, value);
+            JsonHelper.write(expected, value);
+        }
+        for (double value : doubles) {
+            JsonHelper.write(sut, value);
+            JsonHelper.write(expected, value);
+        }
+
+        assertEquals(expected.toString(), sut.toString());
+    }
+
+    @Test
+    public void testWriteMatchesConvert() throws Exception {
+        String text = "quote\" backslash\\ tab\t newline\n \u0001    ümlaut";
+        double[] doubles = {0.0, -0.0, 1.0, -3.0, 0.5, 1.0e7, 1.0e-5, 9999999.0, 123.25};
+        JsonStreamWriter sut = new JsonStreamWriter();
+
+        JsonHelper.write(sut, text);
+        assertEquals(JsonHelper.convert(text), sut.toString());
+
+        for (double value : doubles) {
+            sut.reset();
+            JsonHelper.write(sut, value);
+            assertEquals(JsonHelper.convert(value), sut.toString());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void testBucketsCoverValues() {
+        for (long value : new long[]{0, 1, 3, 4, 7, 8, 9, 100, 1000, 123456789L, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index < LatencyHistogram.BUCKET_COUNT);
+            assertTrue(value <= LatencyHistogram.upperBound(index));
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+            // At most 25% above the value
+            assertTrue(LatencyHistogram.upperBound(index) - value <= value / 4 + 1);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram sut = new LatencyHistogram();
+        long[] empty = sut.snapshot();
+        assertEquals(0, LatencyHistogram.percentile(empty, sut.getMax(), 50));
+
+        for (int i = 1; i <= 100; i++) {
+            sut.record(i);
+        }
+        sut.record(1000, 10);
+        long[] buckets = sut.snapshot();
+        assertEquals(110, LatencyHistogram.count(buckets));
+
+        long median = LatencyHistogram.percentile(buckets, sut.getMax(), 50);
+        assertTrue(median >= 55 && median <= 55 * 5 / 4);
+        assertEquals(1, LatencyHistogram.percentile(buckets, sut.getMax(), 0));
+        assertEquals(1000, LatencyHistogram.percentile(buckets, sut.getMax(), 99));
+        assertEquals(1000, LatencyHistogram.percentile(buckets, sut.getMax(), 100));
+    }
+
+    @Test
+    public void testNegativeValuesAreRecordedAsZero() {
+        LatencyHistogram sut = new LatencyHistogram();
+        sut.record(-5);
+        sut.record(3, 0);
+        assertEquals(1, LatencyHistogram.count(sut.snapshot()));
+        assertEquals(0, LatencyHistogram.percentile(sut.snapshot(), sut.getMax(), 100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPercentile() {
+        LatencyHistogram.percentile(new LatencyHistogram().snapshot(), 0, 101);
+    }
+}
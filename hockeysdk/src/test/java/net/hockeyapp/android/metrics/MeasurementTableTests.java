@@ -0,0 +1,70 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MeasurementTableTests {
+
+    private static int slotOf(MeasurementTable table, String name) {
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (name.equals(table.getName(slot))) {
+                return slot;
+            }
+        }
+        fail("Missing measurement " + name);
+        return -1;
+    }
+
+    @Test
+    public void testRecordsSummaryStatistics() {
+        MeasurementTable table = new MeasurementTable(null);
+        table.record("latency", 3);
+        table.record("latency", -1);
+        table.record("latency", 10);
+        table.record("size", 7);
+
+        assertEquals(2, table.size());
+        int slot = slotOf(table, "latency");
+        assertEquals(3, table.getCount(slot));
+        assertEquals(12, table.getSum(slot), 0);
+        assertEquals(-1, table.getMin(slot), 0);
+        assertEquals(10, table.getMax(slot), 0);
+        assertNull(table.getBounds());
+    }
+
+    @Test
+    public void testKeepsStatisticsWhenGrowing() {
+        MeasurementTable table = new MeasurementTable(new double[]{1});
+        for (int i = 0; i < 100; i++) {
+            table.record("m" + i, i);
+            table.record("m" + i, -i);
+        }
+
+        assertEquals(100, table.size());
+        for (int i = 0; i < 100; i++) {
+            int slot = slotOf(table, "m" + i);
+            assertEquals(2, table.getCount(slot));
+            assertEquals(0, table.getSum(slot), 0);
+            assertEquals(-i, table.getMin(slot), 0);
+            assertEquals(i, table.getMax(slot), 0);
+            assertEquals(i <= 1 ? 2 : 1, table.getBucketCount(slot, 0));
+            assertEquals(i <= 1 ? 0 : 1, table.getBucketCount(slot, 1));
+        }
+    }
+
+    @Test
+    public void testHistogramBucketsIncludeUpperBound() {
+        MeasurementTable table = new MeasurementTable(new double[]{10, 100});
+        table.record("latency", 5);
+        table.record("latency", 10);
+        table.record("latency", 10.5);
+        table.record("latency", 100);
+        table.record("latency", 1000);
+
+        int slot = slotOf(table, "latency");
+        assertEquals(2, table.getBucketCount(slot, 0));
+        assertEquals(2, table.getBucketCount(slot, 1));
+        assertEquals(1, table.getBucketCount(slot, 2));
+    }
+}
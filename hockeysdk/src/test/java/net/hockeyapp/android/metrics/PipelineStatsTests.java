@@ -0,0 +1,148 @@
+package net.hockeyapp.android.metrics;
+
+import android.content.Context;
+import android.net.TrafficStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+/**
+ * The pipeline counters are shared by the whole process, so the tests compare snapshots taken
+ * before and after the code under test ran.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(TrafficStats.class)
+@PowerMockIgnore({"com.sun.net.httpserver.*", "javax.net.ssl.*"})
+public class PipelineStatsTests {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private IngestionServer mServer;
+    private Context mContext;
+    private Persistence mPersistence;
+    private Sender mSender;
+
+    @Before
+    public void setUp() throws Exception {
+        mockStatic(TrafficStats.class);
+        mServer = new IngestionServer();
+        mContext = IngestionServer.mockContext(mFolder.getRoot());
+        mPersistence = new Persistence(mContext, null);
+        mSender = mServer.createSender(mPersistence);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    private static PipelineStats snapshot(Persistence persistence) {
+        return PipelineCounters.getInstance().snapshot(null, null, null, persistence);
+    }
+
+    @Test
+    public void testStripedCounterSumsAllThreads() throws Exception {
+        final StripedCounter sut = new StripedCounter();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        sut.increment();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        sut.add(5);
+        assertEquals(40005, sut.sum());
+        assertEquals(1, StripedCounter.stripeCount(1));
+        assertEquals(4, StripedCounter.stripeCount(3));
+        assertEquals(8, StripedCounter.stripeCount(64));
+    }
+
+    @Test
+    public void testUploadsAndEndToEndLatencyAreRecorded() {
+        PipelineStats before = snapshot(mPersistence);
+
+        mPersistence.persist(new String[]{"{\"name\":\"a\"}", "{\"name\":\"b\"}"}, 2, System.currentTimeMillis() - 1000, PriorityLane.LOW);
+        PipelineStats persisted = snapshot(mPersistence);
+        assertTrue(persisted.getBytesPersisted() > before.getBytesPersisted());
+        assertEquals(1, persisted.getFilesOnDisk());
+
+        mSender.sendAvailableFiles();
+        PipelineStats after = snapshot(mPersistence);
+        assertEquals(0, after.getFilesOnDisk());
+        assertEquals(1, after.getUploadAttempts() - before.getUploadAttempts());
+        assertEquals(1, after.getUploadSuccesses() - before.getUploadSuccesses());
+        assertEquals(before.getUploadFailures(), after.getUploadFailures());
+        assertEquals(2, after.getEndToEndLatencyCount() - before.getEndToEndLatencyCount());
+        assertTrue(after.getEndToEndLatencyMillis(100) >= 1000);
+    }
+
+    @Test
+    public void testCompressionIsRecorded() {
+        StringBuilder event = new StringBuilder("{\"name\":\"");
+        for (int i = 0; i < 1000; i++) {
+            event.append("repeated ");
+        }
+        event.append("\"}");
+        PipelineStats before = snapshot(mPersistence);
+
+        mPersistence.persist(new String[]{event.toString()});
+        PipelineStats after = snapshot(mPersistence);
+        long persisted = after.getBytesPersisted() - before.getBytesPersisted();
+        long saved = after.getBytesSaved() - before.getBytesSaved();
+        assertEquals(event.length(), persisted + saved);
+        assertTrue(saved > event.length() / 2);
+        assertTrue(after.getCompressionRatio() < 1f);
+    }
+
+    @Test
+    public void testFailuresAreCountedByStatusCode() {
+        PipelineStats before = snapshot(mPersistence);
+        Long unavailableBefore = before.getUploadFailuresByStatusCode().get(503);
+
+        mServer.setResponseCode(503);
+        mPersistence.persist(new String[]{"{\"name\":\"a\"}"}, 1, System.currentTimeMillis(), PriorityLane.LOW);
+        mSender.sendAvailableFiles();
+
+        PipelineStats after = snapshot(mPersistence);
+        assertEquals(1, after.getUploadFailures() - before.getUploadFailures());
+        assertEquals((unavailableBefore != null ? unavailableBefore : 0) + 1, (long) after.getUploadFailuresByStatusCode().get(503));
+        // The data is kept for the next attempt
+        assertEquals(1, after.getFilesOnDisk());
+        assertEquals(before.getEndToEndLatencyCount(), after.getEndToEndLatencyCount());
+    }
+
+    @Test
+    public void testSnapshotIncludesStageCounters() {
+        EventSampler sampler = new EventSampler();
+        sampler.setSampleRate(0);
+        sampler.sample("event");
+        Channel channel = new Channel(null, null);
+        channel.getCoalescer().recordSuppressed();
+
+        PipelineStats stats = PipelineCounters.getInstance().snapshot(sampler, null, channel, null);
+        assertEquals(1, stats.getEventsSampledOut());
+        assertEquals(1, stats.getEventsCoalesced());
+        assertEquals(0, stats.getFilesOnDisk());
+        assertNotNull(stats.toString());
+    }
+}
@@ -0,0 +1,170 @@
+package net.hockeyapp.android.metrics;
+
+import android.content.Context;
+
+import net.hockeyapp.android.metrics.model.EventData;
+import net.hockeyapp.android.metrics.model.SessionStateData;
+import net.hockeyapp.android.utils.Util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Util.class})
+public class PriorityLaneTests {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Persistence mPersistence;
+
+    @Before
+    public void setUp() {
+        mockStatic(Util.class);
+        when(Util.isDebuggerConnected()).thenReturn(false);
+        Context context = mock(Context.class);
+        when(context.getFilesDir()).thenReturn(mFolder.getRoot());
+        mPersistence = new SmallPersistence(context);
+    }
+
+    @Test
+    public void testLaneOfData() {
+        assertEquals(PriorityLane.HIGH, PriorityLane.of(new SessionStateData()));
+        assertEquals(PriorityLane.LOW, PriorityLane.of(new EventData()));
+        assertEquals(PriorityLane.LOW, PriorityLane.of(null));
+    }
+
+    @Test
+    public void testChannelPersistsLanesSeparately() {
+        Persistence persistence = mock(Persistence.class);
+        Channel channel = new Channel(null, persistence);
+        channel.setOverflowPolicy(RingBuffer.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < Channel.MAX_QUEUE_CAPACITY; i++) {
+            channel.mQueue.offer("event");
+        }
+
+        assertFalse(channel.mQueue.offer("event"));
+
+        // The full queue of custom events does not keep out session state, which completes the batch.
+        channel.enqueue("session", PriorityLane.HIGH);
+        assertEquals(1, channel.getDroppedCount());
+        verify(persistence).persist(any(String[].class), eq(1), anyLong(), eq(PriorityLane.HIGH));
+        verify(persistence).persist(any(String[].class), eq(Channel.MAX_QUEUE_CAPACITY), anyLong(), eq(PriorityLane.LOW));
+        assertEquals(0, channel.mPriorityQueue.size());
+        assertEquals(0, channel.mQueue.size());
+    }
+
+    @Test
+    public void testEmptyLaneIsNotPersisted() {
+        Persistence persistence = mock(Persistence.class);
+        Channel channel = new Channel(null, persistence);
+        channel.enqueue("event");
+        channel.synchronize();
+        verify(persistence, never()).persist(any(String[].class), anyInt(), anyLong(), eq(PriorityLane.HIGH));
+    }
+
+    @Test
+    public void testHighLaneIsSentFirst() {
+        mPersistence.persist(batch('e'), 1, 0, PriorityLane.LOW);
+        mPersistence.persist(batch('s'), 1, 0, PriorityLane.HIGH);
+
+        File first = mPersistence.nextAvailableFileInDirectory();
+        assertEquals(mPersistence.getTelemetryDirectory(PriorityLane.HIGH), first.getParentFile());
+        File second = mPersistence.nextAvailableFileInDirectory();
+        assertEquals(mPersistence.getTelemetryDirectory(PriorityLane.LOW), second.getParentFile());
+        assertNull(mPersistence.nextAvailableFileInDirectory());
+    }
+
+    @Test
+    public void testLowLaneEvictsOldestData() {
+        SegmentedLog log = mPersistence.getLog(PriorityLane.LOW);
+        for (int i = 0; i < 10; i++) {
+            mPersistence.persist(batch((char) ('a' + i)), 1, 0, PriorityLane.LOW);
+        }
+        assertTrue(log.getTotalSize() <= SmallPersistence.LOW_QUOTA);
+
+        // The oldest batches have made room for the newest one.
+        File oldest = mPersistence.nextAvailableFileInDirectory();
+        assertFalse(mPersistence.load(oldest).startsWith("a"));
+        assertTrue(log.hasCapacity(0));
+        assertEquals(0, mPersistence.getLog(PriorityLane.HIGH).getTotalSize());
+    }
+
+    @Test
+    public void testLowLaneKeepsDataBeingSent() {
+        for (int i = 0; i < 3; i++) {
+            mPersistence.persist(batch((char) ('a' + i)), 1, 0, PriorityLane.LOW);
+        }
+        File sending = mPersistence.nextAvailableFileInDirectory();
+        for (int i = 3; i < 10; i++) {
+            mPersistence.persist(batch((char) ('a' + i)), 1, 0, PriorityLane.LOW);
+        }
+        assertTrue(sending.exists());
+    }
+
+    @Test
+    public void testHighLaneRejectsNewestData() {
+        SegmentedLog log = mPersistence.getLog(PriorityLane.HIGH);
+        for (int i = 0; i < 10; i++) {
+            mPersistence.persist(batch((char) ('a' + i)), 1, 0, PriorityLane.HIGH);
+        }
+        assertTrue(log.getTotalSize() <= SmallPersistence.HIGH_QUOTA);
+
+        File oldest = mPersistence.nextAvailableFileInDirectory();
+        assertTrue(mPersistence.load(oldest).startsWith("a"));
+        // The other lane still has its whole quota.
+        assertTrue(mPersistence.getLog(PriorityLane.LOW).hasCapacity(SmallPersistence.LOW_QUOTA));
+    }
+
+    private static String[] batch(char c) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            builder.append(c);
+        }
+        return new String[]{builder.toString()};
+    }
+
+    /**
+     * Uses uncompressed logs with a segment per batch and quotas of a few batches.
+     */
+    private static class SmallPersistence extends Persistence {
+
+        static final long HIGH_QUOTA = 2 * BATCH_SIZE;
+        static final long LOW_QUOTA = 4 * BATCH_SIZE;
+
+        private final SegmentedLog[] mSmallLogs = new SegmentedLog[PriorityLane.values().length];
+
+        SmallPersistence(Context context) {
+            super(context, null);
+        }
+
+        @Override
+        synchronized SegmentedLog getLog(PriorityLane lane) {
+            if (mSmallLogs[lane.ordinal()] == null) {
+                mSmallLogs[lane.ordinal()] = new SegmentedLog(getTelemetryDirectory(lane), 1, Long.MAX_VALUE,
+                        lane == PriorityLane.HIGH ? HIGH_QUOTA : LOW_QUOTA, SegmentedLog.SyncPolicy.ON_ROTATE, false);
+            }
+            return mSmallLogs[lane.ordinal()];
+        }
+    }
+}
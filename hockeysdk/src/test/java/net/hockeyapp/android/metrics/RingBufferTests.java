@@ -0,0 +1,148 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTests {
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new RingBuffer<String>(5, RingBuffer.OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(8, new RingBuffer<String>(8, RingBuffer.OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(2, new RingBuffer<String>(1, RingBuffer.OverflowPolicy.DROP_NEWEST).capacity());
+    }
+
+    @Test
+    public void testItemsArePolledInOrder() {
+        RingBuffer<String> sut = new RingBuffer<>(4, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        assertTrue(sut.isEmpty());
+        assertNull(sut.poll());
+
+        for (int round = 0; round < 3; round++) {
+            assertTrue(sut.offer("a"));
+            assertTrue(sut.offer("b"));
+            assertEquals(2, sut.size());
+            assertEquals("a", sut.poll());
+            assertEquals("b", sut.poll());
+            assertNull(sut.poll());
+        }
+    }
+
+    @Test
+    public void testDropNewestKeepsExistingItems() {
+        RingBuffer<String> sut = new RingBuffer<>(2, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        assertTrue(sut.offer("1"));
+        assertTrue(sut.offer("2"));
+        assertFalse(sut.offer("3"));
+
+        assertEquals(1, sut.getDroppedCount());
+        assertEquals("1", sut.poll());
+        assertEquals("2", sut.poll());
+        assertNull(sut.poll());
+    }
+
+    @Test
+    public void testDropOldestMakesRoomForNewItems() {
+        RingBuffer<String> sut = new RingBuffer<>(2, RingBuffer.OverflowPolicy.DROP_OLDEST);
+        assertTrue(sut.offer("1"));
+        assertTrue(sut.offer("2"));
+        assertTrue(sut.offer("3"));
+
+        assertEquals(1, sut.getDroppedCount());
+        assertEquals("2", sut.poll());
+        assertEquals("3", sut.poll());
+        assertNull(sut.poll());
+    }
+
+    @Test
+    public void testBlockWaitsForConsumer() throws Exception {
+        final RingBuffer<String> sut = new RingBuffer<>(2, RingBuffer.OverflowPolicy.BLOCK);
+        assertTrue(sut.offer("0"));
+        assertTrue(sut.offer("1"));
+
+        final CountDownLatch added = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                if (sut.offer("2")) {
+                    added.countDown();
+                }
+            }
+        });
+        producer.start();
+        assertFalse(added.await(50, TimeUnit.MILLISECONDS));
+
+        assertEquals("0", sut.poll());
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        assertEquals("1", sut.poll());
+        assertEquals("2", sut.poll());
+        assertEquals(0, sut.getDroppedCount());
+    }
+
+    @Test
+    public void testDrainToReusesArray() {
+        RingBuffer<String> sut = new RingBuffer<>(8, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        String[] target = new String[4];
+        for (int i = 0; i < 6; i++) {
+            sut.offer(String.valueOf(i));
+        }
+
+        assertEquals(4, sut.drainTo(target));
+        assertArrayEquals(new String[]{"0", "1", "2", "3"}, target);
+        assertEquals(2, sut.drainTo(target));
+        assertEquals("4", target[0]);
+        assertEquals("5", target[1]);
+        assertEquals(0, sut.drainTo(target));
+    }
+
+    @Test
+    public void testConcurrentProducersDoNotLoseItems() throws Exception {
+        final int producers = 4;
+        final int itemsPerProducer = 10000;
+        final RingBuffer<Integer> sut = new RingBuffer<>(64, RingBuffer.OverflowPolicy.BLOCK);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < itemsPerProducer; j++) {
+                        sut.offer(j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+
+        long sum = 0;
+        int received = 0;
+        Integer[] target = new Integer[16];
+        while (received < producers * itemsPerProducer) {
+            int count = sut.drainTo(target);
+            for (int i = 0; i < count; i++) {
+                sum += target[i];
+            }
+            received += count;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long expectedSum = (long) producers * itemsPerProducer * (itemsPerProducer - 1) / 2;
+        assertEquals(expectedSum, sum);
+        assertTrue(sut.isEmpty());
+        assertEquals(0, sut.getDroppedCount());
+    }
+}
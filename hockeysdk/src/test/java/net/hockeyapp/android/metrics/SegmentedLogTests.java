@@ -0,0 +1,227 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SegmentedLogTests {
+
+    private static final long MAX_AGE = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testBatchesAreAppendedToActiveSegment() throws IOException {
+        SegmentedLog sut = createLog(1024, 4096);
+
+        assertTrue(sut.append(bytes("a\nb")));
+        assertTrue(sut.append(bytes("c")));
+        assertEquals(0, sut.getSealedSegmentCount());
+        assertEquals(5 + 2 * BatchFormat.HEADER_SIZE, sut.getTotalSize());
+
+        File segment = sut.nextSegment(Collections.<File>emptyList());
+        assertNotNull(segment);
+        assertEquals("a\nb\nc", read(segment));
+        assertEquals(1, sut.getSealedSegmentCount());
+    }
+
+    @Test
+    public void testSegmentIsSealedWhenExceedingSize() throws IOException {
+        SegmentedLog sut = createLog(BatchFormat.HEADER_SIZE + 4, 4096);
+
+        sut.append(bytes("abc"));
+        assertEquals(0, sut.getSealedSegmentCount());
+        sut.append(bytes("def"));
+        assertEquals(1, sut.getSealedSegmentCount());
+        sut.append(bytes("ghi"));
+
+        List<File> served = new ArrayList<>();
+        File first = sut.nextSegment(served);
+        assertEquals("abc\ndef", read(first));
+        served.add(first);
+
+        // Active segment is not sealed while another segment is pending
+        assertNull(sut.nextSegment(served));
+
+        sut.acknowledge(first);
+        served.remove(first);
+        File second = sut.nextSegment(served);
+        assertEquals("ghi", read(second));
+    }
+
+    @Test
+    public void testAppendIsRejectedIfBudgetIsExhausted() {
+        SegmentedLog sut = createLog(1024, 8 + 2 * BatchFormat.HEADER_SIZE);
+
+        assertTrue(sut.append(bytes("abcd")));
+        assertFalse(sut.append(bytes("efgh")));
+        assertTrue(sut.hasCapacity(1));
+        assertEquals(4 + BatchFormat.HEADER_SIZE, sut.getTotalSize());
+
+        File segment = sut.nextSegment(Collections.<File>emptyList());
+        assertTrue(sut.acknowledge(segment));
+        assertFalse(segment.exists());
+        assertEquals(0, sut.getTotalSize());
+        assertTrue(sut.append(bytes("efgh")));
+    }
+
+    @Test
+    public void testUncommittedDataIsTruncatedOnRecovery() throws IOException {
+        SegmentedLog sut = createLog(1024, 4096);
+        sut.append(bytes("committed"));
+        sut.close();
+
+        // Simulate a torn write after the last commit
+        File active = new File(mFolder.getRoot(), "0000000000000000000" + SegmentedLog.SEGMENT_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(active, true);
+        outputStream.write(bytes("\n{\"torn"));
+        outputStream.close();
+
+        SegmentedLog recovered = createLog(1024, 4096);
+        assertEquals(1, recovered.getSealedSegmentCount());
+        File segment = recovered.nextSegment(Collections.<File>emptyList());
+        assertEquals("committed", read(segment));
+        assertEquals(9 + BatchFormat.HEADER_SIZE, recovered.getTotalSize());
+
+        // New data goes to a new segment
+        recovered.append(bytes("next"));
+        recovered.acknowledge(segment);
+        assertEquals("next", read(recovered.nextSegment(Collections.<File>emptyList())));
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreRemovedOnRecovery() throws IOException {
+        SegmentedLog sut = createLog(1, 4096);
+        sut.append(bytes("first"));
+        sut.append(bytes("second"));
+        File first = sut.nextSegment(Collections.<File>emptyList());
+        File copy = new File(mFolder.getRoot(), "copy");
+        assertTrue(first.renameTo(copy));
+        sut.acknowledge(first);
+        sut.close();
+        // Deleting the acknowledged segment "failed"
+        assertTrue(copy.renameTo(first));
+
+        SegmentedLog recovered = createLog(1, 4096);
+
+        assertFalse(first.exists());
+        assertEquals(1, recovered.getSealedSegmentCount());
+        assertEquals("second", read(recovered.nextSegment(Collections.<File>emptyList())));
+    }
+
+    @Test
+    public void testLegacyFilesAreServedFirst() throws IOException {
+        SegmentedLog sut = createLog(1, 4096);
+        sut.append(bytes("segment"));
+        sut.close();
+        File legacy = new File(mFolder.getRoot(), "3b0e6f1e-1c4b-4b5e-9d6a-08a1d2c0e4f7");
+        FileOutputStream outputStream = new FileOutputStream(legacy);
+        outputStream.write(bytes("legacy"));
+        outputStream.close();
+
+        SegmentedLog recovered = createLog(1, 4096);
+
+        assertEquals(2, recovered.getSealedSegmentCount());
+        assertEquals(13 + BatchFormat.HEADER_SIZE, recovered.getTotalSize());
+        assertEquals(legacy, recovered.nextSegment(Collections.<File>emptyList()));
+    }
+
+    @Test
+    public void testCompressedBatchesFormOneGzipStream() throws IOException {
+        SegmentedLog sut = new SegmentedLog(mFolder.getRoot(), 1024 * 1024, MAX_AGE, 1024 * 1024,
+                SegmentedLog.SyncPolicy.ON_ROTATE, true);
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            batch.append("{\"name\":\"Some event\",\"time\":\"2016-05-13T14:00:00.000+0200\"}");
+        }
+
+        sut.append(bytes(batch.toString()));
+        sut.append(bytes("last"));
+        File segment = sut.nextSegment(Collections.<File>emptyList());
+
+        byte[] stored = readBytes(segment);
+        assertTrue(GzipCodec.isCompressed(stored, stored.length));
+        assertEquals(stored.length, sut.getStoredSize());
+        assertEquals(batch.length() + 5, sut.getAppendedSize());
+        assertTrue(sut.getStoredSize() < sut.getAppendedSize() / 10);
+
+        assertEquals(batch + "\nlast", new String(GzipCodecTests.inflateSingleMember(stored), "UTF-8"));
+    }
+
+    @Test
+    public void testCompressedSegmentIsCompletedOnRecovery() throws IOException {
+        SegmentedLog sut = createCompressedLog(4096);
+        sut.append(bytes("first"));
+        sut.append(bytes("second"));
+        sut.close();
+
+        SegmentedLog recovered = createCompressedLog(4096);
+        File segment = recovered.nextSegment(Collections.<File>emptyList());
+        assertEquals("first\nsecond", new String(GzipCodecTests.inflateSingleMember(readBytes(segment)), "UTF-8"));
+        assertEquals(segment.length(), recovered.getTotalSize());
+    }
+
+    @Test
+    public void testCompressedSegmentIsCompletedWhenBatchIsRejected() throws IOException {
+        SegmentedLog sut = createCompressedLog(200);
+        StringBuilder random = new StringBuilder();
+        Random generator = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            random.append((char) ('!' + generator.nextInt(90)));
+        }
+
+        assertTrue(sut.append(bytes("first")));
+        assertFalse(sut.append(bytes(random.toString())));
+        assertEquals(1, sut.getSealedSegmentCount());
+        assertTrue(sut.append(bytes("second")));
+
+        File first = sut.nextSegment(Collections.<File>emptyList());
+        assertEquals("first", new String(GzipCodecTests.inflateSingleMember(readBytes(first)), "UTF-8"));
+        sut.acknowledge(first);
+        File second = sut.nextSegment(Collections.<File>emptyList());
+        assertEquals("second", new String(GzipCodecTests.inflateSingleMember(readBytes(second)), "UTF-8"));
+    }
+
+    private SegmentedLog createLog(long maxSegmentSize, long maxTotalSize) {
+        return new SegmentedLog(mFolder.getRoot(), maxSegmentSize, MAX_AGE, maxTotalSize,
+                SegmentedLog.SyncPolicy.ON_ROTATE, false);
+    }
+
+    private SegmentedLog createCompressedLog(long maxTotalSize) {
+        return new SegmentedLog(mFolder.getRoot(), 1024 * 1024, MAX_AGE, maxTotalSize,
+                SegmentedLog.SyncPolicy.ON_ROTATE, true);
+    }
+
+    private static byte[] bytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(readBytes(file), "UTF-8");
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return BatchFormat.read(inputStream.getChannel());
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package net.hockeyapp.android.metrics;
+
+import android.content.Context;
+import android.net.TrafficStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+/**
+ * Runs the sender against a local stand-in for the ingestion endpoint, with a fake clock
+ * driving the upload backoff.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(TrafficStats.class)
+@PowerMockIgnore({"com.sun.net.httpserver.*", "javax.net.ssl.*"})
+public class SenderBackoffTests {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private IngestionServer mServer;
+
+    private UploadBackoffTests.FakeClock mClock;
+    private Context mContext;
+    private Persistence mPersistence;
+    private Sender sut;
+
+    @Before
+    public void setUp() throws Exception {
+        mockStatic(TrafficStats.class);
+        mServer = new IngestionServer();
+        mServer.setResponseCode(503);
+        mContext = IngestionServer.mockContext(mFolder.getRoot());
+        mPersistence = new Persistence(mContext, null);
+        mClock = new UploadBackoffTests.FakeClock();
+        sut = mServer.createSender(mPersistence);
+        sut.setUploadBackoff(new UploadBackoff(mPersistence.getUploadBackoffFile(), mClock, new Random(1)));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void testFailedUploadsBackOffUntilCircuitOpensAndProbeSucceeds() throws Exception {
+        mPersistence.persist(new String[]{"{\"name\":\"event\"}"});
+        String endpoint = sut.getEndpointURL();
+
+        sut.sendAvailableFiles();
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals("{\"name\":\"event\"}", mServer.getLastBodyText());
+
+        // Retrying right away does not reach the server
+        sut.sendAvailableFiles();
+        assertEquals(1, mServer.getRequestCount());
+
+        for (int failure = 2; failure <= UploadBackoff.FAILURE_THRESHOLD; failure++) {
+            mClock.advance(sut.getUploadBackoff().getDelay(endpoint));
+            sut.sendAvailableFiles();
+            assertEquals(failure, mServer.getRequestCount());
+        }
+        assertEquals(UploadBackoff.State.OPEN, sut.getUploadBackoff().getState(endpoint));
+
+        mClock.advance(UploadBackoff.MAX_BACKOFF);
+        sut.sendAvailableFiles();
+        assertEquals(UploadBackoff.FAILURE_THRESHOLD, mServer.getRequestCount());
+
+        // The state survives a restart
+        UploadBackoff restored = new UploadBackoff(mPersistence.getUploadBackoffFile(), mClock, new Random());
+        assertEquals(UploadBackoff.State.OPEN, restored.getState(endpoint));
+        sut.setUploadBackoff(restored);
+
+        // Probe after the interval, the endpoint recovered
+        mServer.setResponseCode(200);
+        mClock.advance(UploadBackoff.PROBE_INTERVAL);
+        sut.sendAvailableFiles();
+        assertEquals(UploadBackoff.FAILURE_THRESHOLD + 1, mServer.getRequestCount());
+        assertEquals(UploadBackoff.State.CLOSED, restored.getState(endpoint));
+        assertEquals(0, mPersistence.getLog().getTotalSize());
+        assertNull(mPersistence.nextAvailableFileInDirectory());
+    }
+
+    @Test
+    public void testProbeIsScheduledWhenCircuitIsOpen() throws Exception {
+        final List<Long> retryDelays = new CopyOnWriteArrayList<>();
+        sut = new Sender() {
+
+            @Override
+            protected HttpURLConnection openConnection() {
+                return mServer.openConnection();
+            }
+
+            @Override
+            void scheduleRetry(long delayMillis) {
+                retryDelays.add(delayMillis);
+                // Let the time pass on the fake clock, so the retry runs right away.
+                mClock.advance(delayMillis);
+                super.scheduleRetry(0);
+            }
+        };
+        sut.setPersistence(mPersistence);
+        UploadBackoff backoff = new UploadBackoff(null, mClock, new Random(1));
+        sut.setUploadBackoff(backoff);
+        String endpoint = sut.getEndpointURL();
+        for (int failure = 1; failure <= UploadBackoff.FAILURE_THRESHOLD; failure++) {
+            backoff.onFailure(endpoint);
+        }
+        mServer.setResponseCode(200);
+        mPersistence.persist(new String[]{"{\"name\":\"event\"}"});
+
+        // The upload is refused, nothing but the scheduled retry triggers the probe.
+        sut.triggerSending();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (backoff.getState(endpoint) != UploadBackoff.State.CLOSED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(Collections.singletonList(UploadBackoff.PROBE_INTERVAL), retryDelays);
+        assertEquals(UploadBackoff.State.CLOSED, backoff.getState(endpoint));
+        assertEquals("{\"name\":\"event\"}", mServer.getLastBodyText());
+    }
+}
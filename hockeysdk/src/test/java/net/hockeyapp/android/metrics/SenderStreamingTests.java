@@ -0,0 +1,144 @@
+package net.hockeyapp.android.metrics;
+
+import android.content.Context;
+import android.net.TrafficStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+/**
+ * Uploads persisted files to a local stand-in for the ingestion endpoint.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(TrafficStats.class)
+@PowerMockIgnore({"com.sun.net.httpserver.*", "javax.net.ssl.*"})
+public class SenderStreamingTests {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private IngestionServer mServer;
+    private volatile int mMaxWriteLength;
+
+    private Context mContext;
+    private Persistence mPersistence;
+    private Sender sut;
+
+    @Before
+    public void setUp() throws Exception {
+        mockStatic(TrafficStats.class);
+        mServer = new IngestionServer();
+        mContext = IngestionServer.mockContext(mFolder.getRoot());
+        mPersistence = new Persistence(mContext, null);
+        sut = new Sender() {
+
+            @Override
+            protected HttpURLConnection openConnection() {
+                return mServer.openConnection();
+            }
+
+            @Override
+            protected OutputStream getOutputStream(HttpURLConnection connection) throws IOException {
+                return new FilterOutputStream(super.getOutputStream(connection)) {
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        mMaxWriteLength = Math.max(mMaxWriteLength, len);
+                        out.write(b, off, len);
+                    }
+                };
+            }
+        };
+        sut.setPersistence(mPersistence);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void testFilesAreStreamedWithFixedLength() throws Exception {
+        mPersistence.persist(new String[]{"{\"name\":\"a\"}"});
+        assertTrue(mPersistence.hasFilesAvailable());
+        mPersistence.persist(new String[]{"{\"name\":\"b\"}"});
+        mPersistence.getLog().close();
+        // Reopening the log seals the active segment as well.
+        mPersistence = new Persistence(mContext, null);
+        sut.setPersistence(mPersistence);
+
+        Sender.UploadBatch batch = sut.nextBatch();
+        assertEquals(2, batch.getFileCount());
+        assertNull(batch.getPayload());
+        assertTrue(batch.isCompressed());
+        assertTrue(sut.upload(batch));
+
+        byte[] lastBody = mServer.getLastBody();
+        assertEquals(String.valueOf(batch.getContentLength()), mServer.getLastContentLength());
+        assertNull(mServer.getLastTransferEncoding());
+        assertEquals(batch.getContentLength(), lastBody.length);
+        assertEquals("{\"name\":\"a\"}\n{\"name\":\"b\"}", mServer.getLastBodyText());
+        assertNull(mPersistence.nextAvailableFileInDirectory());
+    }
+
+    @Test
+    public void testCorruptFilesAreLeftOutBeforeUploading() throws Exception {
+        long quarantinedBefore = PipelineCounters.getInstance().snapshot(null, null, null, null).getFilesQuarantined();
+        mPersistence.persist(new String[]{"{\"name\":\"a\"}"});
+        File corrupt = mPersistence.nextAvailableFileInDirectory();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(corrupt, "rw");
+        randomAccessFile.seek(BatchFormat.HEADER_SIZE + 1);
+        randomAccessFile.write(0);
+        randomAccessFile.close();
+        mPersistence.makeAvailable(corrupt);
+        mPersistence.persist(new String[]{"{\"name\":\"b\"}"});
+
+        Sender.UploadBatch batch = sut.nextBatch();
+        assertEquals(1, batch.getFileCount());
+        assertFalse(corrupt.exists());
+        assertEquals(1, PipelineCounters.getInstance().snapshot(null, null, null, null).getFilesQuarantined() - quarantinedBefore);
+        assertTrue(sut.upload(batch));
+
+        assertEquals("{\"name\":\"b\"}", mServer.getLastBodyText());
+        assertEquals(0, sut.getUploadBackoff().getFailureCount(sut.getEndpointURL()));
+        assertNull(mPersistence.nextAvailableFileInDirectory());
+    }
+
+    @Test
+    public void testLargeFilesAreStreamedThroughTransferBuffer() throws Exception {
+        // Random content does not compress, so the file is several times the transfer buffer.
+        Random random = new Random(1);
+        StringBuilder event = new StringBuilder("{\"name\":\"");
+        for (int i = 0; i < 6 * Sender.TRANSFER_BUFFER_SIZE; i++) {
+            event.append((char) ('a' + random.nextInt(26)));
+        }
+        event.append("\"}");
+        mPersistence.persist(new String[]{event.toString()});
+
+        sut.sendAvailableFiles();
+
+        byte[] lastBody = mServer.getLastBody();
+        assertTrue(lastBody.length > 2 * Sender.TRANSFER_BUFFER_SIZE);
+        assertEquals(String.valueOf(lastBody.length), mServer.getLastContentLength());
+        assertTrue(mMaxWriteLength <= Sender.TRANSFER_BUFFER_SIZE);
+        assertEquals(event.toString(), mServer.getLastBodyText());
+    }
+}
@@ -0,0 +1,111 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.metrics.model.Base;
+import net.hockeyapp.android.metrics.model.Data;
+import net.hockeyapp.android.metrics.model.Domain;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class SerializationStageTests {
+
+    private Channel mockChannel;
+    private List<Runnable> scheduledTasks;
+    private SerializationStage sut;
+
+    @Before
+    public void setUp() {
+        mockChannel = mock(Channel.class);
+        scheduledTasks = new ArrayList<>();
+        sut = new SerializationStage(mockChannel, new Executor() {
+
+            @Override
+            public void execute(Runnable runnable) {
+                scheduledTasks.add(runnable);
+            }
+        });
+    }
+
+    @Test
+    public void testSubmitDoesNotSerializeOnCallerThread() {
+        assertTrue(sut.submit(new Data<Domain>()));
+
+        verifyZeroInteractions(mockChannel);
+        assertEquals(1, sut.getPendingCount());
+        assertEquals(1, scheduledTasks.size());
+    }
+
+    @Test
+    public void testSubmittedItemsAreSerializedInOrderInOneRun() {
+        Base first = new Data<Domain>();
+        Base second = new Data<Domain>();
+        Base third = new Data<Domain>();
+        sut.submit(first);
+        sut.submit(second);
+        sut.submit(third);
+        assertEquals(1, scheduledTasks.size());
+
+        scheduledTasks.get(0).run();
+
+        InOrder inOrder = inOrder(mockChannel);
+        inOrder.verify(mockChannel).enqueueData(eq(first), anyLong(), anyInt());
+        inOrder.verify(mockChannel).enqueueData(eq(second), anyLong(), anyInt());
+        inOrder.verify(mockChannel).enqueueData(eq(third), anyLong(), anyInt());
+        assertEquals(0, sut.getPendingCount());
+        assertEquals(3, sut.getQueueLatency().getCount());
+        assertEquals(3, sut.getSerializationLatency().getCount());
+    }
+
+    @Test
+    public void testSubmitAfterRunSchedulesAgain() {
+        sut.submit(new Data<Domain>());
+        scheduledTasks.get(0).run();
+        sut.submit(new Data<Domain>());
+
+        assertEquals(2, scheduledTasks.size());
+    }
+
+    @Test
+    public void testFlushSerializesPendingItemsAndSynchronizesChannel() {
+        Base data = new Data<Domain>();
+        sut.submit(data);
+
+        sut.flush();
+
+        InOrder inOrder = inOrder(mockChannel);
+        inOrder.verify(mockChannel).enqueueData(eq(data), anyLong(), anyInt());
+        inOrder.verify(mockChannel).synchronize();
+    }
+
+    @Test
+    public void testSampleRateIsPassedToChannel() {
+        Base sampled = new Data<Domain>();
+        Base unsampled = new Data<Domain>();
+        sut.submit(sampled, 10);
+        sut.submit(unsampled);
+
+        scheduledTasks.get(0).run();
+
+        verify(mockChannel).enqueueData(eq(sampled), anyLong(), eq(10));
+        verify(mockChannel).enqueueData(eq(unsampled), anyLong(), eq(EventSampler.FULL_SAMPLE_RATE));
+    }
+
+    @Test
+    public void testSubmitRejectsItemsIfTooManyArePending() {
+        for (int i = 0; i < SerializationStage.MAX_PENDING_COUNT; i++) {
+            assertTrue(sut.submit(new Data<Domain>()));
+        }
+
+        assertFalse(sut.submit(new Data<Domain>()));
+    }
+}
@@ -0,0 +1,141 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.Util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Util.class})
+public class TelemetryJournalTests {
+
+    private static final int CAPACITY = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        mockStatic(Util.class);
+        when(Util.isDebuggerConnected()).thenReturn(false);
+    }
+
+    @Test
+    public void testRecordsSurviveReopening() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        TelemetryJournal sut = TelemetryJournal.open(file, CAPACITY);
+        assertTrue(sut.recover().isEmpty());
+        assertTrue(sut.append("{\"name\":\"a\"}"));
+        assertTrue(sut.append("{\"name\":\"ä\"}"));
+
+        // Not closed, as if the process died
+        TelemetryJournal reopened = TelemetryJournal.open(file, CAPACITY);
+        assertEquals(Arrays.asList("{\"name\":\"a\"}", "{\"name\":\"ä\"}"), reopened.recover());
+
+        // New records go after the recovered ones
+        assertTrue(reopened.append("c"));
+        assertEquals(Arrays.asList("{\"name\":\"a\"}", "{\"name\":\"ä\"}", "c"),
+                TelemetryJournal.open(file, CAPACITY).recover());
+        sut.close(false);
+        reopened.close(true);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testDiscardKeepsLaterRecords() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        TelemetryJournal sut = TelemetryJournal.open(file, CAPACITY);
+        sut.append("a");
+        sut.append("b");
+        int position = sut.getPosition();
+        sut.append("c");
+        sut.append("dd");
+
+        sut.discard(position);
+        assertEquals(Arrays.asList("c", "dd"), TelemetryJournal.open(file, CAPACITY).recover());
+
+        sut.discard(sut.getPosition());
+        assertEquals(Collections.<String>emptyList(), TelemetryJournal.open(file, CAPACITY).recover());
+        sut.append("e");
+        assertEquals(Collections.singletonList("e"), TelemetryJournal.open(file, CAPACITY).recover());
+        sut.close(true);
+    }
+
+    @Test
+    public void testRecoveryStopsAtCorruptRecord() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        TelemetryJournal sut = TelemetryJournal.open(file, CAPACITY);
+        sut.append("first");
+        int position = sut.getPosition();
+        sut.append("second");
+        sut.append("third");
+        sut.close(false);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(position + 8);
+        raf.write('S');
+        raf.close();
+
+        TelemetryJournal reopened = TelemetryJournal.open(file, CAPACITY);
+        assertEquals(Collections.singletonList("first"), reopened.recover());
+        assertTrue(reopened.append("fourth"));
+        assertEquals(Arrays.asList("first", "fourth"), TelemetryJournal.open(file, CAPACITY).recover());
+        reopened.close(true);
+    }
+
+    @Test
+    public void testFullJournalRejectsRecords() throws IOException {
+        TelemetryJournal sut = TelemetryJournal.open(new File(mFolder.getRoot(), "journal"), 64);
+        assertTrue(sut.append("0123456789012345678901234567890123456789"));
+        assertFalse(sut.append("0123456789"));
+        sut.discard(sut.getPosition());
+        assertTrue(sut.append("0123456789"));
+        sut.close(true);
+    }
+
+    @Test
+    public void testChannelRecoversJournaledItems() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        Channel channel = new Channel(null, mock(Persistence.class));
+        assertTrue(channel.openJournal(file));
+        channel.enqueue("a");
+        channel.enqueue("b");
+        // The process dies before the queue is synchronized
+
+        Persistence persistence = mock(Persistence.class);
+        Channel next = new Channel(null, persistence);
+        assertTrue(next.openJournal(file));
+        ArgumentCaptor<String[]> captor = ArgumentCaptor.forClass(String[].class);
+        verify(persistence).persist(captor.capture());
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(captor.getValue()));
+
+        // Recovered and persisted items are not recovered again
+        next.enqueue("c");
+        next.synchronize();
+        List<String> remaining = TelemetryJournal.open(file, TelemetryJournal.DEFAULT_CAPACITY).recover();
+        assertTrue(remaining.isEmpty());
+
+        next.closeJournal();
+        assertFalse(next.isJournalOpen());
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,144 @@
+package net.hockeyapp.android.metrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UploadBackoffTests {
+
+    private static final String ENDPOINT = "https://example.com/v2/track";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FakeClock mClock;
+    private File mStateFile;
+    private UploadBackoff sut;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mStateFile = new File(mFolder.getRoot(), "backoff");
+        sut = new UploadBackoff(mStateFile, mClock, new Random(42));
+    }
+
+    @Test
+    public void testDelayGrowsExponentiallyWithJitter() {
+        long previousMax = 0;
+        for (int failure = 1; failure < UploadBackoff.FAILURE_THRESHOLD; failure++) {
+            assertTrue(sut.tryAcquire(ENDPOINT));
+            sut.onFailure(ENDPOINT);
+
+            long expected = UploadBackoff.INITIAL_BACKOFF << (failure - 1);
+            long delay = sut.getDelay(ENDPOINT);
+            assertTrue(delay >= expected / 2);
+            assertTrue(delay <= expected);
+            assertTrue(delay > previousMax / 2);
+            previousMax = expected;
+
+            assertFalse(sut.tryAcquire(ENDPOINT));
+            mClock.advance(delay);
+        }
+        assertEquals(UploadBackoff.State.CLOSED, sut.getState(ENDPOINT));
+    }
+
+    @Test
+    public void testJitterSpreadsDelays() {
+        UploadBackoff other = new UploadBackoff(null, mClock, new Random(7));
+
+        sut.onFailure(ENDPOINT);
+        other.onFailure(ENDPOINT);
+
+        assertNotEquals(sut.getDelay(ENDPOINT), other.getDelay(ENDPOINT));
+    }
+
+    @Test
+    public void testCircuitOpensAfterRepeatedFailuresAndProbes() {
+        failUntilOpen();
+
+        assertEquals(UploadBackoff.State.OPEN, sut.getState(ENDPOINT));
+        assertEquals(UploadBackoff.PROBE_INTERVAL, sut.getDelay(ENDPOINT));
+        mClock.advance(UploadBackoff.PROBE_INTERVAL - 1);
+        assertFalse(sut.tryAcquire(ENDPOINT));
+
+        mClock.advance(1);
+        assertEquals(UploadBackoff.State.HALF_OPEN, sut.getState(ENDPOINT));
+        assertTrue(sut.tryAcquire(ENDPOINT));
+        // Only one probe at a time
+        assertFalse(sut.tryAcquire(ENDPOINT));
+
+        // Failed probe keeps the circuit open for another interval
+        sut.onFailure(ENDPOINT);
+        assertEquals(UploadBackoff.State.OPEN, sut.getState(ENDPOINT));
+        assertFalse(sut.tryAcquire(ENDPOINT));
+
+        mClock.advance(UploadBackoff.PROBE_INTERVAL);
+        assertTrue(sut.tryAcquire(ENDPOINT));
+        sut.onSuccess(ENDPOINT);
+        assertEquals(UploadBackoff.State.CLOSED, sut.getState(ENDPOINT));
+        assertEquals(0, sut.getFailureCount(ENDPOINT));
+        assertTrue(sut.tryAcquire(ENDPOINT));
+    }
+
+    @Test
+    public void testEndpointsAreIndependent() {
+        failUntilOpen();
+
+        assertTrue(sut.tryAcquire("https://other.example.com"));
+    }
+
+    @Test
+    public void testStateSurvivesRestart() {
+        failUntilOpen();
+        mClock.advance(1000);
+
+        UploadBackoff restored = new UploadBackoff(mStateFile, mClock, new Random());
+
+        assertEquals(UploadBackoff.State.OPEN, restored.getState(ENDPOINT));
+        assertEquals(UploadBackoff.FAILURE_THRESHOLD, restored.getFailureCount(ENDPOINT));
+        assertEquals(UploadBackoff.PROBE_INTERVAL - 1000, restored.getDelay(ENDPOINT));
+
+        mClock.advance(UploadBackoff.PROBE_INTERVAL);
+        assertTrue(restored.tryAcquire(ENDPOINT));
+        restored.onSuccess(ENDPOINT);
+        assertFalse(mStateFile.exists());
+    }
+
+    @Test
+    public void testRestoredDelayIsCappedIfClockWentBack() {
+        failUntilOpen();
+        mClock.advance(-24 * 60 * 60 * 1000);
+
+        UploadBackoff restored = new UploadBackoff(mStateFile, mClock, new Random());
+
+        assertEquals(UploadBackoff.PROBE_INTERVAL, restored.getDelay(ENDPOINT));
+    }
+
+    private void failUntilOpen() {
+        for (int failure = 0; failure < UploadBackoff.FAILURE_THRESHOLD; failure++) {
+            mClock.advance(sut.getDelay(ENDPOINT));
+            assertTrue(sut.tryAcquire(ENDPOINT));
+            sut.onFailure(ENDPOINT);
+        }
+    }
+
+    static class FakeClock implements UploadBackoff.Clock {
+
+        private volatile long mTime = 1500000000000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return mTime;
+        }
+
+        void advance(long millis) {
+            mTime += millis;
+        }
+    }
+}
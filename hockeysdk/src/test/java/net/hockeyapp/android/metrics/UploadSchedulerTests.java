@@ -0,0 +1,167 @@
+package net.hockeyapp.android.metrics;
+
+import net.hockeyapp.android.utils.AsyncTaskUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UploadSchedulerTests {
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newCachedThreadPool();
+        AsyncTaskUtils.setCustomExecutor(mExecutor);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        AsyncTaskUtils.setCustomExecutor(null);
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBacklogIsDrainedWithBoundedParallelism() throws Exception {
+        FakeSender sender = new FakeSender(20, 5);
+        UploadScheduler sut = sender.getUploadScheduler();
+        sut.setMaxParallelUploads(3);
+
+        sut.schedule();
+        waitForDrain(sut);
+
+        assertEquals(20, sender.mUploaded.get());
+        assertTrue(sender.mMaxConcurrent.get() <= 3);
+        assertTrue(sender.mMaxConcurrent.get() > 1);
+        assertEquals(20, sut.getLastDrainRequestCount());
+        assertEquals(20, sut.getLastDrainFileCount());
+        assertEquals(20, sut.getLastPassAttemptCount());
+        assertTrue(sut.getLastDrainTime() >= 0);
+    }
+
+    @Test
+    public void testFailedUploadStopsPass() throws Exception {
+        FakeSender sender = new FakeSender(5, 0);
+        sender.mFail = true;
+        UploadScheduler sut = sender.getUploadScheduler();
+        sut.setMaxParallelUploads(1);
+
+        sut.schedule();
+        waitForIdle(sut);
+
+        assertEquals(1, sender.mAttempts.get());
+        assertEquals(1, sut.getLastPassAttemptCount());
+        assertEquals(0, sut.getLastDrainRequestCount());
+        assertEquals(0, sut.getLastDrainFileCount());
+        assertEquals(-1, sut.getLastDrainTime());
+    }
+
+    @Test
+    public void testRefusedUploadsAreAttemptsButNotDeliveries() throws Exception {
+        FakeSender sender = new FakeSender(3, 0);
+        UploadScheduler sut = sender.getUploadScheduler();
+        sut.setMaxParallelUploads(1);
+        sut.schedule();
+        waitForDrain(sut);
+        assertEquals(3, sut.getLastDrainRequestCount());
+
+        // The backoff refuses the next upload, the last delivery stays the one reported.
+        sender.mRemaining.set(2);
+        sender.mFail = true;
+        sut.schedule();
+        waitForIdle(sut);
+
+        assertEquals(1, sut.getLastPassAttemptCount());
+        assertEquals(3, sut.getLastDrainRequestCount());
+        assertEquals(3, sut.getLastDrainFileCount());
+        assertEquals(3, sender.mUploaded.get());
+    }
+
+    @Test
+    public void testNothingToSendDoesNotRecordDrain() throws Exception {
+        FakeSender sender = new FakeSender(0, 0);
+        UploadScheduler sut = sender.getUploadScheduler();
+
+        sut.schedule();
+        waitForIdle(sut);
+
+        assertEquals(-1, sut.getLastDrainTime());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParallelismMustBePositive() {
+        new FakeSender(0, 0).getUploadScheduler().setMaxParallelUploads(0);
+    }
+
+    private static void waitForDrain(UploadScheduler scheduler) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getLastDrainTime() < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        waitForIdle(scheduler);
+    }
+
+    private static void waitForIdle(UploadScheduler scheduler) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        do {
+            Thread.sleep(10);
+        } while (scheduler.getActiveWorkerCount() > 0 && System.currentTimeMillis() < deadline);
+        assertEquals(0, scheduler.getActiveWorkerCount());
+    }
+
+    private static class FakeSender extends Sender {
+
+        private final AtomicInteger mRemaining;
+        private final long mUploadMillis;
+        private final AtomicInteger mAttempts = new AtomicInteger();
+        private final AtomicInteger mUploaded = new AtomicInteger();
+        private final AtomicInteger mConcurrent = new AtomicInteger();
+        private final AtomicInteger mMaxConcurrent = new AtomicInteger();
+        private volatile boolean mFail;
+
+        FakeSender(int batchCount, long uploadMillis) {
+            mRemaining = new AtomicInteger(batchCount);
+            mUploadMillis = uploadMillis;
+        }
+
+        @Override
+        UploadBatch nextBatch() {
+            int remaining = mRemaining.getAndDecrement();
+            if (remaining <= 0) {
+                return null;
+            }
+            return new UploadBatch(new File[]{new File("batch" + remaining)}, new byte[1], remaining == 1);
+        }
+
+        @Override
+        boolean upload(UploadBatch batch) {
+            mAttempts.incrementAndGet();
+            int concurrent = mConcurrent.incrementAndGet();
+            int max;
+            do {
+                max = mMaxConcurrent.get();
+            } while (concurrent > max && !mMaxConcurrent.compareAndSet(max, concurrent));
+            try {
+                Thread.sleep(mUploadMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mConcurrent.decrementAndGet();
+            if (mFail) {
+                return false;
+            }
+            mUploaded.incrementAndGet();
+            return true;
+        }
+    }
+}
@@ -175,4 +175,30 @@ public class EnvelopeTests extends TestCase {
         assertEquals(expected, writer.toString());
     }
 
+    public void testSerializeWithPreSerializedTags() throws IOException {
+        Envelope item = new Envelope();
+        item.setName("Test string");
+        item.setTime("Test string");
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("key1", "test value 1");
+        item.setTags(tags, "{\"prebuilt\":\"value\"}");
+        StringWriter writer = new StringWriter();
+        item.serialize(writer);
+        String expected = "{\"ver\":1,\"name\":\"Test string\",\"time\":\"Test string\",\"sampleRate\":100,\"tags\":{\"prebuilt\":\"value\"}}";
+        assertEquals(expected, writer.toString());
+    }
+
+    public void testModifyingPreSerializedTagsCopiesThem() throws IOException {
+        Envelope item = new Envelope();
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("key1", "test value 1");
+        item.setTags(tags, "{\"key1\":\"test value 1\"}");
+        item.getTags().put("key2", "test value 2");
+
+        assertEquals(1, tags.size());
+        StringWriter writer = new StringWriter();
+        item.serialize(writer);
+        assertTrue(writer.toString().contains("\"tags\":{\"key1\":\"test value 1\",\"key2\":\"test value 2\"}"));
+    }
+
 }
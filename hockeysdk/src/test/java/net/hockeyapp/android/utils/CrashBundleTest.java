@@ -0,0 +1,156 @@
+package net.hockeyapp.android.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class CrashBundleTest {
+
+    private static final String HEADERS = "Package: net.hockeyapp.test\nVersion Code: 1\n";
+    private static final String STACK_TRACE = "java.lang.RuntimeException\n\tat a.B.run(B.java:1)\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sectionsAreReadBack() throws Exception {
+        File file = write(false,
+                CrashBundle.SECTION_HEADERS, HEADERS,
+                CrashBundle.SECTION_CONTACT, "contact@example.com",
+                CrashBundle.SECTION_DESCRIPTION, "Zeile ü\n😀",
+                CrashBundle.SECTION_STACK_TRACE, STACK_TRACE);
+
+        assertTrue(CrashBundle.isBundle(file));
+        CrashBundle bundle = CrashBundle.read(file);
+        assertEquals(HEADERS, bundle.getHeaders());
+        assertEquals("", bundle.getUserId());
+        assertEquals("contact@example.com", bundle.getContact());
+        assertEquals("Zeile ü\n😀", bundle.getDescription());
+        assertEquals(STACK_TRACE, bundle.getStackTrace());
+        assertEquals(HEADERS + "\n" + STACK_TRACE, bundle.getRaw());
+        assertEquals(0, bundle.getRetryCount());
+    }
+
+    @Test
+    public void unknownSectionsAreSkipped() throws Exception {
+        File file = write(false,
+                CrashBundle.SECTION_HEADERS, HEADERS,
+                42, "from a newer version",
+                CrashBundle.SECTION_STACK_TRACE, STACK_TRACE);
+
+        CrashBundle bundle = CrashBundle.read(file);
+        assertEquals(HEADERS, bundle.getHeaders());
+        assertEquals(STACK_TRACE, bundle.getStackTrace());
+    }
+
+    @Test(expected = IOException.class)
+    public void damagedBundleIsRejected() throws Exception {
+        File file = write(false, CrashBundle.SECTION_HEADERS, HEADERS, CrashBundle.SECTION_STACK_TRACE, STACK_TRACE);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(CrashBundle.HEADER_SIZE + CrashBundle.SECTION_HEADER_SIZE);
+        randomAccessFile.write('p');
+        randomAccessFile.close();
+
+        CrashBundle.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedBundleIsRejected() throws Exception {
+        File file = write(false, CrashBundle.SECTION_HEADERS, HEADERS, CrashBundle.SECTION_STACK_TRACE, STACK_TRACE);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(file.length() - 20);
+        randomAccessFile.close();
+
+        CrashBundle.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void bundleWithoutChecksumIsRejected() throws Exception {
+        CrashBundle.read(write(true, CrashBundle.SECTION_STACK_TRACE, STACK_TRACE));
+    }
+
+    @Test
+    public void retryCountIsUpdatedInPlace() throws Exception {
+        File file = write(false, CrashBundle.SECTION_STACK_TRACE, STACK_TRACE);
+        long lastModified = 1000000000000L;
+        assertTrue(file.setLastModified(lastModified));
+
+        assertEquals(0, CrashBundle.incrementRetryCount(file));
+        assertEquals(1, CrashBundle.incrementRetryCount(file));
+        CrashBundle bundle = CrashBundle.read(file);
+        assertEquals(2, bundle.getRetryCount());
+        assertEquals(STACK_TRACE, bundle.getStackTrace());
+        assertEquals(lastModified, file.lastModified());
+    }
+
+    @Test
+    public void occurrenceCountIsUpdatedInPlace() throws Exception {
+        File file = write(false, CrashBundle.SECTION_STACK_TRACE, STACK_TRACE);
+        assertEquals(1, CrashBundle.read(file).getOccurrenceCount());
+        assertEquals(0, CrashBundle.readFingerprint(file));
+        CrashBundle.incrementRetryCount(file);
+        CrashBundle.incrementRetryCount(file);
+
+        // A repeated crash gets all attempts to be sent again.
+        assertEquals(2, CrashBundle.incrementOccurrenceCount(file));
+        assertEquals(3, CrashBundle.incrementOccurrenceCount(file));
+        CrashBundle bundle = CrashBundle.read(file);
+        assertEquals(3, bundle.getOccurrenceCount());
+        assertEquals(0, bundle.getRetryCount());
+        assertEquals(STACK_TRACE, bundle.getStackTrace());
+    }
+
+    @Test
+    public void textReportIsNotABundle() throws Exception {
+        File file = folder.newFile("legacy.stacktrace");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write((HEADERS + "\n" + STACK_TRACE).getBytes("UTF-8"));
+        out.close();
+
+        assertFalse(CrashBundle.isBundle(file));
+        assertNull(CrashBundle.read(file));
+        assertFalse(CrashBundle.isBundle(folder.newFile("empty.stacktrace")));
+        assertNull(CrashBundle.read(folder.newFile("empty2.stacktrace")));
+    }
+
+    /**
+     * Writes a bundle from pairs of section types and texts.
+     */
+    private File write(boolean omitChecksum, Object... sections) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CrashBundle.MAGIC);
+        out.write(CrashBundle.VERSION);
+        out.write(new byte[CrashBundle.HEADER_SIZE - 5]);
+        CRC32 checksum = new CRC32();
+        for (int i = 0; i < sections.length; i += 2) {
+            byte[] payload = ((String) sections[i + 1]).getBytes("UTF-8");
+            out.write((Integer) sections[i]);
+            out.writeInt(payload.length);
+            out.write(payload);
+            checksum.update(payload);
+        }
+        if (!omitChecksum) {
+            out.write(CrashBundle.SECTION_CHECKSUM);
+            out.writeInt(4);
+            out.writeInt((int) checksum.getValue());
+        }
+        out.close();
+
+        File file = folder.newFile();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(bytes.toByteArray());
+        fileOut.close();
+        return file;
+    }
+}
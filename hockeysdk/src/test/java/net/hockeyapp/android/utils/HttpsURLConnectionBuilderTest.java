@@ -16,6 +16,7 @@ import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 
+import java.io.ByteArrayOutputStream;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
@@ -23,6 +24,7 @@ import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Mockito.times;
@@ -100,6 +102,25 @@ public class HttpsURLConnectionBuilderTest {
         }
     }
 
+    @Test
+    public void streamingMultipartDataIsSentInFixedLengthMode() throws Exception {
+        HttpsURLConnection urlConnection = mock(HttpsURLConnection.class);
+        mockStatic(Util.class);
+        Mockito.when(Util.openHttpsConnection(any(URL.class))).thenReturn(urlConnection);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Mockito.when(urlConnection.getOutputStream()).thenReturn(body);
+        StreamingMultipartEntity entity = new StreamingMultipartEntity().addPart("raw", "java.lang.RuntimeException");
+
+        new HttpsURLConnectionBuilder(TEST_URL)
+                .setRequestMethod("POST")
+                .writeMultipartData(entity)
+                .build();
+
+        verify(urlConnection).setFixedLengthStreamingMode((int) entity.getContentLength());
+        verify(urlConnection).setRequestProperty("Content-Type", entity.getContentType());
+        assertEquals(entity.getContentLength(), body.size());
+    }
+
     private void testTls1_2Setting(int apiLevel, int tlsSetExpectedCalls) throws Exception {
         TestUtils.setInternalState(Build.VERSION.class, "SDK_INT", apiLevel);
         URL url = mock(URL.class);
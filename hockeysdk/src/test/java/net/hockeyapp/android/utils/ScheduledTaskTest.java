@@ -0,0 +1,242 @@
+package net.hockeyapp.android.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ScheduledTaskTest {
+
+    @After
+    public void tearDown() {
+        AsyncTaskUtils.setCustomExecutor(null);
+    }
+
+    @Test
+    public void sharedSchedulerIsReused() {
+        ScheduledExecutorService scheduler = AsyncTaskUtils.getScheduler();
+        assertNotNull(scheduler);
+        assertSame(scheduler, AsyncTaskUtils.getScheduler());
+    }
+
+    @Test
+    public void taskRunsOnSchedulerThreadAfterDelay() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        ScheduledTask task = new ScheduledTask(new Runnable() {
+
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                ran.countDown();
+            }
+        });
+
+        assertTrue(task.schedule(10));
+        assertTrue(task.isScheduled());
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals("HockeyApp Scheduler", threadName.get());
+        waitUntilIdle(task);
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        ScheduledTask task = new ScheduledTask(new Runnable() {
+
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+
+        task.schedule(50);
+        task.cancel();
+        assertFalse(task.isScheduled());
+        Thread.sleep(200);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void taskCanBeRescheduledAndReused() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        ScheduledTask task = new ScheduledTask(new Runnable() {
+
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+
+        // Scheduling again replaces the pending run.
+        task.schedule(1000);
+        task.schedule(10);
+        waitUntilIdle(task);
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+
+        task.schedule(10);
+        waitUntilIdle(task);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (runs.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void scheduleIfIdleKeepsPendingRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final ScheduledTask task = new ScheduledTask(new Runnable() {
+
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+
+        // Concurrent callers schedule the task once.
+        final AtomicInteger scheduled = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (task.scheduleIfIdle(50)) {
+                        scheduled.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, scheduled.get());
+
+        waitUntilIdle(task);
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+        assertTrue(task.scheduleIfIdle(1000));
+        task.cancel();
+    }
+
+    @Test
+    public void runDoesNotClearRunScheduledMeanwhile() throws Exception {
+        final AtomicReference<Thread> schedulerThread = new AtomicReference<>();
+        ScheduledThreadPoolExecutor custom = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                schedulerThread.set(thread);
+                return thread;
+            }
+        });
+        try {
+            AsyncTaskUtils.setCustomExecutor(custom);
+            final AtomicInteger runs = new AtomicInteger();
+            ScheduledTask task = new ScheduledTask(new Runnable() {
+
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            });
+
+            synchronized (task) {
+                task.schedule(0);
+                // Wait until the first run started and waits for the lock, then schedule again.
+                long deadline = System.currentTimeMillis() + 5000;
+                while ((schedulerThread.get() == null || schedulerThread.get().getState() != Thread.State.BLOCKED)
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertEquals(Thread.State.BLOCKED, schedulerThread.get().getState());
+                task.schedule(60000);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (runs.get() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, runs.get());
+            assertTrue(task.isScheduled());
+            task.cancel();
+            assertFalse(task.isScheduled());
+        } finally {
+            custom.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dueTaskIsHandedToCustomExecutor() throws Exception {
+        final AtomicInteger executed = new AtomicInteger();
+        AsyncTaskUtils.setCustomExecutor(new Executor() {
+
+            @Override
+            public void execute(Runnable runnable) {
+                executed.incrementAndGet();
+                runnable.run();
+            }
+        });
+        final CountDownLatch ran = new CountDownLatch(1);
+        ScheduledTask task = new ScheduledTask(new Runnable() {
+
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+
+        task.schedule(0);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executed.get());
+    }
+
+    @Test
+    public void scheduledCustomExecutorReplacesScheduler() throws Exception {
+        ScheduledThreadPoolExecutor custom = new ScheduledThreadPoolExecutor(1);
+        try {
+            AsyncTaskUtils.setCustomExecutor(custom);
+            assertSame(custom, AsyncTaskUtils.getScheduler());
+
+            final CountDownLatch ran = new CountDownLatch(1);
+            new ScheduledTask(new Runnable() {
+
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            }).schedule(0);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            assertEquals(1, custom.getCompletedTaskCount() + custom.getActiveCount());
+        } finally {
+            custom.shutdownNow();
+        }
+    }
+
+    private static void waitUntilIdle(ScheduledTask task) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (task.isScheduled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(task.isScheduled());
+    }
+}
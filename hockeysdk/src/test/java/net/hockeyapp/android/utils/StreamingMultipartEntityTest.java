@@ -0,0 +1,104 @@
+package net.hockeyapp.android.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class StreamingMultipartEntityTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bodyIsComposedOfTextAndFileRanges() throws Exception {
+        File file = write("0123456789ü");
+        StreamingMultipartEntity entity = new StreamingMultipartEntity();
+        entity.beginPart("raw").appendText("Log:\n").appendFile(file, 2, 5).appendText("!");
+        entity.addPart("sdk", "HockeySDK");
+        entity.beginPart("empty");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+
+        String boundary = entity.getBoundary();
+        String expected = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"raw\"\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: 8bit\r\n\r\n"
+                + "Log:\n23456!\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"sdk\"\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: 8bit\r\n\r\n"
+                + "HockeySDK\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"empty\"\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: 8bit\r\n\r\n"
+                + "\r\n--" + boundary + "--\r\n";
+        assertEquals(expected, out.toString("UTF-8"));
+        assertEquals(out.size(), entity.getContentLength());
+        assertEquals("multipart/form-data; boundary=" + boundary, entity.getContentType());
+    }
+
+    @Test
+    public void largeFileIsStreamedInChunks() throws Exception {
+        final int size = 3 * 1024 * 1024 + 17;
+        File file = folder.newFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(size);
+        randomAccessFile.close();
+        StreamingMultipartEntity entity = new StreamingMultipartEntity();
+        entity.beginPart("raw").appendFile(file, 0, size);
+
+        final long[] written = new long[1];
+        final int[] largestWrite = new int[1];
+        entity.writeTo(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                written[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written[0] += len;
+                largestWrite[0] = Math.max(largestWrite[0], len);
+            }
+        });
+
+        assertEquals(entity.getContentLength(), written[0]);
+        assertTrue(largestWrite[0] <= 8 * 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void shortenedFileFails() throws Exception {
+        File file = write("0123456789");
+        StreamingMultipartEntity entity = new StreamingMultipartEntity();
+        entity.beginPart("raw").appendFile(file, 0, 10);
+        write(file, "01234");
+
+        entity.writeTo(new ByteArrayOutputStream());
+    }
+
+    private File write(String content) throws IOException {
+        File file = folder.newFile();
+        write(file, content);
+        return file;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+    }
+}